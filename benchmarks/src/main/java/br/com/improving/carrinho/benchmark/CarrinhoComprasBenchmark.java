@@ -0,0 +1,130 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.improving.carrinho.CarrinhoCompras;
+import br.com.improving.carrinho.CarrinhoComprasFactory;
+import br.com.improving.carrinho.Item;
+import br.com.improving.carrinho.Produto;
+import br.com.improving.carrinho.TipoArmazenamentoItens;
+
+/**
+ * Benchmarks de um único carrinho, em uma thread, para carrinhos de 1 a 100 mil linhas.
+ *
+ * Cada operação deixa o carrinho com o mesmo número de linhas, para que o tamanho medido seja o
+ * do parâmetro. O carrinho é recriado a cada iteração para que as quantidades não cresçam sem
+ * limite nos benchmarks de mescla.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CarrinhoComprasBenchmark
+{
+	/**
+	 * Quantidade de itens que o lote de adicionarItensAoCarrinho reaproveita do carrinho.
+	 */
+	private static final int	TAMANHO_LOTE = 100;
+
+	@Param({"1", "100", "10000", "100000"})
+	int	tamanhoCarrinho;
+
+	@Param({"OBJETOS", "PRIMITIVOS"})
+	TipoArmazenamentoItens	tipoArmazenamento;
+
+	private Produto[]		produtos;
+	private Produto			produtoNovo;
+	private Item[]			lote;
+	private CarrinhoCompras	carrinhoCompras;
+
+	@Setup(Level.Trial)
+	public void gerarProdutos()
+	{
+		produtos = DadosBenchmark.gerarProdutos(1, tamanhoCarrinho);
+		produtoNovo = new Produto(-1L, "Produto-novo");
+		lote = DadosBenchmark.gerarItens(DadosBenchmark.gerarProdutos(1, Math.min(TAMANHO_LOTE, tamanhoCarrinho)));
+	}
+
+	@Setup(Level.Iteration)
+	public void preencherCarrinho()
+	{
+		carrinhoCompras = new CarrinhoComprasFactory(tipoArmazenamento).criar("cliente");
+		DadosBenchmark.preencher(carrinhoCompras, produtos);
+	}
+
+	@Benchmark
+	public void adicionarItemMesclando()
+	{
+		carrinhoCompras.adicionarItem(produtoAleatorio(), BigDecimal.TEN, 1);
+	}
+
+	@Benchmark
+	public boolean adicionarItemNovoERemoverPorProduto()
+	{
+		carrinhoCompras.adicionarItem(produtoNovo, BigDecimal.TEN, 1);
+		return carrinhoCompras.removerItem(produtoNovo);
+	}
+
+	@Benchmark
+	public void removerItemPorPosicaoEReadicionar()
+	{
+		int		posicao;
+		Item	item;
+
+		posicao = ThreadLocalRandom.current().nextInt(tamanhoCarrinho);
+		item = carrinhoCompras.getItem(posicao);
+		carrinhoCompras.removerItem(posicao);
+		carrinhoCompras.adicionarItem(item.getProduto(), item.getValorUnitario(), item.getQuantidade());
+	}
+
+	@Benchmark
+	public void removerItemPorProdutoEReadicionar()
+	{
+		Produto	produto;
+
+		produto = produtoAleatorio();
+		carrinhoCompras.removerItem(produto);
+		carrinhoCompras.adicionarItem(produto, BigDecimal.ONE, 1);
+	}
+
+	@Benchmark
+	public BigDecimal getValorTotal()
+	{
+		return carrinhoCompras.getValorTotal();
+	}
+
+	@Benchmark
+	public BigDecimal alterarEObterValorTotal()
+	{
+		carrinhoCompras.adicionarItem(produtoAleatorio(), BigDecimal.ONE, 1);
+		return carrinhoCompras.getValorTotal();
+	}
+
+	@Benchmark
+	public void adicionarItensAoCarrinho()
+	{
+		carrinhoCompras.adicionarItensAoCarrinho(lote);
+	}
+
+	private Produto produtoAleatorio()
+	{
+		return produtos[ThreadLocalRandom.current().nextInt(tamanhoCarrinho)];
+	}
+}
@@ -0,0 +1,70 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.improving.carrinho.CarrinhoCompras;
+import br.com.improving.carrinho.CarrinhoComprasFactory;
+import br.com.improving.carrinho.Produto;
+
+/**
+ * Benchmarks de um carrinho compartilhado por várias threads: escritores mesclando itens e
+ * leitores do valor total, como duas abas do mesmo cliente e o cabeçalho da página.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class CarrinhoComprasConcorrenteBenchmark
+{
+	@Param({"100", "10000"})
+	int	tamanhoCarrinho;
+
+	private Produto[]		produtos;
+	private CarrinhoCompras	carrinhoCompras;
+
+	@Setup(Level.Iteration)
+	public void preencherCarrinho()
+	{
+		produtos = DadosBenchmark.gerarProdutos(1, tamanhoCarrinho);
+		carrinhoCompras = new CarrinhoComprasFactory().criar("cliente");
+		DadosBenchmark.preencher(carrinhoCompras, produtos);
+	}
+
+	@Benchmark
+	@Group("escritaELeitura")
+	@GroupThreads(2)
+	public void adicionarItem()
+	{
+		carrinhoCompras.adicionarItem(
+				produtos[ThreadLocalRandom.current().nextInt(tamanhoCarrinho)],
+				BigDecimal.ONE,
+				1);
+	}
+
+	@Benchmark
+	@Group("escritaELeitura")
+	@GroupThreads(2)
+	public BigDecimal getValorTotal()
+	{
+		return carrinhoCompras.getValorTotal();
+	}
+}
@@ -0,0 +1,127 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.improving.carrinho.CarrinhoCompras;
+import br.com.improving.carrinho.CarrinhoComprasFactory;
+import br.com.improving.carrinho.Produto;
+
+/**
+ * Benchmarks da fábrica com 1 a 1 milhão de carrinhos, cada um com alguns itens.
+ *
+ * Os métodos terminados em Concorrente repetem a operação com todas as threads disponíveis sobre a
+ * mesma fábrica.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class CarrinhoComprasFactoryBenchmark
+{
+	private static final int	ITENS_POR_CARRINHO = 3;
+
+	@Param({"1", "1000", "100000", "1000000"})
+	int	numeroCarrinhos;
+
+	private CarrinhoComprasFactory	factory;
+	private String[]				identificacoes;
+	private Produto[]				produtos;
+	private final AtomicLong		sequencia = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void preencherFactory()
+	{
+		CarrinhoCompras	carrinhoCompras;
+
+		factory = new CarrinhoComprasFactory();
+		produtos = DadosBenchmark.gerarProdutos(1, ITENS_POR_CARRINHO);
+		identificacoes = new String[numeroCarrinhos];
+		for (int i = 0; i < numeroCarrinhos; i++)
+		{
+			identificacoes[i] = "cliente-" + i;
+			carrinhoCompras = factory.criar(identificacoes[i]);
+			DadosBenchmark.preencher(carrinhoCompras, produtos);
+		}
+	}
+
+	@Benchmark
+	public CarrinhoCompras criarExistente()
+	{
+		return factory.criar(identificacaoAleatoria());
+	}
+
+	@Benchmark
+	public boolean criarNovoEInvalidar()
+	{
+		String	identificacao;
+
+		identificacao = "sessao-" + sequencia.incrementAndGet();
+		factory.criar(identificacao).adicionarItem(produtos[0], BigDecimal.TEN, 1);
+		return factory.invalidar(identificacao);
+	}
+
+	@Benchmark
+	public BigDecimal getValorTicketMedio()
+	{
+		return factory.getValorTicketMedio();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public CarrinhoCompras criarExistenteConcorrente()
+	{
+		return criarExistente();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean criarNovoEInvalidarConcorrente()
+	{
+		return criarNovoEInvalidar();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public BigDecimal getValorTicketMedioConcorrente()
+	{
+		return getValorTicketMedio();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public BigDecimal operacoesMistasConcorrente()
+	{
+		int	sorteio;
+
+		sorteio = ThreadLocalRandom.current().nextInt(10);
+		if (sorteio < 6)
+			factory.criar(identificacaoAleatoria()).adicionarItem(produtos[sorteio % ITENS_POR_CARRINHO], BigDecimal.ONE, 0);
+		else if (sorteio < 9)
+			criarNovoEInvalidar();
+		return factory.getValorTicketMedio();
+	}
+
+	private String identificacaoAleatoria()
+	{
+		return identificacoes[ThreadLocalRandom.current().nextInt(numeroCarrinhos)];
+	}
+}
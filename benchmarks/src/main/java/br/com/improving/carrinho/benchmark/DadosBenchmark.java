@@ -0,0 +1,54 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.math.BigDecimal;
+
+import br.com.improving.carrinho.CarrinhoCompras;
+import br.com.improving.carrinho.Item;
+import br.com.improving.carrinho.Produto;
+
+/**
+ * Geração dos produtos, itens e carrinhos usados pelos benchmarks.
+ */
+final class DadosBenchmark
+{
+	private DadosBenchmark()
+	{
+	}
+
+	/**
+	 * Gera produtos com códigos a partir de codigoInicial.
+	 */
+	static Produto[] gerarProdutos(long codigoInicial, int numeroDeProdutos)
+	{
+		Produto[]	produtos;
+
+		produtos = new Produto[numeroDeProdutos];
+		for (int i = 0; i < numeroDeProdutos; i++)
+			produtos[i] = new Produto(codigoInicial + i, "Produto-" + (codigoInicial + i));
+		return produtos;
+	}
+
+	/**
+	 * Gera um item por produto, com valores unitários de 0,01 a 99,99.
+	 */
+	static Item[] gerarItens(Produto[] produtos)
+	{
+		Item[]	itens;
+
+		itens = new Item[produtos.length];
+		for (int i = 0; i < produtos.length; i++)
+			itens[i] = new Item(produtos[i], valorUnitario(i), 1 + i % 5);
+		return itens;
+	}
+
+	static BigDecimal valorUnitario(int indice)
+	{
+		return BigDecimal.valueOf(1 + indice % 9999, 2);
+	}
+
+	static void preencher(CarrinhoCompras carrinhoCompras, Produto[] produtos)
+	{
+		for (int i = 0; i < produtos.length; i++)
+			carrinhoCompras.adicionarItem(produtos[i], valorUnitario(i), 1);
+	}
+}
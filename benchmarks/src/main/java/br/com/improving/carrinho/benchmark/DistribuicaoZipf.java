@@ -0,0 +1,44 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Distribuição de Zipf sobre os índices 0 a n - 1: o índice k é sorteado com probabilidade
+ * proporcional a 1 / (k + 1)^expoente, como a popularidade dos produtos de uma loja, em que poucos
+ * produtos concentram a maior parte das vendas. A distribuição acumulada é calculada uma vez e
+ * cada sorteio é uma busca binária nela.
+ */
+final class DistribuicaoZipf
+{
+	private final double[]	acumulada;
+
+	DistribuicaoZipf(int n, double expoente)
+	{
+		double	soma;
+
+		if (n <= 0 || expoente < 0)
+			throw new IllegalArgumentException("Zipf requer n positivo e expoente nao negativo.");
+		acumulada = new double[n];
+		soma = 0;
+		for (int k = 0; k < n; k++)
+		{
+			soma += 1 / Math.pow(k + 1, expoente);
+			acumulada[k] = soma;
+		}
+		for (int k = 0; k < n; k++)
+			acumulada[k] /= soma;
+	}
+
+	/**
+	 * Retorna o índice correspondente a um valor uniforme entre 0 e 1.
+	 */
+	int sortear(double uniforme)
+	{
+		int	indice;
+
+		indice = Arrays.binarySearch(acumulada, uniforme);
+		if (indice < 0)
+			indice = -indice - 1;
+		return Math.min(indice, acumulada.length - 1);
+	}
+}
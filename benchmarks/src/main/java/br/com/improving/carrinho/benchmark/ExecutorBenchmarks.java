@@ -0,0 +1,41 @@
+package br.com.improving.carrinho.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Ponto de entrada do jar de benchmarks. Aceita os mesmos argumentos de org.openjdk.jmh.Main e
+ * habilita por padrão o profiler de GC, para que bytes alocados por operação apareçam ao lado da
+ * vazão, e a gravação dos resultados em JSON para comparação entre builds.
+ */
+public final class ExecutorBenchmarks
+{
+	private static final String	ARQUIVO_RESULTADOS = "jmh-resultados.json";
+
+	private ExecutorBenchmarks()
+	{
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions		linhaDeComando;
+		ChainedOptionsBuilder	opcoes;
+
+		linhaDeComando = new CommandLineOptions(args);
+		if (linhaDeComando.shouldHelp() || linhaDeComando.shouldList())
+		{
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		opcoes = new OptionsBuilder()
+				.parent(linhaDeComando)
+				.addProfiler(GCProfiler.class);
+		if (!linhaDeComando.getResult().hasValue())
+			opcoes.result(ARQUIVO_RESULTADOS).resultFormat(ResultFormatType.JSON);
+		new Runner(opcoes.build()).run();
+	}
+}
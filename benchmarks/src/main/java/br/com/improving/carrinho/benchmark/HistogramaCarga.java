@@ -0,0 +1,89 @@
+package br.com.improving.carrinho.benchmark;
+
+/**
+ * Histograma de latências em nanossegundos com baldes logarítmicos de 16 subdivisões por potência
+ * de dois, o que limita o erro relativo dos percentis a 1/16. Não é thread-safe: cada thread da
+ * simulação registra no seu próprio histograma, e eles são somados ao final.
+ */
+final class HistogramaCarga
+{
+	private static final int	SUBDIVISOES_BITS = 4;
+	private static final int	SUBDIVISOES = 1 << SUBDIVISOES_BITS;
+	private static final int	NUMERO_BALDES = (64 - SUBDIVISOES_BITS) * SUBDIVISOES;
+
+	private final long[]	baldes = new long[NUMERO_BALDES];
+	private long			contagem;
+	private long			maximo;
+
+	void registrar(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		baldes[balde(nanos)]++;
+		contagem++;
+		maximo = Math.max(maximo, nanos);
+	}
+
+	void somar(HistogramaCarga outro)
+	{
+		for (int i = 0; i < NUMERO_BALDES; i++)
+			baldes[i] += outro.baldes[i];
+		contagem += outro.contagem;
+		maximo = Math.max(maximo, outro.maximo);
+	}
+
+	long contagem()
+	{
+		return contagem;
+	}
+
+	long maximo()
+	{
+		return maximo;
+	}
+
+	/**
+	 * Retorna o maior valor do balde que contém o percentil informado, entre 0 e 100, limitado ao
+	 * máximo registrado, ou zero se não há registros.
+	 */
+	long percentil(double percentil)
+	{
+		long	alvo;
+		long	acumulado;
+
+		if (contagem == 0)
+			return 0;
+		alvo = Math.max(1, (long) Math.ceil(contagem * percentil / 100));
+		acumulado = 0;
+		for (int i = 0; i < NUMERO_BALDES; i++)
+		{
+			acumulado += baldes[i];
+			if (acumulado >= alvo)
+				return Math.min(limiteSuperior(i), maximo);
+		}
+		return maximo;
+	}
+
+	private static int balde(long valor)
+	{
+		int	expoente;
+
+		if (valor < SUBDIVISOES)
+			return (int) valor;
+		expoente = 63 - Long.numberOfLeadingZeros(valor);
+		return (expoente - SUBDIVISOES_BITS + 1) * SUBDIVISOES
+				+ (int) ((valor >>> (expoente - SUBDIVISOES_BITS)) & (SUBDIVISOES - 1));
+	}
+
+	private static long limiteSuperior(int balde)
+	{
+		int	deslocamento;
+
+		if (balde < SUBDIVISOES)
+			return balde;
+		deslocamento = balde / SUBDIVISOES - 1;
+		if (deslocamento + SUBDIVISOES_BITS + 1 >= 63)
+			return Long.MAX_VALUE;
+		return ((long) (SUBDIVISOES + balde % SUBDIVISOES + 1) << deslocamento) - 1;
+	}
+}
@@ -0,0 +1,355 @@
+package br.com.improving.carrinho.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.improving.carrinho.CarrinhoCompras;
+import br.com.improving.carrinho.CarrinhoComprasFactory;
+import br.com.improving.carrinho.ConfiguracaoCarrinhoComprasFactory;
+import br.com.improving.carrinho.Produto;
+import br.com.improving.carrinho.TipoArmazenamentoItens;
+
+/**
+ * Simulação de carga da fábrica com sessões de compra: cada thread abre sessões em sequência, e
+ * cada sessão cria um carrinho, adiciona e remove itens de produtos sorteados por popularidade
+ * (DistribuicaoZipf) e termina com checkout (invalidar) ou abandono, em que o carrinho fica para
+ * a expiração por ociosidade. Uma thread à parte consulta o ticket médio a intervalos.
+ *
+ * Ao final grava um JSON com a vazão e os percentis de latência de cada operação e a ocupação do
+ * heap a cada segundo, para comparação entre builds. Os parâmetros são argumentos chave=valor;
+ * os valores padrão estão em PADROES. Uso, a partir da raiz do projeto:
+ *
+ * <pre>
+ * mvn install
+ * mvn -f benchmarks/pom.xml -P carga verify -Dcarga.argumentos="threads=16 duracaoSegundos=120"
+ * </pre>
+ *
+ * ou, com o jar de benchmarks:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar br.com.improving.carrinho.benchmark.SimulacaoCarga threads=16
+ * </pre>
+ */
+public final class SimulacaoCarga
+{
+	private static final Map<String, String>	PADROES = new LinkedHashMap<>();
+
+	static
+	{
+		PADROES.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+		PADROES.put("aquecimentoSegundos", "10");
+		PADROES.put("duracaoSegundos", "60");
+		PADROES.put("produtos", "10000");
+		PADROES.put("expoenteZipf", "1.0");
+		PADROES.put("passosPorSessao", "8");
+		PADROES.put("probabilidadeRemocao", "0.15");
+		PADROES.put("probabilidadeAbandono", "0.3");
+		PADROES.put("intervaloTicketMillis", "100");
+		PADROES.put("expiracaoSegundos", "30");
+		PADROES.put("armazenamento", TipoArmazenamentoItens.OBJETOS.name());
+		PADROES.put("resultado", "carga-resultados.json");
+	}
+
+	enum Operacao
+	{
+		CRIAR, ADICIONAR_ITEM, REMOVER_ITEM, INVALIDAR, TICKET_MEDIO
+	}
+
+	private final Map<String, String>		parametros;
+	private final CarrinhoComprasFactory	fabrica;
+	private final Produto[]					produtos;
+	private final BigDecimal[]				valoresUnitarios;
+	private final DistribuicaoZipf			popularidade;
+	private final AtomicLong				sessoesAbandonadas = new AtomicLong();
+
+	private volatile boolean	medindo;
+	private volatile boolean	parar;
+
+	private SimulacaoCarga(Map<String, String> parametros)
+	{
+		int	numeroDeProdutos;
+
+		this.parametros = parametros;
+		this.fabrica = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comTipoArmazenamentoItens(TipoArmazenamentoItens.valueOf(parametros.get("armazenamento")))
+				.comExpiracaoPorOciosidade(Duration.ofSeconds(inteiro("expiracaoSegundos"))));
+		numeroDeProdutos = inteiro("produtos");
+		this.produtos = DadosBenchmark.gerarProdutos(1, numeroDeProdutos);
+		this.valoresUnitarios = new BigDecimal[numeroDeProdutos];
+		for (int i = 0; i < numeroDeProdutos; i++)
+			valoresUnitarios[i] = DadosBenchmark.valorUnitario(i);
+		this.popularidade = new DistribuicaoZipf(numeroDeProdutos, decimal("expoenteZipf"));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String>	parametros;
+		int					separador;
+
+		parametros = new LinkedHashMap<>(PADROES);
+		for (String argumento : args)
+		{
+			separador = argumento.indexOf('=');
+			if (separador < 0 || !PADROES.containsKey(argumento.substring(0, separador)))
+				throw new IllegalArgumentException("Argumento invalido: " + argumento + ". Validos: " + PADROES.keySet());
+			if (separador < argumento.length() - 1)
+				parametros.put(argumento.substring(0, separador), argumento.substring(separador + 1));
+		}
+		new SimulacaoCarga(parametros).executar();
+	}
+
+	private void executar() throws Exception
+	{
+		Thread[]				sessoes;
+		HistogramaCarga[][]		latencias;
+		Thread					ticket;
+		List<long[]>			amostrasHeap;
+		HistogramaCarga[]		total;
+		long					inicioMedicao;
+		long					fimMedicao;
+		long					proximaAmostra;
+
+		sessoes = new Thread[inteiro("threads")];
+		latencias = new HistogramaCarga[sessoes.length + 1][];
+		for (int t = 0; t <= sessoes.length; t++)
+		{
+			latencias[t] = new HistogramaCarga[Operacao.values().length];
+			for (int o = 0; o < latencias[t].length; o++)
+				latencias[t][o] = new HistogramaCarga();
+		}
+		for (int t = 0; t < sessoes.length; t++)
+		{
+			int	numero = t;
+
+			sessoes[t] = new Thread(() -> simularSessoes(numero, latencias[numero]), "sessoes-" + t);
+			sessoes[t].start();
+		}
+		ticket = new Thread(() -> consultarTicketMedio(latencias[sessoes.length]), "ticket-medio");
+		ticket.start();
+
+		System.out.println("Aquecimento de " + inteiro("aquecimentoSegundos") + "s com " + sessoes.length + " threads...");
+		Thread.sleep(1000L * inteiro("aquecimentoSegundos"));
+		medindo = true;
+		inicioMedicao = System.nanoTime();
+		amostrasHeap = new ArrayList<>();
+		proximaAmostra = inicioMedicao;
+		for (int segundo = 0; segundo <= inteiro("duracaoSegundos"); segundo++)
+		{
+			proximaAmostra += 1_000_000_000L;
+			amostrasHeap.add(amostrarHeap(segundo));
+			if (segundo < inteiro("duracaoSegundos"))
+				Thread.sleep(Math.max(0, (proximaAmostra - System.nanoTime()) / 1_000_000));
+		}
+		medindo = false;
+		fimMedicao = System.nanoTime();
+		parar = true;
+		for (Thread sessao : sessoes)
+			sessao.join();
+		ticket.join();
+
+		total = new HistogramaCarga[Operacao.values().length];
+		for (int o = 0; o < total.length; o++)
+		{
+			total[o] = new HistogramaCarga();
+			for (HistogramaCarga[] daThread : latencias)
+				total[o].somar(daThread[o]);
+		}
+		gravarResultados(Paths.get(parametros.get("resultado")), total, (fimMedicao - inicioMedicao) / 1e9, amostrasHeap);
+	}
+
+	/**
+	 * Executa sessões até o fim da simulação. Cada sessão tem em média passosPorSessao passos, cada
+	 * um uma inclusão ou, com probabilidadeRemocao, a remoção de um produto incluído antes.
+	 */
+	private void simularSessoes(int numeroThread, HistogramaCarga[] latencias)
+	{
+		SplittableRandom	sorteio;
+		CarrinhoCompras		carrinhoCompras;
+		String				identificacaoCliente;
+		int[]				incluidos;
+		int					quantidadeIncluidos;
+		int					passos;
+		int					passosPorSessao;
+		int					produto;
+		long				inicio;
+		double				probabilidadeRemocao;
+		double				probabilidadeAbandono;
+
+		sorteio = new SplittableRandom(numeroThread);
+		probabilidadeRemocao = decimal("probabilidadeRemocao");
+		probabilidadeAbandono = decimal("probabilidadeAbandono");
+		passosPorSessao = inteiro("passosPorSessao");
+		incluidos = new int[2 * passosPorSessao];
+		for (long sessao = 0; !parar; sessao++)
+		{
+			identificacaoCliente = "sessao-" + numeroThread + "-" + sessao;
+			inicio = System.nanoTime();
+			carrinhoCompras = fabrica.criar(identificacaoCliente);
+			registrar(latencias, Operacao.CRIAR, inicio);
+			passos = 1 + sorteio.nextInt(2 * passosPorSessao - 1);
+			quantidadeIncluidos = 0;
+			for (int passo = 0; passo < passos; passo++)
+			{
+				if (quantidadeIncluidos > 0 && sorteio.nextDouble() < probabilidadeRemocao)
+				{
+					produto = sorteio.nextInt(quantidadeIncluidos);
+					inicio = System.nanoTime();
+					carrinhoCompras.removerItem(produtos[incluidos[produto]]);
+					registrar(latencias, Operacao.REMOVER_ITEM, inicio);
+					incluidos[produto] = incluidos[--quantidadeIncluidos];
+					continue;
+				}
+				produto = popularidade.sortear(sorteio.nextDouble());
+				inicio = System.nanoTime();
+				carrinhoCompras.adicionarItem(produtos[produto], valoresUnitarios[produto], 1 + sorteio.nextInt(3));
+				registrar(latencias, Operacao.ADICIONAR_ITEM, inicio);
+				incluidos[quantidadeIncluidos++] = produto;
+			}
+			if (sorteio.nextDouble() < probabilidadeAbandono)
+			{
+				sessoesAbandonadas.incrementAndGet();
+				continue;
+			}
+			inicio = System.nanoTime();
+			fabrica.invalidar(identificacaoCliente);
+			registrar(latencias, Operacao.INVALIDAR, inicio);
+		}
+	}
+
+	private void consultarTicketMedio(HistogramaCarga[] latencias)
+	{
+		long	inicio;
+
+		while (!parar)
+		{
+			inicio = System.nanoTime();
+			fabrica.getValorTicketMedio();
+			registrar(latencias, Operacao.TICKET_MEDIO, inicio);
+			try
+			{
+				Thread.sleep(inteiro("intervaloTicketMillis"));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void registrar(HistogramaCarga[] latencias, Operacao operacao, long inicio)
+	{
+		if (medindo)
+			latencias[operacao.ordinal()].registrar(System.nanoTime() - inicio);
+	}
+
+	/**
+	 * Retorna {segundo, bytes usados no heap, bytes usados no heap após a última coleta, sessões
+	 * abandonadas até o momento}. Os bytes após a coleta mostram o crescimento do que continua vivo,
+	 * enquanto os bytes usados incluem o lixo ainda não coletado.
+	 */
+	private long[] amostrarHeap(int segundo)
+	{
+		long	usados;
+		long	aposColeta;
+
+		usados = 0;
+		aposColeta = 0;
+		for (MemoryPoolMXBean area : ManagementFactory.getMemoryPoolMXBeans())
+			if (area.getType() == MemoryType.HEAP)
+			{
+				usados += area.getUsage().getUsed();
+				if (area.getCollectionUsage() != null)
+					aposColeta += area.getCollectionUsage().getUsed();
+			}
+		return new long[] { segundo, usados, aposColeta, sessoesAbandonadas.get() };
+	}
+
+	private void gravarResultados(Path arquivo, HistogramaCarga[] latencias, double segundos, List<long[]> amostrasHeap)
+			throws IOException
+	{
+		StringBuilder	json;
+		long			operacoes;
+		long[]			amostra;
+
+		operacoes = 0;
+		json = new StringBuilder("{\n");
+		json.append("  \"data\": \"").append(Instant.now()).append("\",\n");
+		json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+		json.append("  \"processadores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+		json.append("  \"parametros\": {");
+		for (Map.Entry<String, String> parametro : parametros.entrySet())
+			json.append("\n    \"").append(parametro.getKey()).append("\": \"").append(parametro.getValue().replace("\\", "\\\\")).append("\",");
+		json.setLength(json.length() - 1);
+		json.append("\n  },\n");
+		json.append("  \"segundosMedidos\": ").append(formatar(segundos)).append(",\n");
+		json.append("  \"operacoes\": {");
+		for (Operacao operacao : Operacao.values())
+		{
+			HistogramaCarga	histograma = latencias[operacao.ordinal()];
+
+			operacoes += histograma.contagem();
+			json.append("\n    \"").append(operacao).append("\": { \"contagem\": ").append(histograma.contagem())
+					.append(", \"porSegundo\": ").append(formatar(histograma.contagem() / segundos))
+					.append(", \"p50Nanos\": ").append(histograma.percentil(50))
+					.append(", \"p99Nanos\": ").append(histograma.percentil(99))
+					.append(", \"p999Nanos\": ").append(histograma.percentil(99.9))
+					.append(", \"maximoNanos\": ").append(histograma.maximo()).append(" },");
+			System.out.printf(Locale.ROOT, "%-15s %12.1f op/s   p50 %9d ns   p99 %9d ns   p99.9 %9d ns%n", operacao,
+					histograma.contagem() / segundos, histograma.percentil(50), histograma.percentil(99),
+					histograma.percentil(99.9));
+		}
+		json.setLength(json.length() - 1);
+		json.append("\n  },\n");
+		json.append("  \"operacoesPorSegundo\": ").append(formatar(operacoes / segundos)).append(",\n");
+		json.append("  \"heap\": [");
+		for (int i = 0; i < amostrasHeap.size(); i++)
+		{
+			amostra = amostrasHeap.get(i);
+			json.append(i == 0 ? "\n" : ",\n").append("    { \"segundo\": ").append(amostra[0])
+					.append(", \"bytesUsados\": ").append(amostra[1])
+					.append(", \"bytesAposColeta\": ").append(amostra[2])
+					.append(", \"sessoesAbandonadas\": ").append(amostra[3]).append(" }");
+		}
+		json.append("\n  ]\n}\n");
+		if (arquivo.getParent() != null)
+			Files.createDirectories(arquivo.getParent());
+		try (Writer saida = Files.newBufferedWriter(arquivo, StandardCharsets.UTF_8))
+		{
+			saida.write(json.toString());
+		}
+		System.out.println("Resultados gravados em " + arquivo.toAbsolutePath());
+	}
+
+	private int inteiro(String parametro)
+	{
+		return Integer.parseInt(parametros.get(parametro));
+	}
+
+	private double decimal(String parametro)
+	{
+		return Double.parseDouble(parametros.get(parametro));
+	}
+
+	private static String formatar(double valor)
+	{
+		return String.format(Locale.ROOT, "%.3f", valor);
+	}
+}
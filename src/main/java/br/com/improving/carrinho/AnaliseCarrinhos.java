@@ -0,0 +1,129 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resultado de CarrinhoComprasFactory.analisarCarrinhos: totais por produto, distribuição dos
+ * carrinhos por faixa de valor e os carrinhos de maior valor.
+ *
+ * Cada carrinho é contabilizado em um estado consistente, mas carrinhos diferentes podem ter sido
+ * lidos em instantes diferentes enquanto a fábrica continuava sendo alterada.
+ */
+public final class AnaliseCarrinhos
+{
+	private final long								quantidadeCarrinhos;
+	private final BigDecimal						valorTotal;
+	private final Map<Long, BigDecimal>				receitaPorProduto;
+	private final Map<Long, Long>					unidadesPorProduto;
+	private final List<BigDecimal>					limitesFaixas;
+	private final long[]							carrinhosPorFaixa;
+	private final List<Map.Entry<String, BigDecimal>>	maioresCarrinhos;
+
+	AnaliseCarrinhos(TarefaAnaliseCarrinhos.Parcial parcial, List<BigDecimal> limitesFaixas)
+	{
+		Map<Long, BigDecimal>					receitas;
+		Map<Long, Long>							unidades;
+		List<Map.Entry<String, Long>>			maiores;
+		List<Map.Entry<String, BigDecimal>>		maioresEmReais;
+
+		receitas = new HashMap<>(parcial.numeroProdutos() * 2);
+		unidades = new HashMap<>(parcial.numeroProdutos() * 2);
+		for (int i = 0; i < parcial.numeroProdutos(); i++)
+		{
+			receitas.put(parcial.codigos[i], Dinheiro.paraBigDecimal(parcial.receitasCentavos[i]));
+			unidades.put(parcial.codigos[i], parcial.unidades[i]);
+		}
+		maiores = new ArrayList<>(parcial.maiores);
+		maiores.sort(Collections.reverseOrder(TarefaAnaliseCarrinhos.ORDEM_VALOR));
+		maioresEmReais = new ArrayList<>(maiores.size());
+		for (Map.Entry<String, Long> carrinho : maiores)
+			maioresEmReais.add(new AbstractMap.SimpleImmutableEntry<>(carrinho.getKey(),
+					Dinheiro.paraBigDecimal(carrinho.getValue())));
+		this.quantidadeCarrinhos = parcial.quantidadeCarrinhos;
+		this.valorTotal = Dinheiro.paraBigDecimal(parcial.valorTotalCentavos);
+		this.receitaPorProduto = Collections.unmodifiableMap(receitas);
+		this.unidadesPorProduto = Collections.unmodifiableMap(unidades);
+		this.limitesFaixas = Collections.unmodifiableList(limitesFaixas);
+		this.carrinhosPorFaixa = parcial.faixas;
+		this.maioresCarrinhos = Collections.unmodifiableList(maioresEmReais);
+	}
+
+	/**
+	 * Retorna a quantidade de carrinhos analisados.
+	 *
+	 * @return long
+	 */
+	public long getQuantidadeCarrinhos()
+	{
+		return quantidadeCarrinhos;
+	}
+
+	/**
+	 * Retorna a soma dos valores totais dos carrinhos analisados.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal getValorTotal()
+	{
+		return valorTotal;
+	}
+
+	/**
+	 * Retorna a soma dos valores das linhas de cada produto, pelo código do produto.
+	 *
+	 * @return Map
+	 */
+	public Map<Long, BigDecimal> getReceitaPorProduto()
+	{
+		return receitaPorProduto;
+	}
+
+	/**
+	 * Retorna a soma das quantidades de cada produto, pelo código do produto.
+	 *
+	 * @return Map
+	 */
+	public Map<Long, Long> getUnidadesPorProduto()
+	{
+		return unidadesPorProduto;
+	}
+
+	/**
+	 * Retorna os limites das faixas de valor, em ordem crescente.
+	 *
+	 * @return List
+	 */
+	public List<BigDecimal> getLimitesFaixas()
+	{
+		return limitesFaixas;
+	}
+
+	/**
+	 * Retorna a quantidade de carrinhos em cada faixa de valor. A posição 0 conta os carrinhos
+	 * abaixo do primeiro limite, a posição i os carrinhos a partir do limite i - 1 e abaixo do
+	 * limite i, e a última posição os carrinhos a partir do último limite.
+	 *
+	 * @return long[]
+	 */
+	public long[] getCarrinhosPorFaixa()
+	{
+		return carrinhosPorFaixa.clone();
+	}
+
+	/**
+	 * Retorna a identificação do cliente e o valor total dos carrinhos de maior valor, do maior para
+	 * o menor.
+	 *
+	 * @return List
+	 */
+	public List<Map.Entry<String, BigDecimal>> getMaioresCarrinhos()
+	{
+		return maioresCarrinhos;
+	}
+}
@@ -0,0 +1,139 @@
+package br.com.improving.carrinho;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer circular pré-alocado dos eventos de uma fábrica. Publicar não aloca nem bloqueia: a
+ * sequência é reservada por um incremento atômico e o evento é gravado na posição
+ * sequencia % capacidade, sobrescrevendo o evento de capacidade sequências atrás, lido ou não.
+ *
+ * Cada posição ocupa CAMPOS longs consecutivos de dados, o primeiro deles um selo: 2 * sequencia
+ * + 1 enquanto o evento da sequência é gravado e 2 * sequencia + 2 depois. O selo só cresce, então
+ * uma gravação que encontra um selo maior que o seu, de um evento mais novo na mesma posição,
+ * desiste. Uma gravação que encontra um selo ímpar, de um evento mais antigo ainda sendo gravado,
+ * também desiste: tomar a posição deixaria a gravação antiga escrever seus campos sobre o evento
+ * novo. A sequência descartada é anotada na posição para o leitor não esperar por ela. O leitor
+ * confere o selo antes e depois de copiar os campos e, se ele for maior que o esperado ou se o
+ * evento foi descartado, sabe que o perdeu.
+ */
+final class AnelEventosCarrinhos
+{
+	private static final int	CAMPOS = 4;
+	private static final int	SELO = 0;
+	private static final int	CODIGO = 1;
+	private static final int	VALOR_TOTAL = 2;
+	private static final int	QUANTIDADE_TIPO_ESCALA = 3;
+
+	private static final TipoEventoCarrinho[]	TIPOS = TipoEventoCarrinho.values();
+
+	private final int							mascara;
+	private final AtomicLong					proximaSequencia = new AtomicLong();
+	private final AtomicLongArray				dados;
+	private final AtomicReferenceArray<String>	clientes;
+
+	/**
+	 * Por posição, a maior sequência descartada mais um, ou zero se nenhuma foi.
+	 */
+	private final AtomicLongArray				descartadas;
+
+	/**
+	 * @param capacidade arredondada para a potência de dois seguinte.
+	 */
+	AnelEventosCarrinhos(int capacidade)
+	{
+		this.mascara = capacidade == 1 ? 0 : Integer.highestOneBit(capacidade - 1) * 2 - 1;
+		this.dados = new AtomicLongArray((mascara + 1) * CAMPOS);
+		this.clientes = new AtomicReferenceArray<>(mascara + 1);
+		this.descartadas = new AtomicLongArray(mascara + 1);
+	}
+
+	int capacidade()
+	{
+		return mascara + 1;
+	}
+
+	/**
+	 * Retorna a sequência que o próximo evento receberá.
+	 */
+	long proximaSequencia()
+	{
+		return proximaSequencia.get();
+	}
+
+	void publicar(TipoEventoCarrinho tipo, String identificacaoCliente, long codigoProduto, int quantidade,
+			long valorTotalCentavos, int escalaValorTotal)
+	{
+		long	sequencia;
+		long	gravando;
+		long	atual;
+		int		base;
+
+		sequencia = proximaSequencia.getAndIncrement();
+		base = (int) (sequencia & mascara) * CAMPOS;
+		gravando = 2 * sequencia + 1;
+		do
+		{
+			atual = dados.get(base + SELO);
+			if (atual > gravando)
+				return;
+			if ((atual & 1) != 0)
+			{
+				descartar(base / CAMPOS, sequencia);
+				return;
+			}
+		}
+		while (!dados.compareAndSet(base + SELO, atual, gravando));
+		dados.lazySet(base + CODIGO, codigoProduto);
+		dados.lazySet(base + VALOR_TOTAL, valorTotalCentavos);
+		dados.lazySet(base + QUANTIDADE_TIPO_ESCALA,
+				(long) quantidade << 32 | tipo.ordinal() << 16 | escalaValorTotal & 0xFFFF);
+		clientes.lazySet(base / CAMPOS, identificacaoCliente);
+		dados.compareAndSet(base + SELO, gravando, gravando + 1);
+	}
+
+	private void descartar(int posicao, long sequencia)
+	{
+		long	anterior;
+
+		do
+		{
+			anterior = descartadas.get(posicao);
+			if (anterior > sequencia)
+				return;
+		}
+		while (!descartadas.compareAndSet(posicao, anterior, sequencia + 1));
+	}
+
+	/**
+	 * Copia para o evento o evento da sequência informada. Retorna 1 se copiou, 0 se o evento ainda
+	 * não terminou de ser gravado e -1 se ele já foi sobrescrito ou descartado.
+	 */
+	int ler(long sequencia, EventoCarrinho evento)
+	{
+		long	esperado;
+		long	selo;
+		long	quantidadeTipoEscala;
+		int		base;
+
+		base = (int) (sequencia & mascara) * CAMPOS;
+		esperado = 2 * sequencia + 2;
+		selo = dados.get(base + SELO);
+		if (selo < esperado)
+			return selo != esperado - 1 && descartadas.get(base / CAMPOS) > sequencia ? -1 : 0;
+		if (selo > esperado)
+			return -1;
+		evento.codigoProduto = dados.get(base + CODIGO);
+		evento.valorTotalCentavos = dados.get(base + VALOR_TOTAL);
+		quantidadeTipoEscala = dados.get(base + QUANTIDADE_TIPO_ESCALA);
+		evento.identificacaoCliente = clientes.get(base / CAMPOS);
+		if (dados.get(base + SELO) != esperado)
+			return -1;
+		evento.sequencia = sequencia;
+		evento.quantidade = (int) (quantidadeTipoEscala >>> 32);
+		evento.tipo = TIPOS[(int) (quantidadeTipoEscala >>> 16) & 0xFFFF];
+		evento.escalaValorTotal = (short) quantidadeTipoEscala;
+		return 1;
+	}
+}
@@ -0,0 +1,113 @@
+package br.com.improving.carrinho;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Anel de hash consistente que associa clientes a fragmentos. Cada fragmento ocupa vários pontos
+ * do anel, e o cliente pertence ao fragmento do primeiro ponto igual ou seguinte ao hash da sua
+ * identificação. Incluir ou retirar um fragmento muda o dono apenas dos clientes dos trechos do
+ * anel que ele ganha ou perde.
+ *
+ * A instância é imutável; a inclusão e a retirada de fragmentos retornam um novo anel.
+ */
+final class AnelFragmentos
+{
+	static final AnelFragmentos	VAZIO = new AnelFragmentos(new LinkedHashMap<>(), 0);
+
+	private final Map<String, CarrinhoComprasFactory>	fragmentos;
+	private final int									pontosPorFragmento;
+	private final long[]								pontos;
+	private final CarrinhoComprasFactory[]				donos;
+
+	private AnelFragmentos(Map<String, CarrinhoComprasFactory> fragmentos, int pontosPorFragmento)
+	{
+		CarrinhoComprasFactory[]	fragmentosDosPontos;
+		int							i;
+
+		this.fragmentos = fragmentos;
+		this.pontosPorFragmento = pontosPorFragmento;
+		fragmentosDosPontos = fragmentos.values().toArray(new CarrinhoComprasFactory[0]);
+		pontos = new long[fragmentos.size() * pontosPorFragmento];
+		i = 0;
+		// Cada ponto guarda o hash nos 32 bits altos e o índice do fragmento nos baixos, o que
+		// ordena os pontos pelo hash e desempata colisões de forma determinística.
+		for (String nome : fragmentos.keySet())
+		{
+			for (int j = 0; j < pontosPorFragmento; j++)
+				pontos[i * pontosPorFragmento + j] = ((long) espalhar((nome + '#' + j).hashCode()) << 32) | i;
+			i++;
+		}
+		Arrays.sort(pontos);
+		donos = new CarrinhoComprasFactory[pontos.length];
+		for (int j = 0; j < pontos.length; j++)
+			donos[j] = fragmentosDosPontos[(int) pontos[j]];
+	}
+
+	AnelFragmentos incluir(String nome, CarrinhoComprasFactory fragmento, int pontosPorFragmento)
+	{
+		Map<String, CarrinhoComprasFactory>	novosFragmentos;
+
+		if (fragmentos.containsKey(nome) || fragmentos.containsValue(fragmento))
+			throw new IllegalArgumentException("Fragmento já incluído: " + nome);
+		novosFragmentos = new LinkedHashMap<>(fragmentos);
+		novosFragmentos.put(nome, fragmento);
+		return new AnelFragmentos(novosFragmentos, pontosPorFragmento);
+	}
+
+	AnelFragmentos retirar(String nome)
+	{
+		Map<String, CarrinhoComprasFactory>	novosFragmentos;
+
+		novosFragmentos = new LinkedHashMap<>(fragmentos);
+		novosFragmentos.remove(nome);
+		return new AnelFragmentos(novosFragmentos, pontosPorFragmento);
+	}
+
+	/**
+	 * Retorna o fragmento dono do cliente, ou null se o anel não tem fragmentos.
+	 */
+	CarrinhoComprasFactory fragmentoDo(String identificacaoCliente)
+	{
+		long	chave;
+		int		posicao;
+
+		if (pontos.length == 0)
+			return null;
+		chave = (long) espalhar(identificacaoCliente.hashCode()) << 32;
+		posicao = Arrays.binarySearch(pontos, chave);
+		if (posicao < 0)
+			posicao = -posicao - 1;
+		return donos[posicao == pontos.length ? 0 : posicao];
+	}
+
+	CarrinhoComprasFactory fragmento(String nome)
+	{
+		return fragmentos.get(nome);
+	}
+
+	Iterable<CarrinhoComprasFactory> fragmentos()
+	{
+		return fragmentos.values();
+	}
+
+	int numeroDeFragmentos()
+	{
+		return fragmentos.size();
+	}
+
+	/**
+	 * Mistura os bits do hash (finalização do MurmurHash3), que em String.hashCode se concentram
+	 * nos bits baixos para identificações parecidas.
+	 */
+	private static int espalhar(int hash)
+	{
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,209 @@
+package br.com.improving.carrinho;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memória fora do heap para as linhas dos carrinhos com TipoArmazenamentoItens.FORA_DO_HEAP,
+ * dividida em placas de ByteBuffer direto das quais são cortados blocos de tamanho potência de
+ * dois, a partir de 32 bytes. Blocos liberados vão para a lista livre do seu tamanho e são
+ * reutilizados antes de se cortar mais memória das placas; a memória das placas não é devolvida
+ * ao sistema. Blocos maiores que uma placa ganham uma placa própria, que também volta à lista
+ * livre do seu tamanho.
+ *
+ * Um bloco é identificado por um long com o índice da placa nos 32 bits altos e o deslocamento na
+ * placa nos baixos. Os blocos de um mesmo usuário são lidos e gravados sob o bloqueio dele; a
+ * arena só sincroniza a alocação e a liberação, com um monitor por tamanho.
+ *
+ * Os blocos de um dono que é coletado sem liberá-los são liberados pela sua Liberacao, registrada
+ * em registrarDono, na próxima alocação depois da coleta.
+ */
+final class ArenaForaDoHeap
+{
+	/**
+	 * Arena usada pelos carrinhos.
+	 */
+	static final ArenaForaDoHeap	COMPARTILHADA = new ArenaForaDoHeap(1 << 20);
+
+	static final int			TAMANHO_MINIMO_BITS = 5;
+	private static final int	NUMERO_TAMANHOS = 31 - TAMANHO_MINIMO_BITS;
+
+	private final int		tamanhoPlaca;
+	private final long[][]	livres = new long[NUMERO_TAMANHOS][];
+	private final int[]		quantidadeLivres = new int[NUMERO_TAMANHOS];
+	private final Object[]	bloqueios = new Object[NUMERO_TAMANHOS];
+
+	/**
+	 * Placas em ordem de criação, substituídas por uma cópia a cada placa nova para que a leitura
+	 * não precise de bloqueio. placaAtual e usadoPlacaAtual são alterados sob o monitor da arena.
+	 */
+	private volatile ByteBuffer[]	placas = new ByteBuffer[0];
+	private int						placaAtual = -1;
+	private int						usadoPlacaAtual;
+
+	private final ReferenceQueue<Object>	coletados = new ReferenceQueue<>();
+	private final Set<Liberacao>			liberacoes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param tamanhoPlaca potência de dois.
+	 */
+	ArenaForaDoHeap(int tamanhoPlaca)
+	{
+		this.tamanhoPlaca = tamanhoPlaca;
+		for (int i = 0; i < NUMERO_TAMANHOS; i++)
+		{
+			livres[i] = new long[16];
+			bloqueios[i] = new Object();
+		}
+	}
+
+	/**
+	 * Aloca um bloco de pelo menos o número de bytes informado, com conteúdo indefinido.
+	 */
+	long alocar(int bytes)
+	{
+		int	classe;
+
+		liberarColetados();
+		classe = classe(bytes);
+		synchronized (bloqueios[classe])
+		{
+			if (quantidadeLivres[classe] > 0)
+				return livres[classe][--quantidadeLivres[classe]];
+		}
+		return cortar(1 << (classe + TAMANHO_MINIMO_BITS));
+	}
+
+	/**
+	 * Devolve à arena um bloco alocado com o número de bytes informado.
+	 */
+	void liberar(long bloco, int bytes)
+	{
+		int	classe;
+
+		classe = classe(bytes);
+		synchronized (bloqueios[classe])
+		{
+			if (quantidadeLivres[classe] == livres[classe].length)
+				livres[classe] = Arrays.copyOf(livres[classe], livres[classe].length * 2);
+			livres[classe][quantidadeLivres[classe]++] = bloco;
+		}
+	}
+
+	ByteBuffer placa(long bloco)
+	{
+		return placas[(int) (bloco >>> 32)];
+	}
+
+	static int deslocamento(long bloco)
+	{
+		return (int) bloco;
+	}
+
+	/**
+	 * Registra a liberação a ser feita quando o dono for coletado.
+	 */
+	void registrarDono(Liberacao liberacao)
+	{
+		liberacoes.add(liberacao);
+	}
+
+	/**
+	 * Descarta a liberação de um dono que já devolveu os seus blocos.
+	 */
+	void cancelarDono(Liberacao liberacao)
+	{
+		liberacoes.remove(liberacao);
+		liberacao.clear();
+	}
+
+	/**
+	 * Retorna o total de bytes das placas.
+	 */
+	synchronized long bytesReservados()
+	{
+		long	soma;
+
+		soma = 0;
+		for (ByteBuffer placa : placas)
+			soma += placa.capacity();
+		return soma;
+	}
+
+	/**
+	 * Retorna quantos blocos estão nas listas livres.
+	 */
+	int blocosLivres()
+	{
+		int	soma;
+
+		soma = 0;
+		for (int i = 0; i < NUMERO_TAMANHOS; i++)
+			synchronized (bloqueios[i])
+			{
+				soma += quantidadeLivres[i];
+			}
+		return soma;
+	}
+
+	private static int classe(int bytes)
+	{
+		if (bytes <= 1 << TAMANHO_MINIMO_BITS)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(bytes - 1) - TAMANHO_MINIMO_BITS;
+	}
+
+	private synchronized long cortar(int bytes)
+	{
+		ByteBuffer[]	novasPlacas;
+		long			bloco;
+
+		if (bytes >= tamanhoPlaca)
+		{
+			novasPlacas = Arrays.copyOf(placas, placas.length + 1);
+			novasPlacas[placas.length] = ByteBuffer.allocateDirect(bytes);
+			placas = novasPlacas;
+			return (long) placas.length - 1 << 32;
+		}
+		if (placaAtual < 0 || usadoPlacaAtual + bytes > tamanhoPlaca)
+		{
+			novasPlacas = Arrays.copyOf(placas, placas.length + 1);
+			novasPlacas[placas.length] = ByteBuffer.allocateDirect(tamanhoPlaca);
+			placas = novasPlacas;
+			placaAtual = placas.length - 1;
+			usadoPlacaAtual = 0;
+		}
+		bloco = (long) placaAtual << 32 | usadoPlacaAtual;
+		usadoPlacaAtual += bytes;
+		return bloco;
+	}
+
+	private void liberarColetados()
+	{
+		Liberacao	liberacao;
+
+		while ((liberacao = (Liberacao) coletados.poll()) != null)
+		{
+			liberacoes.remove(liberacao);
+			liberacao.liberar();
+		}
+	}
+
+	/**
+	 * Referência ao dono de blocos que, depois de ele ser coletado, libera os blocos que ele ainda
+	 * tinha. Os blocos ficam em um objeto separado do dono, mantido atualizado por ele.
+	 */
+	abstract static class Liberacao extends PhantomReference<Object>
+	{
+		Liberacao(Object dono, ArenaForaDoHeap arena)
+		{
+			super(dono, arena.coletados);
+		}
+
+		abstract void liberar();
+	}
+}
@@ -0,0 +1,331 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Armazenamento das linhas de um carrinho, em ordem de inclusão, com acesso por produto e por
+ * posição.
+ *
+ * As linhas ocupam posições sequenciais; a remoção apenas marca a posição como vaga. Uma árvore
+ * de Fenwick sobre as posições ocupadas responde em O(log n) qual posição física corresponde à
+ * n-ésima posição lógica, e um índice pelo código do produto dá acesso em O(1). As posições vagas
+ * são compactadas quando passam a ser maioria.
+ *
+ * As subclasses decidem como o conteúdo de cada posição é guardado. As posições físicas
+ * retornadas valem apenas até a próxima inclusão ou remoção.
+ *
+ * As subclasses guardam o valor unitário em centavos, arredondado por
+ * Dinheiro.centavosArredondados, e a escala do valor informado. Os raros valores com frações de
+ * centavo são guardados também por inteiro, por código de produto, para que valorUnitario devolva
+ * o valor informado.
+ */
+abstract class ArmazenamentoItens
+{
+	static final int			CAPACIDADE_INICIAL = 8;
+	private static final int	TAMANHO_MINIMO_PARA_COMPACTAR = 16;
+
+	private IndiceCodigos	posicaoPorCodigo = new IndiceCodigos();
+	private int[]			arvoreFenwick = new int[CAPACIDADE_INICIAL + 1];
+	private int				proximaPosicao;
+	private int				tamanho;
+	private int				reorganizacoes;
+
+	/**
+	 * Valores unitários com frações de centavo das linhas que os têm, por código do produto. É
+	 * criado na primeira linha com um desses valores.
+	 */
+	private Map<Long, BigDecimal>	valoresFracionados;
+
+	/**
+	 * Retorna a posição física da linha do produto.
+	 *
+	 * @param codigo
+	 * @return posição física ou -1 caso o produto não esteja no carrinho.
+	 */
+	final int localizar(long codigo)
+	{
+		return posicaoPorCodigo.obter(codigo);
+	}
+
+	/**
+	 * Retorna a posição física da linha de posição lógica informada, em que zero representa a
+	 * primeira linha incluída.
+	 *
+	 * @param posicaoItem
+	 * @return posição física ou -1 caso a posição não exista.
+	 */
+	final int localizarNaPosicao(int posicaoItem)
+	{
+		int	restante;
+		int	indice;
+
+		if (posicaoItem < 0 || posicaoItem >= tamanho)
+			return -1;
+		restante = posicaoItem + 1;
+		indice = 0;
+		for (int passo = Integer.highestOneBit(arvoreFenwick.length - 1); passo > 0; passo >>= 1)
+		{
+			if (indice + passo < arvoreFenwick.length && arvoreFenwick[indice + passo] < restante)
+			{
+				indice += passo;
+				restante -= arvoreFenwick[indice];
+			}
+		}
+		return indice;
+	}
+
+	/**
+	 * Inclui uma linha no final. O produto não pode estar presente no carrinho.
+	 *
+	 * @return posição física da nova linha.
+	 */
+	final int adicionar(Produto produto, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		int	posicao;
+
+		if (proximaPosicao == capacidade())
+			reorganizar(tamanho < capacidade() / 2 ? capacidade() : capacidade() * 2);
+		posicao = proximaPosicao;
+		gravar(posicao, produto, valorUnitario, valorUnitarioCentavos, quantidade);
+		guardarValorFracionado(produto.getCodigo(), valorUnitario);
+		atualizarArvore(posicao, 1);
+		posicaoPorCodigo.definir(produto.getCodigo(), posicao);
+		proximaPosicao++;
+		tamanho++;
+		return posicao;
+	}
+
+	/**
+	 * Altera valor unitário e quantidade da linha, já validados pelo carrinho.
+	 */
+	final void alterar(int posicao, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		regravar(posicao, valorUnitario, valorUnitarioCentavos, quantidade);
+		guardarValorFracionado(codigo(posicao), valorUnitario);
+	}
+
+	/**
+	 * Remove a linha da posição física informada.
+	 *
+	 * @param posicao
+	 */
+	final void remover(int posicao)
+	{
+		guardarValorFracionado(codigo(posicao), null);
+		posicaoPorCodigo.remover(codigo(posicao));
+		descartar(posicao);
+		atualizarArvore(posicao, -1);
+		tamanho--;
+		if (proximaPosicao > TAMANHO_MINIMO_PARA_COMPACTAR && tamanho * 4 < proximaPosicao)
+			reorganizar(Math.max(CAPACIDADE_INICIAL, capacidade() / 2));
+	}
+
+	/**
+	 * Descarta todas as linhas e volta à capacidade inicial, sem desvincular os itens que as
+	 * representavam. É usado quando o conteúdo do carrinho passa a ser guardado fora da memória.
+	 */
+	final void esvaziar()
+	{
+		reiniciar(CAPACIDADE_INICIAL);
+		valoresFracionados = null;
+		posicaoPorCodigo = new IndiceCodigos();
+		arvoreFenwick = new int[CAPACIDADE_INICIAL + 1];
+		proximaPosicao = 0;
+		tamanho = 0;
+		reorganizacoes++;
+	}
+
+	final int tamanho()
+	{
+		return tamanho;
+	}
+
+	/**
+	 * Retorna o fim das posições físicas em uso: as linhas estão, em ordem de inclusão, nas
+	 * posições ocupadas antes dele.
+	 */
+	final int fimPosicoes()
+	{
+		return proximaPosicao;
+	}
+
+	/**
+	 * Retorna quantas vezes as posições físicas foram renumeradas, pela compactação ou pelo
+	 * esvaziamento. Posições obtidas antes de uma renumeração não valem mais.
+	 */
+	final int reorganizacoes()
+	{
+		return reorganizacoes;
+	}
+
+	/**
+	 * Verifica se o valor unitário pode ser guardado por este armazenamento, antes de qualquer
+	 * alteração.
+	 *
+	 * @param valorUnitario
+	 * @throws IllegalArgumentException caso não possa.
+	 */
+	void validarValorUnitario(BigDecimal valorUnitario)
+	{
+	}
+
+	/**
+	 * Retorna um armazenamento no heap com as mesmas linhas e os mesmos itens, devolvendo à arena
+	 * os blocos fora do heap deste, que deixa de ser usado. Os armazenamentos no heap retornam a si
+	 * mesmos.
+	 */
+	ArmazenamentoItens transferirParaHeap()
+	{
+		return this;
+	}
+
+	/**
+	 * Indica se o carrinho deve manter o instantâneo das linhas de uma alteração para outra. Os
+	 * armazenamentos fora do heap retornam false, para que as cópias das linhas no heap existam só
+	 * enquanto o instantâneo montado na leitura for o atual.
+	 */
+	boolean manterInstantaneo()
+	{
+		return true;
+	}
+
+	abstract int capacidade();
+
+	abstract long codigo(int posicao);
+
+	abstract int quantidade(int posicao);
+
+	abstract long valorTotalCentavos(int posicao);
+
+	abstract Produto produto(int posicao);
+
+	abstract long valorUnitarioCentavos(int posicao);
+
+	/**
+	 * Retorna a escala do valor unitário como foi informado.
+	 */
+	abstract int escalaValorUnitario(int posicao);
+
+	/**
+	 * Retorna o valor unitário da linha como foi informado.
+	 */
+	final BigDecimal valorUnitario(int posicao)
+	{
+		BigDecimal	valorFracionado;
+
+		valorFracionado = valorFracionado(posicao);
+		if (valorFracionado != null)
+			return valorFracionado;
+		return Dinheiro.paraBigDecimal(valorUnitarioCentavos(posicao), escalaValorUnitario(posicao));
+	}
+
+	/**
+	 * Retorna o valor unitário da linha se ele tem frações de centavo, ou null caso contrário.
+	 */
+	final BigDecimal valorFracionado(int posicao)
+	{
+		return valoresFracionados == null ? null : valoresFracionados.get(codigo(posicao));
+	}
+
+	/**
+	 * Retorna se alguma linha tem valor unitário com frações de centavo.
+	 */
+	final boolean possuiValoresFracionados()
+	{
+		return valoresFracionados != null && !valoresFracionados.isEmpty();
+	}
+
+	/**
+	 * Retorna a diferença entre o valor total exato da linha e o calculado em centavos, ou null se o
+	 * valor unitário não tem frações de centavo.
+	 */
+	final BigDecimal fracaoValorTotal(int posicao)
+	{
+		BigDecimal	valorFracionado;
+
+		valorFracionado = valorFracionado(posicao);
+		if (valorFracionado == null)
+			return null;
+		return Dinheiro.fracaoDe(valorFracionado, valorUnitarioCentavos(posicao), quantidade(posicao));
+	}
+
+	/**
+	 * Retorna a descrição do produto da linha em UTF-8.
+	 */
+	byte[] descricaoCodificada(int posicao)
+	{
+		return produto(posicao).getDescricao().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Retorna o item que representa a linha. O mesmo item é retornado enquanto a linha existir e
+	 * acompanha as alterações feitas nela.
+	 */
+	abstract Item item(int posicao);
+
+	abstract void gravar(int posicao, Produto produto, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade);
+
+	/**
+	 * Grava valor unitário e quantidade novos na linha.
+	 */
+	abstract void regravar(int posicao, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade);
+
+	/**
+	 * Libera o conteúdo da linha removida, desvinculando do carrinho o item que a representava.
+	 */
+	abstract void descartar(int posicao);
+
+	abstract boolean ocupada(int posicao);
+
+	/**
+	 * Move as linhas ocupadas entre zero e ate, em ordem, para o início de um armazenamento com a
+	 * capacidade informada.
+	 */
+	abstract void compactar(int ate, int novaCapacidade);
+
+	/**
+	 * Descarta todo o conteúdo e recomeça com a capacidade informada.
+	 */
+	abstract void reiniciar(int capacidade);
+
+	/**
+	 * Descarta as posições vagas e reconstrói a árvore e o índice por código em O(n).
+	 */
+	private void reorganizar(int novaCapacidade)
+	{
+		compactar(proximaPosicao, novaCapacidade);
+		reorganizacoes++;
+		proximaPosicao = tamanho;
+		for (int i = 0; i < tamanho; i++)
+			posicaoPorCodigo.definir(codigo(i), i);
+		arvoreFenwick = new int[novaCapacidade + 1];
+		for (int i = 1; i <= novaCapacidade; i++)
+		{
+			if (i <= tamanho)
+				arvoreFenwick[i]++;
+			if (i + (i & -i) <= novaCapacidade)
+				arvoreFenwick[i + (i & -i)] += arvoreFenwick[i];
+		}
+	}
+
+	private void guardarValorFracionado(long codigo, BigDecimal valorUnitario)
+	{
+		if (valorUnitario != null && !Dinheiro.representavelEmCentavos(valorUnitario))
+		{
+			if (valoresFracionados == null)
+				valoresFracionados = new HashMap<>();
+			valoresFracionados.put(codigo, valorUnitario);
+		}
+		else if (valoresFracionados != null)
+			valoresFracionados.remove(codigo);
+	}
+
+	private void atualizarArvore(int posicao, int delta)
+	{
+		for (int i = posicao + 1; i < arvoreFenwick.length; i += i & -i)
+			arvoreFenwick[i] += delta;
+	}
+}
@@ -0,0 +1,392 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Armazenamento com as linhas em um bloco da ArenaForaDoHeap, para que carrinhos em grande número
+ * não ocupem o heap com objetos que o coletor precisa percorrer.
+ *
+ * Cada linha ocupa TAMANHO_LINHA bytes do bloco: código, valor unitário em centavos, o bloco da
+ * descrição do produto, quantidade, escala do valor unitário e a marca de ocupada. A descrição é
+ * guardada em UTF-8 em um bloco próprio, e o Produto é obtido de CatalogoProdutos pelo código
+ * quando a linha é lida, comparando a descrição dele com os bytes guardados; a descrição só é
+ * decodificada se o catálogo não tiver o produto com ela. No heap ficam apenas os arrays primitivos
+ * do índice por código e da árvore de posições, os objetos Item criados quando a linha é lida como
+ * item e o instantâneo das linhas, que o carrinho monta na leitura e descarta na alteração
+ * seguinte.
+ *
+ * Os blocos voltam à arena quando as linhas são removidas ou descartadas, quando o carrinho é
+ * invalidado, por transferirParaHeap, e os que restarem quando o carrinho for coletado.
+ */
+final class ArmazenamentoItensForaDoHeap extends ArmazenamentoItens
+{
+	private static final int	TAMANHO_LINHA = 32;
+	private static final int	CODIGO = 0;
+	private static final int	VALOR_UNITARIO = 8;
+	private static final int	DESCRICAO = 16;
+	private static final int	QUANTIDADE = 24;
+	private static final int	ESCALA = 28;
+	private static final int	OCUPADA = 29;
+
+	private static final int[]	PREFIXOS_UTF8 = { 0, 0, 0xC0, 0xE0, 0xF0 };
+
+	private final CarrinhoCompras	carrinho;
+	private final Blocos			blocos;
+
+	/**
+	 * Itens já criados para as linhas, alocado apenas na primeira leitura como item.
+	 */
+	private Item[]					itens;
+
+	ArmazenamentoItensForaDoHeap(CarrinhoCompras carrinho)
+	{
+		this.carrinho = carrinho;
+		this.blocos = new Blocos(this, CAPACIDADE_INICIAL);
+		ArenaForaDoHeap.COMPARTILHADA.registrarDono(blocos);
+	}
+
+	@Override
+	void validarValorUnitario(BigDecimal valorUnitario)
+	{
+		if (valorUnitario.scale() != (byte) valorUnitario.scale())
+			throw new IllegalArgumentException("Escala do valor unitario fora do limite: " + valorUnitario);
+	}
+
+	/**
+	 * Copia as linhas, em ordem, para um ArmazenamentoItensPrimitivos que adota os itens já
+	 * criados, e libera os blocos deste, cancelando a liberação na coleta.
+	 */
+	@Override
+	ArmazenamentoItens transferirParaHeap()
+	{
+		ArmazenamentoItensPrimitivos	copia;
+		int								posicaoCopia;
+
+		copia = new ArmazenamentoItensPrimitivos(carrinho);
+		for (int posicao = 0; posicao < fimPosicoes(); posicao++)
+		{
+			if (!ocupada(posicao))
+				continue;
+			posicaoCopia = copia.adicionar(produto(posicao), valorUnitario(posicao), valorUnitarioCentavos(posicao),
+					quantidade(posicao));
+			if (itens != null && itens[posicao] != null)
+				copia.adotarItem(posicaoCopia, itens[posicao]);
+		}
+		blocos.liberar();
+		ArenaForaDoHeap.COMPARTILHADA.cancelarDono(blocos);
+		itens = null;
+		return copia;
+	}
+
+	@Override
+	boolean manterInstantaneo()
+	{
+		return false;
+	}
+
+	@Override
+	int capacidade()
+	{
+		return blocos.capacidade;
+	}
+
+	@Override
+	long codigo(int posicao)
+	{
+		return blocos.placa.getLong(blocos.endereco(posicao) + CODIGO);
+	}
+
+	@Override
+	int quantidade(int posicao)
+	{
+		return blocos.placa.getInt(blocos.endereco(posicao) + QUANTIDADE);
+	}
+
+	@Override
+	long valorTotalCentavos(int posicao)
+	{
+		return Dinheiro.multiplicarCentavos(valorUnitarioCentavos(posicao), quantidade(posicao));
+	}
+
+	@Override
+	Produto produto(int posicao)
+	{
+		Produto	produto;
+		long	codigo;
+
+		codigo = codigo(posicao);
+		produto = CatalogoProdutos.COMPARTILHADO.procurar(codigo);
+		if (produto != null && descricaoIgual(posicao, produto.getDescricao()))
+			return produto;
+		return CatalogoProdutos.COMPARTILHADO.obter(codigo, lerDescricao(posicao));
+	}
+
+	@Override
+	long valorUnitarioCentavos(int posicao)
+	{
+		return blocos.placa.getLong(blocos.endereco(posicao) + VALOR_UNITARIO);
+	}
+
+	@Override
+	int escalaValorUnitario(int posicao)
+	{
+		return blocos.placa.get(blocos.endereco(posicao) + ESCALA);
+	}
+
+	/**
+	 * Copia os bytes da descrição guardados na arena, sem decodificá-los nem consultar o catálogo.
+	 */
+	@Override
+	byte[] descricaoCodificada(int posicao)
+	{
+		ByteBuffer	placa;
+		byte[]		bytes;
+		long		bloco;
+		int			endereco;
+
+		bloco = blocos.placa.getLong(blocos.endereco(posicao) + DESCRICAO);
+		placa = ArenaForaDoHeap.COMPARTILHADA.placa(bloco);
+		endereco = ArenaForaDoHeap.deslocamento(bloco);
+		bytes = new byte[placa.getInt(endereco)];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = placa.get(endereco + 4 + i);
+		return bytes;
+	}
+
+	@Override
+	Item item(int posicao)
+	{
+		Item	item;
+
+		if (itens == null)
+			itens = new Item[blocos.capacidade];
+		item = itens[posicao];
+		if (item == null)
+		{
+			item = new Item(produto(posicao), valorUnitario(posicao), quantidade(posicao));
+			item.carrinho = carrinho;
+			itens[posicao] = item;
+		}
+		return item;
+	}
+
+	@Override
+	void gravar(int posicao, Produto produto, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		int	endereco;
+
+		validarValorUnitario(valorUnitario);
+		if (blocos.bloco < 0)
+			blocos.alocar(blocos.capacidade);
+		endereco = blocos.endereco(posicao);
+		blocos.placa.putLong(endereco + CODIGO, produto.getCodigo());
+		blocos.placa.putLong(endereco + VALOR_UNITARIO, valorUnitarioCentavos);
+		blocos.placa.putLong(endereco + DESCRICAO, gravarDescricao(produto.getDescricao()));
+		blocos.placa.putInt(endereco + QUANTIDADE, quantidade);
+		blocos.placa.put(endereco + ESCALA, (byte) valorUnitario.scale());
+		blocos.placa.put(endereco + OCUPADA, (byte) 1);
+	}
+
+	@Override
+	void regravar(int posicao, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		int	endereco;
+
+		validarValorUnitario(valorUnitario);
+		endereco = blocos.endereco(posicao);
+		blocos.placa.putLong(endereco + VALOR_UNITARIO, valorUnitarioCentavos);
+		blocos.placa.putInt(endereco + QUANTIDADE, quantidade);
+		blocos.placa.put(endereco + ESCALA, (byte) valorUnitario.scale());
+		if (itens != null && itens[posicao] != null)
+			itens[posicao].atribuir(valorUnitario, valorUnitarioCentavos, quantidade);
+	}
+
+	@Override
+	void descartar(int posicao)
+	{
+		blocos.liberarLinha(posicao);
+		if (itens != null && itens[posicao] != null)
+		{
+			itens[posicao].carrinho = null;
+			itens[posicao] = null;
+		}
+	}
+
+	@Override
+	boolean ocupada(int posicao)
+	{
+		return blocos.bloco >= 0 && blocos.placa.get(blocos.endereco(posicao) + OCUPADA) != 0;
+	}
+
+	@Override
+	void compactar(int ate, int novaCapacidade)
+	{
+		ByteBuffer	origem;
+		long		blocoAnterior;
+		int			capacidadeAnterior;
+		int			baseAnterior;
+		int			destino;
+
+		if (blocos.bloco < 0)
+		{
+			blocos.capacidade = novaCapacidade;
+			return;
+		}
+		origem = blocos.placa;
+		baseAnterior = blocos.base;
+		blocoAnterior = blocos.bloco;
+		capacidadeAnterior = blocos.capacidade;
+		blocos.alocar(novaCapacidade);
+		destino = 0;
+		for (int i = 0; i < ate; i++)
+		{
+			if (origem.get(baseAnterior + i * TAMANHO_LINHA + OCUPADA) != 0)
+			{
+				for (int campo = 0; campo < TAMANHO_LINHA; campo += 8)
+					blocos.placa.putLong(blocos.endereco(destino) + campo,
+							origem.getLong(baseAnterior + i * TAMANHO_LINHA + campo));
+				if (itens != null)
+					itens[destino] = itens[i];
+				destino++;
+			}
+		}
+		ArenaForaDoHeap.COMPARTILHADA.liberar(blocoAnterior, capacidadeAnterior * TAMANHO_LINHA);
+		if (itens != null)
+		{
+			Arrays.fill(itens, destino, ate, null);
+			itens = Arrays.copyOf(itens, novaCapacidade);
+		}
+	}
+
+	@Override
+	void reiniciar(int capacidade)
+	{
+		blocos.liberar();
+		blocos.capacidade = capacidade;
+		itens = null;
+	}
+
+	private static long gravarDescricao(String descricao)
+	{
+		ByteBuffer	placa;
+		byte[]		bytes;
+		long		bloco;
+		int			endereco;
+
+		bytes = descricao.getBytes(StandardCharsets.UTF_8);
+		bloco = ArenaForaDoHeap.COMPARTILHADA.alocar(4 + bytes.length);
+		placa = ArenaForaDoHeap.COMPARTILHADA.placa(bloco);
+		endereco = ArenaForaDoHeap.deslocamento(bloco);
+		placa.putInt(endereco, bytes.length);
+		for (int i = 0; i < bytes.length; i++)
+			placa.put(endereco + 4 + i, bytes[i]);
+		return bloco;
+	}
+
+	/**
+	 * Compara a descrição com os bytes UTF-8 guardados para a linha, sem decodificá-los. Surrogates
+	 * isolados, que o UTF-8 substitui, são tratados como diferentes, para que a linha seja
+	 * decodificada.
+	 */
+	private boolean descricaoIgual(int posicao, String descricao)
+	{
+		ByteBuffer	placa;
+		long		bloco;
+		int			endereco;
+		int			fim;
+		int			caractere;
+		int			bytes;
+		int			esperado;
+
+		bloco = blocos.placa.getLong(blocos.endereco(posicao) + DESCRICAO);
+		placa = ArenaForaDoHeap.COMPARTILHADA.placa(bloco);
+		endereco = ArenaForaDoHeap.deslocamento(bloco) + 4;
+		fim = endereco + placa.getInt(endereco - 4);
+		for (int i = 0; i < descricao.length(); i += Character.charCount(caractere))
+		{
+			caractere = descricao.codePointAt(i);
+			if (caractere >= Character.MIN_SURROGATE && caractere <= Character.MAX_SURROGATE)
+				return false;
+			bytes = caractere < 0x80 ? 1 : caractere < 0x800 ? 2 : caractere < 0x10000 ? 3 : 4;
+			if (endereco + bytes > fim)
+				return false;
+			for (int k = bytes - 1; k >= 0; k--)
+			{
+				esperado = k == bytes - 1 ? PREFIXOS_UTF8[bytes] | caractere >>> 6 * k : 0x80 | (caractere >>> 6 * k) & 0x3F;
+				if (placa.get(endereco++) != (byte) esperado)
+					return false;
+			}
+		}
+		return endereco == fim;
+	}
+
+	private String lerDescricao(int posicao)
+	{
+		return new String(descricaoCodificada(posicao), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Bloco das linhas do armazenamento, mantido fora dele para que a arena possa liberá-lo, com as
+	 * descrições das linhas ocupadas, depois que o armazenamento for coletado. bloco é -1 enquanto
+	 * nenhuma linha foi gravada.
+	 */
+	private static final class Blocos extends ArenaForaDoHeap.Liberacao
+	{
+		long		bloco = -1;
+		int			capacidade;
+		ByteBuffer	placa;
+		int			base;
+
+		Blocos(ArmazenamentoItensForaDoHeap dono, int capacidade)
+		{
+			super(dono, ArenaForaDoHeap.COMPARTILHADA);
+			this.capacidade = capacidade;
+		}
+
+		int endereco(int posicao)
+		{
+			return base + posicao * TAMANHO_LINHA;
+		}
+
+		/**
+		 * Passa a usar um bloco novo, com todas as linhas vagas.
+		 */
+		void alocar(int novaCapacidade)
+		{
+			bloco = ArenaForaDoHeap.COMPARTILHADA.alocar(novaCapacidade * TAMANHO_LINHA);
+			capacidade = novaCapacidade;
+			placa = ArenaForaDoHeap.COMPARTILHADA.placa(bloco);
+			base = ArenaForaDoHeap.deslocamento(bloco);
+			for (int posicao = 0; posicao < capacidade; posicao++)
+				placa.put(endereco(posicao) + OCUPADA, (byte) 0);
+		}
+
+		void liberarLinha(int posicao)
+		{
+			long		descricao;
+			ByteBuffer	placaDescricao;
+
+			descricao = placa.getLong(endereco(posicao) + DESCRICAO);
+			placaDescricao = ArenaForaDoHeap.COMPARTILHADA.placa(descricao);
+			ArenaForaDoHeap.COMPARTILHADA.liberar(descricao,
+					4 + placaDescricao.getInt(ArenaForaDoHeap.deslocamento(descricao)));
+			placa.put(endereco(posicao) + OCUPADA, (byte) 0);
+		}
+
+		@Override
+		void liberar()
+		{
+			if (bloco < 0)
+				return;
+			for (int posicao = 0; posicao < capacidade; posicao++)
+				if (placa.get(endereco(posicao) + OCUPADA) != 0)
+					liberarLinha(posicao);
+			ArenaForaDoHeap.COMPARTILHADA.liberar(bloco, capacidade * TAMANHO_LINHA);
+			bloco = -1;
+			placa = null;
+		}
+	}
+}
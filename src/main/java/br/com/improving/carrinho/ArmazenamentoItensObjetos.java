@@ -0,0 +1,114 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+
+/**
+ * Armazenamento em que cada linha é um objeto Item.
+ */
+final class ArmazenamentoItensObjetos extends ArmazenamentoItens
+{
+	private final CarrinhoCompras	carrinho;
+	private Item[]					itens = new Item[CAPACIDADE_INICIAL];
+
+	ArmazenamentoItensObjetos(CarrinhoCompras carrinho)
+	{
+		this.carrinho = carrinho;
+	}
+
+	@Override
+	int capacidade()
+	{
+		return itens.length;
+	}
+
+	@Override
+	long codigo(int posicao)
+	{
+		return itens[posicao].getProduto().getCodigo();
+	}
+
+	@Override
+	int quantidade(int posicao)
+	{
+		return itens[posicao].getQuantidade();
+	}
+
+	@Override
+	long valorTotalCentavos(int posicao)
+	{
+		return itens[posicao].obterValorTotalCentavos();
+	}
+
+	@Override
+	Produto produto(int posicao)
+	{
+		return itens[posicao].getProduto();
+	}
+
+	@Override
+	long valorUnitarioCentavos(int posicao)
+	{
+		return itens[posicao].obterValorUnitarioCentavos();
+	}
+
+	@Override
+	int escalaValorUnitario(int posicao)
+	{
+		return itens[posicao].getValorUnitario().scale();
+	}
+
+	@Override
+	Item item(int posicao)
+	{
+		return itens[posicao];
+	}
+
+	@Override
+	void gravar(int posicao, Produto produto, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		Item	item;
+
+		item = new Item(produto, valorUnitario, quantidade);
+		item.carrinho = carrinho;
+		itens[posicao] = item;
+	}
+
+	@Override
+	void regravar(int posicao, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		itens[posicao].atribuir(valorUnitario, valorUnitarioCentavos, quantidade);
+	}
+
+	@Override
+	void descartar(int posicao)
+	{
+		itens[posicao].carrinho = null;
+		itens[posicao] = null;
+	}
+
+	@Override
+	boolean ocupada(int posicao)
+	{
+		return itens[posicao] != null;
+	}
+
+	@Override
+	void compactar(int ate, int novaCapacidade)
+	{
+		Item[]	novosItens;
+		int		destino;
+
+		novosItens = new Item[novaCapacidade];
+		destino = 0;
+		for (int i = 0; i < ate; i++)
+			if (itens[i] != null)
+				novosItens[destino++] = itens[i];
+		itens = novosItens;
+	}
+
+	@Override
+	void reiniciar(int capacidade)
+	{
+		itens = new Item[capacidade];
+	}
+}
@@ -0,0 +1,191 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Armazenamento em arrays paralelos de tipos primitivos, para carrinhos com dezenas de milhares de
+ * linhas.
+ *
+ * Cada linha ocupa um long de código, um long de valor unitário em centavos, um int de quantidade
+ * e um byte com a escala do valor unitário informado, além da referência ao produto, que é do
+ * chamador e não é copiada. Os objetos Item só são criados quando a linha é lida como item, por
+ * getItens() ou getItem(int), e a partir daí acompanham as alterações da linha.
+ */
+final class ArmazenamentoItensPrimitivos extends ArmazenamentoItens
+{
+	private final CarrinhoCompras	carrinho;
+	private long[]					codigos = new long[CAPACIDADE_INICIAL];
+	private long[]					valoresUnitariosCentavos = new long[CAPACIDADE_INICIAL];
+	private int[]					quantidades = new int[CAPACIDADE_INICIAL];
+	private byte[]					escalas = new byte[CAPACIDADE_INICIAL];
+	private Produto[]				produtos = new Produto[CAPACIDADE_INICIAL];
+
+	/**
+	 * Itens já criados para as linhas, alocado apenas na primeira leitura como item.
+	 */
+	private Item[]					itens;
+
+	ArmazenamentoItensPrimitivos(CarrinhoCompras carrinho)
+	{
+		this.carrinho = carrinho;
+	}
+
+	@Override
+	void validarValorUnitario(BigDecimal valorUnitario)
+	{
+		if (valorUnitario.scale() != (byte) valorUnitario.scale())
+			throw new IllegalArgumentException("Escala do valor unitario fora do limite: " + valorUnitario);
+	}
+
+	@Override
+	int capacidade()
+	{
+		return codigos.length;
+	}
+
+	@Override
+	long codigo(int posicao)
+	{
+		return codigos[posicao];
+	}
+
+	@Override
+	int quantidade(int posicao)
+	{
+		return quantidades[posicao];
+	}
+
+	@Override
+	long valorTotalCentavos(int posicao)
+	{
+		return Dinheiro.multiplicarCentavos(valoresUnitariosCentavos[posicao], quantidades[posicao]);
+	}
+
+	@Override
+	Produto produto(int posicao)
+	{
+		return produtos[posicao];
+	}
+
+	@Override
+	long valorUnitarioCentavos(int posicao)
+	{
+		return valoresUnitariosCentavos[posicao];
+	}
+
+	@Override
+	int escalaValorUnitario(int posicao)
+	{
+		return escalas[posicao];
+	}
+
+	@Override
+	Item item(int posicao)
+	{
+		Item	item;
+
+		if (itens == null)
+			itens = new Item[codigos.length];
+		item = itens[posicao];
+		if (item == null)
+		{
+			item = new Item(produtos[posicao], valorUnitario(posicao), quantidades[posicao]);
+			item.carrinho = carrinho;
+			itens[posicao] = item;
+		}
+		return item;
+	}
+
+	/**
+	 * Passa a usar o item já criado para a linha, que continua vinculado ao mesmo carrinho.
+	 */
+	void adotarItem(int posicao, Item item)
+	{
+		if (itens == null)
+			itens = new Item[codigos.length];
+		itens[posicao] = item;
+	}
+
+	@Override
+	void gravar(int posicao, Produto produto, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		validarValorUnitario(valorUnitario);
+		codigos[posicao] = produto.getCodigo();
+		valoresUnitariosCentavos[posicao] = valorUnitarioCentavos;
+		quantidades[posicao] = quantidade;
+		escalas[posicao] = (byte) valorUnitario.scale();
+		produtos[posicao] = produto;
+	}
+
+	@Override
+	void regravar(int posicao, BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		validarValorUnitario(valorUnitario);
+		valoresUnitariosCentavos[posicao] = valorUnitarioCentavos;
+		quantidades[posicao] = quantidade;
+		escalas[posicao] = (byte) valorUnitario.scale();
+		if (itens != null && itens[posicao] != null)
+			itens[posicao].atribuir(valorUnitario, valorUnitarioCentavos, quantidade);
+	}
+
+	@Override
+	void descartar(int posicao)
+	{
+		produtos[posicao] = null;
+		if (itens != null && itens[posicao] != null)
+		{
+			itens[posicao].carrinho = null;
+			itens[posicao] = null;
+		}
+	}
+
+	@Override
+	boolean ocupada(int posicao)
+	{
+		return produtos[posicao] != null;
+	}
+
+	@Override
+	void compactar(int ate, int novaCapacidade)
+	{
+		int	destino;
+
+		destino = 0;
+		for (int i = 0; i < ate; i++)
+		{
+			if (produtos[i] != null)
+			{
+				codigos[destino] = codigos[i];
+				valoresUnitariosCentavos[destino] = valoresUnitariosCentavos[i];
+				quantidades[destino] = quantidades[i];
+				escalas[destino] = escalas[i];
+				produtos[destino] = produtos[i];
+				if (itens != null)
+					itens[destino] = itens[i];
+				destino++;
+			}
+		}
+		Arrays.fill(produtos, destino, ate, null);
+		if (itens != null)
+			Arrays.fill(itens, destino, ate, null);
+		codigos = Arrays.copyOf(codigos, novaCapacidade);
+		valoresUnitariosCentavos = Arrays.copyOf(valoresUnitariosCentavos, novaCapacidade);
+		quantidades = Arrays.copyOf(quantidades, novaCapacidade);
+		escalas = Arrays.copyOf(escalas, novaCapacidade);
+		produtos = Arrays.copyOf(produtos, novaCapacidade);
+		if (itens != null)
+			itens = Arrays.copyOf(itens, novaCapacidade);
+	}
+
+	@Override
+	void reiniciar(int capacidade)
+	{
+		codigos = new long[capacidade];
+		valoresUnitariosCentavos = new long[capacidade];
+		quantidades = new int[capacidade];
+		escalas = new byte[capacidade];
+		produtos = new Produto[capacidade];
+		itens = null;
+	}
+}
@@ -0,0 +1,103 @@
+package br.com.improving.carrinho;
+
+/**
+ * Leitura dos eventos de uma fábrica por um consumidor, criada por
+ * CarrinhoComprasFactory.assinarEventos e iniciada no próximo evento publicado.
+ *
+ * Os eventos são entregues por processar, em lotes, na thread que o chama; cada assinatura deve
+ * ser processada por uma thread de cada vez. A publicação nunca espera pelas assinaturas: uma
+ * assinatura que fica mais de uma capacidade do buffer para trás perde os eventos sobrescritos, o
+ * que é informado a ConsumidorEventosCarrinho.atrasado e contado em getEventosPerdidos. O mesmo
+ * vale para o evento raro que a publicação descarta por encontrar sua posição ainda sendo gravada.
+ */
+public final class AssinaturaEventosCarrinho
+{
+	private final AnelEventosCarrinhos		anel;
+	private final ConsumidorEventosCarrinho	consumidor;
+	private final EventoCarrinho			evento = new EventoCarrinho();
+
+	private volatile long	proximaSequencia;
+	private volatile long	eventosPerdidos;
+
+	AssinaturaEventosCarrinho(AnelEventosCarrinhos anel, ConsumidorEventosCarrinho consumidor)
+	{
+		this.anel = anel;
+		this.consumidor = consumidor;
+		this.proximaSequencia = anel.proximaSequencia();
+	}
+
+	/**
+	 * Entrega ao consumidor até maximoEventos eventos já publicados, seguidos de
+	 * ConsumidorEventosCarrinho.fimDoLote se algum foi entregue. Não espera por novos eventos.
+	 *
+	 * @param maximoEventos
+	 * @return Quantidade de eventos entregues.
+	 */
+	public int processar(int maximoEventos)
+	{
+		long	sequencia;
+		long	publicadas;
+		long	disponivel;
+		int		entregues;
+
+		sequencia = proximaSequencia;
+		publicadas = anel.proximaSequencia();
+		entregues = 0;
+		while (entregues < maximoEventos && sequencia < publicadas)
+		{
+			switch (anel.ler(sequencia, evento))
+			{
+				case 1:
+					proximaSequencia = ++sequencia;
+					entregues++;
+					consumidor.consumir(evento);
+					break;
+				case 0:
+					// O evento ainda está sendo gravado; os seguintes são entregues na próxima chamada.
+					publicadas = sequencia;
+					break;
+				default:
+					publicadas = anel.proximaSequencia();
+					disponivel = Math.max(sequencia + 1, publicadas - anel.capacidade());
+					eventosPerdidos += disponivel - sequencia;
+					proximaSequencia = disponivel;
+					consumidor.atrasado(disponivel - sequencia);
+					sequencia = disponivel;
+			}
+		}
+		if (entregues > 0)
+			consumidor.fimDoLote();
+		return entregues;
+	}
+
+	/**
+	 * Retorna a sequência do próximo evento a ser entregue.
+	 *
+	 * @return long
+	 */
+	public long getProximaSequencia()
+	{
+		return proximaSequencia;
+	}
+
+	/**
+	 * Retorna quantos eventos foram sobrescritos ou descartados antes de serem entregues.
+	 *
+	 * @return long
+	 */
+	public long getEventosPerdidos()
+	{
+		return eventosPerdidos;
+	}
+
+	/**
+	 * Retorna quantos eventos já publicados ainda não foram entregues, incluindo os que serão
+	 * perdidos.
+	 *
+	 * @return long
+	 */
+	public long getAtraso()
+	{
+		return anel.proximaSequencia() - proximaSequencia;
+	}
+}
@@ -0,0 +1,81 @@
+package br.com.improving.carrinho;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fila de operações de um carrinho executadas por um único consumidor: no máximo uma tarefa da
+ * caixa está no executor em cada momento, e ela executa as operações em ordem de chegada, em lotes
+ * de até LOTE operações por tarefa para que uma caixa movimentada não ocupe o executor
+ * indefinidamente.
+ *
+ * pendentes conta as operações enfileiradas e ainda não executadas. Só quem o leva de 0 a 1, que
+ * é o primeiro a enfileirar, agenda a caixa. Ao executar a última operação pendente a caixa é
+ * fechada com -1, em vez de voltar a 0, e sai do mapa; quem encontra a caixa fechada cria outra.
+ *
+ * Uma operação contada em pendentes pode ainda não ter entrado na fila. Nesse caso a tarefa não
+ * espera por ela: agenda a caixa de novo no executor e libera a thread.
+ */
+final class CaixaCarrinho implements Runnable
+{
+	static final int	LOTE = 64;
+
+	private static final int	FECHADA = -1;
+
+	private final Queue<Runnable>				operacoes = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger					pendentes = new AtomicInteger();
+	private final Map<String, CaixaCarrinho>	caixas;
+	private final String						identificacaoCliente;
+	private final Executor						executor;
+
+	CaixaCarrinho(Map<String, CaixaCarrinho> caixas, String identificacaoCliente, Executor executor)
+	{
+		this.caixas = caixas;
+		this.identificacaoCliente = identificacaoCliente;
+		this.executor = executor;
+	}
+
+	/**
+	 * Enfileira a operação, que não deve lançar exceções. Retorna false se a caixa já foi fechada.
+	 */
+	boolean enfileirar(Runnable operacao)
+	{
+		int	anteriores;
+
+		do
+		{
+			anteriores = pendentes.get();
+			if (anteriores == FECHADA)
+				return false;
+		}
+		while (!pendentes.compareAndSet(anteriores, anteriores + 1));
+		operacoes.add(operacao);
+		if (anteriores == 0)
+			executor.execute(this);
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		Runnable	operacao;
+
+		for (int i = 0; i < LOTE; i++)
+		{
+			operacao = operacoes.poll();
+			if (operacao == null)
+				break;
+			operacao.run();
+			if (pendentes.compareAndSet(1, FECHADA))
+			{
+				caixas.remove(identificacaoCliente, this);
+				return;
+			}
+			pendentes.decrementAndGet();
+		}
+		executor.execute(this);
+	}
+}
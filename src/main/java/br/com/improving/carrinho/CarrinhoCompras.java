@@ -2,18 +2,145 @@ package br.com.improving.carrinho;
 
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Classe que representa o carrinho de compras de um cliente.
+ *
+ * As operações que alteram o carrinho são sincronizadas na própria instância. getValorTotal,
+ * getItens e getInstantaneo não bloqueiam: leem o valor total por um selo de versão, no estilo da
+ * leitura otimista de StampedLock, e os itens pelo instantâneo publicado a cada alteração.
+ *
+ * Os valores são mantidos em centavos, com valores unitários com frações de centavo arredondados
+ * para o centavo, meio centavo para cima, como em Item. Esses são os valores usados por promoções,
+ * índices, eventos e análises. A diferença entre o total exato dessas linhas e o total em centavos
+ * é mantida à parte, para que getValorTotal e o ticket médio da fábrica sejam a soma exata dos
+ * valores informados.
  */
 public class CarrinhoCompras
 {
-	Set<Item> conjuntoItens = new LinkedHashSet<>();
+	/**
+	 * Linhas do carrinho indexadas pelo código do produto e pela posição, preservando a ordem de
+	 * inclusão.
+	 *
+	 * A chave é apenas a identidade do produto (Produto.getCodigo()), e não o Item, cujo
+	 * equals/hashCode dependem de quantidade e valor unitário e mudam quando o item é alterado.
+	 *
+	 * Lido e substituído apenas sob o bloqueio do carrinho; a fábrica o substitui por um
+	 * armazenamento no heap ao invalidar um carrinho com as linhas fora do heap.
+	 */
+	ArmazenamentoItens conjuntoItens;
+
+	/**
+	 * Soma dos valores totais dos itens em centavos, atualizada a cada alteração pela diferença do
+	 * item alterado.
+	 */
+	private volatile long valorTotalCentavos;
+
+	/**
+	 * Maior escala entre os valores unitários incluídos desde que o carrinho ficou vazio pela última
+	 * vez, que é a escala que a soma dos itens em BigDecimal teria.
+	 */
+	volatile int escalaValorTotal;
+
+	/**
+	 * Soma das diferenças entre o valor total exato e o valor total em centavos das linhas com
+	 * valores unitários com frações de centavo, ou null se nenhuma linha tem esses valores desde
+	 * que o carrinho ficou vazio pela última vez. Gravada junto com o valor total, sob o selo.
+	 */
+	private volatile BigDecimal fracaoValorTotal;
+
+	/**
+	 * Selo do valor total: ímpar enquanto valorTotalCentavos, escalaValorTotal e fracaoValorTotal
+	 * estão sendo alterados, e incrementado novamente ao final. Uma leitura que encontra o mesmo selo par antes
+	 * e depois de ler os dois campos leu um par consistente.
+	 */
+	private volatile int seloValorTotal;
+
+	/**
+	 * Conversão do valor total para BigDecimal, feita na primeira leitura após cada alteração e
+	 * válida enquanto o selo não mudar.
+	 */
+	private volatile ValorTotalConvertido valorTotal = ValorTotalConvertido.ZERO;
+
+	/**
+	 * Descontos das promoções da fábrica em centavos. descontoLinhasCentavos é a soma dos descontos
+	 * das linhas, atualizada pela diferença da linha alterada, e descontoCentavos soma a ele o
+	 * desconto do carrinho e é gravado junto com o valor total, sob o selo. promocoesAplicadas é a
+	 * tabela com que foram calculados, null para carrinhos sem fábrica ou sem promoções.
+	 */
+	private long						descontoLinhasCentavos;
+	private volatile long				descontoCentavos;
+	private volatile TabelaPromocoes	promocoesAplicadas;
+
+	/**
+	 * Instantâneo das linhas e do valor total lido sem bloqueio por getItens e getInstantaneo. É
+	 * mantido a partir da primeira leitura até as linhas serem descarregadas pela fábrica: cada
+	 * alteração atualiza linhasInstantaneo, que guarda as linhas nas posições físicas do
+	 * armazenamento, e publica um novo instantâneo. Com as linhas fora do heap, a alteração apenas
+	 * descarta o instantâneo, que a leitura seguinte monta de novo, para que as cópias das linhas
+	 * não fiquem no heap. Alterados sob o bloqueio do carrinho.
+	 */
+	private volatile InstantaneoCarrinho	instantaneo;
+	private VetorPersistente<Item>			linhasInstantaneo;
+	private int								reorganizacoesInstantaneo;
+	private long							versao;
+
+	/**
+	 * Fábrica que mantém este carrinho, notificada das variações do valor total para manter o
+	 * ticket médio atualizado. É null para carrinhos avulsos ou já invalidados.
+	 */
+	volatile CarrinhoComprasFactory fabrica;
+
+	/**
+	 * Agendamento do carrinho na roda de expiração da fábrica, quando ela expira carrinhos ociosos.
+	 */
+	volatile RodaExpiracao.Entrada entradaExpiracao;
+
+	/**
+	 * Estado do carrinho no limite de carrinhos em memória da fábrica (DespejoCarrinhos): se as
+	 * linhas estão no arquivo de despejo e onde, a posição entre os carrinhos em memória e a marca
+	 * de acesso recente. Alterados sob o bloqueio do carrinho e do despejo.
+	 */
+	volatile boolean	descarregado;
+	volatile boolean	referenciado;
+	int					posicaoDespejo;
+	int					tamanhoDespejo;
+	int					posicaoResidente = -1;
+
+	/**
+	 * Identificação do carrinho no registro durável da fábrica e versão do último registro feito
+	 * para ele. Alterados sob o bloqueio do carrinho.
+	 */
+	long	numeroSerie;
+	long	versaoRegistro;
+
+	/**
+	 * Cliente do carrinho na fábrica que o mantém, informado nos eventos de alteração. Definido
+	 * pela fábrica ao vincular o carrinho.
+	 */
+	volatile String	identificacaoCliente;
+
+	/**
+	 * Cria um carrinho que guarda cada linha como um objeto Item.
+	 */
+	public CarrinhoCompras()
+	{
+		this(TipoArmazenamentoItens.OBJETOS);
+	}
+
+	/**
+	 * Cria um carrinho com a forma de armazenamento de linhas informada.
+	 *
+	 * @param tipoArmazenamento
+	 */
+	public CarrinhoCompras(TipoArmazenamentoItens tipoArmazenamento)
+	{
+		conjuntoItens = tipoArmazenamento.criar(this);
+	}
 
     /**
      * Permite a adição de um novo item no carrinho de compras.
@@ -31,27 +158,47 @@ public class CarrinhoCompras
      */
     public void adicionarItem(Produto produto, BigDecimal valorUnitario, int quantidade)
 	{
-		Item	itemAtual;
-		Item	itemAAdicionar;
+		CarrinhoComprasFactory	fabricaAlterada;
+		MetricasCarrinhos		metricas;
+		long					inicio;
+		int						posicao;
+		int						quantidadeLinha;
 
-		try
+		synchronized (this)
 		{
-			itemAtual = obterItemPorProduto(produto);
-			checarSeItemPossuiValoresMenoresQueZero(valorUnitario, quantidade);
-			if (Objects.nonNull(itemAtual))
+			fabricaAlterada = fabrica;
+			metricas = metricas();
+			inicio = metricas != null ? System.nanoTime() : 0;
+			garantirCarregado();
+			try
 			{
-				itemAtual.setQuantidade(quantidade + itemAtual.getQuantidade());
-				itemAtual.setValorUnitario(valorUnitario);
-				return;
+				checarSeItemPossuiValoresMenoresQueZero(valorUnitario, quantidade);
+				posicao = conjuntoItens.localizar(produto.getCodigo());
+				if (posicao >= 0)
+				{
+					quantidadeLinha = Math.addExact(quantidade, conjuntoItens.quantidade(posicao));
+					alterarLinha(posicao, valorUnitario, quantidadeLinha);
+				}
+				else
+				{
+					quantidadeLinha = quantidade;
+					incluirLinha(produto, valorUnitario, quantidade);
+				}
+				publicarEvento(posicao >= 0 ? TipoEventoCarrinho.COMBINACAO_LINHA : TipoEventoCarrinho.INCLUSAO_LINHA,
+						produto.getCodigo(), quantidadeLinha);
+				if (metricas != null)
+				{
+					(posicao >= 0 ? metricas.combinacoesLinha : metricas.inclusoesLinha).increment();
+					metricas.registrarLatencia(MetricasCarrinhos.OperacaoMedida.ADICIONAR_ITEM, inicio);
+				}
+			}
+			catch (Exception e)
+			{
+				throw new IllegalArgumentException("Algo deu errado ao adicionar item: "
+						+ e.getMessage());
 			}
-			itemAAdicionar = new Item(produto, valorUnitario, quantidade);
-			conjuntoItens.add(itemAAdicionar);
-		}
-		catch (Exception e)
-		{
-			throw new IllegalArgumentException("Algo deu errado ao adicionar item: "
-					+ e.getMessage());
 		}
+		aguardarRegistro(fabricaAlterada);
     }
 
 	/**
@@ -63,15 +210,21 @@ public class CarrinhoCompras
      */
     public boolean removerItem(Produto produto)
 	{
-		Item	itemAtual;
+		CarrinhoComprasFactory	fabricaAlterada;
+		long					inicio;
+		boolean					removido;
 
-		itemAtual = obterItemPorProduto(produto);
-		if (Objects.nonNull(itemAtual))
+		if (Objects.isNull(produto) || Objects.isNull(produto.getCodigo()))
+			return false;
+		synchronized (this)
 		{
-			conjuntoItens.remove(itemAtual);
-			return true;
+			fabricaAlterada = fabrica;
+			inicio = metricas() != null ? System.nanoTime() : 0;
+			garantirCarregado();
+			removido = medirRemocao(removerLinha(conjuntoItens.localizar(produto.getCodigo())), inicio);
 		}
-		return false;
+		aguardarRegistro(fabricaAlterada);
+		return removido;
     }
 
     /**
@@ -85,25 +238,38 @@ public class CarrinhoCompras
      */
     public boolean removerItem(int posicaoItem)
 	{
-		Iterator<Item>	iteradorConjuntoItens;
-		int				indiceAtual;
-		Item			itemAtual;
+		CarrinhoComprasFactory	fabricaAlterada;
+		long					inicio;
+		boolean					removido;
 
-		iteradorConjuntoItens = obterIteradorConjuntoItens();
-		indiceAtual = 0;
-		while (iteradorConjuntoItens.hasNext())
+		synchronized (this)
 		{
-			itemAtual = iteradorConjuntoItens.next();
-			if (indiceAtual == posicaoItem)
-			{
-				conjuntoItens.remove(itemAtual);
-				return true;
-			}
-			indiceAtual++;
+			fabricaAlterada = fabrica;
+			inicio = metricas() != null ? System.nanoTime() : 0;
+			garantirCarregado();
+			removido = medirRemocao(removerLinha(conjuntoItens.localizarNaPosicao(posicaoItem)), inicio);
 		}
-		return false;
+		aguardarRegistro(fabricaAlterada);
+		return removido;
     }
 
+	/**
+	 * Retorna o item de acordo com a posição.
+	 * Essa posição é determinada pela ordem de inclusão do produto na coleção, em que zero
+	 * representa o primeiro item.
+	 *
+	 * @param posicaoItem
+	 * @return Item ou null caso não exista item na posição informada.
+	 */
+	public synchronized Item getItem(int posicaoItem)
+	{
+		int	posicao;
+
+		garantirCarregado();
+		posicao = conjuntoItens.localizarNaPosicao(posicaoItem);
+		return posicao < 0 ? null : conjuntoItens.item(posicao);
+	}
+
     /**
      * Retorna o valor total do carrinho de compras, que deve ser a soma dos valores totais
      * de todos os itens que compõem o carrinho.
@@ -112,67 +278,785 @@ public class CarrinhoCompras
      */
     public BigDecimal getValorTotal()
 	{
-		BigDecimal		total;
-		Iterator<Item>	iteradorConjuntoItens;
-		Item			itemAtual;
+		ValorTotalConvertido	convertido;
+		long					centavos;
+		int						escala;
+		BigDecimal				fracao;
+		int						selo;
 
-		iteradorConjuntoItens = obterIteradorConjuntoItens();
-		total = new BigDecimal(0);
-		while (iteradorConjuntoItens.hasNext())
+		do
 		{
-			itemAtual = iteradorConjuntoItens.next();
-			total = total.add(itemAtual.getValorTotal());
+			selo = seloValorTotal;
+			convertido = valorTotal;
+			if (convertido.selo == selo)
+				return convertido.valor;
+			centavos = valorTotalCentavos;
+			escala = escalaValorTotal;
+			fracao = fracaoValorTotal;
 		}
-		return total;
+		while ((selo & 1) != 0 || selo != seloValorTotal);
+		// Uma conversão mais antiga pode sobrescrever esta, e a próxima leitura apenas converte de novo.
+		convertido = new ValorTotalConvertido(selo, somarFracao(Dinheiro.paraBigDecimal(centavos, escala), fracao));
+		valorTotal = convertido;
+		return convertido.valor;
     }
 
+	/**
+	 * Retorna o valor total do carrinho com os descontos das promoções da fábrica que o mantém,
+	 * com duas casas decimais. Sem promoções, é o próprio valor total.
+	 *
+	 * Os descontos são mantidos a cada alteração e a leitura não bloqueia, exceto na primeira vez
+	 * depois de a fábrica trocar a tabela de promoções, quando eles são recalculados.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal getValorTotalComDesconto()
+	{
+		long		centavos;
+		long		desconto;
+		BigDecimal	fracao;
+		int			selo;
+
+		if (promocoesAplicadas != promocoesVigentes())
+			sincronizarPromocoes();
+		do
+		{
+			selo = seloValorTotal;
+			centavos = valorTotalCentavos;
+			desconto = descontoCentavos;
+			fracao = fracaoValorTotal;
+		}
+		while ((selo & 1) != 0 || selo != seloValorTotal);
+		if (fracao == null)
+			return Dinheiro.paraBigDecimal(centavos - desconto);
+		return Dinheiro.paraBigDecimal(centavos - desconto).add(fracao).setScale(Dinheiro.ESCALA, RoundingMode.HALF_UP);
+	}
+
     /**
      * Retorna a lista de itens do carrinho de compras.
      *
+     * A coleção é a de getInstantaneo: não pode ser alterada diretamente, não muda com alterações
+     * posteriores do carrinho e pode ser percorrida enquanto outras threads o alteram. Os itens
+     * retornados também não podem ser alterados: seus setters lançam UnsupportedOperationException.
+     *
      * @return itens
      */
     public Collection<Item> getItens()
 	{
-		return conjuntoItens;
+		return getInstantaneo().getItens();
     }
 
+	/**
+	 * Retorna os itens e o valor total do carrinho em um mesmo instante. A leitura não bloqueia
+	 * o carrinho, exceto quando o instantâneo é montado: na primeira vez ou, com as linhas fora do
+	 * heap, na primeira depois de cada alteração.
+	 *
+	 * @return InstantaneoCarrinho
+	 */
+	public InstantaneoCarrinho getInstantaneo()
+	{
+		InstantaneoCarrinho	atual;
+
+		garantirCarregado();
+		atual = instantaneo;
+		if (atual == null)
+			atual = montarInstantaneo();
+		return atual;
+	}
+
+	/**
+	 * Adiciona os itens ao carrinho com o mesmo resultado de chamar adicionarItem para cada um, na
+	 * ordem do array, mas de forma atômica: os itens são agregados por produto e validados antes de
+	 * qualquer alteração, e se algum for inválido o carrinho não é alterado.
+	 *
+	 * @param itens
+	 */
 	public void adicionarItensAoCarrinho(Item[] itens)
 	{
-		for (int i = 0; i < itens.length; i++)
+		CarrinhoComprasFactory	fabricaAlterada;
+		LoteItens				lote;
+		int[]					posicoes;
+		int[]					quantidades;
+		long					diferencaTotal;
+		long					diferencaDesconto;
+		BigDecimal				diferencaFracao;
+		long					novoValorTotal;
+		int						tamanhoAnterior;
+		int						posicao;
+
+		synchronized (this)
+		{
+			fabricaAlterada = fabrica;
+			garantirCarregado();
+			try
+			{
+				lote = LoteItens.agregar(itens);
+				posicoes = new int[lote.tamanho()];
+				quantidades = new int[lote.tamanho()];
+				diferencaTotal = 0;
+				diferencaDesconto = 0;
+				diferencaFracao = null;
+				for (int i = 0; i < lote.tamanho(); i++)
+				{
+					conjuntoItens.validarValorUnitario(lote.valorUnitario(i));
+					posicoes[i] = conjuntoItens.localizar(lote.produto(i).getCodigo());
+					quantidades[i] = posicoes[i] < 0
+							? lote.quantidade(i)
+							: Math.addExact(lote.quantidade(i), conjuntoItens.quantidade(posicoes[i]));
+					diferencaTotal = Dinheiro.somarCentavos(diferencaTotal, Dinheiro.subtrairCentavos(
+							Dinheiro.multiplicarCentavos(lote.valorUnitarioCentavos(i), quantidades[i]),
+							posicoes[i] < 0 ? 0 : conjuntoItens.valorTotalCentavos(posicoes[i])));
+					diferencaDesconto -= posicoes[i] < 0 ? 0 : descontoDaLinha(posicoes[i]);
+					diferencaFracao = Dinheiro.somarFracoes(diferencaFracao, diferencaFracao(
+							Dinheiro.fracaoDe(lote.valorUnitario(i), lote.valorUnitarioCentavos(i), quantidades[i]),
+							posicoes[i] < 0 ? null : conjuntoItens.fracaoValorTotal(posicoes[i])));
+				}
+				novoValorTotal = Dinheiro.somarCentavos(valorTotalCentavos, diferencaTotal);
+			}
+			catch (RuntimeException e)
+			{
+				throw new IllegalArgumentException("Algo deu errado ao adicionar itens: "
+						+ e.getMessage());
+			}
+			registrarLote(lote, posicoes, quantidades);
+			// As linhas existentes são alteradas antes das inclusões, que podem compactar o
+			// armazenamento e mudar as posições físicas localizadas acima.
+			for (int i = 0; i < lote.tamanho(); i++)
+				if (posicoes[i] >= 0)
+					conjuntoItens.alterar(posicoes[i], lote.valorUnitario(i), lote.valorUnitarioCentavos(i), quantidades[i]);
+			tamanhoAnterior = conjuntoItens.tamanho();
+			for (int i = 0; i < lote.tamanho(); i++)
+			{
+				if (posicoes[i] < 0)
+				{
+					conjuntoItens.adicionar(CatalogoProdutos.COMPARTILHADO.canonizar(lote.produto(i)), lote.valorUnitario(i),
+							lote.valorUnitarioCentavos(i), quantidades[i]);
+					indexarProduto(lote.produto(i).getCodigo(), true);
+				}
+			}
+			contarLinhas(conjuntoItens.tamanho() - tamanhoAnterior);
+			for (int i = 0; i < lote.tamanho(); i++)
+			{
+				posicao = conjuntoItens.localizar(lote.produto(i).getCodigo());
+				atualizarInstantaneo(posicao);
+				diferencaDesconto += descontoDaLinha(posicao);
+			}
+			definirValorTotal(novoValorTotal, diferencaTotal, diferencaDesconto, diferencaFracao, lote.escalaMaxima());
+			for (int i = 0; i < lote.tamanho(); i++)
+				publicarEvento(posicoes[i] >= 0 ? TipoEventoCarrinho.COMBINACAO_LINHA : TipoEventoCarrinho.INCLUSAO_LINHA,
+						lote.produto(i).getCodigo(), quantidades[i]);
+		}
+		aguardarRegistro(fabricaAlterada);
+	}
+
+	/**
+	 * Grava no registro durável da fábrica, se houver, todas as linhas que o lote vai alterar ou
+	 * incluir, de uma vez e antes de alterar o armazenamento.
+	 */
+	private void registrarLote(LoteItens lote, int[] posicoes, int[] quantidades)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+		byte[][]				registros;
+		Produto					produto;
+
+		fabricaAtual = fabrica;
+		if (Objects.isNull(fabricaAtual) || Objects.isNull(fabricaAtual.registro))
+			return;
+		registros = new byte[lote.tamanho()][];
+		for (int i = 0; i < lote.tamanho(); i++)
+		{
+			produto = lote.produto(i);
+			registros[i] = fabricaAtual.registro.codificarLinha(this, i + 1, produto.getCodigo(),
+					posicoes[i] >= 0
+							? conjuntoItens.descricaoCodificada(posicoes[i])
+							: CatalogoProdutos.COMPARTILHADO.canonizar(produto).getDescricao().getBytes(StandardCharsets.UTF_8),
+					lote.valorUnitario(i), quantidades[i]);
+		}
+		fabricaAtual.registro.registrarLinhas(this, registros);
+	}
+
+	/**
+	 * Altera a quantidade de um item do carrinho. É chamado por Item.setQuantidade quando o item
+	 * pertence a este carrinho.
+	 *
+	 * @param item
+	 * @param quantidade
+	 */
+	void alterarQuantidade(Item item, int quantidade)
+	{
+		CarrinhoComprasFactory	fabricaAlterada;
+		int						posicao;
+
+		synchronized (this)
+		{
+			fabricaAlterada = fabrica;
+			posicao = localizarLinhaDoItem(item);
+			if (posicao >= 0)
+			{
+				alterarLinha(posicao, conjuntoItens.valorUnitario(posicao), quantidade);
+				publicarEvento(TipoEventoCarrinho.ALTERACAO_LINHA, item.getProduto().getCodigo(), quantidade);
+			}
+			else
+				item.definir(item.getValorUnitario(), quantidade);
+		}
+		aguardarRegistro(fabricaAlterada);
+	}
+
+	/**
+	 * Altera o valor unitário de um item do carrinho. É chamado por Item.setValorUnitario quando o
+	 * item pertence a este carrinho.
+	 *
+	 * @param item
+	 * @param valorUnitario
+	 */
+	void alterarValorUnitario(Item item, BigDecimal valorUnitario)
+	{
+		CarrinhoComprasFactory	fabricaAlterada;
+		int						posicao;
+
+		synchronized (this)
+		{
+			fabricaAlterada = fabrica;
+			posicao = localizarLinhaDoItem(item);
+			if (posicao >= 0)
+			{
+				alterarLinha(posicao, valorUnitario, conjuntoItens.quantidade(posicao));
+				publicarEvento(TipoEventoCarrinho.ALTERACAO_LINHA, item.getProduto().getCodigo(), conjuntoItens.quantidade(posicao));
+			}
+			else
+				item.definir(valorUnitario, item.getQuantidade());
+		}
+		aguardarRegistro(fabricaAlterada);
+	}
+
+	/**
+	 * Retorna a posição física da linha do item, ou -1 se o item não pertence ao carrinho. Um item
+	 * obtido antes de o carrinho ser descarregado continua vinculado a ele, mas a linha recarregada
+	 * é representada por outro item e pode ter sido removida depois.
+	 */
+	private int localizarLinhaDoItem(Item item)
+	{
+		if (item.carrinho != this)
+			return -1;
+		garantirCarregado();
+		return conjuntoItens.localizar(item.getProduto().getCodigo());
+	}
+
+	/**
+	 * Marca o acesso ao carrinho e, se suas linhas foram descarregadas pela fábrica, as recarrega e
+	 * descarrega outros carrinhos caso o limite em memória tenha sido excedido. Sob o bloqueio do
+	 * carrinho essa descarga é agendada na thread do despejo.
+	 */
+	void garantirCarregado()
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		if (!referenciado)
+			referenciado = true;
+		if (descarregado)
+		{
+			synchronized (this)
+			{
+				fabricaAtual = fabrica;
+				if (!descarregado)
+					return;
+				fabricaAtual.despejo.recarregar(this);
+			}
+			if (Thread.holdsLock(this))
+				fabricaAtual.despejo.agendarDescarga(fabricaAtual);
+			else
+				fabricaAtual.despejo.descarregarExcedentes(fabricaAtual);
+		}
+	}
+
+	/**
+	 * Retorna o valor total do carrinho em centavos.
+	 *
+	 * @return long
+	 */
+	long obterValorTotalCentavos()
+	{
+		return valorTotalCentavos;
+	}
+
+	/**
+	 * Inclui uma linha para um produto que não está no carrinho. Valores e estouro do total são
+	 * verificados, e a linha registrada no registro durável, antes de qualquer alteração. A linha
+	 * guarda a instância do produto mantida por
+	 * CatalogoProdutos, compartilhada com os demais carrinhos.
+	 */
+	private void incluirLinha(Produto produto, BigDecimal valorUnitario, int quantidade)
+	{
+		long	valorUnitarioCentavos;
+		long	valorTotalLinha;
+		long	novoValorTotal;
+		int		posicao;
+
+		valorUnitarioCentavos = Dinheiro.centavosArredondados(valorUnitario);
+		valorTotalLinha = Dinheiro.multiplicarCentavos(valorUnitarioCentavos, quantidade);
+		novoValorTotal = Dinheiro.somarCentavos(valorTotalCentavos, valorTotalLinha);
+		conjuntoItens.validarValorUnitario(valorUnitario);
+		produto = CatalogoProdutos.COMPARTILHADO.canonizar(produto);
+		registrarLinha(produto, valorUnitario, quantidade);
+		posicao = conjuntoItens.adicionar(produto, valorUnitario, valorUnitarioCentavos, quantidade);
+		indexarProduto(produto.getCodigo(), true);
+		atualizarInstantaneo(posicao);
+		contarLinhas(1);
+		definirValorTotal(novoValorTotal, valorTotalLinha, descontoDaLinha(posicao),
+				Dinheiro.fracaoDe(valorUnitario, valorUnitarioCentavos, quantidade), valorUnitario.scale());
+	}
+
+	/**
+	 * Altera valor unitário e quantidade de uma linha, atualizando o valor total pela diferença da
+	 * linha. Valores e estouro do total são verificados, e a linha registrada no registro durável,
+	 * antes de qualquer alteração.
+	 */
+	private void alterarLinha(int posicao, BigDecimal valorUnitario, int quantidade)
+	{
+		long		valorUnitarioCentavos;
+		long		diferenca;
+		long		novoValorTotal;
+		long		descontoAnterior;
+		BigDecimal	diferencaFracao;
+
+		checarSeItemPossuiValoresMenoresQueZero(valorUnitario, quantidade);
+		valorUnitarioCentavos = Dinheiro.centavosArredondados(valorUnitario);
+		diferenca = Dinheiro.subtrairCentavos(
+				Dinheiro.multiplicarCentavos(valorUnitarioCentavos, quantidade),
+				conjuntoItens.valorTotalCentavos(posicao));
+		novoValorTotal = Dinheiro.somarCentavos(valorTotalCentavos, diferenca);
+		descontoAnterior = descontoDaLinha(posicao);
+		diferencaFracao = diferencaFracao(Dinheiro.fracaoDe(valorUnitario, valorUnitarioCentavos, quantidade),
+				conjuntoItens.fracaoValorTotal(posicao));
+		conjuntoItens.validarValorUnitario(valorUnitario);
+		registrarLinha(posicao, valorUnitario, quantidade);
+		conjuntoItens.alterar(posicao, valorUnitario, valorUnitarioCentavos, quantidade);
+		atualizarInstantaneo(posicao);
+		definirValorTotal(novoValorTotal, diferenca, descontoDaLinha(posicao) - descontoAnterior, diferencaFracao,
+				valorUnitario.scale());
+	}
+
+	private boolean removerLinha(int posicao)
+	{
+		long		diferenca;
+		long		diferencaDesconto;
+		BigDecimal	diferencaFracao;
+		long		codigo;
+
+		if (posicao < 0)
+			return false;
+		diferenca = -conjuntoItens.valorTotalCentavos(posicao);
+		diferencaDesconto = -descontoDaLinha(posicao);
+		diferencaFracao = diferencaFracao(null, conjuntoItens.fracaoValorTotal(posicao));
+		codigo = conjuntoItens.codigo(posicao);
+		if (fabrica != null && fabrica.registro != null)
+			fabrica.registro.registrarRemocao(this, codigo);
+		conjuntoItens.remover(posicao);
+		atualizarInstantaneo(posicao);
+		contarLinhas(-1);
+		indexarProduto(codigo, false);
+		definirValorTotal(valorTotalCentavos + diferenca, diferenca, diferencaDesconto, diferencaFracao, 0);
+		publicarEvento(TipoEventoCarrinho.REMOCAO_LINHA, codigo, 0);
+		return true;
+	}
+
+	private MetricasCarrinhos metricas()
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		return fabricaAtual == null ? null : fabricaAtual.metricas;
+	}
+
+	private void contarLinhas(int diferenca)
+	{
+		MetricasCarrinhos	metricas;
+
+		metricas = metricas();
+		if (metricas != null && diferenca != 0)
+			metricas.linhas.add(diferenca);
+	}
+
+	private boolean medirRemocao(boolean removido, long inicio)
+	{
+		MetricasCarrinhos	metricas;
+
+		metricas = metricas();
+		if (metricas == null)
+			return removido;
+		if (removido)
+			metricas.remocoes.increment();
+		metricas.registrarLatencia(MetricasCarrinhos.OperacaoMedida.REMOVER_ITEM, inicio);
+		return removido;
+	}
+
+	/**
+	 * Publica a alteração nos eventos da fábrica, se houver, com o valor total já atualizado.
+	 */
+	private void publicarEvento(TipoEventoCarrinho tipo, long codigoProduto, int quantidade)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		if (Objects.nonNull(fabricaAtual) && Objects.nonNull(fabricaAtual.eventos))
+			fabricaAtual.eventos.publicar(tipo, identificacaoCliente, codigoProduto, quantidade, valorTotalCentavos,
+					escalaValorTotal);
+	}
+
+	/**
+	 * Grava no registro durável da fábrica, se houver, a linha nova do produto. Deve ser chamado
+	 * antes de incluí-la.
+	 */
+	private void registrarLinha(Produto produto, BigDecimal valorUnitario, int quantidade)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		if (Objects.nonNull(fabricaAtual) && Objects.nonNull(fabricaAtual.registro))
+			fabricaAtual.registro.registrarLinha(this, produto.getCodigo(),
+					produto.getDescricao().getBytes(StandardCharsets.UTF_8), valorUnitario, quantidade);
+	}
+
+	/**
+	 * Grava no registro durável da fábrica, se houver, o novo estado da linha da posição física
+	 * informada. Deve ser chamado antes de alterá-la.
+	 */
+	private void registrarLinha(int posicao, BigDecimal valorUnitario, int quantidade)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		if (Objects.nonNull(fabricaAtual) && Objects.nonNull(fabricaAtual.registro))
+			fabricaAtual.registro.registrarLinha(this, conjuntoItens.codigo(posicao),
+					conjuntoItens.descricaoCodificada(posicao), valorUnitario, quantidade);
+	}
+
+	/**
+	 * Espera as alterações registradas no registro durável da fábrica, se houver, chegarem ao
+	 * disco. Deve ser chamado depois de liberado o bloqueio do carrinho, para que a espera não
+	 * bloqueie as outras threads que usam o carrinho.
+	 *
+	 * @param fabricaAlterada fábrica do carrinho quando ele foi alterado.
+	 */
+	private static void aguardarRegistro(CarrinhoComprasFactory fabricaAlterada)
+	{
+		if (Objects.nonNull(fabricaAlterada) && Objects.nonNull(fabricaAlterada.registro))
+			fabricaAlterada.registro.aguardarGravacao();
+	}
+
+	/**
+	 * Registra a inclusão ou a remoção da linha do produto nos índices da fábrica, se houver.
+	 */
+	private void indexarProduto(long codigo, boolean incluido)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		if (Objects.isNull(fabricaAtual) || Objects.isNull(fabricaAtual.indices))
+			return;
+		if (incluido)
+			fabricaAtual.indices.incluirProduto(codigo, identificacaoCliente);
+		else
+			fabricaAtual.indices.removerProduto(codigo, identificacaoCliente);
+	}
+
+	/**
+	 * Deixa a linha do produto com o valor unitário e a quantidade informados, incluindo-a se
+	 * necessário. Usado para reaplicar o registro durável.
+	 */
+	void definirLinha(Produto produto, BigDecimal valorUnitario, int quantidade)
+	{
+		int	posicao;
+
+		posicao = conjuntoItens.localizar(produto.getCodigo());
+		if (posicao >= 0)
+			alterarLinha(posicao, valorUnitario, quantidade);
+		else
+			incluirLinha(produto, valorUnitario, quantidade);
+	}
+
+	void removerLinhaDoProduto(long codigo)
+	{
+		removerLinha(conjuntoItens.localizar(codigo));
+	}
+
+	/**
+	 * Recalcula o valor total a partir das linhas, que foram restauradas diretamente no
+	 * armazenamento.
+	 */
+	void restaurarValorTotal(int escala)
+	{
+		long		soma;
+		BigDecimal	fracao;
+
+		soma = 0;
+		fracao = null;
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
 		{
-			this.adicionarItem(
-					itens[i].getProduto(),
-					itens[i].getValorUnitario(),
-					itens[i].getQuantidade()
-			);
+			if (conjuntoItens.ocupada(posicao))
+			{
+				soma = Dinheiro.somarCentavos(soma, conjuntoItens.valorTotalCentavos(posicao));
+				fracao = Dinheiro.somarFracoes(fracao, conjuntoItens.fracaoValorTotal(posicao));
+			}
 		}
+		gravarValorTotal(soma, escala, fracao);
+		atualizarInstantaneo(-1);
+		publicarInstantaneo();
 	}
 
-	private Iterator<Item> obterIteradorConjuntoItens()
+	/**
+	 * Monta o instantâneo a partir das linhas atuais e passa a mantê-lo a cada alteração.
+	 */
+	private synchronized InstantaneoCarrinho montarInstantaneo()
 	{
-		return conjuntoItens.iterator();
+		garantirCarregado();
+		if (instantaneo == null)
+		{
+			reconstruirLinhasInstantaneo();
+			publicarInstantaneo();
+		}
+		return instantaneo;
 	}
 
-	private Item obterItemPorProduto(Produto produto)
+	/**
+	 * Deixa de manter o instantâneo. Usado quando as linhas são descarregadas ou, fora do heap,
+	 * alteradas, para que elas não continuem em memória. Deve ser chamado sob o bloqueio do
+	 * carrinho.
+	 */
+	void descartarInstantaneo()
 	{
-		Iterator<Item>	iteradorConjuntoItens;
-		Item 			itemAtual;
+		instantaneo = null;
+		linhasInstantaneo = null;
+	}
 
-		iteradorConjuntoItens = obterIteradorConjuntoItens();
-		while (iteradorConjuntoItens.hasNext())
+	/**
+	 * Reflete nas linhas do instantâneo a linha da posição física alterada, ou todas as linhas se
+	 * o armazenamento renumerou as posições ou se a posição for -1. A publicação é feita depois,
+	 * em definirValorTotal, junto com o novo valor total.
+	 */
+	private void atualizarInstantaneo(int posicao)
+	{
+		Item	linha;
+
+		if (linhasInstantaneo == null)
+			return;
+		if (!conjuntoItens.manterInstantaneo())
 		{
-			itemAtual = iteradorConjuntoItens.next();
-			if (itemAtual.getProduto().equals(produto))
-				return itemAtual;
+			descartarInstantaneo();
+			return;
 		}
-		return null;
+		if (posicao < 0 || conjuntoItens.reorganizacoes() != reorganizacoesInstantaneo)
+		{
+			reconstruirLinhasInstantaneo();
+			return;
+		}
+		linha = conjuntoItens.ocupada(posicao) ? congelarLinha(posicao) : null;
+		if (posicao == linhasInstantaneo.tamanho())
+			linhasInstantaneo = linhasInstantaneo.acrescentar(linha);
+		else
+			linhasInstantaneo = linhasInstantaneo.definir(posicao, linha);
 	}
 
-	private void checarSeItemPossuiValoresMenoresQueZero(BigDecimal valorUnitario, int quantidade)
+	private void reconstruirLinhasInstantaneo()
+	{
+		VetorPersistente<Item>	linhas;
+
+		linhas = VetorPersistente.vazio();
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+			linhas = linhas.acrescentar(conjuntoItens.ocupada(posicao) ? congelarLinha(posicao) : null);
+		linhasInstantaneo = linhas;
+		reorganizacoesInstantaneo = conjuntoItens.reorganizacoes();
+	}
+
+	private void publicarInstantaneo()
+	{
+		if (linhasInstantaneo != null)
+			instantaneo = new InstantaneoCarrinho(linhasInstantaneo, conjuntoItens.tamanho(), valorTotalCentavos,
+					escalaValorTotal, fracaoValorTotal, versao);
+	}
+
+	/**
+	 * Cria a cópia imutável da linha usada no instantâneo.
+	 */
+	private Item congelarLinha(int posicao)
+	{
+		Item	linha;
+
+		linha = new Item(conjuntoItens.produto(posicao), conjuntoItens.valorUnitario(posicao), conjuntoItens.quantidade(posicao));
+		linha.instantaneo = true;
+		return linha;
+	}
+
+	/**
+	 * Registra o novo valor total, já verificado, e as diferenças dos descontos e das frações de
+	 * centavo das linhas alteradas, e repassa as alterações à fábrica. A escala e a fração voltam a
+	 * zero quando o carrinho fica vazio. Se a fábrica trocou a tabela de promoções, os descontos são
+	 * recalculados com a nova tabela.
+	 */
+	private void definirValorTotal(long novoValorTotal, long diferencaCentavos, long diferencaDescontoLinhas,
+			BigDecimal diferencaFracao, int escala)
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+		TabelaPromocoes			promocoes;
+		long					descontoAnterior;
+
+		fabricaAtual = fabrica;
+		promocoes = fabricaAtual == null ? null : fabricaAtual.promocoes;
+		descontoAnterior = descontoCentavos;
+		if (promocoes != promocoesAplicadas)
+			recalcularDescontos(promocoes);
+		else
+			descontoLinhasCentavos += diferencaDescontoLinhas;
+		if (conjuntoItens.tamanho() == 0)
+			gravarValorTotal(novoValorTotal, 0, null);
+		else
+			gravarValorTotal(novoValorTotal, Math.max(escalaValorTotal, escala),
+					Dinheiro.somarFracoes(fracaoValorTotal, diferencaFracao));
+		versao++;
+		publicarInstantaneo();
+		if (Objects.nonNull(fabricaAtual))
+			fabricaAtual.registrarAlteracao(this, diferencaCentavos, descontoCentavos - descontoAnterior,
+					diferencaFracao);
+	}
+
+	/**
+	 * Altera o valor total, a fração e o desconto total entre os dois incrementos do selo. Deve ser
+	 * chamado sob o bloqueio do carrinho, que garante um único escritor.
+	 */
+	private void gravarValorTotal(long centavos, int escala, BigDecimal fracao)
+	{
+		TabelaPromocoes	promocoes;
+		long			desconto;
+
+		promocoes = promocoesAplicadas;
+		desconto = promocoes == null ? 0
+				: descontoLinhasCentavos + promocoes.descontoCarrinho(centavos - descontoLinhasCentavos);
+		seloValorTotal++;
+		valorTotalCentavos = centavos;
+		escalaValorTotal = escala;
+		fracaoValorTotal = fracao;
+		descontoCentavos = desconto;
+		seloValorTotal++;
+	}
+
+	/**
+	 * Recalcula os descontos com a tabela de promoções da fábrica, se ela mudou desde o último
+	 * cálculo, e repassa a diferença à fábrica.
+	 */
+	synchronized void sincronizarPromocoes()
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+		TabelaPromocoes			promocoes;
+		long					descontoAnterior;
+
+		fabricaAtual = fabrica;
+		promocoes = fabricaAtual == null ? null : fabricaAtual.promocoes;
+		if (promocoes == promocoesAplicadas)
+			return;
+		if (descarregado)
+			garantirCarregado();
+		descontoAnterior = descontoCentavos;
+		recalcularDescontos(promocoes);
+		gravarValorTotal(valorTotalCentavos, escalaValorTotal, fracaoValorTotal);
+		if (Objects.nonNull(fabricaAtual))
+			fabricaAtual.registrarDesconto(descontoCentavos - descontoAnterior);
+	}
+
+	/**
+	 * Retorna a diferença entre o valor total exato e o valor total em centavos, ou null se nenhuma
+	 * linha tem valor unitário com frações de centavo.
+	 *
+	 * @return BigDecimal
+	 */
+	BigDecimal obterFracaoValorTotal()
+	{
+		return fracaoValorTotal;
+	}
+
+	/**
+	 * Retorna o desconto total do carrinho em centavos.
+	 *
+	 * @return long
+	 */
+	long obterDescontoCentavos()
+	{
+		return descontoCentavos;
+	}
+
+	private TabelaPromocoes promocoesVigentes()
+	{
+		CarrinhoComprasFactory	fabricaAtual;
+
+		fabricaAtual = fabrica;
+		return fabricaAtual == null ? null : fabricaAtual.promocoes;
+	}
+
+	/**
+	 * Passa a aplicar a tabela informada, somando os descontos de todas as linhas.
+	 */
+	private void recalcularDescontos(TabelaPromocoes promocoes)
+	{
+		long	soma;
+
+		promocoesAplicadas = promocoes;
+		soma = 0;
+		if (promocoes != null)
+			for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+				if (conjuntoItens.ocupada(posicao))
+					soma += descontoDaLinha(posicao);
+		descontoLinhasCentavos = soma;
+	}
+
+	/**
+	 * Retorna o desconto da linha pela tabela de promoções aplicada.
+	 */
+	private long descontoDaLinha(int posicao)
+	{
+		TabelaPromocoes	promocoes;
+
+		promocoes = promocoesAplicadas;
+		if (promocoes == null)
+			return 0;
+		return promocoes.descontoLinha(conjuntoItens.codigo(posicao), conjuntoItens.valorTotalCentavos(posicao),
+				conjuntoItens.quantidade(posicao));
+	}
+
+	/**
+	 * Retorna a diferença entre a fração nova e a anterior de uma linha, em que null representa
+	 * zero.
+	 */
+	private static BigDecimal diferencaFracao(BigDecimal fracaoNova, BigDecimal fracaoAnterior)
+	{
+		return Dinheiro.somarFracoes(fracaoNova, fracaoAnterior == null ? null : fracaoAnterior.negate());
+	}
+
+	private static BigDecimal somarFracao(BigDecimal valor, BigDecimal fracao)
+	{
+		return fracao == null ? valor : valor.add(fracao);
+	}
+
+	static void checarSeItemPossuiValoresMenoresQueZero(BigDecimal valorUnitario, int quantidade)
 	{
 		if (valorUnitario.compareTo(BigDecimal.valueOf(0)) < 0)
-			throw new RuntimeException("Valor unitario menor que zero.");
+			throw new IllegalArgumentException("Valor unitario menor que zero.");
 		if (quantidade < 0)
-			throw new RuntimeException("Quantidade menor que zero.");
+			throw new IllegalArgumentException("Quantidade menor que zero.");
+	}
+
+	/**
+	 * Valor total convertido para BigDecimal junto com o selo do qual foi lido.
+	 */
+	private static final class ValorTotalConvertido
+	{
+		static final ValorTotalConvertido	ZERO = new ValorTotalConvertido(0, BigDecimal.ZERO);
+
+		final int			selo;
+		final BigDecimal	valor;
+
+		ValorTotalConvertido(int selo, BigDecimal valor)
+		{
+			this.selo = selo;
+			this.valor = valor;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Acesso assíncrono aos carrinhos de uma fábrica: cada método retorna imediatamente um
+ * CompletableFuture concluído quando a operação for executada.
+ *
+ * As operações de cada cliente são executadas uma de cada vez, na ordem das chamadas, por uma
+ * CaixaCarrinho que existe enquanto houver operações pendentes para ele. Assim o carrinho tem um
+ * único escritor e quem chama nunca espera pelo seu bloqueio. Operações de clientes diferentes
+ * são executadas em paralelo no executor.
+ *
+ * As operações que incluem itens obtêm o carrinho por CarrinhoComprasFactory.criar, que o cria se
+ * ele não existir. As remoções e leituras não criam carrinhos: para o cliente sem carrinho elas
+ * respondem como um carrinho vazio, com false, zero ou nenhum item. Exceções lançadas pela
+ * operação concluem o CompletableFuture com a exceção.
+ */
+public class CarrinhoComprasAssincrono
+{
+	private final CarrinhoComprasFactory		fabrica;
+	private final Executor						executor;
+
+	/**
+	 * Caixas com operações pendentes, por cliente.
+	 */
+	final Map<String, CaixaCarrinho>	caixas = new ConcurrentHashMap<>();
+
+	/**
+	 * Cria o acesso assíncrono com o executor padrão: um pool de threads daemon no Java 8 e threads
+	 * virtuais a partir do Java 21.
+	 *
+	 * @param fabrica
+	 */
+	public CarrinhoComprasAssincrono(CarrinhoComprasFactory fabrica)
+	{
+		this(fabrica, ExecutoresCarrinhos.padrao());
+	}
+
+	/**
+	 * Cria o acesso assíncrono com o executor informado, que não deve recusar tarefas.
+	 *
+	 * @param fabrica
+	 * @param executor
+	 */
+	public CarrinhoComprasAssincrono(CarrinhoComprasFactory fabrica, Executor executor)
+	{
+		this.fabrica = fabrica;
+		this.executor = executor;
+	}
+
+	/**
+	 * Executa CarrinhoComprasFactory.criar na vez do cliente.
+	 *
+	 * @param identificacaoCliente
+	 * @return CompletableFuture
+	 */
+	public CompletableFuture<CarrinhoCompras> criar(String identificacaoCliente)
+	{
+		return executar(identificacaoCliente, () -> fabrica.criar(identificacaoCliente));
+	}
+
+	/**
+	 * Executa CarrinhoComprasFactory.invalidar na vez do cliente.
+	 *
+	 * @param identificacaoCliente
+	 * @return CompletableFuture
+	 */
+	public CompletableFuture<Boolean> invalidar(String identificacaoCliente)
+	{
+		return executar(identificacaoCliente, () -> fabrica.invalidar(identificacaoCliente));
+	}
+
+	/**
+	 * Executa CarrinhoCompras.adicionarItem no carrinho do cliente.
+	 *
+	 * @param identificacaoCliente
+	 * @param produto
+	 * @param valorUnitario
+	 * @param quantidade
+	 * @return CompletableFuture
+	 */
+	public CompletableFuture<Void> adicionarItem(String identificacaoCliente, Produto produto, BigDecimal valorUnitario,
+			int quantidade)
+	{
+		return executar(identificacaoCliente, () -> {
+			fabrica.criar(identificacaoCliente).adicionarItem(produto, valorUnitario, quantidade);
+			return null;
+		});
+	}
+
+	/**
+	 * Executa CarrinhoCompras.adicionarItensAoCarrinho no carrinho do cliente.
+	 *
+	 * @param identificacaoCliente
+	 * @param itens
+	 * @return CompletableFuture
+	 */
+	public CompletableFuture<Void> adicionarItensAoCarrinho(String identificacaoCliente, Item[] itens)
+	{
+		return executar(identificacaoCliente, () -> {
+			fabrica.criar(identificacaoCliente).adicionarItensAoCarrinho(itens);
+			return null;
+		});
+	}
+
+	/**
+	 * Executa CarrinhoCompras.removerItem(Produto) no carrinho do cliente, se ele tiver um.
+	 *
+	 * @param identificacaoCliente
+	 * @param produto
+	 * @return CompletableFuture com false caso o cliente não tenha carrinho.
+	 */
+	public CompletableFuture<Boolean> removerItem(String identificacaoCliente, Produto produto)
+	{
+		return executar(identificacaoCliente, () -> {
+			CarrinhoCompras	carrinhoCompras;
+
+			carrinhoCompras = fabrica.buscar(identificacaoCliente);
+			return carrinhoCompras != null && carrinhoCompras.removerItem(produto);
+		});
+	}
+
+	/**
+	 * Executa CarrinhoCompras.removerItem(int) no carrinho do cliente, se ele tiver um.
+	 *
+	 * @param identificacaoCliente
+	 * @param posicaoItem
+	 * @return CompletableFuture com false caso o cliente não tenha carrinho.
+	 */
+	public CompletableFuture<Boolean> removerItem(String identificacaoCliente, int posicaoItem)
+	{
+		return executar(identificacaoCliente, () -> {
+			CarrinhoCompras	carrinhoCompras;
+
+			carrinhoCompras = fabrica.buscar(identificacaoCliente);
+			return carrinhoCompras != null && carrinhoCompras.removerItem(posicaoItem);
+		});
+	}
+
+	/**
+	 * Retorna o valor total do carrinho do cliente depois das operações pedidas antes.
+	 *
+	 * @param identificacaoCliente
+	 * @return CompletableFuture com zero caso o cliente não tenha carrinho.
+	 */
+	public CompletableFuture<BigDecimal> getValorTotal(String identificacaoCliente)
+	{
+		return executar(identificacaoCliente, () -> {
+			CarrinhoCompras	carrinhoCompras;
+
+			carrinhoCompras = fabrica.buscar(identificacaoCliente);
+			return carrinhoCompras == null ? BigDecimal.ZERO : carrinhoCompras.getValorTotal();
+		});
+	}
+
+	/**
+	 * Retorna os itens do carrinho do cliente depois das operações pedidas antes.
+	 *
+	 * @param identificacaoCliente
+	 * @return CompletableFuture com uma coleção vazia caso o cliente não tenha carrinho.
+	 */
+	public CompletableFuture<Collection<Item>> getItens(String identificacaoCliente)
+	{
+		return executar(identificacaoCliente, () -> {
+			CarrinhoCompras	carrinhoCompras;
+
+			carrinhoCompras = fabrica.buscar(identificacaoCliente);
+			return carrinhoCompras == null ? Collections.<Item>emptyList() : carrinhoCompras.getItens();
+		});
+	}
+
+	/**
+	 * Executa a operação na caixa do cliente, criando outra se a encontrada já estiver fechada.
+	 */
+	private <T> CompletableFuture<T> executar(String identificacaoCliente, Supplier<T> operacao)
+	{
+		CompletableFuture<T>	resultado;
+		Runnable				tarefa;
+		CaixaCarrinho			caixa;
+
+		resultado = new CompletableFuture<>();
+		tarefa = () -> {
+			try
+			{
+				resultado.complete(operacao.get());
+			}
+			catch (Throwable e)
+			{
+				resultado.completeExceptionally(e);
+			}
+		};
+		do
+		{
+			caixa = caixas.computeIfAbsent(identificacaoCliente, chave -> new CaixaCarrinho(caixas, chave, executor));
+			if (caixa.enfileirar(tarefa))
+				return resultado;
+			caixas.remove(identificacaoCliente, caixa);
+		}
+		while (true);
+	}
+}
@@ -1,32 +1,188 @@
 package br.com.improving.carrinho;
 
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.Optional;
-
-import javax.swing.text.html.Option;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Classe responsável pela criação e recuperação dos carrinhos de compras.
- * 
- * As instâncias de CarrinhoComprasFactory são independentes entre si, ou seja, quando um carrinho 
- * para um cliente é criado em uma instância, a outra pode criar um novo carrinho para o mesmo 
+ *
+ * As instâncias de CarrinhoComprasFactory são independentes entre si, ou seja, quando um carrinho
+ * para um cliente é criado em uma instância, a outra pode criar um novo carrinho para o mesmo
  * cliente. Isso é verdade para todos os métodos.
+ *
+ * Os métodos podem ser chamados concorrentemente: criar e invalidar são atômicos por cliente.
+ *
+ * Quando configurada com expiração por ociosidade, a fábrica invalida os carrinhos que ficarem sem
+ * ser criados ou alterados pelo tempo configurado. A expiração é verificada a cada chamada de
+ * criar, invalidar e getValorTicketMedio, e pode ser disparada periodicamente por quem usa a
+ * fábrica através de expirarCarrinhosOciosos ou, com expiração em segundo plano, pelo agendador
+ * compartilhado das métricas, até close.
+ *
+ * Quando configurada com limite de carrinhos em memória, as linhas dos carrinhos menos usados são
+ * guardadas em arquivo e recarregadas no próximo acesso, sem alterar o resultado dos métodos. O
+ * arquivo é fechado por close.
+ *
+ * Quando configurada com registro durável, criar, invalidar e as alterações dos carrinhos só
+ * retornam depois de gravadas em disco, e a fábrica criada sobre o mesmo diretório começa com os
+ * carrinhos que existiam nele. close grava e fecha o registro.
+ *
+ * Quando configurada com eventos, cada criação, invalidação e alteração de linha é publicada sem
+ * bloqueio para as assinaturas de assinarEventos.
+ *
+ * Quando configurada com promoções, cada carrinho mantém o seu valor total com desconto, lido por
+ * CarrinhoCompras.getValorTotalComDesconto, e a tabela de promoções pode ser trocada a qualquer
+ * momento por definirPromocoes.
+ *
+ * Quando configurada com índices secundários, buscarClientesComProduto e
+ * buscarClientesComValorAcimaDe respondem sem percorrer os carrinhos.
  */
-public class CarrinhoComprasFactory {
+public class CarrinhoComprasFactory implements AutoCloseable {
 
 	Map<String,CarrinhoCompras> conjuntoCarrinhoCompras;
 
+	/**
+	 * Soma dos valores totais de todos os carrinhos do conjunto em centavos, atualizada pelos
+	 * próprios carrinhos a cada variação do seu valor total.
+	 */
+	private final LongAdder somaValoresTotaisCentavos = new LongAdder();
+
+	/**
+	 * Soma dos descontos de promoções de todos os carrinhos do conjunto em centavos, mantida como
+	 * somaValoresTotaisCentavos, e se ela é descontada no ticket médio.
+	 */
+	private final LongAdder somaDescontosCentavos = new LongAdder();
+	private final boolean ticketMedioComDesconto;
+
+	/**
+	 * Soma das frações de centavo dos valores totais dos carrinhos, como em
+	 * CarrinhoCompras.obterFracaoValorTotal. Só é alterada por carrinhos com valores unitários com
+	 * frações de centavo, e entra no ticket médio para que ele seja a média dos valores exatos.
+	 */
+	private final AtomicReference<BigDecimal> somaFracoes = new AtomicReference<>(BigDecimal.ZERO);
+
+	private final TipoArmazenamentoItens tipoArmazenamentoItens;
+
+	private final Clock relogio;
+
+	/**
+	 * Tempo máximo sem atividade de um carrinho, em milissegundos.
+	 */
+	private final long tempoMaximoOcioso;
+
+	/**
+	 * Agendamentos de expiração dos carrinhos, ou null quando os carrinhos não expiram.
+	 */
+	private final RodaExpiracao rodaExpiracao;
+
+	/**
+	 * Varredura periódica dos carrinhos ociosos, ou null quando a expiração é verificada apenas
+	 * nas chamadas à fábrica.
+	 */
+	private final ScheduledFuture<?> varreduraExpiracao;
+
+	/**
+	 * Controle dos carrinhos com linhas em memória, ou null quando não há limite.
+	 */
+	final DespejoCarrinhos despejo;
+
+	/**
+	 * Registro durável das alterações, ou null quando os carrinhos existem apenas em memória.
+	 */
+	final RegistroCarrinhos registro;
+
+	/**
+	 * Métricas da fábrica e dos seus carrinhos, ou null quando desabilitadas.
+	 */
+	final MetricasCarrinhos metricas;
+
+	/**
+	 * Buffer dos eventos de alteração dos carrinhos, ou null quando os eventos estão desabilitados.
+	 */
+	final AnelEventosCarrinhos eventos;
+
+	/**
+	 * Promoções aplicadas aos carrinhos, ou null quando não há promoções.
+	 */
+	volatile TabelaPromocoes promocoes;
+
+	/**
+	 * Índices dos carrinhos por produto e por valor total, ou null quando desabilitados.
+	 */
+	final IndicesCarrinhos indices;
+
 	public CarrinhoComprasFactory()
 	{
-		conjuntoCarrinhoCompras = new LinkedHashMap<>();
+		this(new ConfiguracaoCarrinhoComprasFactory());
+	}
+
+	/**
+	 * Cria uma fábrica cujos carrinhos guardam as linhas da forma informada.
+	 *
+	 * @param tipoArmazenamentoItens
+	 */
+	public CarrinhoComprasFactory(TipoArmazenamentoItens tipoArmazenamentoItens)
+	{
+		this(new ConfiguracaoCarrinhoComprasFactory().comTipoArmazenamentoItens(tipoArmazenamentoItens));
+	}
+
+	/**
+	 * Cria uma fábrica com as opções informadas.
+	 *
+	 * @param configuracao
+	 */
+	public CarrinhoComprasFactory(ConfiguracaoCarrinhoComprasFactory configuracao)
+	{
+		this.conjuntoCarrinhoCompras = new ConcurrentHashMap<>();
+		this.tipoArmazenamentoItens = configuracao.tipoArmazenamentoItens;
+		this.relogio = configuracao.relogio;
+		if (configuracao.tempoMaximoOcioso == null)
+		{
+			this.tempoMaximoOcioso = 0;
+			this.rodaExpiracao = null;
+		}
+		else
+		{
+			this.tempoMaximoOcioso = configuracao.tempoMaximoOcioso.toMillis();
+			this.rodaExpiracao = new RodaExpiracao(configuracao.resolucaoExpiracao.toMillis(),
+					configuracao.numeroDeBaldesExpiracao, relogio.millis());
+		}
+		this.despejo = configuracao.arquivoDespejo == null ? null
+				: new DespejoCarrinhos(configuracao.limiteCarrinhosEmMemoria, configuracao.arquivoDespejo);
+		this.metricas = configuracao.metricas ? new MetricasCarrinhos(conjuntoCarrinhoCompras, tipoArmazenamentoItens) : null;
+		if (configuracao.nomeJmx != null)
+			metricas.registrarJmx(configuracao.nomeJmx);
+		if (configuracao.relatorMetricas != null)
+			metricas.agendarRelator(configuracao.relatorMetricas, configuracao.intervaloRelatorio.toMillis());
+		this.eventos = configuracao.capacidadeEventos == 0 ? null
+				: new AnelEventosCarrinhos(configuracao.capacidadeEventos);
+		this.promocoes = configuracao.promocoes;
+		this.ticketMedioComDesconto = configuracao.ticketMedioComDesconto;
+		this.indices = configuracao.indicesSecundarios ? new IndicesCarrinhos() : null;
+		if (configuracao.diretorioRegistro == null)
+			this.registro = null;
+		else
+		{
+			this.registro = new RegistroCarrinhos(configuracao.diretorioRegistro, configuracao.tamanhoSegmentoRegistro,
+					configuracao.bytesEntreSnapshots, tipoArmazenamentoItens);
+			registro.retirarRecuperados().forEach(this::vincularRecuperado);
+			registro.definirTarefaSnapshot(this::gravarSnapshot);
+		}
+		this.varreduraExpiracao = rodaExpiracao == null || configuracao.intervaloVarreduraExpiracao == null ? null
+				: agendarVarreduraExpiracao(configuracao.intervaloVarreduraExpiracao.toMillis());
 	}
 
     /**
@@ -39,22 +195,52 @@ public class CarrinhoComprasFactory {
      */
     public CarrinhoCompras criar(String identificacaoCliente)
 	{
-//		Optional<CarrinhoCompras> carrinhoCompras;
-		try
-		{
+		CarrinhoCompras		carrinhoCompras;
+		CarrinhoCompras[]	gerado;
+		long				inicio;
 
-			return buscarCarrinhoPorIdentificacao(identificacaoCliente);
-////		carrinhoCompras = conjuntoCarrinhoCompras.get(identificacaoCliente);
-//		if (carrinhoCompras == null)
-//		{
-//			carrinhoCompras = gerarCarrinhoEAdicionarAoConjunto(identificacaoCliente);
-//		}
-//		return carrinhoCompras;
-		}
-		catch (NoSuchElementException e)
+		inicio = metricas != null ? System.nanoTime() : 0;
+		expirarSePendente();
+		carrinhoCompras = conjuntoCarrinhoCompras.get(identificacaoCliente);
+		if (carrinhoCompras == null)
 		{
-			return gerarCarrinhoEAdicionarAoConjunto(identificacaoCliente);
+			gerado = new CarrinhoCompras[1];
+			if (registro != null)
+				registro.iniciarCriacao();
+			try
+			{
+				carrinhoCompras = conjuntoCarrinhoCompras.computeIfAbsent(identificacaoCliente,
+						chave -> gerado[0] = gerarCarrinho(chave));
+			}
+			finally
+			{
+				if (registro != null)
+					registro.concluirCriacao();
+			}
+			if (metricas != null && gerado[0] == null)
+				metricas.criacoesExistentes.increment();
 		}
+		else if (metricas != null)
+			metricas.criacoesExistentes.increment();
+		if (registro != null)
+			registro.aguardarGravacao();
+		renovarPrazo(identificacaoCliente, carrinhoCompras);
+		registrarAcesso(carrinhoCompras);
+		if (metricas != null)
+			metricas.registrarLatencia(MetricasCarrinhos.OperacaoMedida.CRIAR, inicio);
+		return carrinhoCompras;
+	}
+
+	/**
+	 * Retorna o carrinho do cliente sem criá-lo e sem renovar o seu prazo de expiração.
+	 *
+	 * @param identificacaoCliente
+	 * @return CarrinhoCompras ou null caso o cliente não tenha carrinho.
+	 */
+	CarrinhoCompras buscar(String identificacaoCliente)
+	{
+		expirarSePendente();
+		return conjuntoCarrinhoCompras.get(identificacaoCliente);
 	}
 
 	/**
@@ -68,6 +254,7 @@ public class CarrinhoComprasFactory {
      */
     public BigDecimal getValorTicketMedio()
 	{
+		expirarSePendente();
 		return obterMediaTickets();
     }
 
@@ -81,76 +268,534 @@ public class CarrinhoComprasFactory {
      */
     public boolean invalidar(String identificacaoCliente)
 	{
-		try
+		CarrinhoCompras	carrinhoCompras;
+		long			inicio;
+
+		inicio = metricas != null ? System.nanoTime() : 0;
+		expirarSePendente();
+		carrinhoCompras = conjuntoCarrinhoCompras.remove(identificacaoCliente);
+		if (carrinhoCompras != null)
 		{
-			buscarCarrinhoPorIdentificacao(identificacaoCliente);
-			conjuntoCarrinhoCompras.remove(identificacaoCliente);
-			return true;
+			desvincularCarrinho(carrinhoCompras, TipoEventoCarrinho.INVALIDACAO);
+			if (registro != null)
+				registro.aguardarGravacao();
 		}
-		catch (NoSuchElementException e)
+		if (metricas != null)
 		{
-			return false;
+			if (carrinhoCompras != null)
+				metricas.invalidacoes.increment();
+			metricas.registrarLatencia(MetricasCarrinhos.OperacaoMedida.INVALIDAR, inicio);
 		}
+		return carrinhoCompras != null;
 	}
 
-	private CarrinhoCompras gerarCarrinhoEAdicionarAoConjunto(String identificacaoCliente)
+	/**
+	 * Invalida os carrinhos cujo tempo sem atividade já atingiu o máximo configurado. Pode ser
+	 * chamado periodicamente para liberar os carrinhos abandonados mesmo sem outras chamadas à
+	 * fábrica. Não faz nada se a fábrica não expira carrinhos.
+	 *
+	 * @return Quantidade de carrinhos invalidados.
+	 */
+	public int expirarCarrinhosOciosos()
 	{
-		CarrinhoCompras carrinhoCompras;
+		long	agora;
+		int		expirados;
 
-		carrinhoCompras = new CarrinhoCompras();
+		if (rodaExpiracao == null)
+			return 0;
+		agora = relogio.millis();
+		expirados = 0;
+		for (RodaExpiracao.Entrada entrada : rodaExpiracao.avancar(agora))
+			if (expirar(entrada, agora))
+				expirados++;
+		return expirados;
+	}
+
+	/**
+	 * Calcula, em paralelo sobre todos os carrinhos da fábrica, a receita e as unidades de cada
+	 * produto, a quantidade de carrinhos por faixa de valor e os carrinhos de maior valor.
+	 *
+	 * A lista de carrinhos é copiada e dividida em trechos processados no ForkJoinPool comum. Cada
+	 * carrinho é bloqueado apenas enquanto suas linhas são copiadas, então as alterações concorrentes
+	 * continuam e o resultado não corresponde a um único instante.
+	 *
+	 * @param quantidadeMaioresCarrinhos quantos carrinhos de maior valor retornar.
+	 * @param limitesFaixas limites das faixas de valor, em ordem crescente.
+	 * @return AnaliseCarrinhos
+	 */
+	public AnaliseCarrinhos analisarCarrinhos(int quantidadeMaioresCarrinhos, BigDecimal... limitesFaixas)
+	{
+		long[]										limitesCentavos;
+		List<Map.Entry<String, CarrinhoCompras>>	carrinhos;
+
+		if (quantidadeMaioresCarrinhos < 0)
+			throw new IllegalArgumentException("Quantidade de carrinhos não pode ser negativa.");
+		limitesCentavos = new long[limitesFaixas.length];
+		for (int i = 0; i < limitesFaixas.length; i++)
+		{
+			limitesCentavos[i] = Dinheiro.centavosDe(limitesFaixas[i]);
+			if (i > 0 && limitesCentavos[i] <= limitesCentavos[i - 1])
+				throw new IllegalArgumentException("Limites das faixas devem ser crescentes.");
+		}
+		expirarSePendente();
+		carrinhos = new ArrayList<>(conjuntoCarrinhoCompras.entrySet());
+		return new AnaliseCarrinhos(ForkJoinPool.commonPool().invoke(new TarefaAnaliseCarrinhos(this, carrinhos, 0,
+				carrinhos.size(), limitesCentavos, quantidadeMaioresCarrinhos)), Arrays.asList(limitesFaixas.clone()));
+	}
+
+	/**
+	 * Grava um snapshot dos carrinhos no registro durável, descartando o registro anterior a ele,
+	 * o que encurta a recuperação. Os snapshots também são gravados automaticamente no intervalo
+	 * configurado. Não faz nada se a fábrica não tem registro durável.
+	 */
+	public void gravarSnapshot()
+	{
+		if (registro != null)
+			registro.gravarSnapshot(conjuntoCarrinhoCompras, this);
+	}
+
+	/**
+	 * Fecha os arquivos da fábrica, esperando o snapshot em andamento. Depois de fechada, a
+	 * fábrica e seus carrinhos não devem mais ser usados. Não faz nada se a fábrica não usa
+	 * arquivos.
+	 */
+	@Override
+	public void close()
+	{
+		if (varreduraExpiracao != null)
+			varreduraExpiracao.cancel(false);
+		if (registro != null)
+			registro.close();
+		if (despejo != null)
+			despejo.close();
+	}
+
+	/**
+	 * Cria uma assinatura dos eventos de alteração dos carrinhos, que recebe os eventos publicados
+	 * a partir de agora.
+	 *
+	 * @param consumidor
+	 * @return AssinaturaEventosCarrinho
+	 * @throws IllegalStateException caso a fábrica não tenha sido configurada com eventos.
+	 */
+	public AssinaturaEventosCarrinho assinarEventos(ConsumidorEventosCarrinho consumidor)
+	{
+		if (eventos == null)
+			throw new IllegalStateException("Fabrica configurada sem eventos.");
+		return new AssinaturaEventosCarrinho(eventos, Objects.requireNonNull(consumidor));
+	}
+
+	/**
+	 * Troca a tabela de promoções dos carrinhos, ou as remove se a tabela for null. A troca é
+	 * atômica: cada carrinho calcula seus descontos inteiramente com a tabela anterior ou com a
+	 * nova. Os carrinhos em memória são recalculados antes de o método retornar, e os que estão
+	 * no arquivo de despejo no próximo acesso.
+	 *
+	 * @param promocoes
+	 */
+	public void definirPromocoes(TabelaPromocoes promocoes)
+	{
+		this.promocoes = promocoes;
+		for (CarrinhoCompras carrinhoCompras : conjuntoCarrinhoCompras.values())
+		{
+			synchronized (carrinhoCompras)
+			{
+				if (carrinhoCompras.fabrica == this && !carrinhoCompras.descarregado)
+					carrinhoCompras.sincronizarPromocoes();
+			}
+		}
+	}
+
+	/**
+	 * Retorna a tabela de promoções dos carrinhos, ou null se não há promoções.
+	 *
+	 * @return TabelaPromocoes
+	 */
+	public TabelaPromocoes getPromocoes()
+	{
+		return promocoes;
+	}
+
+	/**
+	 * Retorna os clientes cujo carrinho tem uma linha do produto. A busca não percorre os
+	 * carrinhos: leva tempo proporcional à quantidade de clientes retornados.
+	 *
+	 * @param produto
+	 * @return List
+	 * @throws IllegalStateException caso a fábrica não tenha sido configurada com índices secundários.
+	 */
+	public List<String> buscarClientesComProduto(Produto produto)
+	{
+		if (indices == null)
+			throw new IllegalStateException("Fabrica configurada sem indices secundarios.");
+		expirarSePendente();
+		return indices.clientesComProduto(produto.getCodigo());
+	}
+
+	/**
+	 * Retorna os clientes cujo carrinho tem valor total maior que o informado, do maior valor para
+	 * o menor. A busca não percorre os carrinhos: leva tempo proporcional à quantidade de clientes
+	 * retornados.
+	 *
+	 * @param valor
+	 * @return List
+	 * @throws IllegalStateException caso a fábrica não tenha sido configurada com índices secundários.
+	 */
+	public List<String> buscarClientesComValorAcimaDe(BigDecimal valor)
+	{
+		long	centavos;
+
+		if (indices == null)
+			throw new IllegalStateException("Fabrica configurada sem indices secundarios.");
+		centavos = valor.movePointRight(Dinheiro.ESCALA).setScale(0, RoundingMode.FLOOR).longValueExact();
+		expirarSePendente();
+		return indices.clientesComValorAcimaDe(centavos);
+	}
+
+	private void expirarSePendente()
+	{
+		if (rodaExpiracao != null && rodaExpiracao.possuiTicksPendentes(relogio.millis()))
+			expirarCarrinhosOciosos();
+	}
+
+	/**
+	 * Invalida o carrinho da entrada vencida. As alterações do carrinho renovam o prazo sob o seu
+	 * bloqueio, então o prazo é conferido novamente sob o mesmo bloqueio e, se tiver sido renovado
+	 * depois de a roda retirar a entrada, ela volta a ser agendada.
+	 */
+	private boolean expirar(RodaExpiracao.Entrada entrada, long agora)
+	{
+		CarrinhoCompras	carrinhoCompras;
+
+		carrinhoCompras = entrada.carrinho;
+		synchronized (carrinhoCompras)
+		{
+			if (carrinhoCompras.entradaExpiracao != entrada)
+				return false;
+			if (entrada.prazo > agora)
+			{
+				rodaExpiracao.reagendar(entrada);
+				return false;
+			}
+			if (!conjuntoCarrinhoCompras.remove(entrada.identificacaoCliente, carrinhoCompras))
+				return false;
+			desvincularCarrinho(carrinhoCompras, TipoEventoCarrinho.EXPIRACAO);
+		}
+		if (registro != null)
+			registro.aguardarGravacao();
+		return true;
+	}
+
+	/**
+	 * Renova o prazo de expiração do carrinho, agendando-o na primeira vez. O agendamento é feito sob
+	 * o bloqueio do carrinho para não agendar um carrinho invalidado concorrentemente.
+	 */
+	private void renovarPrazo(String identificacaoCliente, CarrinhoCompras carrinhoCompras)
+	{
+		RodaExpiracao.Entrada	entrada;
+		long					prazo;
+
+		if (rodaExpiracao == null)
+			return;
+		prazo = relogio.millis() + tempoMaximoOcioso;
+		entrada = carrinhoCompras.entradaExpiracao;
+		if (entrada != null)
+		{
+			entrada.prazo = prazo;
+			return;
+		}
+		synchronized (carrinhoCompras)
+		{
+			if (carrinhoCompras.fabrica != this)
+				return;
+			if (carrinhoCompras.entradaExpiracao == null)
+				carrinhoCompras.entradaExpiracao = rodaExpiracao.agendar(identificacaoCliente, carrinhoCompras, prazo);
+			else
+				carrinhoCompras.entradaExpiracao.prazo = prazo;
+		}
+	}
+
+	/**
+	 * Recarrega as linhas do carrinho, se descarregadas, e descarrega outros carrinhos caso o limite
+	 * em memória tenha sido excedido.
+	 */
+	private void registrarAcesso(CarrinhoCompras carrinhoCompras)
+	{
+		if (despejo == null)
+			return;
+		synchronized (carrinhoCompras)
+		{
+			if (carrinhoCompras.fabrica == this)
+				despejo.registrarAcesso(carrinhoCompras);
+		}
+		despejo.descarregarExcedentes(this);
+	}
+
+	/**
+	 * Passa o carrinho do cliente para a fábrica de destino, mantendo a mesma instância, as linhas,
+	 * o valor total e o prazo de expiração. Usado por CarrinhoComprasFactoryDistribuida para
+	 * redistribuir carrinhos entre fragmentos.
+	 *
+	 * @return false caso o carrinho já não pertença a esta fábrica.
+	 */
+	boolean transferir(String identificacaoCliente, CarrinhoCompras carrinhoCompras, CarrinhoComprasFactory destino)
+	{
+		long	prazo;
+
+		synchronized (carrinhoCompras)
+		{
+			if (!conjuntoCarrinhoCompras.remove(identificacaoCliente, carrinhoCompras))
+				return false;
+			prazo = carrinhoCompras.entradaExpiracao != null ? carrinhoCompras.entradaExpiracao.prazo
+					: destino.relogio.millis() + destino.tempoMaximoOcioso;
+			desvincularCarrinho(carrinhoCompras, null);
+			destino.acolher(identificacaoCliente, carrinhoCompras, prazo);
+		}
+		if (registro != null)
+			registro.aguardarGravacao();
+		if (destino.registro != null)
+			destino.registro.aguardarGravacao();
+		destino.registrarAcesso(carrinhoCompras);
+		return true;
+	}
+
+	/**
+	 * Vincula a esta fábrica um carrinho vindo de outra, registrando-o por inteiro no registro
+	 * durável. Deve ser chamado sob o bloqueio do carrinho.
+	 */
+	private void acolher(String identificacaoCliente, CarrinhoCompras carrinhoCompras, long prazo)
+	{
+		ArmazenamentoItens	conjuntoItens;
+		byte[][]			registros;
+		int					quantidadeRegistros;
+
+		carrinhoCompras.fabrica = this;
+		carrinhoCompras.identificacaoCliente = identificacaoCliente;
+		if (registro == null)
+			conjuntoCarrinhoCompras.put(identificacaoCliente, carrinhoCompras);
+		else
+		{
+			conjuntoItens = carrinhoCompras.conjuntoItens;
+			registro.iniciarCriacao();
+			try
+			{
+				registro.registrarCriacao(carrinhoCompras, identificacaoCliente);
+				registros = new byte[conjuntoItens.tamanho()][];
+				quantidadeRegistros = 0;
+				for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+					if (conjuntoItens.ocupada(posicao))
+					{
+						quantidadeRegistros++;
+						registros[quantidadeRegistros - 1] = registro.codificarLinha(carrinhoCompras, quantidadeRegistros,
+								posicao);
+					}
+				registro.registrarLinhas(carrinhoCompras, registros);
+				conjuntoCarrinhoCompras.put(identificacaoCliente, carrinhoCompras);
+			}
+			finally
+			{
+				registro.concluirCriacao();
+			}
+		}
+		somaValoresTotaisCentavos.add(carrinhoCompras.obterValorTotalCentavos());
+		somaDescontosCentavos.add(carrinhoCompras.obterDescontoCentavos());
+		somarFracao(carrinhoCompras.obterFracaoValorTotal());
+		carrinhoCompras.sincronizarPromocoes();
+		if (indices != null)
+			indices.incluirCarrinho(identificacaoCliente, carrinhoCompras);
+		if (metricas != null)
+			metricas.linhas.add(carrinhoCompras.conjuntoItens.tamanho());
+		if (rodaExpiracao != null)
+			carrinhoCompras.entradaExpiracao = rodaExpiracao.agendar(identificacaoCliente, carrinhoCompras, prazo);
+	}
+
+	/**
+	 * Processa as expirações pendentes e soma o valor total e a quantidade dos carrinhos desta
+	 * fábrica às parcelas informadas, na forma {soma em centavos, quantidade}.
+	 *
+	 * @return a soma das frações de centavo dos valores totais, que completa a soma em centavos.
+	 */
+	BigDecimal acumularTickets(long[] parcelas)
+	{
+		expirarSePendente();
+		parcelas[0] += somarTickets();
+		parcelas[1] += conjuntoCarrinhoCompras.size();
+		return somaFracoes.get();
+	}
+
+	private void vincularRecuperado(String identificacaoCliente, CarrinhoCompras carrinhoCompras)
+	{
+		carrinhoCompras.fabrica = this;
+		carrinhoCompras.identificacaoCliente = identificacaoCliente;
 		conjuntoCarrinhoCompras.put(identificacaoCliente, carrinhoCompras);
+		somaValoresTotaisCentavos.add(carrinhoCompras.obterValorTotalCentavos());
+		somaDescontosCentavos.add(carrinhoCompras.obterDescontoCentavos());
+		somarFracao(carrinhoCompras.obterFracaoValorTotal());
+		carrinhoCompras.sincronizarPromocoes();
+		if (indices != null)
+			indices.incluirCarrinho(identificacaoCliente, carrinhoCompras);
+		if (metricas != null)
+			metricas.linhas.add(carrinhoCompras.conjuntoItens.tamanho());
+		renovarPrazo(identificacaoCliente, carrinhoCompras);
+		registrarAcesso(carrinhoCompras);
+	}
+
+	private CarrinhoCompras gerarCarrinho(String identificacaoCliente)
+	{
+		CarrinhoCompras carrinhoCompras;
+
+		carrinhoCompras = new CarrinhoCompras(tipoArmazenamentoItens);
+		carrinhoCompras.fabrica = this;
+		carrinhoCompras.identificacaoCliente = identificacaoCliente;
+		if (registro != null)
+			registro.registrarCriacao(carrinhoCompras, identificacaoCliente);
+		if (metricas != null)
+			metricas.criacoesNovas.increment();
+		if (indices != null)
+			indices.incluirCarrinho(identificacaoCliente, carrinhoCompras);
+		publicarEvento(TipoEventoCarrinho.CRIACAO, carrinhoCompras);
 
 		return carrinhoCompras;
-	};
+	}
 
-	private Iterator obterIteradorCarrinhos()
+	/**
+	 * Soma as diferenças informadas ao valor total e ao desconto acumulados dos carrinhos e renova o
+	 * prazo de expiração do carrinho. É chamado pelos carrinhos desta fábrica, sob o seu bloqueio,
+	 * a cada alteração. A espera pela gravação do registro durável é feita pelo carrinho depois de
+	 * liberar o bloqueio.
+	 *
+	 * @param carrinhoCompras
+	 * @param diferencaCentavos
+	 * @param diferencaDescontoCentavos
+	 * @param diferencaFracao diferença da fração de centavo do valor total, ou null se não houver.
+	 */
+	void registrarAlteracao(CarrinhoCompras carrinhoCompras, long diferencaCentavos, long diferencaDescontoCentavos,
+			BigDecimal diferencaFracao)
 	{
-		return conjuntoCarrinhoCompras.entrySet().iterator();
+		RodaExpiracao.Entrada	entrada;
+
+		somaValoresTotaisCentavos.add(diferencaCentavos);
+		if (diferencaDescontoCentavos != 0)
+			somaDescontosCentavos.add(diferencaDescontoCentavos);
+		somarFracao(diferencaFracao);
+		if (indices != null && diferencaCentavos != 0)
+			indices.alterarValor(carrinhoCompras.identificacaoCliente,
+					carrinhoCompras.obterValorTotalCentavos() - diferencaCentavos, carrinhoCompras.obterValorTotalCentavos());
+		entrada = carrinhoCompras.entradaExpiracao;
+		if (entrada != null)
+			entrada.prazo = relogio.millis() + tempoMaximoOcioso;
 	}
 
-	private BigDecimal obterMediaTickets()
+	/**
+	 * Soma ao desconto acumulado a diferença do desconto de um carrinho desta fábrica recalculado
+	 * com outra tabela de promoções. É chamado sob o bloqueio do carrinho.
+	 */
+	void registrarDesconto(long diferencaDescontoCentavos)
 	{
-		BigDecimal	valorTotalDeTodosOsCarrinhosDoConjunto;
-		int			tamanhoDoConjunto;
-		BigDecimal 	media;
-		Iterator	iterator;
+		somaDescontosCentavos.add(diferencaDescontoCentavos);
+	}
 
-		valorTotalDeTodosOsCarrinhosDoConjunto = new BigDecimal(0);
-		tamanhoDoConjunto = 0;
-		iterator = obterIteradorCarrinhos();
-		while(iterator.hasNext())
+	/**
+	 * Retira o carrinho da soma acumulada, da roda de expiração e do controle de carrinhos em
+	 * memória, publicando o evento informado, se houver. A operação é feita sob o bloqueio do
+	 * carrinho para que nenhuma alteração concorrente dele seja contabilizada ou publicada depois de
+	 * desvinculado.
+	 *
+	 * Com evento, o carrinho invalidado ou expirado não vai para outra fábrica: as linhas guardadas
+	 * fora do heap passam para o heap, onde ficam apenas enquanto o carrinho for referenciado, e os
+	 * blocos voltam à arena sem esperar a coleta do carrinho.
+	 */
+	private void desvincularCarrinho(CarrinhoCompras carrinhoCompras, TipoEventoCarrinho tipoEvento)
+	{
+		synchronized (carrinhoCompras)
 		{
-			Entry<String, CarrinhoCompras> registroAtual = (Entry<String, CarrinhoCompras>) iterator.next();
-			CarrinhoCompras carrinhoAtual = registroAtual.getValue();
-			valorTotalDeTodosOsCarrinhosDoConjunto = valorTotalDeTodosOsCarrinhosDoConjunto.add(carrinhoAtual.getValorTotal());
-			tamanhoDoConjunto++;
+			if (tipoEvento != null)
+				publicarEvento(tipoEvento, carrinhoCompras);
+			if (registro != null)
+				registro.registrarInvalidacao(carrinhoCompras);
+			carrinhoCompras.fabrica = null;
+			somaValoresTotaisCentavos.add(-carrinhoCompras.obterValorTotalCentavos());
+			somaDescontosCentavos.add(-carrinhoCompras.obterDescontoCentavos());
+			if (carrinhoCompras.obterFracaoValorTotal() != null)
+				somarFracao(carrinhoCompras.obterFracaoValorTotal().negate());
+			if (carrinhoCompras.entradaExpiracao != null)
+			{
+				rodaExpiracao.cancelar(carrinhoCompras.entradaExpiracao);
+				carrinhoCompras.entradaExpiracao = null;
+			}
+			if (despejo != null)
+				despejo.liberar(carrinhoCompras);
+			if (indices != null)
+				indices.removerCarrinho(carrinhoCompras.identificacaoCliente, carrinhoCompras);
+			if (metricas != null)
+				metricas.linhas.add(-carrinhoCompras.conjuntoItens.tamanho());
+			if (tipoEvento != null)
+				carrinhoCompras.conjuntoItens = carrinhoCompras.conjuntoItens.transferirParaHeap();
 		}
-		media = valorTotalDeTodosOsCarrinhosDoConjunto.divide(
-				new BigDecimal(tamanhoDoConjunto),
-				2,
-				RoundingMode.HALF_UP);
-		return media;
 	}
 
-	private CarrinhoCompras buscarCarrinhoPorIdentificacao(String identificacaoCliente)
+	/**
+	 * Agenda expirarCarrinhosOciosos no agendador compartilhado das métricas. Como em
+	 * MetricasCarrinhos.agendarRelator, a tarefa guarda apenas uma referência fraca à fábrica e
+	 * deixa de ser executada quando ela é coletada, e exceções não interrompem as varreduras
+	 * seguintes.
+	 */
+	private ScheduledFuture<?> agendarVarreduraExpiracao(long intervaloMillis)
 	{
-		CarrinhoCompras	carrinhoCompras;
+		WeakReference<CarrinhoComprasFactory>	referencia;
 
-		carrinhoCompras = conjuntoCarrinhoCompras.get(identificacaoCliente);
-		if (carrinhoCompras != null)
-			return carrinhoCompras;
-		throw new NoSuchElementException();
+		referencia = new WeakReference<>(this);
+		return MetricasCarrinhos.agendador().scheduleWithFixedDelay(() -> {
+			CarrinhoComprasFactory	fabrica;
+
+			fabrica = referencia.get();
+			if (fabrica == null)
+				throw new CancellationException();
+			try
+			{
+				fabrica.expirarCarrinhosOciosos();
+			}
+			catch (RuntimeException e)
+			{
+				// A próxima varredura é tentada no intervalo seguinte.
+			}
+		}, intervaloMillis, intervaloMillis, TimeUnit.MILLISECONDS);
 	}
 
+	private void publicarEvento(TipoEventoCarrinho tipo, CarrinhoCompras carrinhoCompras)
+	{
+		if (eventos != null)
+			eventos.publicar(tipo, carrinhoCompras.identificacaoCliente, 0, 0, carrinhoCompras.obterValorTotalCentavos(),
+					carrinhoCompras.escalaValorTotal);
+	}
 
-//	private void arredondarValor(BigDecimal valorAArredondar)
-//	{
-//		DecimalFormat	df;
-//
-//		df = new DecimalFormat();
-//		df.setRoundingMode(RoundingMode.HALF_UP);
-//		df.setMaximumFractionDigits(2);
-//		df.setMinimumFractionDigits(2);
-//		df.format(valorAArredondar);
-//	}
+	/**
+	 * Retorna a soma acumulada dos valores totais, descontadas as promoções se a fábrica foi
+	 * configurada com o ticket médio com desconto.
+	 */
+	private long somarTickets()
+	{
+		return ticketMedioComDesconto ? somaValoresTotaisCentavos.sum() - somaDescontosCentavos.sum()
+				: somaValoresTotaisCentavos.sum();
+	}
+
+	private void somarFracao(BigDecimal fracao)
+	{
+		if (fracao != null && fracao.signum() != 0)
+			somaFracoes.accumulateAndGet(fracao, BigDecimal::add);
+	}
+
+	/**
+	 * Divide a soma acumulada, com as frações de centavo, pela quantidade de carrinhos, com duas
+	 * casas decimais e arredondamento HALF_UP. Sem carrinhos, o ticket médio é zero.
+	 */
+	private BigDecimal obterMediaTickets()
+	{
+		int	tamanhoDoConjunto;
+
+		tamanhoDoConjunto = conjuntoCarrinhoCompras.size();
+		if (tamanhoDoConjunto == 0)
+			return Dinheiro.paraBigDecimal(0);
+		return Dinheiro.dividir(somarTickets(), somaFracoes.get(), tamanhoDoConjunto);
+	}
 }
@@ -0,0 +1,294 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fábrica que distribui os carrinhos entre vários fragmentos, cada um uma CarrinhoComprasFactory,
+ * por hash consistente da identificação do cliente. O carrinho retornado por criar pertence ao
+ * fragmento do cliente, e suas operações são feitas diretamente nele.
+ *
+ * Ao incluir ou retirar um fragmento, os carrinhos cujo dono mudou são transferidos para o novo
+ * dono sem mudar de instância, de modo que as referências já entregues continuam válidas. A
+ * redistribuição bloqueia criar, invalidar e getValorTicketMedio até terminar.
+ *
+ * Fora da redistribuição essas operações não bloqueiam: leem o anel, que é imutável e substituído
+ * por inteiro, e apenas contam a entrada e a saída em dois LongAdder. A redistribuição obtém o
+ * bloqueio de escrita, marca que está em andamento e espera as operações em curso saírem; as que
+ * chegam depois da marca são feitas sob o bloqueio de leitura, esperando a redistribuição terminar.
+ *
+ * O ticket médio é calculado a partir da soma e da quantidade de carrinhos de cada fragmento, com o
+ * mesmo arredondamento de CarrinhoComprasFactory, e portanto é igual ao de uma fábrica única com os
+ * mesmos carrinhos.
+ */
+public class CarrinhoComprasFactoryDistribuida
+{
+	/**
+	 * Pontos de cada fragmento no anel. Com 128 pontos a parcela de clientes de cada fragmento
+	 * costuma ficar a poucos por cento da média.
+	 */
+	private static final int	PONTOS_POR_FRAGMENTO = 128;
+
+	private final ReentrantReadWriteLock	bloqueio = new ReentrantReadWriteLock();
+	private final LongAdder					entradas = new LongAdder();
+	private final LongAdder					saidas = new LongAdder();
+	private volatile boolean				redistribuindo;
+
+	private volatile AnelFragmentos	anel = AnelFragmentos.VAZIO;
+
+	/**
+	 * Cria uma fábrica sem fragmentos, que devem ser incluídos com incluirFragmento.
+	 */
+	public CarrinhoComprasFactoryDistribuida()
+	{
+	}
+
+	/**
+	 * Cria uma fábrica com o número informado de fragmentos em memória, com as opções padrão.
+	 *
+	 * @param numeroDeFragmentos
+	 */
+	public CarrinhoComprasFactoryDistribuida(int numeroDeFragmentos)
+	{
+		for (int i = 0; i < numeroDeFragmentos; i++)
+			incluirFragmento("fragmento-" + i, new CarrinhoComprasFactory());
+	}
+
+	/**
+	 * Cria e retorna o carrinho do cliente no seu fragmento, ou o carrinho que ele já possui.
+	 *
+	 * @param identificacaoCliente
+	 * @return CarrinhoCompras
+	 */
+	public CarrinhoCompras criar(String identificacaoCliente)
+	{
+		if (entrar())
+		{
+			try
+			{
+				return fragmentoDo(identificacaoCliente).criar(identificacaoCliente);
+			}
+			finally
+			{
+				saidas.increment();
+			}
+		}
+		bloqueio.readLock().lock();
+		try
+		{
+			return fragmentoDo(identificacaoCliente).criar(identificacaoCliente);
+		}
+		finally
+		{
+			bloqueio.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retorna o valor do ticket médio de todos os fragmentos, arredondado com duas casas decimais
+	 * como em CarrinhoComprasFactory.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal getValorTicketMedio()
+	{
+		long[]		parcelas;
+		BigDecimal	fracoes;
+
+		parcelas = new long[2];
+		if (entrar())
+		{
+			try
+			{
+				fracoes = acumularTickets(parcelas);
+			}
+			finally
+			{
+				saidas.increment();
+			}
+		}
+		else
+		{
+			bloqueio.readLock().lock();
+			try
+			{
+				fracoes = acumularTickets(parcelas);
+			}
+			finally
+			{
+				bloqueio.readLock().unlock();
+			}
+		}
+		if (parcelas[1] == 0)
+			return Dinheiro.paraBigDecimal(0);
+		return Dinheiro.dividir(parcelas[0], fracoes, parcelas[1]);
+	}
+
+	/**
+	 * Invalida o carrinho do cliente no seu fragmento.
+	 *
+	 * @param identificacaoCliente
+	 * @return true caso o cliente possua um carrinho e false caso contrário.
+	 */
+	public boolean invalidar(String identificacaoCliente)
+	{
+		if (entrar())
+		{
+			try
+			{
+				return fragmentoDo(identificacaoCliente).invalidar(identificacaoCliente);
+			}
+			finally
+			{
+				saidas.increment();
+			}
+		}
+		bloqueio.readLock().lock();
+		try
+		{
+			return fragmentoDo(identificacaoCliente).invalidar(identificacaoCliente);
+		}
+		finally
+		{
+			bloqueio.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Inclui um fragmento e transfere para ele os carrinhos dos clientes que passam a pertencer a
+	 * ele. O fragmento pode já ter carrinhos, que são redistribuídos da mesma forma.
+	 *
+	 * @param nome identificação do fragmento, que define sua posição no anel.
+	 * @param fragmento
+	 */
+	public void incluirFragmento(String nome, CarrinhoComprasFactory fragmento)
+	{
+		bloqueio.writeLock().lock();
+		try
+		{
+			iniciarRedistribuicao();
+			anel = anel.incluir(nome, fragmento, PONTOS_POR_FRAGMENTO);
+			redistribuir();
+		}
+		finally
+		{
+			redistribuindo = false;
+			bloqueio.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retira o fragmento, transferindo todos os seus carrinhos para os fragmentos restantes.
+	 *
+	 * @param nome
+	 * @return O fragmento retirado, já sem carrinhos, ou null se não havia fragmento com esse nome.
+	 */
+	public CarrinhoComprasFactory retirarFragmento(String nome)
+	{
+		CarrinhoComprasFactory	fragmento;
+
+		bloqueio.writeLock().lock();
+		try
+		{
+			iniciarRedistribuicao();
+			fragmento = anel.fragmento(nome);
+			if (fragmento == null)
+				return null;
+			if (anel.numeroDeFragmentos() == 1 && !fragmento.conjuntoCarrinhoCompras.isEmpty())
+				throw new IllegalStateException("O último fragmento não pode ser retirado com carrinhos.");
+			anel = anel.retirar(nome);
+			transferirCarrinhos(fragmento);
+			return fragmento;
+		}
+		finally
+		{
+			redistribuindo = false;
+			bloqueio.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retorna o número de fragmentos.
+	 *
+	 * @return int
+	 */
+	public int getNumeroDeFragmentos()
+	{
+		return anel.numeroDeFragmentos();
+	}
+
+	CarrinhoComprasFactory fragmentoDo(String identificacaoCliente)
+	{
+		CarrinhoComprasFactory	fragmento;
+
+		fragmento = anel.fragmentoDo(identificacaoCliente);
+		if (fragmento == null)
+			throw new IllegalStateException("Nenhum fragmento incluído.");
+		return fragmento;
+	}
+
+	/**
+	 * Registra a entrada de uma operação sem bloqueio.
+	 *
+	 * @return false, já registrando a saída, se há redistribuição em andamento: a operação deve então
+	 * ser feita sob o bloqueio de leitura.
+	 */
+	private boolean entrar()
+	{
+		entradas.increment();
+		if (!redistribuindo)
+			return true;
+		saidas.increment();
+		return false;
+	}
+
+	/**
+	 * Marca a redistribuição e espera saírem as operações que entraram sem vê-la. As saídas são
+	 * somadas antes das entradas, e como cada saída sucede a sua entrada, as somas só são iguais
+	 * quando não há operação em curso. Deve ser chamado com o bloqueio de escrita.
+	 */
+	private void iniciarRedistribuicao()
+	{
+		redistribuindo = true;
+		while (saidas.sum() != entradas.sum())
+			Thread.yield();
+	}
+
+	private BigDecimal acumularTickets(long[] parcelas)
+	{
+		BigDecimal	fracoes;
+
+		fracoes = BigDecimal.ZERO;
+		for (CarrinhoComprasFactory fragmento : anel.fragmentos())
+			fracoes = fracoes.add(fragmento.acumularTickets(parcelas));
+		return fracoes;
+	}
+
+	private void redistribuir()
+	{
+		for (CarrinhoComprasFactory fragmento : anel.fragmentos())
+			transferirCarrinhos(fragmento);
+	}
+
+	/**
+	 * Transfere os carrinhos do fragmento que pertencem a outro fragmento no anel atual. Deve ser
+	 * chamado com o bloqueio de escrita.
+	 */
+	private void transferirCarrinhos(CarrinhoComprasFactory origem)
+	{
+		List<Map.Entry<String, CarrinhoCompras>>	entradas;
+		CarrinhoComprasFactory						destino;
+
+		entradas = new ArrayList<>(origem.conjuntoCarrinhoCompras.entrySet());
+		for (Map.Entry<String, CarrinhoCompras> entrada : entradas)
+		{
+			destino = fragmentoDo(entrada.getKey());
+			if (destino != origem)
+				origem.transferir(entrada.getKey(), entrada.getValue(), destino);
+		}
+	}
+}
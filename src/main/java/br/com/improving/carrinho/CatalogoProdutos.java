@@ -0,0 +1,231 @@
+package br.com.improving.carrinho;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Catálogo que mantém uma única instância de Produto por código, compartilhada pelas linhas de
+ * todos os carrinhos, para que o mesmo produto não seja repetido em memória a cada carrinho.
+ *
+ * As instâncias são retidas por referência fraca: o produto que deixa de estar em algum carrinho
+ * pode ser coletado, e sua entrada é descartada na próxima operação do segmento. Cada segmento é
+ * um mapa de código (long) para referência com endereçamento aberto, como IndiceCodigos, protegido
+ * pelo seu próprio monitor.
+ *
+ * Produtos são iguais pelo código, mas a descrição é mantida como foi informada: quando chega um
+ * produto de mesmo código e descrição diferente, ele passa a ser a instância do catálogo.
+ */
+final class CatalogoProdutos
+{
+	/**
+	 * Catálogo usado pelos carrinhos.
+	 */
+	static final CatalogoProdutos	COMPARTILHADO = new CatalogoProdutos(64);
+
+	private final Segmento[]	segmentos;
+	private final int			deslocamentoSegmento;
+
+	/**
+	 * @param numeroDeSegmentos potência de dois.
+	 */
+	CatalogoProdutos(int numeroDeSegmentos)
+	{
+		if (numeroDeSegmentos <= 0 || Integer.bitCount(numeroDeSegmentos) != 1)
+			throw new IllegalArgumentException("Número de segmentos deve ser potência de dois.");
+		segmentos = new Segmento[numeroDeSegmentos];
+		for (int i = 0; i < numeroDeSegmentos; i++)
+			segmentos[i] = new Segmento();
+		deslocamentoSegmento = 32 - Integer.numberOfTrailingZeros(numeroDeSegmentos);
+	}
+
+	/**
+	 * Retorna a instância do catálogo equivalente ao produto, registrando-o se não houver.
+	 *
+	 * @param produto
+	 * @return Produto do catálogo com o mesmo código e a mesma descrição.
+	 */
+	Produto canonizar(Produto produto)
+	{
+		long	codigo;
+
+		codigo = produto.getCodigo();
+		return segmento(codigo).canonizar(codigo, produto.getDescricao(), produto);
+	}
+
+	/**
+	 * Retorna a instância do catálogo com o código e a descrição informados, criando-a apenas se
+	 * ainda não houver.
+	 *
+	 * @param codigo
+	 * @param descricao
+	 * @return Produto
+	 */
+	Produto obter(long codigo, String descricao)
+	{
+		return segmento(codigo).canonizar(codigo, descricao.trim(), null);
+	}
+
+	/**
+	 * Retorna a instância do catálogo com o código informado, sem registrar nada.
+	 *
+	 * @param codigo
+	 * @return Produto ou null caso o catálogo não tenha o código.
+	 */
+	Produto procurar(long codigo)
+	{
+		return segmento(codigo).procurar(codigo);
+	}
+
+	/**
+	 * Retorna o número de entradas, incluindo as de produtos já coletados e ainda não descartadas.
+	 */
+	int tamanho()
+	{
+		int	soma;
+
+		soma = 0;
+		for (Segmento segmento : segmentos)
+			soma += segmento.tamanho();
+		return soma;
+	}
+
+	private Segmento segmento(long codigo)
+	{
+		if (deslocamentoSegmento == 32)
+			return segmentos[0];
+		return segmentos[IndiceCodigos.espalhar(codigo) >>> deslocamentoSegmento];
+	}
+
+	private static final class ReferenciaProduto extends WeakReference<Produto>
+	{
+		final long	codigo;
+
+		ReferenciaProduto(Produto produto, long codigo, ReferenceQueue<Produto> fila)
+		{
+			super(produto, fila);
+			this.codigo = codigo;
+		}
+	}
+
+	private static final class Segmento
+	{
+		private static final int	CAPACIDADE_INICIAL = 16;
+
+		private final ReferenceQueue<Produto>	fila = new ReferenceQueue<>();
+		private long[]							codigos = new long[CAPACIDADE_INICIAL];
+		private ReferenciaProduto[]				referencias = new ReferenciaProduto[CAPACIDADE_INICIAL];
+		private int								tamanho;
+
+		synchronized Produto canonizar(long codigo, String descricao, Produto candidato)
+		{
+			Produto	existente;
+			Produto	novo;
+			int		mascara;
+			int		i;
+
+			descartarColetados();
+			if ((tamanho + 1) * 4 > codigos.length * 3)
+				redimensionar(codigos.length * 2);
+			mascara = codigos.length - 1;
+			for (i = IndiceCodigos.espalhar(codigo) & mascara; referencias[i] != null; i = (i + 1) & mascara)
+			{
+				if (codigos[i] == codigo)
+				{
+					existente = referencias[i].get();
+					if (existente != null && existente.getDescricao().equals(descricao))
+						return existente;
+					break;
+				}
+			}
+			novo = candidato != null ? candidato : new Produto(codigo, descricao);
+			if (referencias[i] == null)
+				tamanho++;
+			codigos[i] = codigo;
+			referencias[i] = new ReferenciaProduto(novo, codigo, fila);
+			return novo;
+		}
+
+		synchronized Produto procurar(long codigo)
+		{
+			int	mascara;
+
+			mascara = codigos.length - 1;
+			for (int i = IndiceCodigos.espalhar(codigo) & mascara; referencias[i] != null; i = (i + 1) & mascara)
+				if (codigos[i] == codigo)
+					return referencias[i].get();
+			return null;
+		}
+
+		synchronized int tamanho()
+		{
+			descartarColetados();
+			return tamanho;
+		}
+
+		/**
+		 * Remove as entradas cujo produto foi coletado. Uma referência substituída por outra do
+		 * mesmo código já não está na tabela e é apenas ignorada.
+		 */
+		private void descartarColetados()
+		{
+			ReferenciaProduto	coletada;
+			int					mascara;
+
+			mascara = codigos.length - 1;
+			while ((coletada = (ReferenciaProduto) fila.poll()) != null)
+			{
+				for (int i = IndiceCodigos.espalhar(coletada.codigo) & mascara; referencias[i] != null; i = (i + 1) & mascara)
+				{
+					if (referencias[i] == coletada)
+					{
+						deslocarSequencia(i);
+						tamanho--;
+						break;
+					}
+				}
+			}
+		}
+
+		private void deslocarSequencia(int vaga)
+		{
+			int	mascara;
+			int	ideal;
+
+			mascara = codigos.length - 1;
+			for (int i = (vaga + 1) & mascara; referencias[i] != null; i = (i + 1) & mascara)
+			{
+				ideal = IndiceCodigos.espalhar(codigos[i]) & mascara;
+				if (((i - ideal) & mascara) >= ((i - vaga) & mascara))
+				{
+					codigos[vaga] = codigos[i];
+					referencias[vaga] = referencias[i];
+					vaga = i;
+				}
+			}
+			referencias[vaga] = null;
+		}
+
+		private void redimensionar(int novaCapacidade)
+		{
+			long[]				codigosAnteriores;
+			ReferenciaProduto[]	referenciasAnteriores;
+			int					mascara;
+			int					i;
+
+			codigosAnteriores = codigos;
+			referenciasAnteriores = referencias;
+			codigos = new long[novaCapacidade];
+			referencias = new ReferenciaProduto[novaCapacidade];
+			mascara = novaCapacidade - 1;
+			for (int j = 0; j < codigosAnteriores.length; j++)
+			{
+				if (referenciasAnteriores[j] == null)
+					continue;
+				for (i = IndiceCodigos.espalhar(codigosAnteriores[j]) & mascara; referencias[i] != null; i = (i + 1) & mascara)
+					;
+				codigos[i] = codigosAnteriores[j];
+				referencias[i] = referenciasAnteriores[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,632 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formato binário compacto e versionado para carrinhos, itens e produtos.
+ *
+ * Os métodos leem e escrevem diretamente em ByteBuffer, inclusive buffers diretos, a partir da
+ * posição atual do buffer, que é avançada. Números inteiros são gravados como varints com
+ * codificação zigzag, valores unitários como centavos, arredondados por
+ * Dinheiro.centavosArredondados, mais a escala informada e as descrições em UTF-8, opcionalmente.
+ * Em um carrinho, uma descrição repetida é gravada uma única vez e depois referenciada pelo índice.
+ *
+ * Formato de um carrinho, versão 2:
+ *
+ * <pre>
+ * byte     versão
+ * byte     opções (bit 0: com descrições, bit 2: com frações de centavo)
+ * varint   escala do valor total
+ * varint   quantidade de linhas
+ * por linha:
+ *   varint código, varint valor unitário em centavos, varint escala
+ *   com frações: varint 0 se o valor unitário é representável em centavos, ou varint n seguido
+ *   dos n bytes do valor unitário exato sem escala, em complemento de dois
+ *   varint quantidade
+ *   com descrições: varint 0 seguido de varint tamanho e UTF-8, ou varint n para a n-ésima
+ *   descrição já gravada
+ * </pre>
+ *
+ * A versão 1, ainda lida, é igual à 2 sem a opção de frações de centavo. Os itens avulsos usam a
+ * mesma opção e a mesma codificação para o valor unitário.
+ *
+ * Buffers sem espaço suficiente lançam BufferOverflowException e dados incompletos lançam
+ * BufferUnderflowException; versões desconhecidas e dados corrompidos, como tamanhos negativos,
+ * referências a descrições inexistentes e valores inconsistentes com a escala, lançam
+ * IllegalArgumentException.
+ */
+public final class CodecCarrinhoCompras
+{
+	/**
+	 * Versão do formato gravada por esta classe.
+	 */
+	public static final byte	VERSAO = 2;
+
+	private static final int	COM_DESCRICOES = 1;
+	private static final int	COM_VALOR_UNITARIO = 2;
+	private static final int	COM_FRACOES = 4;
+
+	private CodecCarrinhoCompras()
+	{
+	}
+
+	/**
+	 * Retorna quantos bytes o carrinho ocupa codificado.
+	 *
+	 * @param carrinhoCompras
+	 * @param comDescricoes
+	 * @return int
+	 */
+	public static int tamanhoCodificado(CarrinhoCompras carrinhoCompras, boolean comDescricoes)
+	{
+		synchronized (carrinhoCompras)
+		{
+			carrinhoCompras.garantirCarregado();
+			return tamanhoCodificado(carrinhoCompras.conjuntoItens, carrinhoCompras.escalaValorTotal, comDescricoes);
+		}
+	}
+
+	/**
+	 * Codifica o carrinho no buffer.
+	 *
+	 * @param carrinhoCompras
+	 * @param destino
+	 * @param comDescricoes se false, as descrições dos produtos não são gravadas e voltam vazias.
+	 */
+	public static void codificar(CarrinhoCompras carrinhoCompras, ByteBuffer destino, boolean comDescricoes)
+	{
+		synchronized (carrinhoCompras)
+		{
+			carrinhoCompras.garantirCarregado();
+			codificar(carrinhoCompras.conjuntoItens, carrinhoCompras.escalaValorTotal, destino, comDescricoes);
+		}
+	}
+
+	/**
+	 * Decodifica um carrinho avulso que guarda cada linha como um objeto Item.
+	 *
+	 * @param origem
+	 * @return CarrinhoCompras
+	 */
+	public static CarrinhoCompras decodificar(ByteBuffer origem)
+	{
+		return decodificar(origem, TipoArmazenamentoItens.OBJETOS);
+	}
+
+	/**
+	 * Decodifica um carrinho avulso com a forma de armazenamento informada.
+	 *
+	 * @param origem
+	 * @param tipoArmazenamento
+	 * @return CarrinhoCompras
+	 */
+	public static CarrinhoCompras decodificar(ByteBuffer origem, TipoArmazenamentoItens tipoArmazenamento)
+	{
+		CarrinhoCompras	carrinhoCompras;
+
+		carrinhoCompras = new CarrinhoCompras(tipoArmazenamento);
+		carrinhoCompras.restaurarValorTotal(decodificar(origem, carrinhoCompras.conjuntoItens));
+		return carrinhoCompras;
+	}
+
+	/**
+	 * Calcula o valor total de um carrinho codificado percorrendo os bytes, sem criar itens nem
+	 * produtos. O resultado é igual ao de getValorTotal do carrinho codificado.
+	 *
+	 * @param origem
+	 * @return BigDecimal
+	 */
+	public static BigDecimal calcularValorTotal(ByteBuffer origem)
+	{
+		int			opcoes;
+		int			escala;
+		int			numeroLinhas;
+		long		valorTotalCentavos;
+		long		valorUnitarioCentavos;
+		BigDecimal	valorUnitario;
+		BigDecimal	fracoes;
+		int			quantidade;
+		int			tamanhoDescricao;
+
+		opcoes = lerCabecalho(origem);
+		escala = lerInt(origem);
+		numeroLinhas = lerInt(origem);
+		valorTotalCentavos = 0;
+		fracoes = null;
+		for (int i = 0; i < numeroLinhas; i++)
+		{
+			lerLong(origem);
+			valorUnitario = lerValorUnitario(origem, (opcoes & COM_FRACOES) != 0);
+			valorUnitarioCentavos = Dinheiro.centavosArredondados(valorUnitario);
+			quantidade = lerInt(origem);
+			valorTotalCentavos = Dinheiro.somarCentavos(valorTotalCentavos,
+					Dinheiro.multiplicarCentavos(valorUnitarioCentavos, quantidade));
+			fracoes = Dinheiro.somarFracoes(fracoes, Dinheiro.fracaoDe(valorUnitario, valorUnitarioCentavos, quantidade));
+			if ((opcoes & COM_DESCRICOES) != 0 && lerInt(origem) == 0)
+			{
+				tamanhoDescricao = lerInt(origem);
+				origem.position(origem.position() + tamanhoDescricao);
+			}
+		}
+		if (fracoes == null)
+			return Dinheiro.paraBigDecimal(valorTotalCentavos, escala);
+		return Dinheiro.paraBigDecimal(valorTotalCentavos, escala).add(fracoes);
+	}
+
+	/**
+	 * Percorre as linhas de um carrinho codificado sem criar itens nem produtos. Os valores
+	 * unitários são os arredondados para centavos.
+	 */
+	static void percorrerLinhas(ByteBuffer origem, VisitanteLinha visitante)
+	{
+		int		opcoes;
+		int		numeroLinhas;
+		long	codigo;
+		long	valorUnitarioCentavos;
+		int		tamanhoDescricao;
+
+		opcoes = lerCabecalho(origem);
+		lerInt(origem);
+		numeroLinhas = lerInt(origem);
+		for (int i = 0; i < numeroLinhas; i++)
+		{
+			codigo = lerLong(origem);
+			valorUnitarioCentavos = lerLong(origem);
+			lerInt(origem);
+			if ((opcoes & COM_FRACOES) != 0)
+				pularFracao(origem);
+			visitante.visitar(codigo, valorUnitarioCentavos, lerInt(origem));
+			if ((opcoes & COM_DESCRICOES) != 0 && lerInt(origem) == 0)
+			{
+				tamanhoDescricao = lerInt(origem);
+				origem.position(origem.position() + tamanhoDescricao);
+			}
+		}
+	}
+
+	/**
+	 * Recebe as linhas de um carrinho codificado.
+	 */
+	interface VisitanteLinha
+	{
+		void visitar(long codigo, long valorUnitarioCentavos, int quantidade);
+	}
+
+	/**
+	 * Codifica o item, com a descrição do produto, no buffer.
+	 *
+	 * @param item
+	 * @param destino
+	 */
+	public static void codificar(Item item, ByteBuffer destino)
+	{
+		BigDecimal	valorUnitario;
+
+		valorUnitario = item.getValorUnitario();
+		destino.put(VERSAO);
+		destino.put((byte) (valorUnitario == null ? 0 : COM_VALOR_UNITARIO | COM_FRACOES));
+		escreverProduto(item.getProduto(), destino);
+		if (valorUnitario != null)
+		{
+			escreverLong(destino, item.obterValorUnitarioCentavos());
+			escreverInt(destino, valorUnitario.scale());
+			escreverFracao(destino, Dinheiro.representavelEmCentavos(valorUnitario) ? null : valorUnitario);
+		}
+		escreverInt(destino, item.getQuantidade());
+	}
+
+	/**
+	 * Decodifica um item avulso.
+	 *
+	 * @param origem
+	 * @return Item
+	 */
+	public static Item decodificarItem(ByteBuffer origem)
+	{
+		int			opcoes;
+		Produto		produto;
+		BigDecimal	valorUnitario;
+
+		opcoes = lerCabecalho(origem);
+		produto = lerProduto(origem);
+		valorUnitario = null;
+		if ((opcoes & COM_VALOR_UNITARIO) != 0)
+			valorUnitario = lerValorUnitario(origem, (opcoes & COM_FRACOES) != 0);
+		return new Item(produto, valorUnitario, lerInt(origem));
+	}
+
+	/**
+	 * Codifica o produto no buffer.
+	 *
+	 * @param produto
+	 * @param destino
+	 */
+	public static void codificar(Produto produto, ByteBuffer destino)
+	{
+		destino.put(VERSAO);
+		destino.put((byte) 0);
+		escreverProduto(produto, destino);
+	}
+
+	/**
+	 * Decodifica um produto.
+	 *
+	 * @param origem
+	 * @return Produto
+	 */
+	public static Produto decodificarProduto(ByteBuffer origem)
+	{
+		lerCabecalho(origem);
+		return lerProduto(origem);
+	}
+
+	static int tamanhoCodificado(ArmazenamentoItens conjuntoItens, int escala, boolean comDescricoes)
+	{
+		Map<String, Integer>	descricoes;
+		String					descricao;
+		boolean					comFracoes;
+		int						tamanho;
+		int						tamanhoDescricao;
+
+		descricoes = comDescricoes ? new HashMap<>() : null;
+		comFracoes = conjuntoItens.possuiValoresFracionados();
+		tamanho = 2 + tamanhoInt(escala) + tamanhoInt(conjuntoItens.tamanho());
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+		{
+			if (!conjuntoItens.ocupada(posicao))
+				continue;
+			tamanho += tamanhoLong(conjuntoItens.codigo(posicao)) + tamanhoLong(conjuntoItens.valorUnitarioCentavos(posicao))
+					+ tamanhoInt(conjuntoItens.escalaValorUnitario(posicao)) + tamanhoInt(conjuntoItens.quantidade(posicao));
+			if (comFracoes)
+				tamanho += tamanhoFracao(conjuntoItens.valorFracionado(posicao));
+			if (!comDescricoes)
+				continue;
+			descricao = conjuntoItens.produto(posicao).getDescricao();
+			if (descricoes.containsKey(descricao))
+			{
+				tamanho += tamanhoInt(descricoes.get(descricao));
+				continue;
+			}
+			descricoes.put(descricao, descricoes.size() + 1);
+			tamanhoDescricao = tamanhoUtf8(descricao);
+			tamanho += tamanhoInt(0) + tamanhoInt(tamanhoDescricao) + tamanhoDescricao;
+		}
+		return tamanho;
+	}
+
+	static void codificar(ArmazenamentoItens conjuntoItens, int escala, ByteBuffer destino, boolean comDescricoes)
+	{
+		Map<String, Integer>	descricoes;
+		String					descricao;
+		Integer					indice;
+		boolean					comFracoes;
+
+		descricoes = comDescricoes ? new HashMap<>() : null;
+		comFracoes = conjuntoItens.possuiValoresFracionados();
+		destino.put(VERSAO);
+		destino.put((byte) ((comDescricoes ? COM_DESCRICOES : 0) | (comFracoes ? COM_FRACOES : 0)));
+		escreverInt(destino, escala);
+		escreverInt(destino, conjuntoItens.tamanho());
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+		{
+			if (!conjuntoItens.ocupada(posicao))
+				continue;
+			escreverLong(destino, conjuntoItens.codigo(posicao));
+			escreverLong(destino, conjuntoItens.valorUnitarioCentavos(posicao));
+			escreverInt(destino, conjuntoItens.escalaValorUnitario(posicao));
+			if (comFracoes)
+				escreverFracao(destino, conjuntoItens.valorFracionado(posicao));
+			escreverInt(destino, conjuntoItens.quantidade(posicao));
+			if (!comDescricoes)
+				continue;
+			descricao = conjuntoItens.produto(posicao).getDescricao();
+			indice = descricoes.get(descricao);
+			if (indice != null)
+			{
+				escreverInt(destino, indice);
+				continue;
+			}
+			descricoes.put(descricao, descricoes.size() + 1);
+			escreverInt(destino, 0);
+			escreverTexto(destino, descricao);
+		}
+	}
+
+	/**
+	 * Inclui no armazenamento, que deve estar vazio, as linhas do carrinho codificado, validando-as
+	 * como o carrinho validaria.
+	 *
+	 * @return escala do valor total do carrinho codificado.
+	 */
+	static int decodificar(ByteBuffer origem, ArmazenamentoItens conjuntoItens)
+	{
+		int				opcoes;
+		boolean			comDescricoes;
+		List<String>	descricoes;
+		int				escala;
+		int				numeroLinhas;
+		long			codigo;
+		BigDecimal		valorUnitario;
+		int				quantidade;
+		int				indice;
+		String			descricao;
+
+		opcoes = lerCabecalho(origem);
+		comDescricoes = (opcoes & COM_DESCRICOES) != 0;
+		descricoes = comDescricoes ? new ArrayList<>() : null;
+		escala = lerInt(origem);
+		numeroLinhas = lerInt(origem);
+		for (int i = 0; i < numeroLinhas; i++)
+		{
+			codigo = lerLong(origem);
+			valorUnitario = lerValorUnitario(origem, (opcoes & COM_FRACOES) != 0);
+			quantidade = lerInt(origem);
+			descricao = "";
+			if (comDescricoes)
+			{
+				indice = lerInt(origem);
+				if (indice == 0)
+				{
+					descricao = lerTexto(origem);
+					descricoes.add(descricao);
+				}
+				else if (indice > 0 && indice <= descricoes.size())
+					descricao = descricoes.get(indice - 1);
+				else
+					throw new IllegalArgumentException("Referencia a descricao inexistente: " + indice);
+			}
+			CarrinhoCompras.checarSeItemPossuiValoresMenoresQueZero(valorUnitario, quantidade);
+			conjuntoItens.validarValorUnitario(valorUnitario);
+			if (conjuntoItens.localizar(codigo) >= 0)
+				throw new IllegalArgumentException("Produto repetido no carrinho codificado: " + codigo);
+			conjuntoItens.adicionar(CatalogoProdutos.COMPARTILHADO.obter(codigo, descricao), valorUnitario,
+					Dinheiro.centavosArredondados(valorUnitario), quantidade);
+		}
+		return escala;
+	}
+
+	private static int lerCabecalho(ByteBuffer origem)
+	{
+		byte	versao;
+
+		versao = origem.get();
+		if (versao != 1 && versao != VERSAO)
+			throw new IllegalArgumentException("Versao de formato desconhecida: " + versao);
+		return origem.get();
+	}
+
+	private static void escreverProduto(Produto produto, ByteBuffer destino)
+	{
+		if (produto.getCodigo() == null)
+			throw new IllegalArgumentException("Produto sem codigo.");
+		escreverLong(destino, produto.getCodigo());
+		escreverTexto(destino, produto.getDescricao());
+	}
+
+	private static Produto lerProduto(ByteBuffer origem)
+	{
+		long	codigo;
+
+		codigo = lerLong(origem);
+		return new Produto(codigo, lerTexto(origem));
+	}
+
+	/**
+	 * Lê centavos, escala e, com frações, o valor exato, que deve arredondar para os centavos lidos.
+	 */
+	private static BigDecimal lerValorUnitario(ByteBuffer origem, boolean comFracoes)
+	{
+		long		centavos;
+		int			escala;
+		int			tamanho;
+		byte[]		naoEscalado;
+		BigDecimal	valorUnitario;
+
+		centavos = lerLong(origem);
+		escala = lerInt(origem);
+		tamanho = comFracoes ? lerInt(origem) : 0;
+		if (tamanho < 0)
+			throw new IllegalArgumentException("Tamanho de valor unitario negativo: " + tamanho);
+		if (tamanho > origem.remaining())
+			throw new BufferUnderflowException();
+		if (tamanho == 0)
+		{
+			try
+			{
+				return Dinheiro.paraBigDecimal(centavos, escala);
+			}
+			catch (ArithmeticException e)
+			{
+				throw new IllegalArgumentException("Valor unitario inconsistente com a escala " + escala + ": " + centavos);
+			}
+		}
+		naoEscalado = new byte[tamanho];
+		origem.get(naoEscalado);
+		valorUnitario = new BigDecimal(new BigInteger(naoEscalado), escala);
+		if (Dinheiro.representavelEmCentavos(valorUnitario) || Dinheiro.centavosArredondados(valorUnitario) != centavos)
+			throw new IllegalArgumentException("Valor unitario inconsistente com os centavos " + centavos + ": " + valorUnitario);
+		return valorUnitario;
+	}
+
+	/**
+	 * Grava o valor unitário exato de uma linha com frações de centavo, ou apenas 0 se valorFracionado
+	 * for null.
+	 */
+	private static void escreverFracao(ByteBuffer destino, BigDecimal valorFracionado)
+	{
+		byte[]	naoEscalado;
+
+		if (valorFracionado == null)
+		{
+			escreverInt(destino, 0);
+			return;
+		}
+		naoEscalado = valorFracionado.unscaledValue().toByteArray();
+		escreverInt(destino, naoEscalado.length);
+		destino.put(naoEscalado);
+	}
+
+	private static int tamanhoFracao(BigDecimal valorFracionado)
+	{
+		int	tamanho;
+
+		if (valorFracionado == null)
+			return tamanhoInt(0);
+		tamanho = valorFracionado.unscaledValue().toByteArray().length;
+		return tamanhoInt(tamanho) + tamanho;
+	}
+
+	private static void pularFracao(ByteBuffer origem)
+	{
+		int	tamanho;
+
+		tamanho = lerInt(origem);
+		if (tamanho < 0)
+			throw new IllegalArgumentException("Tamanho de valor unitario negativo: " + tamanho);
+		origem.position(origem.position() + tamanho);
+	}
+
+	/**
+	 * Grava o tamanho em bytes e o texto em UTF-8, codificado direto no buffer.
+	 */
+	private static void escreverTexto(ByteBuffer destino, String texto)
+	{
+		CharsetEncoder	codificador;
+		CoderResult		resultado;
+
+		escreverInt(destino, tamanhoUtf8(texto));
+		codificador = StandardCharsets.UTF_8.newEncoder();
+		resultado = codificador.encode(CharBuffer.wrap(texto), destino, true);
+		if (resultado.isOverflow())
+			throw new BufferOverflowException();
+		if (resultado.isError())
+			throw new IllegalArgumentException("Texto invalido: " + texto);
+	}
+
+	/**
+	 * Lê um texto UTF-8. Em buffers com array o texto é decodificado direto do array.
+	 */
+	private static String lerTexto(ByteBuffer origem)
+	{
+		int		tamanho;
+		byte[]	bytes;
+		String	texto;
+
+		tamanho = lerInt(origem);
+		if (tamanho < 0)
+			throw new IllegalArgumentException("Tamanho de texto negativo: " + tamanho);
+		if (tamanho > origem.remaining())
+			throw new BufferUnderflowException();
+		if (origem.hasArray())
+		{
+			texto = new String(origem.array(), origem.arrayOffset() + origem.position(), tamanho, StandardCharsets.UTF_8);
+			origem.position(origem.position() + tamanho);
+			return texto;
+		}
+		bytes = new byte[tamanho];
+		origem.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int tamanhoUtf8(String texto)
+	{
+		int		tamanho;
+		char	caractere;
+
+		tamanho = 0;
+		for (int i = 0; i < texto.length(); i++)
+		{
+			caractere = texto.charAt(i);
+			if (caractere < 0x80)
+				tamanho += 1;
+			else if (caractere < 0x800)
+				tamanho += 2;
+			else if (Character.isHighSurrogate(caractere) && i + 1 < texto.length()
+					&& Character.isLowSurrogate(texto.charAt(i + 1)))
+			{
+				tamanho += 4;
+				i++;
+			}
+			else
+				tamanho += 3;
+		}
+		return tamanho;
+	}
+
+	private static void escreverInt(ByteBuffer destino, int valor)
+	{
+		escreverLong(destino, valor);
+	}
+
+	/**
+	 * Grava o valor em zigzag, que leva números de módulo pequeno a poucos bytes também quando
+	 * negativos, em grupos de sete bits.
+	 */
+	private static void escreverLong(ByteBuffer destino, long valor)
+	{
+		long	restante;
+
+		restante = (valor << 1) ^ (valor >> 63);
+		while ((restante & ~0x7FL) != 0)
+		{
+			destino.put((byte) ((restante & 0x7F) | 0x80));
+			restante >>>= 7;
+		}
+		destino.put((byte) restante);
+	}
+
+	private static int lerInt(ByteBuffer origem)
+	{
+		long	valor;
+
+		valor = lerLong(origem);
+		if (valor != (int) valor)
+			throw new IllegalArgumentException("Valor fora do limite de int: " + valor);
+		return (int) valor;
+	}
+
+	private static long lerLong(ByteBuffer origem)
+	{
+		long	valor;
+		int		deslocamento;
+		byte	parte;
+
+		valor = 0;
+		for (deslocamento = 0; deslocamento < 64; deslocamento += 7)
+		{
+			parte = origem.get();
+			valor |= (long) (parte & 0x7F) << deslocamento;
+			if (parte >= 0)
+				return (valor >>> 1) ^ -(valor & 1);
+		}
+		throw new IllegalArgumentException("Varint maior que 64 bits.");
+	}
+
+	private static int tamanhoInt(int valor)
+	{
+		return tamanhoLong(valor);
+	}
+
+	private static int tamanhoLong(long valor)
+	{
+		long	restante;
+		int		tamanho;
+
+		restante = (valor << 1) ^ (valor >> 63);
+		for (tamanho = 1; (restante & ~0x7FL) != 0; tamanho++)
+			restante >>>= 7;
+		return tamanho;
+	}
+}
@@ -0,0 +1,259 @@
+package br.com.improving.carrinho;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Opções de uma CarrinhoComprasFactory. Os métodos retornam a própria configuração para que as
+ * opções possam ser encadeadas:
+ *
+ * <pre>
+ * new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+ * 		.comTipoArmazenamentoItens(TipoArmazenamentoItens.PRIMITIVOS)
+ * 		.comExpiracaoPorOciosidade(Duration.ofMinutes(30)));
+ * </pre>
+ */
+public class ConfiguracaoCarrinhoComprasFactory
+{
+	TipoArmazenamentoItens	tipoArmazenamentoItens = TipoArmazenamentoItens.OBJETOS;
+	Duration				tempoMaximoOcioso;
+	Duration				resolucaoExpiracao = Duration.ofSeconds(1);
+	int						numeroDeBaldesExpiracao = 512;
+	Duration				intervaloVarreduraExpiracao;
+	Clock					relogio = Clock.systemUTC();
+	int						limiteCarrinhosEmMemoria;
+	Path					arquivoDespejo;
+	Path					diretorioRegistro;
+	long					bytesEntreSnapshots = 256L * 1024 * 1024;
+	int						tamanhoSegmentoRegistro = RegistroCarrinhos.TAMANHO_SEGMENTO_PADRAO;
+	boolean					metricas;
+	String					nomeJmx;
+	RelatorMetricas			relatorMetricas;
+	Duration				intervaloRelatorio;
+	int						capacidadeEventos;
+	TabelaPromocoes			promocoes;
+	boolean					ticketMedioComDesconto;
+	boolean					indicesSecundarios;
+
+	/**
+	 * Define como os carrinhos guardam suas linhas. O padrão é TipoArmazenamentoItens.OBJETOS.
+	 *
+	 * @param tipoArmazenamentoItens
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comTipoArmazenamentoItens(TipoArmazenamentoItens tipoArmazenamentoItens)
+	{
+		this.tipoArmazenamentoItens = Objects.requireNonNull(tipoArmazenamentoItens);
+		return this;
+	}
+
+	/**
+	 * Habilita a invalidação dos carrinhos que ficarem sem atividade pelo tempo informado. Criar
+	 * ou alterar um carrinho renova o prazo. Por padrão os carrinhos não expiram.
+	 *
+	 * @param tempoMaximoOcioso
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comExpiracaoPorOciosidade(Duration tempoMaximoOcioso)
+	{
+		if (tempoMaximoOcioso.isNegative() || tempoMaximoOcioso.isZero())
+			throw new IllegalArgumentException("Tempo maximo ocioso deve ser positivo.");
+		this.tempoMaximoOcioso = tempoMaximoOcioso;
+		return this;
+	}
+
+	/**
+	 * Define a precisão da expiração e o número de baldes da roda de temporização. Um carrinho
+	 * expira em até uma resolução depois do seu prazo. O padrão é um segundo e 512 baldes.
+	 *
+	 * @param resolucao
+	 * @param numeroDeBaldes
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comResolucaoExpiracao(Duration resolucao, int numeroDeBaldes)
+	{
+		if (resolucao.toMillis() <= 0 || numeroDeBaldes <= 0)
+			throw new IllegalArgumentException("Resolucao e numero de baldes devem ser positivos.");
+		this.resolucaoExpiracao = resolucao;
+		this.numeroDeBaldesExpiracao = numeroDeBaldes;
+		return this;
+	}
+
+	/**
+	 * Habilita a varredura periódica dos carrinhos ociosos, como expirarCarrinhosOciosos, para que
+	 * eles expirem mesmo sem chamadas à fábrica. A varredura é feita no agendador compartilhado
+	 * com os relatores de métricas, enquanto a fábrica estiver em uso e até close. Sem efeito se os
+	 * carrinhos não expiram. Por padrão a expiração é verificada apenas nas chamadas à fábrica.
+	 *
+	 * @param intervalo
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comExpiracaoEmSegundoPlano(Duration intervalo)
+	{
+		if (intervalo.isNegative() || intervalo.isZero())
+			throw new IllegalArgumentException("Intervalo da varredura deve ser positivo.");
+		this.intervaloVarreduraExpiracao = intervalo;
+		return this;
+	}
+
+	/**
+	 * Define o relógio usado para a expiração. O padrão é Clock.systemUTC().
+	 *
+	 * @param relogio
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comRelogio(Clock relogio)
+	{
+		this.relogio = Objects.requireNonNull(relogio);
+		return this;
+	}
+
+	/**
+	 * Limita quantos carrinhos mantêm suas linhas em memória. Quando o limite é excedido, as linhas
+	 * dos carrinhos menos usados recentemente são gravadas no arquivo informado, que é recriado
+	 * vazio, e recarregadas quando o carrinho volta a ser acessado. Por padrão não há limite.
+	 *
+	 * @param limite
+	 * @param arquivoDespejo
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comLimiteCarrinhosEmMemoria(int limite, Path arquivoDespejo)
+	{
+		if (limite <= 0)
+			throw new IllegalArgumentException("Limite de carrinhos em memoria deve ser positivo.");
+		this.limiteCarrinhosEmMemoria = limite;
+		this.arquivoDespejo = Objects.requireNonNull(arquivoDespejo);
+		return this;
+	}
+
+	/**
+	 * Torna os carrinhos duráveis: cada alteração é gravada em um registro no diretório informado
+	 * antes de o método que a fez retornar, e ao criar a fábrica os carrinhos registrados no
+	 * diretório são recuperados. Por padrão os carrinhos existem apenas em memória.
+	 *
+	 * @param diretorio
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comRegistroDuravel(Path diretorio)
+	{
+		this.diretorioRegistro = Objects.requireNonNull(diretorio);
+		return this;
+	}
+
+	/**
+	 * Define a cada quantos bytes de registro é gravado um snapshot dos carrinhos, que permite
+	 * descartar o registro anterior a ele. O padrão é 256 MB.
+	 *
+	 * @param bytesEntreSnapshots
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comIntervaloSnapshots(long bytesEntreSnapshots)
+	{
+		if (bytesEntreSnapshots <= 0)
+			throw new IllegalArgumentException("Intervalo entre snapshots deve ser positivo.");
+		this.bytesEntreSnapshots = bytesEntreSnapshots;
+		return this;
+	}
+
+	/**
+	 * Habilita as métricas de operações, latências e ocupação da fábrica. Sem métricas, a fábrica
+	 * não mede o tempo das operações. Por padrão as métricas estão desabilitadas.
+	 *
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comMetricas()
+	{
+		this.metricas = true;
+		return this;
+	}
+
+	/**
+	 * Habilita as métricas e as publica no MBeanServer da plataforma com o nome informado. Uma
+	 * fábrica criada depois com o mesmo nome substitui a anterior no MBeanServer.
+	 *
+	 * @param nome
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comMetricasJmx(String nome)
+	{
+		this.metricas = true;
+		this.nomeJmx = Objects.requireNonNull(nome);
+		return this;
+	}
+
+	/**
+	 * Habilita as métricas e as entrega ao relator a cada intervalo, enquanto a fábrica estiver em
+	 * uso.
+	 *
+	 * @param relator
+	 * @param intervalo
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comRelatorMetricas(RelatorMetricas relator, Duration intervalo)
+	{
+		if (intervalo.isNegative() || intervalo.isZero())
+			throw new IllegalArgumentException("Intervalo do relatorio deve ser positivo.");
+		this.metricas = true;
+		this.relatorMetricas = Objects.requireNonNull(relator);
+		this.intervaloRelatorio = intervalo;
+		return this;
+	}
+
+	/**
+	 * Habilita a publicação das alterações dos carrinhos como eventos, lidos pelas assinaturas de
+	 * CarrinhoComprasFactory.assinarEventos. A capacidade, arredondada para a potência de dois
+	 * seguinte, é quantos eventos uma assinatura pode ficar para trás sem perdê-los. Por padrão os
+	 * eventos estão desabilitados.
+	 *
+	 * @param capacidade
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comEventos(int capacidade)
+	{
+		if (capacidade <= 0 || capacidade > 1 << 28)
+			throw new IllegalArgumentException("Capacidade de eventos deve estar entre 1 e 2^28.");
+		this.capacidadeEventos = capacidade;
+		return this;
+	}
+
+	/**
+	 * Aplica as promoções da tabela aos carrinhos, que passam a manter o valor total com desconto
+	 * lido por CarrinhoCompras.getValorTotalComDesconto. A tabela pode ser trocada depois por
+	 * CarrinhoComprasFactory.definirPromocoes. Por padrão não há promoções.
+	 *
+	 * @param promocoes
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comPromocoes(TabelaPromocoes promocoes)
+	{
+		this.promocoes = Objects.requireNonNull(promocoes);
+		return this;
+	}
+
+	/**
+	 * Calcula o ticket médio sobre os valores totais com desconto dos carrinhos. Por padrão o
+	 * ticket médio usa os valores totais sem desconto.
+	 *
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comTicketMedioComDesconto()
+	{
+		this.ticketMedioComDesconto = true;
+		return this;
+	}
+
+	/**
+	 * Mantém índices dos carrinhos por produto e por valor total, atualizados a cada alteração,
+	 * para CarrinhoComprasFactory.buscarClientesComProduto e buscarClientesComValorAcimaDe. Por
+	 * padrão os índices estão desabilitados.
+	 *
+	 * @return ConfiguracaoCarrinhoComprasFactory
+	 */
+	public ConfiguracaoCarrinhoComprasFactory comIndicesSecundarios()
+	{
+		this.indicesSecundarios = true;
+		return this;
+	}
+}
@@ -0,0 +1,35 @@
+package br.com.improving.carrinho;
+
+/**
+ * Recebe os eventos de uma AssinaturaEventosCarrinho, na thread que chama
+ * AssinaturaEventosCarrinho.processar.
+ */
+@FunctionalInterface
+public interface ConsumidorEventosCarrinho
+{
+	/**
+	 * Chamado para cada evento, em ordem de sequência. O evento só é válido durante a chamada.
+	 *
+	 * @param evento
+	 */
+	void consumir(EventoCarrinho evento);
+
+	/**
+	 * Chamado ao final de cada lote de eventos entregue por processar, por exemplo para gravar de
+	 * uma vez o que foi acumulado no lote.
+	 */
+	default void fimDoLote()
+	{
+	}
+
+	/**
+	 * Chamado quando a assinatura ficou para trás e os eventos informados foram sobrescritos antes
+	 * de serem lidos, ou quando a publicação descartou eventos. A entrega continua a partir do evento
+	 * mais antigo ainda disponível.
+	 *
+	 * @param eventosPerdidos
+	 */
+	default void atrasado(long eventosPerdidos)
+	{
+	}
+}
@@ -0,0 +1,479 @@
+package br.com.improving.carrinho;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limita quantos carrinhos de uma fábrica mantêm suas linhas em memória, guardando as linhas dos
+ * carrinhos menos usados em um arquivo mapeado em memória.
+ *
+ * O carrinho descarregado continua na fábrica, com o mesmo valor total, e recarrega suas linhas
+ * na próxima vez em que for acessado, seja por criar ou por qualquer método que leia ou altere
+ * suas linhas. Assim o ticket médio e as referências já entregues não mudam.
+ *
+ * O carrinho a descarregar é escolhido pelo algoritmo do relógio (segunda chance), uma
+ * aproximação do menos usado recentemente em que cada acesso apenas marca o carrinho, sem
+ * bloqueio: o ponteiro percorre os carrinhos em memória desmarcando os marcados e descarrega o
+ * primeiro que encontrar desmarcado.
+ *
+ * Bloqueios são sempre obtidos na ordem carrinho e depois despejo. Por isso as recargas feitas sob
+ * o bloqueio de um carrinho não descarregam outros na mesma thread: a descarga dos excedentes é
+ * agendada em uma thread própria do despejo.
+ *
+ * close fecha o arquivo e encerra essa thread. Depois dele os carrinhos descarregados não podem
+ * mais ser recarregados.
+ */
+final class DespejoCarrinhos
+{
+	private static final int	TAMANHO_INICIAL_ARQUIVO = 1 << 20;
+	private static final int	TAMANHO_BLOCO_COPIA = 64 * 1024;
+
+	private final ReentrantLock			bloqueio = new ReentrantLock();
+	private final int					limiteCarrinhos;
+	private final FileChannel			canal;
+	private MappedByteBuffer			mapa;
+	private int							fimDados;
+	private long						bytesOcupados;
+	private final Set<CarrinhoCompras>	descarregados = new HashSet<>();
+	private CarrinhoCompras[]			residentes = new CarrinhoCompras[16];
+	private int							numeroResidentes;
+	private int							ponteiro;
+	private boolean						fechado;
+	private final ExecutorService		descarga;
+	private final AtomicBoolean			descargaAgendada = new AtomicBoolean();
+
+	DespejoCarrinhos(int limiteCarrinhos, Path arquivo)
+	{
+		this.limiteCarrinhos = limiteCarrinhos;
+		try
+		{
+			this.canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, TAMANHO_INICIAL_ARQUIVO);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel abrir o arquivo de despejo " + arquivo, e);
+		}
+		this.descarga = Executors.newSingleThreadExecutor(tarefa -> {
+			Thread	thread;
+
+			thread = new Thread(tarefa, "despejo-carrinhos");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Registra o acesso ao carrinho, recarregando suas linhas se estiverem no arquivo. Deve ser
+	 * chamado sob o bloqueio do carrinho.
+	 */
+	void registrarAcesso(CarrinhoCompras carrinhoCompras)
+	{
+		carrinhoCompras.referenciado = true;
+		if (carrinhoCompras.descarregado)
+		{
+			recarregar(carrinhoCompras);
+			return;
+		}
+		bloqueio.lock();
+		try
+		{
+			if (carrinhoCompras.posicaoResidente < 0)
+				incluirResidente(carrinhoCompras);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	/**
+	 * Traz de volta as linhas do carrinho descarregado. Deve ser chamado sob o bloqueio do carrinho.
+	 */
+	void recarregar(CarrinhoCompras carrinhoCompras)
+	{
+		carregarLinhas(carrinhoCompras);
+		bloqueio.lock();
+		try
+		{
+			incluirResidente(carrinhoCompras);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	/**
+	 * Retira o carrinho invalidado deste controle, recarregando suas linhas se necessário para que
+	 * ele continue utilizável como carrinho avulso. Deve ser chamado sob o bloqueio do carrinho.
+	 */
+	void liberar(CarrinhoCompras carrinhoCompras)
+	{
+		if (carrinhoCompras.descarregado)
+		{
+			carregarLinhas(carrinhoCompras);
+			return;
+		}
+		bloqueio.lock();
+		try
+		{
+			if (carrinhoCompras.posicaoResidente >= 0)
+				retirarResidente(carrinhoCompras);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	/**
+	 * Descarrega carrinhos até que a quantidade em memória volte ao limite. Não deve ser chamado sob
+	 * o bloqueio de nenhum carrinho.
+	 *
+	 * @param fabrica fábrica dona dos carrinhos, para ignorar os invalidados concorrentemente.
+	 */
+	void descarregarExcedentes(CarrinhoComprasFactory fabrica)
+	{
+		CarrinhoCompras	vitima;
+
+		while (true)
+		{
+			bloqueio.lock();
+			try
+			{
+				if (fechado || numeroResidentes <= limiteCarrinhos)
+					return;
+				vitima = escolherVitima();
+				retirarResidente(vitima);
+			}
+			finally
+			{
+				bloqueio.unlock();
+			}
+			descarregar(vitima, fabrica);
+		}
+	}
+
+	/**
+	 * Agenda a descarga dos excedentes na thread do despejo, para as recargas feitas sob o bloqueio
+	 * de um carrinho. Agendamentos feitos antes de a descarga começar são atendidos por ela.
+	 *
+	 * @param fabrica fábrica dona dos carrinhos.
+	 */
+	void agendarDescarga(CarrinhoComprasFactory fabrica)
+	{
+		bloqueio.lock();
+		try
+		{
+			if (fechado || numeroResidentes <= limiteCarrinhos || !descargaAgendada.compareAndSet(false, true))
+				return;
+			descarga.execute(() -> {
+				descargaAgendada.set(false);
+				descarregarExcedentes(fabrica);
+			});
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	int numeroResidentes()
+	{
+		return numeroResidentes;
+	}
+
+	/**
+	 * Fecha o arquivo de despejo e encerra a thread de descarga. O mapeamento do arquivo é
+	 * liberado quando coletado. Chamadas seguintes não fazem nada.
+	 */
+	void close()
+	{
+		bloqueio.lock();
+		try
+		{
+			if (fechado)
+				return;
+			fechado = true;
+			descarga.shutdown();
+			mapa = null;
+			canal.close();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel fechar o arquivo de despejo", e);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	/**
+	 * Grava as linhas do carrinho no arquivo e as descarta da memória. O carrinho é ignorado se foi
+	 * invalidado ou acessado de novo depois de escolhido.
+	 */
+	private void descarregar(CarrinhoCompras carrinhoCompras, CarrinhoComprasFactory fabrica)
+	{
+		int			tamanho;
+		ByteBuffer	destino;
+
+		synchronized (carrinhoCompras)
+		{
+			if (carrinhoCompras.fabrica != fabrica || carrinhoCompras.descarregado)
+				return;
+			tamanho = CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras.conjuntoItens,
+					carrinhoCompras.escalaValorTotal, true);
+			bloqueio.lock();
+			try
+			{
+				if (fechado || carrinhoCompras.posicaoResidente >= 0)
+					return;
+				carrinhoCompras.posicaoDespejo = reservar(tamanho);
+				carrinhoCompras.tamanhoDespejo = tamanho;
+				destino = mapa.duplicate();
+				destino.position(carrinhoCompras.posicaoDespejo);
+				CodecCarrinhoCompras.codificar(carrinhoCompras.conjuntoItens, carrinhoCompras.escalaValorTotal, destino, true);
+				descarregados.add(carrinhoCompras);
+			}
+			finally
+			{
+				bloqueio.unlock();
+			}
+			carrinhoCompras.conjuntoItens.esvaziar();
+			carrinhoCompras.descartarInstantaneo();
+			carrinhoCompras.descarregado = true;
+		}
+	}
+
+	/**
+	 * Decodifica as linhas direto do arquivo mapeado, sob o bloqueio do despejo para que a
+	 * compactação não as mova durante a leitura.
+	 */
+	private void carregarLinhas(CarrinhoCompras carrinhoCompras)
+	{
+		ByteBuffer	origem;
+
+		bloqueio.lock();
+		try
+		{
+			checarAberto();
+			origem = mapa.duplicate();
+			origem.position(carrinhoCompras.posicaoDespejo);
+			CodecCarrinhoCompras.decodificar(origem, carrinhoCompras.conjuntoItens);
+			descarregados.remove(carrinhoCompras);
+			bytesOcupados -= carrinhoCompras.tamanhoDespejo;
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+		carrinhoCompras.descarregado = false;
+	}
+
+	/**
+	 * Retorna as linhas do carrinho descarregado, como codificadas por serializar, sem recarregá-las. Deve
+	 * ser chamado sob o bloqueio do carrinho.
+	 */
+	byte[] lerLinhas(CarrinhoCompras carrinhoCompras)
+	{
+		byte[]	conteudo;
+
+		bloqueio.lock();
+		try
+		{
+			checarAberto();
+			conteudo = new byte[carrinhoCompras.tamanhoDespejo];
+			ler(carrinhoCompras.posicaoDespejo, conteudo);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+		return conteudo;
+	}
+
+	/**
+	 * Retorna as linhas do carrinho, como em lerLinhas, se ele ainda estiver descarregado. Obtém
+	 * apenas o bloqueio do despejo, sob o qual o carrinho entra e sai do arquivo, e pode ser chamado
+	 * sem o bloqueio do carrinho.
+	 *
+	 * @return linhas codificadas ou null caso o carrinho tenha sido recarregado.
+	 */
+	byte[] lerLinhasSeDescarregado(CarrinhoCompras carrinhoCompras)
+	{
+		bloqueio.lock();
+		try
+		{
+			if (!descarregados.contains(carrinhoCompras))
+				return null;
+			return lerLinhas(carrinhoCompras);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	private void checarAberto()
+	{
+		if (fechado)
+			throw new IllegalStateException("Arquivo de despejo fechado.");
+	}
+
+	/**
+	 * Escolhe o carrinho a descarregar pelo algoritmo do relógio.
+	 */
+	private CarrinhoCompras escolherVitima()
+	{
+		CarrinhoCompras	candidato;
+
+		while (true)
+		{
+			if (ponteiro >= numeroResidentes)
+				ponteiro = 0;
+			candidato = residentes[ponteiro];
+			if (!candidato.referenciado)
+				return candidato;
+			candidato.referenciado = false;
+			ponteiro++;
+		}
+	}
+
+	private void incluirResidente(CarrinhoCompras carrinhoCompras)
+	{
+		if (numeroResidentes == residentes.length)
+			residentes = Arrays.copyOf(residentes, residentes.length * 2);
+		carrinhoCompras.posicaoResidente = numeroResidentes;
+		residentes[numeroResidentes++] = carrinhoCompras;
+	}
+
+	private void retirarResidente(CarrinhoCompras carrinhoCompras)
+	{
+		CarrinhoCompras	ultimo;
+
+		ultimo = residentes[--numeroResidentes];
+		residentes[carrinhoCompras.posicaoResidente] = ultimo;
+		ultimo.posicaoResidente = carrinhoCompras.posicaoResidente;
+		residentes[numeroResidentes] = null;
+		carrinhoCompras.posicaoResidente = -1;
+	}
+
+	/**
+	 * Reserva espaço no final do arquivo, compactando-o quando a maior parte estiver livre ou
+	 * aumentando-o quando não houver espaço.
+	 *
+	 * @return posição reservada no arquivo.
+	 */
+	private int reservar(int tamanho)
+	{
+		int	posicao;
+
+		if ((long) fimDados + tamanho > mapa.capacity())
+		{
+			if ((bytesOcupados + tamanho) * 2 <= mapa.capacity())
+				compactarArquivo();
+			else
+				aumentarArquivo(tamanho);
+		}
+		posicao = fimDados;
+		fimDados += tamanho;
+		bytesOcupados += tamanho;
+		return posicao;
+	}
+
+	private void ler(int posicao, byte[] conteudo)
+	{
+		ByteBuffer	origem;
+
+		origem = mapa.duplicate();
+		origem.position(posicao);
+		origem.get(conteudo);
+	}
+
+	/**
+	 * Move os conteúdos ainda em uso para o início do arquivo, em ordem de posição, para que cada
+	 * cópia só sobrescreva espaço livre.
+	 */
+	private void compactarArquivo()
+	{
+		List<CarrinhoCompras>	emOrdem;
+		byte[]					bloco;
+		int						destino;
+		int						copiados;
+		int						tamanhoBloco;
+
+		emOrdem = new ArrayList<>(descarregados);
+		emOrdem.sort(Comparator.comparingInt(carrinhoCompras -> carrinhoCompras.posicaoDespejo));
+		bloco = new byte[TAMANHO_BLOCO_COPIA];
+		destino = 0;
+		for (CarrinhoCompras carrinhoCompras : emOrdem)
+		{
+			for (copiados = 0; copiados < carrinhoCompras.tamanhoDespejo; copiados += tamanhoBloco)
+			{
+				tamanhoBloco = Math.min(bloco.length, carrinhoCompras.tamanhoDespejo - copiados);
+				copiarBloco(carrinhoCompras.posicaoDespejo + copiados, destino + copiados, tamanhoBloco, bloco);
+			}
+			carrinhoCompras.posicaoDespejo = destino;
+			destino += carrinhoCompras.tamanhoDespejo;
+		}
+		fimDados = destino;
+	}
+
+	private void copiarBloco(int origem, int destino, int tamanho, byte[] bloco)
+	{
+		ByteBuffer	buffer;
+
+		buffer = mapa.duplicate();
+		buffer.position(origem);
+		buffer.get(bloco, 0, tamanho);
+		buffer.position(destino);
+		buffer.put(bloco, 0, tamanho);
+	}
+
+	private void aumentarArquivo(int tamanhoNecessario)
+	{
+		long	novaCapacidade;
+
+		novaCapacidade = Math.max((long) mapa.capacity() * 2, (long) fimDados + tamanhoNecessario);
+		if (novaCapacidade > Integer.MAX_VALUE)
+			throw new IllegalStateException("Arquivo de despejo excedeu o tamanho maximo.");
+		try
+		{
+			mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, novaCapacidade);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel aumentar o arquivo de despejo", e);
+		}
+	}
+
+	/**
+	 * Codifica as linhas do carrinho com CodecCarrinhoCompras, incluindo as descrições.
+	 */
+	static byte[] serializar(ArmazenamentoItens conjuntoItens, int escala)
+	{
+		ByteBuffer	destino;
+
+		destino = ByteBuffer.allocate(CodecCarrinhoCompras.tamanhoCodificado(conjuntoItens, escala, true));
+		CodecCarrinhoCompras.codificar(conjuntoItens, escala, destino, true);
+		return destino.array();
+	}
+}
@@ -0,0 +1,273 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Valor monetário imutável representado por um long de centavos.
+ *
+ * Além da instância imutável, usada na fronteira com quem chama, a classe oferece operações
+ * estáticas sobre centavos em long para os cálculos internos de itens, carrinhos e ticket médio,
+ * que assim não alocam objetos. Toda aritmética verifica estouro e lança ArithmeticException.
+ */
+public final class Dinheiro implements Comparable<Dinheiro>
+{
+	/**
+	 * Quantidade de casas decimais representadas pelos centavos.
+	 */
+	public static final int	ESCALA = 2;
+
+	public static final Dinheiro	ZERO = new Dinheiro(0);
+
+	private final long	centavos;
+
+	private Dinheiro(long centavos)
+	{
+		this.centavos = centavos;
+	}
+
+	/**
+	 * Cria um valor a partir da quantidade de centavos.
+	 *
+	 * @param centavos
+	 * @return Dinheiro
+	 */
+	public static Dinheiro deCentavos(long centavos)
+	{
+		return centavos == 0 ? ZERO : new Dinheiro(centavos);
+	}
+
+	/**
+	 * Cria um valor a partir de um BigDecimal com no máximo duas casas decimais significativas.
+	 *
+	 * @param valor
+	 * @return Dinheiro
+	 * @throws IllegalArgumentException caso o valor não seja representável em centavos.
+	 */
+	public static Dinheiro de(BigDecimal valor)
+	{
+		return deCentavos(centavosDe(valor));
+	}
+
+	/**
+	 * Retorna a quantidade de centavos.
+	 *
+	 * @return long
+	 */
+	public long getCentavos()
+	{
+		return centavos;
+	}
+
+	public Dinheiro somar(Dinheiro outro)
+	{
+		return deCentavos(somarCentavos(centavos, outro.centavos));
+	}
+
+	public Dinheiro subtrair(Dinheiro outro)
+	{
+		return deCentavos(subtrairCentavos(centavos, outro.centavos));
+	}
+
+	public Dinheiro multiplicar(int quantidade)
+	{
+		return deCentavos(multiplicarCentavos(centavos, quantidade));
+	}
+
+	/**
+	 * Divide o valor pelo divisor com duas casas decimais, arredondando meio centavo para cima
+	 * (RoundingMode.HALF_UP).
+	 *
+	 * @param divisor
+	 * @return Dinheiro
+	 */
+	public Dinheiro dividir(long divisor)
+	{
+		return deCentavos(dividirCentavos(centavos, divisor));
+	}
+
+	/**
+	 * Converte o valor para BigDecimal com duas casas decimais.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal paraBigDecimal()
+	{
+		return paraBigDecimal(centavos);
+	}
+
+	/**
+	 * Converte centavos para BigDecimal com duas casas decimais.
+	 *
+	 * @param centavos
+	 * @return BigDecimal
+	 */
+	public static BigDecimal paraBigDecimal(long centavos)
+	{
+		return BigDecimal.valueOf(centavos, ESCALA);
+	}
+
+	/**
+	 * Converte centavos para BigDecimal com a escala informada. Como BigDecimal.add e multiply
+	 * preservam a maior escala dos operandos, isso permite devolver totais com a mesma escala
+	 * que teriam se fossem calculados em BigDecimal.
+	 *
+	 * @param centavos
+	 * @param escala
+	 * @return BigDecimal
+	 */
+	static BigDecimal paraBigDecimal(long centavos, int escala)
+	{
+		return BigDecimal.valueOf(centavos, ESCALA).setScale(escala, RoundingMode.UNNECESSARY);
+	}
+
+	/**
+	 * Converte um BigDecimal em centavos.
+	 *
+	 * @param valor
+	 * @return long
+	 * @throws IllegalArgumentException caso o valor tenha frações de centavo ou não caiba em um long.
+	 */
+	static long centavosDe(BigDecimal valor)
+	{
+		try
+		{
+			return valor.movePointRight(ESCALA).longValueExact();
+		}
+		catch (ArithmeticException e)
+		{
+			throw new IllegalArgumentException("Valor nao representavel em centavos: " + valor);
+		}
+	}
+
+	/**
+	 * Retorna se o valor é representável em centavos, isto é, se não tem frações de centavo.
+	 *
+	 * @param valor
+	 * @return boolean
+	 */
+	static boolean representavelEmCentavos(BigDecimal valor)
+	{
+		return valor.scale() <= ESCALA || valor.stripTrailingZeros().scale() <= ESCALA;
+	}
+
+	/**
+	 * Converte um BigDecimal em centavos, arredondando frações de centavo meio centavo para cima
+	 * (RoundingMode.HALF_UP). É o valor usado nos cálculos em centavos de itens e carrinhos; o
+	 * valor informado continua sendo o devolvido por eles.
+	 *
+	 * @param valor
+	 * @return long
+	 * @throws IllegalArgumentException caso o valor não caiba em um long de centavos.
+	 */
+	static long centavosArredondados(BigDecimal valor)
+	{
+		return centavosDe(representavelEmCentavos(valor) ? valor : valor.setScale(ESCALA, RoundingMode.HALF_UP));
+	}
+
+	/**
+	 * Retorna quanto o valor total exato de quantidade unidades do valor difere do calculado com os
+	 * centavos arredondados, ou null se o valor é representável em centavos.
+	 *
+	 * @param valor
+	 * @param centavos valor arredondado por centavosArredondados.
+	 * @param quantidade
+	 * @return BigDecimal
+	 */
+	static BigDecimal fracaoDe(BigDecimal valor, long centavos, int quantidade)
+	{
+		if (representavelEmCentavos(valor))
+			return null;
+		return valor.subtract(paraBigDecimal(centavos)).multiply(BigDecimal.valueOf(quantidade));
+	}
+
+	/**
+	 * Soma duas frações de centavo, em que null representa zero.
+	 */
+	static BigDecimal somarFracoes(BigDecimal fracao, BigDecimal outraFracao)
+	{
+		if (fracao == null)
+			return outraFracao;
+		return outraFracao == null ? fracao : fracao.add(outraFracao);
+	}
+
+	/**
+	 * Divide pelo divisor a soma dos centavos com as frações de centavo, com duas casas decimais e
+	 * arredondamento HALF_UP. Sem frações, é o mesmo que dividirCentavos.
+	 *
+	 * @param centavos
+	 * @param fracoes soma das frações, ou null se não houver.
+	 * @param divisor
+	 * @return BigDecimal
+	 */
+	static BigDecimal dividir(long centavos, BigDecimal fracoes, long divisor)
+	{
+		if (fracoes == null || fracoes.signum() == 0)
+			return paraBigDecimal(dividirCentavos(centavos, divisor));
+		return paraBigDecimal(centavos).add(fracoes).divide(BigDecimal.valueOf(divisor), ESCALA, RoundingMode.HALF_UP);
+	}
+
+	static long somarCentavos(long centavos, long outrosCentavos)
+	{
+		return Math.addExact(centavos, outrosCentavos);
+	}
+
+	static long subtrairCentavos(long centavos, long outrosCentavos)
+	{
+		return Math.subtractExact(centavos, outrosCentavos);
+	}
+
+	static long multiplicarCentavos(long centavos, int quantidade)
+	{
+		return Math.multiplyExact(centavos, (long) quantidade);
+	}
+
+	/**
+	 * Divide centavos pelo divisor arredondando o resto pela regra HALF_UP, o mesmo resultado de
+	 * BigDecimal.divide(divisor, 2, RoundingMode.HALF_UP) sobre o valor em reais.
+	 *
+	 * @param centavos
+	 * @param divisor
+	 * @return long
+	 */
+	static long dividirCentavos(long centavos, long divisor)
+	{
+		long	quociente;
+		long	resto;
+
+		if (divisor == 0)
+			throw new ArithmeticException("Divisao por zero");
+		quociente = centavos / divisor;
+		resto = Math.abs(centavos % divisor);
+		if (resto >= Math.abs(divisor) - resto)
+			quociente += (centavos < 0) == (divisor < 0) ? 1 : -1;
+		return quociente;
+	}
+
+	@Override
+	public int compareTo(Dinheiro outro)
+	{
+		return Long.compare(centavos, outro.centavos);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		return centavos == ((Dinheiro) o).centavos;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Long.hashCode(centavos);
+	}
+
+	@Override
+	public String toString()
+	{
+		return paraBigDecimal().toPlainString();
+	}
+}
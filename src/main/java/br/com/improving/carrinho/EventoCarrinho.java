@@ -0,0 +1,85 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+
+/**
+ * Alteração de um carrinho entregue a um ConsumidorEventosCarrinho.
+ *
+ * A mesma instância é reutilizada para todos os eventos de uma assinatura e só é válida durante a
+ * chamada de ConsumidorEventosCarrinho.consumir; quem precisar do evento depois deve copiar os
+ * valores.
+ */
+public final class EventoCarrinho
+{
+	long				sequencia;
+	TipoEventoCarrinho	tipo;
+	String				identificacaoCliente;
+	long				codigoProduto;
+	int					quantidade;
+	long				valorTotalCentavos;
+	int					escalaValorTotal;
+
+	EventoCarrinho()
+	{
+	}
+
+	/**
+	 * Retorna o número do evento na fábrica, crescente na ordem de publicação. Eventos do mesmo
+	 * carrinho são publicados na ordem das alterações.
+	 *
+	 * @return long
+	 */
+	public long getSequencia()
+	{
+		return sequencia;
+	}
+
+	public TipoEventoCarrinho getTipo()
+	{
+		return tipo;
+	}
+
+	public String getIdentificacaoCliente()
+	{
+		return identificacaoCliente;
+	}
+
+	/**
+	 * Retorna o código do produto da linha, ou zero para eventos do carrinho inteiro.
+	 *
+	 * @return long
+	 */
+	public long getCodigoProduto()
+	{
+		return codigoProduto;
+	}
+
+	/**
+	 * Retorna a quantidade da linha depois da alteração, ou zero para remoções e eventos do
+	 * carrinho inteiro.
+	 *
+	 * @return int
+	 */
+	public int getQuantidade()
+	{
+		return quantidade;
+	}
+
+	/**
+	 * Retorna o valor total do carrinho depois da alteração.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal getValorTotal()
+	{
+		return Dinheiro.paraBigDecimal(valorTotalCentavos, escalaValorTotal);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "EventoCarrinho [sequencia=" + sequencia + ", tipo=" + tipo + ", identificacaoCliente="
+				+ identificacaoCliente + ", codigoProduto=" + codigoProduto + ", quantidade=" + quantidade
+				+ ", valorTotal=" + getValorTotal() + "]";
+	}
+}
@@ -0,0 +1,48 @@
+package br.com.improving.carrinho;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor padrão das caixas de CarrinhoComprasAssincrono. Nesta versão, para Java 8, é um pool
+ * fixo de threads daemon, maior que o número de processadores porque as operações podem esperar
+ * pela gravação do registro durável ou pela leitura do arquivo de despejo.
+ *
+ * A partir do Java 21 o JAR multi-release traz outra versão desta classe, em src/main/java21, que
+ * executa cada tarefa em uma thread virtual.
+ */
+final class ExecutoresCarrinhos
+{
+	private static final int	THREADS_POR_PROCESSADOR = 4;
+
+	private ExecutoresCarrinhos()
+	{
+	}
+
+	static Executor padrao()
+	{
+		return Padrao.EXECUTOR;
+	}
+
+	private static final class Padrao
+	{
+		static final ExecutorService	EXECUTOR = criar();
+
+		private static ExecutorService criar()
+		{
+			AtomicInteger	numero;
+
+			numero = new AtomicInteger();
+			return Executors.newFixedThreadPool(THREADS_POR_PROCESSADOR * Runtime.getRuntime().availableProcessors(),
+					tarefa -> {
+						Thread	thread;
+
+						thread = new Thread(tarefa, "caixas-carrinhos-" + numero.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+	}
+}
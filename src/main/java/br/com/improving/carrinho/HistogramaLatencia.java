@@ -0,0 +1,92 @@
+package br.com.improving.carrinho;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latências em nanossegundos com baldes logarítmicos: cada potência de dois é
+ * dividida em quatro baldes, o que limita o erro relativo a 25%. Os registros são incrementos
+ * atômicos sem bloqueio, e as leituras concorrentes podem não incluir os registros em andamento.
+ */
+final class HistogramaLatencia
+{
+	private static final int	SUBDIVISOES_BITS = 2;
+	private static final int	SUBDIVISOES = 1 << SUBDIVISOES_BITS;
+	static final int			NUMERO_BALDES = (64 - SUBDIVISOES_BITS) * SUBDIVISOES;
+
+	private final AtomicLongArray	baldes = new AtomicLongArray(NUMERO_BALDES);
+
+	void registrar(long nanos)
+	{
+		baldes.getAndIncrement(balde(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Retorna a contagem de cada balde.
+	 */
+	long[] contagens()
+	{
+		long[]	contagens;
+
+		contagens = new long[NUMERO_BALDES];
+		for (int i = 0; i < NUMERO_BALDES; i++)
+			contagens[i] = baldes.get(i);
+		return contagens;
+	}
+
+	/**
+	 * Retorna o maior valor do balde que contém o percentil informado, entre 0 e 100, ou zero se
+	 * não há registros.
+	 */
+	long percentil(double percentil)
+	{
+		long[]	contagens;
+		long	total;
+		long	alvo;
+		long	acumulado;
+
+		if (percentil < 0 || percentil > 100)
+			throw new IllegalArgumentException("Percentil deve estar entre 0 e 100.");
+		contagens = contagens();
+		total = 0;
+		for (long contagem : contagens)
+			total += contagem;
+		if (total == 0)
+			return 0;
+		alvo = Math.max(1, (long) Math.ceil(total * percentil / 100));
+		acumulado = 0;
+		for (int i = 0; i < NUMERO_BALDES; i++)
+		{
+			acumulado += contagens[i];
+			if (acumulado >= alvo)
+				return limiteSuperior(i);
+		}
+		return limiteSuperior(NUMERO_BALDES - 1);
+	}
+
+	/**
+	 * Valores abaixo de SUBDIVISOES têm um balde cada; os demais caem no balde da sua potência de
+	 * dois e dos dois bits seguintes ao mais significativo.
+	 */
+	static int balde(long valor)
+	{
+		int	expoente;
+
+		if (valor < SUBDIVISOES)
+			return (int) valor;
+		expoente = 63 - Long.numberOfLeadingZeros(valor);
+		return (expoente - SUBDIVISOES_BITS + 1) * SUBDIVISOES
+				+ (int) ((valor >>> (expoente - SUBDIVISOES_BITS)) & (SUBDIVISOES - 1));
+	}
+
+	static long limiteSuperior(int balde)
+	{
+		int	deslocamento;
+
+		if (balde < SUBDIVISOES)
+			return balde;
+		deslocamento = balde / SUBDIVISOES - 1;
+		if (deslocamento + SUBDIVISOES_BITS + 1 >= 63 && balde % SUBDIVISOES == SUBDIVISOES - 1)
+			return Long.MAX_VALUE;
+		return ((long) (SUBDIVISOES + balde % SUBDIVISOES + 1) << deslocamento) - 1;
+	}
+}
@@ -0,0 +1,151 @@
+package br.com.improving.carrinho;
+
+import java.util.Arrays;
+
+/**
+ * Mapa de código de produto (long) para posição (int) com endereçamento aberto e sondagem linear,
+ * sem objetos por entrada.
+ *
+ * A remoção desloca as entradas seguintes da mesma sequência de sondagem para trás, de modo que
+ * não restam marcas de remoção e a busca continua terminando na primeira posição vazia.
+ */
+final class IndiceCodigos
+{
+	private static final int	CAPACIDADE_INICIAL = 16;
+	private static final int	VAZIO = -1;
+
+	private long[]	codigos = new long[CAPACIDADE_INICIAL];
+	private int[]	valores = novosValores(CAPACIDADE_INICIAL);
+	private int		tamanho;
+
+	/**
+	 * Retorna o valor associado ao código.
+	 *
+	 * @param codigo
+	 * @return valor ou -1 caso o código não esteja no índice.
+	 */
+	int obter(long codigo)
+	{
+		int	mascara;
+
+		mascara = codigos.length - 1;
+		for (int i = espalhar(codigo) & mascara; valores[i] != VAZIO; i = (i + 1) & mascara)
+		{
+			if (codigos[i] == codigo)
+				return valores[i];
+		}
+		return VAZIO;
+	}
+
+	/**
+	 * Associa o valor, que não pode ser negativo, ao código, substituindo o valor anterior.
+	 *
+	 * @param codigo
+	 * @param valor
+	 */
+	void definir(long codigo, int valor)
+	{
+		int	mascara;
+		int	i;
+
+		if ((tamanho + 1) * 4 > codigos.length * 3)
+			redimensionar(codigos.length * 2);
+		mascara = codigos.length - 1;
+		for (i = espalhar(codigo) & mascara; valores[i] != VAZIO; i = (i + 1) & mascara)
+		{
+			if (codigos[i] == codigo)
+			{
+				valores[i] = valor;
+				return;
+			}
+		}
+		codigos[i] = codigo;
+		valores[i] = valor;
+		tamanho++;
+	}
+
+	/**
+	 * Remove o código do índice.
+	 *
+	 * @param codigo
+	 * @return valor removido ou -1 caso o código não esteja no índice.
+	 */
+	int remover(long codigo)
+	{
+		int	mascara;
+		int	valorRemovido;
+
+		mascara = codigos.length - 1;
+		for (int i = espalhar(codigo) & mascara; valores[i] != VAZIO; i = (i + 1) & mascara)
+		{
+			if (codigos[i] == codigo)
+			{
+				valorRemovido = valores[i];
+				deslocarSequencia(i);
+				tamanho--;
+				return valorRemovido;
+			}
+		}
+		return VAZIO;
+	}
+
+	int tamanho()
+	{
+		return tamanho;
+	}
+
+	/**
+	 * Preenche a posição vaga com a próxima entrada da sequência que possa ocupá-la, repetindo até
+	 * encontrar uma posição vazia.
+	 */
+	private void deslocarSequencia(int vaga)
+	{
+		int	mascara;
+		int	ideal;
+
+		mascara = codigos.length - 1;
+		for (int i = (vaga + 1) & mascara; valores[i] != VAZIO; i = (i + 1) & mascara)
+		{
+			ideal = espalhar(codigos[i]) & mascara;
+			if (((i - ideal) & mascara) >= ((i - vaga) & mascara))
+			{
+				codigos[vaga] = codigos[i];
+				valores[vaga] = valores[i];
+				vaga = i;
+			}
+		}
+		valores[vaga] = VAZIO;
+	}
+
+	private void redimensionar(int novaCapacidade)
+	{
+		long[]	codigosAnteriores;
+		int[]	valoresAnteriores;
+
+		codigosAnteriores = codigos;
+		valoresAnteriores = valores;
+		codigos = new long[novaCapacidade];
+		valores = novosValores(novaCapacidade);
+		tamanho = 0;
+		for (int i = 0; i < codigosAnteriores.length; i++)
+			if (valoresAnteriores[i] != VAZIO)
+				definir(codigosAnteriores[i], valoresAnteriores[i]);
+	}
+
+	private static int[] novosValores(int capacidade)
+	{
+		int[]	valores;
+
+		valores = new int[capacidade];
+		Arrays.fill(valores, VAZIO);
+		return valores;
+	}
+
+	static int espalhar(long codigo)
+	{
+		long	misturado;
+
+		misturado = codigo * 0x9E3779B97F4A7C15L;
+		return (int) (misturado ^ (misturado >>> 32));
+	}
+}
@@ -0,0 +1,131 @@
+package br.com.improving.carrinho;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Índices secundários dos carrinhos de uma fábrica: os clientes com linha de cada produto e os
+ * clientes ordenados pelo valor total do carrinho, mantidos a cada alteração para que as buscas
+ * levem tempo proporcional ao resultado.
+ *
+ * As entradas de um carrinho são alteradas sob o bloqueio dele, pela fábrica e pelo próprio
+ * carrinho. As buscas não bloqueiam e, como em analisarCarrinhos, não correspondem a um único
+ * instante: um carrinho alterado durante a busca pode aparecer com o estado anterior ou o novo,
+ * e o que muda de valor pode não aparecer.
+ */
+final class IndicesCarrinhos
+{
+	private final ConcurrentHashMap<Long, Set<String>>	clientesPorProduto = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<ChaveValor>		carrinhosPorValor = new ConcurrentSkipListSet<>();
+
+	/**
+	 * Inclui o carrinho, com suas linhas e seu valor total, nos índices.
+	 */
+	void incluirCarrinho(String identificacaoCliente, CarrinhoCompras carrinhoCompras)
+	{
+		ArmazenamentoItens	conjuntoItens;
+
+		conjuntoItens = carrinhoCompras.conjuntoItens;
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+			if (conjuntoItens.ocupada(posicao))
+				incluirProduto(conjuntoItens.codigo(posicao), identificacaoCliente);
+		carrinhosPorValor.add(new ChaveValor(carrinhoCompras.obterValorTotalCentavos(), identificacaoCliente));
+	}
+
+	/**
+	 * Retira dos índices o carrinho, cujas linhas devem estar em memória.
+	 */
+	void removerCarrinho(String identificacaoCliente, CarrinhoCompras carrinhoCompras)
+	{
+		ArmazenamentoItens	conjuntoItens;
+
+		conjuntoItens = carrinhoCompras.conjuntoItens;
+		for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+			if (conjuntoItens.ocupada(posicao))
+				removerProduto(conjuntoItens.codigo(posicao), identificacaoCliente);
+		carrinhosPorValor.remove(new ChaveValor(carrinhoCompras.obterValorTotalCentavos(), identificacaoCliente));
+	}
+
+	/**
+	 * Registra a inclusão de uma linha do produto no carrinho do cliente. A alteração do conjunto de
+	 * clientes é feita dentro de compute para não se perder com a remoção concorrente do conjunto
+	 * quando ele fica vazio.
+	 */
+	void incluirProduto(long codigo, String identificacaoCliente)
+	{
+		clientesPorProduto.compute(codigo, (chave, clientes) -> {
+			if (clientes == null)
+				clientes = ConcurrentHashMap.newKeySet();
+			clientes.add(identificacaoCliente);
+			return clientes;
+		});
+	}
+
+	void removerProduto(long codigo, String identificacaoCliente)
+	{
+		clientesPorProduto.computeIfPresent(codigo, (chave, clientes) -> {
+			clientes.remove(identificacaoCliente);
+			return clientes.isEmpty() ? null : clientes;
+		});
+	}
+
+	void alterarValor(String identificacaoCliente, long valorAnteriorCentavos, long valorCentavos)
+	{
+		carrinhosPorValor.remove(new ChaveValor(valorAnteriorCentavos, identificacaoCliente));
+		carrinhosPorValor.add(new ChaveValor(valorCentavos, identificacaoCliente));
+	}
+
+	List<String> clientesComProduto(long codigo)
+	{
+		Set<String>	clientes;
+
+		clientes = clientesPorProduto.get(codigo);
+		return clientes == null ? new ArrayList<>() : new ArrayList<>(clientes);
+	}
+
+	/**
+	 * Retorna os clientes cujo carrinho tem valor total maior que o informado, do maior valor para
+	 * o menor.
+	 */
+	List<String> clientesComValorAcimaDe(long centavos)
+	{
+		List<String>			clientes;
+		Iterator<ChaveValor>	iterador;
+
+		clientes = new ArrayList<>();
+		if (centavos == Long.MAX_VALUE)
+			return clientes;
+		iterador = carrinhosPorValor.tailSet(new ChaveValor(centavos + 1, ""), true).descendingIterator();
+		while (iterador.hasNext())
+			clientes.add(iterador.next().identificacaoCliente);
+		return clientes;
+	}
+
+	/**
+	 * Entrada do índice por valor, ordenada pelo valor total e, entre valores iguais, pelo cliente.
+	 */
+	private static final class ChaveValor implements Comparable<ChaveValor>
+	{
+		final long		valorCentavos;
+		final String	identificacaoCliente;
+
+		ChaveValor(long valorCentavos, String identificacaoCliente)
+		{
+			this.valorCentavos = valorCentavos;
+			this.identificacaoCliente = identificacaoCliente;
+		}
+
+		@Override
+		public int compareTo(ChaveValor outra)
+		{
+			int	comparacao;
+
+			comparacao = Long.compare(valorCentavos, outra.valorCentavos);
+			return comparacao != 0 ? comparacao : identificacaoCliente.compareTo(outra.identificacaoCliente);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Estado imutável de um carrinho em um instante: os itens em ordem de inclusão e o valor total
+ * correspondente. É obtido sem bloqueio por CarrinhoCompras.getInstantaneo e não muda depois,
+ * mesmo que o carrinho seja alterado.
+ *
+ * Os itens do instantâneo não mudam: seus setters lançam UnsupportedOperationException. Para
+ * alterar uma linha, use os itens obtidos por CarrinhoCompras.getItem.
+ */
+public final class InstantaneoCarrinho
+{
+	private final VetorPersistente<Item>	linhas;
+	private final int						quantidadeItens;
+	private final long						valorTotalCentavos;
+	private final int						escalaValorTotal;
+	private final BigDecimal				fracaoValorTotal;
+	private final long						versao;
+
+	/**
+	 * Conversões feitas na primeira leitura. Os objetos são imutáveis, então uma corrida apenas
+	 * repete a conversão.
+	 */
+	private BigDecimal			valorTotal;
+	private Collection<Item>	itens;
+
+	InstantaneoCarrinho(VetorPersistente<Item> linhas, int quantidadeItens, long valorTotalCentavos,
+			int escalaValorTotal, BigDecimal fracaoValorTotal, long versao)
+	{
+		this.linhas = linhas;
+		this.quantidadeItens = quantidadeItens;
+		this.valorTotalCentavos = valorTotalCentavos;
+		this.escalaValorTotal = escalaValorTotal;
+		this.fracaoValorTotal = fracaoValorTotal;
+		this.versao = versao;
+	}
+
+	/**
+	 * Retorna os itens em ordem de inclusão. A coleção não pode ser alterada.
+	 *
+	 * @return Collection
+	 */
+	public Collection<Item> getItens()
+	{
+		Collection<Item>	colecao;
+
+		colecao = itens;
+		if (colecao == null)
+			itens = colecao = Collections.unmodifiableCollection(new ColecaoItens());
+		return colecao;
+	}
+
+	/**
+	 * Retorna o valor total do carrinho no instante, igual à soma dos valores totais dos itens.
+	 *
+	 * @return BigDecimal
+	 */
+	public BigDecimal getValorTotal()
+	{
+		BigDecimal	total;
+
+		total = valorTotal;
+		if (total == null)
+		{
+			total = Dinheiro.paraBigDecimal(valorTotalCentavos, escalaValorTotal);
+			if (fracaoValorTotal != null)
+				total = total.add(fracaoValorTotal);
+			valorTotal = total;
+		}
+		return total;
+	}
+
+	/**
+	 * Retorna o número de alterações do carrinho até o instante. Instantâneos do mesmo carrinho com
+	 * a mesma versão têm o mesmo conteúdo.
+	 *
+	 * @return long
+	 */
+	public long getVersao()
+	{
+		return versao;
+	}
+
+	/**
+	 * As linhas ficam nas posições físicas do armazenamento do carrinho, com null nas posições
+	 * vagas, que são puladas na iteração.
+	 */
+	private class ColecaoItens extends AbstractCollection<Item>
+	{
+		@Override
+		public int size()
+		{
+			return quantidadeItens;
+		}
+
+		@Override
+		public Iterator<Item> iterator()
+		{
+			return new Iterator<Item>()
+			{
+				private int	proxima;
+
+				@Override
+				public boolean hasNext()
+				{
+					while (proxima < linhas.tamanho() && linhas.obter(proxima) == null)
+						proxima++;
+					return proxima < linhas.tamanho();
+				}
+
+				@Override
+				public Item next()
+				{
+					if (!hasNext())
+						throw new NoSuchElementException();
+					return linhas.obter(proxima++);
+				}
+			};
+		}
+	}
+}
@@ -5,6 +5,10 @@ import java.util.Objects;
 
 /**
  * Classe que representa um item no carrinho de compras.
+ *
+ * getValorUnitario e getValorTotal retornam o valor unitário exatamente como foi informado e o seu
+ * produto pela quantidade, inclusive com frações de centavo. Para os cálculos em centavos do
+ * carrinho, o valor unitário é arredondado para o centavo, meio centavo para cima.
  */
 public class Item
 {
@@ -12,6 +16,25 @@ public class Item
     private BigDecimal valorUnitario;
     private int quantidade;
 
+	/**
+	 * Valor unitário, arredondado para o centavo, e valor total em centavos, usados nos cálculos do
+	 * carrinho. valorUnitario guarda o valor como foi informado.
+	 */
+	private long valorUnitarioCentavos;
+	private long valorTotalCentavos;
+
+	/**
+	 * Carrinho ao qual o item pertence, ou null para itens avulsos. Alterações em itens de um
+	 * carrinho são repassadas a ele para que o valor total do carrinho continue correto.
+	 */
+	volatile CarrinhoCompras carrinho;
+
+	/**
+	 * Indica que o item é a cópia imutável de uma linha em um InstantaneoCarrinho. Seus setters
+	 * lançam UnsupportedOperationException.
+	 */
+	boolean instantaneo;
+
     /**
      * Construtor da classe Item.
      * 
@@ -22,8 +45,7 @@ public class Item
     public Item(Produto produto, BigDecimal valorUnitario, int quantidade)
 	{
 		this.produto = produto;
-		setValorUnitario(valorUnitario);
-		setQuantidade(quantidade);
+		definir(valorUnitario, quantidade);
     }
 
     /**
@@ -63,26 +85,102 @@ public class Item
      */
     public BigDecimal getValorTotal()
 	{
-		return getValorUnitario().multiply(BigDecimal.valueOf(getQuantidade()));
+		if (!Dinheiro.representavelEmCentavos(valorUnitario))
+			return valorUnitario.multiply(BigDecimal.valueOf(quantidade));
+		return Dinheiro.paraBigDecimal(valorTotalCentavos, valorUnitario.scale());
     }
 
+	/**
+	 * Retorna o valor total do item em centavos, calculado com o valor unitário arredondado.
+	 *
+	 * @return long
+	 */
+	long obterValorTotalCentavos()
+	{
+		return valorTotalCentavos;
+	}
+
+	/**
+	 * Retorna o valor unitário do item arredondado para centavos.
+	 *
+	 * @return long
+	 */
+	long obterValorUnitarioCentavos()
+	{
+		return valorUnitarioCentavos;
+	}
+
 	/**
 	 * Define o valorUnitario do Item.
 	 *
 	 * @param valorUnitario
+	 * @throws UnsupportedOperationException caso o item pertença a um instantâneo.
 	 */
 	public void setValorUnitario(BigDecimal valorUnitario)
 	{
-		this.valorUnitario = valorUnitario;
+		CarrinhoCompras	carrinhoAtual;
+
+		if (instantaneo)
+			throw new UnsupportedOperationException("Itens de um instantâneo não podem ser alterados.");
+		carrinhoAtual = carrinho;
+		if (carrinhoAtual != null)
+			carrinhoAtual.alterarValorUnitario(this, valorUnitario);
+		else
+			definir(valorUnitario, quantidade);
 	}
 
 	/**
 	 * Define a quantidade do Item.
 	 * @param quantidade
+	 * @throws UnsupportedOperationException caso o item pertença a um instantâneo.
 	 */
 	public void setQuantidade(int quantidade)
 	{
+		CarrinhoCompras	carrinhoAtual;
+
+		if (instantaneo)
+			throw new UnsupportedOperationException("Itens de um instantâneo não podem ser alterados.");
+		carrinhoAtual = carrinho;
+		if (carrinhoAtual != null)
+			carrinhoAtual.alterarQuantidade(this, quantidade);
+		else
+			definir(valorUnitario, quantidade);
+	}
+
+	/**
+	 * Define valor unitário e quantidade e recalcula os valores em centavos do item, sem notificar o
+	 * carrinho.
+	 *
+	 * @param valorUnitario
+	 * @param quantidade
+	 * @throws ArithmeticException caso o valor total não caiba em um long de centavos.
+	 */
+	void definir(BigDecimal valorUnitario, int quantidade)
+	{
+		long	centavos;
+		long	totalCentavos;
+
+		centavos = valorUnitario == null ? 0 : Dinheiro.centavosArredondados(valorUnitario);
+		totalCentavos = Dinheiro.multiplicarCentavos(centavos, quantidade);
+		this.valorUnitario = valorUnitario;
+		this.quantidade = quantidade;
+		this.valorUnitarioCentavos = centavos;
+		this.valorTotalCentavos = totalCentavos;
+	}
+
+	/**
+	 * Define valor unitário, já arredondado em centavos, e quantidade validados pelo carrinho.
+	 *
+	 * @param valorUnitario
+	 * @param valorUnitarioCentavos
+	 * @param quantidade
+	 */
+	void atribuir(BigDecimal valorUnitario, long valorUnitarioCentavos, int quantidade)
+	{
+		this.valorUnitario = valorUnitario;
 		this.quantidade = quantidade;
+		this.valorUnitarioCentavos = valorUnitarioCentavos;
+		this.valorTotalCentavos = Dinheiro.multiplicarCentavos(valorUnitarioCentavos, quantidade);
 	}
 
 	@Override
@@ -0,0 +1,118 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+
+/**
+ * Itens de uma inclusão em lote já validados e agregados por produto.
+ *
+ * As linhas ficam na ordem da primeira ocorrência de cada produto, com a soma das quantidades e o
+ * último valor unitário informado, que é o resultado de incluir os itens um a um.
+ */
+final class LoteItens
+{
+	private final IndiceCodigos	linhaPorCodigo = new IndiceCodigos();
+	private final Produto[]		produtos;
+	private final BigDecimal[]	valoresUnitarios;
+	private final long[]		valoresUnitariosCentavos;
+	private final int[]			quantidades;
+	private int					tamanho;
+	private int					escalaMaxima;
+
+	private LoteItens(int capacidade)
+	{
+		produtos = new Produto[capacidade];
+		valoresUnitarios = new BigDecimal[capacidade];
+		valoresUnitariosCentavos = new long[capacidade];
+		quantidades = new int[capacidade];
+	}
+
+	/**
+	 * Valida e agrega os itens por produto.
+	 *
+	 * @param itens
+	 * @return LoteItens
+	 * @throws IllegalArgumentException indicando o primeiro item inválido.
+	 */
+	static LoteItens agregar(Item[] itens)
+	{
+		LoteItens	lote;
+
+		lote = new LoteItens(itens.length);
+		for (int i = 0; i < itens.length; i++)
+		{
+			try
+			{
+				lote.incluir(itens[i]);
+			}
+			catch (RuntimeException e)
+			{
+				throw new IllegalArgumentException("Item " + i + " invalido: " + e.getMessage());
+			}
+		}
+		return lote;
+	}
+
+	int tamanho()
+	{
+		return tamanho;
+	}
+
+	Produto produto(int linha)
+	{
+		return produtos[linha];
+	}
+
+	BigDecimal valorUnitario(int linha)
+	{
+		return valoresUnitarios[linha];
+	}
+
+	/**
+	 * Retorna o valor unitário arredondado para centavos.
+	 */
+	long valorUnitarioCentavos(int linha)
+	{
+		return valoresUnitariosCentavos[linha];
+	}
+
+	int quantidade(int linha)
+	{
+		return quantidades[linha];
+	}
+
+	/**
+	 * Retorna a maior escala entre todos os valores unitários informados, inclusive os substituídos.
+	 */
+	int escalaMaxima()
+	{
+		return escalaMaxima;
+	}
+
+	private void incluir(Item item)
+	{
+		Produto		produto;
+		BigDecimal	valorUnitario;
+		long		centavos;
+		int			linha;
+
+		produto = item.getProduto();
+		valorUnitario = item.getValorUnitario();
+		if (produto == null || produto.getCodigo() == null)
+			throw new IllegalArgumentException("Produto sem codigo.");
+		CarrinhoCompras.checarSeItemPossuiValoresMenoresQueZero(valorUnitario, item.getQuantidade());
+		centavos = Dinheiro.centavosArredondados(valorUnitario);
+		escalaMaxima = Math.max(escalaMaxima, valorUnitario.scale());
+		linha = linhaPorCodigo.obter(produto.getCodigo());
+		if (linha < 0)
+		{
+			linha = tamanho++;
+			linhaPorCodigo.definir(produto.getCodigo(), linha);
+			produtos[linha] = produto;
+			quantidades[linha] = item.getQuantidade();
+		}
+		else
+			quantidades[linha] = Math.addExact(quantidades[linha], item.getQuantidade());
+		valoresUnitarios[linha] = valorUnitario;
+		valoresUnitariosCentavos[linha] = centavos;
+	}
+}
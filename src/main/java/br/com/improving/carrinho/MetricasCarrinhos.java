@@ -0,0 +1,217 @@
+package br.com.improving.carrinho;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Métricas de uma fábrica: contadores em LongAdder, que distribuem os incrementos concorrentes
+ * entre células, e um HistogramaLatencia por operação medida.
+ *
+ * A fábrica sem métricas não tem instância desta classe, e cada ponto de medição é apenas uma
+ * comparação com null, como nas demais funcionalidades opcionais da fábrica.
+ */
+final class MetricasCarrinhos implements MetricasCarrinhosMBean
+{
+	/**
+	 * Estimativa dos bytes de heap de um carrinho vazio, incluindo sua entrada no mapa da fábrica.
+	 */
+	private static final int	BYTES_ESTIMADOS_POR_CARRINHO = 256;
+
+	private static final String	DOMINIO_JMX = "br.com.improving.carrinho:type=CarrinhoComprasFactory,name=";
+
+	private static ScheduledExecutorService	agendador;
+
+	enum OperacaoMedida
+	{
+		CRIAR, INVALIDAR, ADICIONAR_ITEM, REMOVER_ITEM
+	}
+
+	final LongAdder	criacoesExistentes = new LongAdder();
+	final LongAdder	criacoesNovas = new LongAdder();
+	final LongAdder	invalidacoes = new LongAdder();
+	final LongAdder	inclusoesLinha = new LongAdder();
+	final LongAdder	combinacoesLinha = new LongAdder();
+	final LongAdder	remocoes = new LongAdder();
+	final LongAdder	linhas = new LongAdder();
+
+	private final HistogramaLatencia[]			latencias;
+	private final Map<String, CarrinhoCompras>	carrinhos;
+	private final int							bytesEstimadosPorLinha;
+
+	MetricasCarrinhos(Map<String, CarrinhoCompras> carrinhos, TipoArmazenamentoItens tipoArmazenamentoItens)
+	{
+		this.carrinhos = carrinhos;
+		this.bytesEstimadosPorLinha = tipoArmazenamentoItens.bytesEstimadosPorLinha;
+		this.latencias = new HistogramaLatencia[OperacaoMedida.values().length];
+		for (int i = 0; i < latencias.length; i++)
+			latencias[i] = new HistogramaLatencia();
+	}
+
+	/**
+	 * Registra a latência da operação iniciada no instante informado por System.nanoTime.
+	 */
+	void registrarLatencia(OperacaoMedida operacao, long inicio)
+	{
+		latencias[operacao.ordinal()].registrar(System.nanoTime() - inicio);
+	}
+
+	/**
+	 * Publica as métricas no MBeanServer da plataforma, substituindo outras com o mesmo nome.
+	 */
+	void registrarJmx(String nome)
+	{
+		MBeanServer	servidor;
+		ObjectName	nomeObjeto;
+
+		servidor = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			nomeObjeto = new ObjectName(DOMINIO_JMX + ObjectName.quote(nome));
+			try
+			{
+				servidor.unregisterMBean(nomeObjeto);
+			}
+			catch (InstanceNotFoundException e)
+			{
+				// Nenhuma fábrica anterior com este nome.
+			}
+			servidor.registerMBean(this, nomeObjeto);
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("Nao foi possivel publicar as metricas: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Agenda o relator no agendador compartilhado das métricas. A tarefa guarda apenas uma
+	 * referência fraca às métricas e deixa de ser executada quando a fábrica é coletada. Exceções
+	 * do relator não interrompem os relatórios seguintes.
+	 */
+	void agendarRelator(RelatorMetricas relator, long intervaloMillis)
+	{
+		WeakReference<MetricasCarrinhos>	referencia;
+
+		referencia = new WeakReference<>(this);
+		agendador().scheduleAtFixedRate(() -> {
+			MetricasCarrinhos	metricas;
+
+			metricas = referencia.get();
+			if (metricas == null)
+				throw new CancellationException();
+			try
+			{
+				relator.relatar(metricas);
+			}
+			catch (RuntimeException e)
+			{
+				// O próximo relatório é tentado no intervalo seguinte.
+			}
+		}, intervaloMillis, intervaloMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getCriacoesExistentes()
+	{
+		return criacoesExistentes.sum();
+	}
+
+	@Override
+	public long getCriacoesNovas()
+	{
+		return criacoesNovas.sum();
+	}
+
+	@Override
+	public long getInvalidacoes()
+	{
+		return invalidacoes.sum();
+	}
+
+	@Override
+	public long getInclusoesLinha()
+	{
+		return inclusoesLinha.sum();
+	}
+
+	@Override
+	public long getCombinacoesLinha()
+	{
+		return combinacoesLinha.sum();
+	}
+
+	@Override
+	public long getRemocoes()
+	{
+		return remocoes.sum();
+	}
+
+	@Override
+	public long getCarrinhosAtivos()
+	{
+		return carrinhos.size();
+	}
+
+	@Override
+	public long getLinhas()
+	{
+		return linhas.sum();
+	}
+
+	@Override
+	public long getBytesEstimados()
+	{
+		return getCarrinhosAtivos() * BYTES_ESTIMADOS_POR_CARRINHO + getLinhas() * bytesEstimadosPorLinha;
+	}
+
+	@Override
+	public String[] getOperacoes()
+	{
+		String[]	operacoes;
+
+		operacoes = new String[OperacaoMedida.values().length];
+		for (OperacaoMedida operacao : OperacaoMedida.values())
+			operacoes[operacao.ordinal()] = operacao.name();
+		return operacoes;
+	}
+
+	@Override
+	public long percentilLatencia(String operacao, double percentil)
+	{
+		return latencias[OperacaoMedida.valueOf(operacao).ordinal()].percentil(percentil);
+	}
+
+	@Override
+	public long[] histogramaLatencia(String operacao)
+	{
+		return latencias[OperacaoMedida.valueOf(operacao).ordinal()].contagens();
+	}
+
+	/**
+	 * Retorna o agendador compartilhado, de uma thread daemon, criado no primeiro uso. Também
+	 * executa a varredura de expiração das fábricas.
+	 */
+	static synchronized ScheduledExecutorService agendador()
+	{
+		if (agendador == null)
+			agendador = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+				Thread	thread;
+
+				thread = new Thread(tarefa, "metricas-carrinhos");
+				thread.setDaemon(true);
+				return thread;
+			});
+		return agendador;
+	}
+}
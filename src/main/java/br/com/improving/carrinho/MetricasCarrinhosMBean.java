@@ -0,0 +1,72 @@
+package br.com.improving.carrinho;
+
+/**
+ * Interface JMX das métricas de uma CarrinhoComprasFactory, registrada com o nome
+ * br.com.improving.carrinho:type=CarrinhoComprasFactory,name=&lt;nome&gt;.
+ *
+ * As operações com latência medida são criar, invalidar, adicionarItem e removerItem, e as
+ * latências são em nanossegundos.
+ */
+public interface MetricasCarrinhosMBean
+{
+	/**
+	 * Chamadas a criar que retornaram um carrinho já existente.
+	 */
+	long getCriacoesExistentes();
+
+	/**
+	 * Chamadas a criar que criaram um carrinho.
+	 */
+	long getCriacoesNovas();
+
+	/**
+	 * Chamadas a invalidar que invalidaram um carrinho.
+	 */
+	long getInvalidacoes();
+
+	/**
+	 * Chamadas a adicionarItem que incluíram uma linha.
+	 */
+	long getInclusoesLinha();
+
+	/**
+	 * Chamadas a adicionarItem que somaram a quantidade a uma linha existente.
+	 */
+	long getCombinacoesLinha();
+
+	/**
+	 * Chamadas a removerItem que removeram uma linha.
+	 */
+	long getRemocoes();
+
+	/**
+	 * Quantidade de carrinhos na fábrica.
+	 */
+	long getCarrinhosAtivos();
+
+	/**
+	 * Quantidade de linhas nos carrinhos da fábrica.
+	 */
+	long getLinhas();
+
+	/**
+	 * Estimativa dos bytes de heap ocupados pelos carrinhos e suas linhas. Linhas descarregadas
+	 * para arquivo são contadas como se estivessem em memória.
+	 */
+	long getBytesEstimados();
+
+	/**
+	 * Nomes das operações com latência medida.
+	 */
+	String[] getOperacoes();
+
+	/**
+	 * Latência da operação no percentil informado, entre 0 e 100, com erro de até 25% para cima.
+	 */
+	long percentilLatencia(String operacao, double percentil);
+
+	/**
+	 * Contagem de cada balde logarítmico do histograma de latência da operação.
+	 */
+	long[] histogramaLatencia(String operacao);
+}
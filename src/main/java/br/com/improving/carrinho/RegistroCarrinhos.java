@@ -0,0 +1,832 @@
+package br.com.improving.carrinho;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Registro durável das alterações dos carrinhos de uma fábrica (write-ahead log), com snapshots
+ * periódicos e recuperação na abertura.
+ *
+ * Cada alteração é acrescentada a um segmento mapeado em memória como um registro com tamanho e
+ * CRC32. Quem altera um carrinho espera o registro chegar ao disco antes de retornar, mas uma
+ * única chamada a force atende todas as threads que estiverem esperando (group commit).
+ *
+ * Os registros guardam o estado resultante da linha, e não a operação, e levam o número de série
+ * do carrinho e uma versão crescente por carrinho. O carrinho registra a alteração antes de
+ * aplicá-la, de modo que uma falha ao anexar o registro não deixa no carrinho uma alteração que a
+ * recuperação não veria. Os registros de uma alteração que muda várias linhas são anexados de uma
+ * vez: ou todos entram no registro ou nenhum. O snapshot é tirado sem parar a fábrica: ele
+ * começa um segmento novo e grava cada carrinho com a sua versão naquele momento; na recuperação
+ * os registros desse segmento em diante são aplicados apenas quando têm versão maior que a do
+ * snapshot, o que dá exatamente o estado de antes da parada.
+ *
+ * Um carrinho criado entra na fábrica só depois de registrada a sua criação. Para que o snapshot
+ * não apague o segmento com a criação de um carrinho que ele não viu, a fábrica registra a
+ * criação e inclui o carrinho entre iniciarCriacao e concluirCriacao, e o snapshot só troca de
+ * segmento quando não há criações em andamento.
+ *
+ * Os snapshots automáticos são gravados em uma thread própria do registro, encerrada por close,
+ * que também grava e fecha o segmento atual.
+ */
+final class RegistroCarrinhos
+{
+	static final int	TAMANHO_SEGMENTO_PADRAO = 64 * 1024 * 1024;
+
+	private static final byte	CRIACAO = 1;
+	private static final byte	LINHA = 2;
+	private static final byte	REMOCAO = 3;
+	private static final byte	INVALIDACAO = 4;
+
+	private static final int	TAMANHO_CABECALHO = 8;
+	private static final int	MARCA_SNAPSHOT = 0x43434331;
+	private static final String	PREFIXO_SEGMENTO = "registro-";
+	private static final String	PREFIXO_SNAPSHOT = "snapshot-";
+	private static final String	SUFIXO_SEGMENTO = ".log";
+	private static final String	SUFIXO_SNAPSHOT = ".snap";
+
+	private final Path			diretorio;
+	private final int			tamanhoSegmento;
+	private final long			bytesEntreSnapshots;
+	private final AtomicLong	proximoNumeroSerie = new AtomicLong(1);
+
+	private final ReentrantLock	bloqueioEscrita = new ReentrantLock();
+	private FileChannel			canalSegmento;
+	private MappedByteBuffer	segmento;
+	private long				numeroSegmento;
+	private long				posicaoEscrita;
+	private long				bytesDesdeSnapshot;
+	private volatile boolean	fechado;
+
+	private final ReentrantLock	bloqueioGravacao = new ReentrantLock();
+	private final Condition		gravacaoConcluida = bloqueioGravacao.newCondition();
+	private long				posicaoDuravel;
+	private boolean				gravando;
+
+	private final ReentrantReadWriteLock	bloqueioCriacao = new ReentrantReadWriteLock();
+
+	private final ReentrantLock		bloqueioSnapshot = new ReentrantLock();
+	private final AtomicBoolean		snapshotAgendado = new AtomicBoolean();
+	private Runnable				tarefaSnapshot;
+	private final ExecutorService	executorSnapshot;
+
+	private Map<String, CarrinhoCompras>	recuperados;
+
+	/**
+	 * Abre o registro do diretório, recuperando os carrinhos do último snapshot e dos segmentos
+	 * seguintes, e começa um segmento novo para as próximas alterações.
+	 */
+	RegistroCarrinhos(Path diretorio, int tamanhoSegmento, long bytesEntreSnapshots, TipoArmazenamentoItens tipo)
+	{
+		this.diretorio = diretorio;
+		this.tamanhoSegmento = tamanhoSegmento;
+		this.bytesEntreSnapshots = bytesEntreSnapshots;
+		this.executorSnapshot = Executors.newSingleThreadExecutor(tarefa -> {
+			Thread	thread;
+
+			thread = new Thread(tarefa, "snapshot-carrinhos");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try
+		{
+			Files.createDirectories(diretorio);
+			recuperados = recuperar(tipo);
+			abrirSegmento(numeroSegmento + 1);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel abrir o registro em " + diretorio, e);
+		}
+	}
+
+	/**
+	 * Retorna, uma única vez, os carrinhos recuperados por identificação do cliente, ainda não
+	 * vinculados a uma fábrica.
+	 */
+	Map<String, CarrinhoCompras> retirarRecuperados()
+	{
+		Map<String, CarrinhoCompras>	carrinhos;
+
+		carrinhos = recuperados;
+		recuperados = null;
+		return carrinhos;
+	}
+
+	/**
+	 * Define a tarefa que grava um snapshot, executada em segundo plano sempre que o registro
+	 * acumula o volume configurado desde o último.
+	 */
+	void definirTarefaSnapshot(Runnable tarefaSnapshot)
+	{
+		this.tarefaSnapshot = tarefaSnapshot;
+	}
+
+	/**
+	 * Marca o início da criação de um carrinho, que vai do registro da criação até o carrinho estar
+	 * no conjunto da fábrica. Criações concorrentes não se bloqueiam.
+	 */
+	void iniciarCriacao()
+	{
+		bloqueioCriacao.readLock().lock();
+	}
+
+	void concluirCriacao()
+	{
+		bloqueioCriacao.readLock().unlock();
+	}
+
+	/**
+	 * Registra a criação do carrinho, atribuindo seu número de série. Deve ser chamado entre
+	 * iniciarCriacao e concluirCriacao.
+	 */
+	void registrarCriacao(CarrinhoCompras carrinhoCompras, String identificacaoCliente)
+	{
+		carrinhoCompras.numeroSerie = proximoNumeroSerie.getAndIncrement();
+		carrinhoCompras.versaoRegistro = 0;
+		anexar(codificar(CRIACAO, carrinhoCompras, 0, saida -> escreverTexto(saida, identificacaoCliente)));
+	}
+
+	/**
+	 * Registra o estado que a linha do produto vai ter. Deve ser chamado sob o bloqueio do carrinho,
+	 * antes de alterar a linha.
+	 *
+	 * @param descricao descrição do produto em UTF-8.
+	 */
+	void registrarLinha(CarrinhoCompras carrinhoCompras, long codigo, byte[] descricao, BigDecimal valorUnitario,
+			int quantidade)
+	{
+		anexar(codificarLinha(carrinhoCompras, 1, codigo, descricao, valorUnitario, quantidade));
+		carrinhoCompras.versaoRegistro++;
+	}
+
+	/**
+	 * Codifica, sem anexar, o registro do estado de uma linha, com a versão que ele terá se for o
+	 * ordem-ésimo registro anexado a partir de agora para o carrinho.
+	 *
+	 * @param descricao descrição do produto em UTF-8.
+	 */
+	byte[] codificarLinha(CarrinhoCompras carrinhoCompras, int ordem, long codigo, byte[] descricao,
+			BigDecimal valorUnitario, int quantidade)
+	{
+		return codificar(LINHA, carrinhoCompras, ordem, saida -> {
+			saida.writeLong(codigo);
+			escreverBytes(saida, descricao);
+			escreverValor(saida, valorUnitario);
+			saida.writeInt(quantidade);
+		});
+	}
+
+	/**
+	 * Codifica, sem anexar, o registro do estado atual da linha da posição física informada, lido
+	 * diretamente do armazenamento, sem criar o item da linha.
+	 */
+	byte[] codificarLinha(CarrinhoCompras carrinhoCompras, int ordem, int posicao)
+	{
+		ArmazenamentoItens	conjuntoItens;
+
+		conjuntoItens = carrinhoCompras.conjuntoItens;
+		return codificarLinha(carrinhoCompras, ordem, conjuntoItens.codigo(posicao),
+				conjuntoItens.descricaoCodificada(posicao), conjuntoItens.valorUnitario(posicao),
+				conjuntoItens.quantidade(posicao));
+	}
+
+	/**
+	 * Anexa de uma vez os registros de linha codificados por codificarLinha, com ordens de 1 a
+	 * registros.length. Se falhar, nenhum deles é anexado. Deve ser chamado sob o bloqueio do
+	 * carrinho, antes de alterar as linhas.
+	 */
+	void registrarLinhas(CarrinhoCompras carrinhoCompras, byte[][] registros)
+	{
+		anexar(registros);
+		carrinhoCompras.versaoRegistro += registros.length;
+	}
+
+	/**
+	 * Registra a remoção da linha do produto. Deve ser chamado sob o bloqueio do carrinho, antes de
+	 * remover a linha.
+	 */
+	void registrarRemocao(CarrinhoCompras carrinhoCompras, long codigo)
+	{
+		anexar(codificar(REMOCAO, carrinhoCompras, 1, saida -> saida.writeLong(codigo)));
+		carrinhoCompras.versaoRegistro++;
+	}
+
+	/**
+	 * Registra a invalidação do carrinho. Deve ser chamado sob o bloqueio do carrinho.
+	 */
+	void registrarInvalidacao(CarrinhoCompras carrinhoCompras)
+	{
+		anexar(codificar(INVALIDACAO, carrinhoCompras, 1, saida -> { }));
+		carrinhoCompras.versaoRegistro++;
+	}
+
+	/**
+	 * Espera até que tudo o que foi registrado até agora esteja no disco. A primeira thread a
+	 * esperar grava para todas as que chegarem enquanto ela grava.
+	 */
+	void aguardarGravacao()
+	{
+		long				alvo;
+		long				destino;
+		MappedByteBuffer	segmentoGravado;
+
+		bloqueioEscrita.lock();
+		try
+		{
+			alvo = posicaoEscrita;
+		}
+		finally
+		{
+			bloqueioEscrita.unlock();
+		}
+		bloqueioGravacao.lock();
+		try
+		{
+			while (posicaoDuravel < alvo)
+			{
+				if (gravando)
+				{
+					gravacaoConcluida.awaitUninterruptibly();
+					continue;
+				}
+				gravando = true;
+				bloqueioEscrita.lock();
+				try
+				{
+					destino = posicaoEscrita;
+					segmentoGravado = segmento;
+				}
+				finally
+				{
+					bloqueioEscrita.unlock();
+				}
+				bloqueioGravacao.unlock();
+				try
+				{
+					if (segmentoGravado != null)
+						segmentoGravado.force();
+				}
+				finally
+				{
+					bloqueioGravacao.lock();
+					gravando = false;
+					posicaoDuravel = Math.max(posicaoDuravel, destino);
+					gravacaoConcluida.signalAll();
+				}
+			}
+		}
+		finally
+		{
+			bloqueioGravacao.unlock();
+		}
+	}
+
+	/**
+	 * Grava um snapshot dos carrinhos e apaga os segmentos e snapshots que ele torna desnecessários.
+	 * Os carrinhos continuam podendo ser alterados durante a gravação. Não faz nada depois de close.
+	 *
+	 * @param carrinhos carrinhos da fábrica por identificação do cliente.
+	 * @param fabrica fábrica dona dos carrinhos, para ignorar os invalidados durante a gravação.
+	 */
+	void gravarSnapshot(Map<String, CarrinhoCompras> carrinhos, CarrinhoComprasFactory fabrica)
+	{
+		long	segmentoInicial;
+		Path	temporario;
+		Path	destino;
+
+		bloqueioSnapshot.lock();
+		try
+		{
+			if (fechado)
+				return;
+			bloqueioCriacao.writeLock().lock();
+			bloqueioEscrita.lock();
+			try
+			{
+				segmentoInicial = numeroSegmento + 1;
+				abrirSegmento(segmentoInicial);
+				bytesDesdeSnapshot = 0;
+			}
+			finally
+			{
+				bloqueioEscrita.unlock();
+				bloqueioCriacao.writeLock().unlock();
+			}
+			temporario = diretorio.resolve(PREFIXO_SNAPSHOT + "temporario");
+			destino = diretorio.resolve(nomeArquivo(PREFIXO_SNAPSHOT, segmentoInicial, SUFIXO_SNAPSHOT));
+			escreverSnapshot(temporario, segmentoInicial, carrinhos, fabrica);
+			Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			apagarAnteriores(segmentoInicial);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel gravar o snapshot em " + diretorio, e);
+		}
+		finally
+		{
+			snapshotAgendado.set(false);
+			bloqueioSnapshot.unlock();
+		}
+	}
+
+	/**
+	 * Encerra a thread de snapshots, esperando o snapshot em andamento, e grava e fecha o segmento
+	 * atual. O mapeamento do segmento é liberado quando coletado. Chamadas seguintes não fazem nada.
+	 */
+	void close()
+	{
+		executorSnapshot.shutdown();
+		bloqueioSnapshot.lock();
+		try
+		{
+			bloqueioEscrita.lock();
+			try
+			{
+				if (fechado)
+					return;
+				fechado = true;
+				segmento.force();
+				segmento = null;
+				canalSegmento.close();
+			}
+			finally
+			{
+				bloqueioEscrita.unlock();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel fechar o registro em " + diretorio, e);
+		}
+		finally
+		{
+			bloqueioSnapshot.unlock();
+		}
+	}
+
+	/**
+	 * Anexa os registros em sequência no mesmo segmento. Tudo o que pode falhar é verificado antes
+	 * de gravar o primeiro, para que uma falha não deixe parte deles no registro.
+	 */
+	private void anexar(byte[]... conteudos)
+	{
+		CRC32	crc;
+		int[]	verificacoes;
+		int		tamanhoTotal;
+		boolean	agendarSnapshot;
+
+		crc = new CRC32();
+		verificacoes = new int[conteudos.length];
+		tamanhoTotal = 0;
+		for (int i = 0; i < conteudos.length; i++)
+		{
+			crc.reset();
+			crc.update(conteudos[i], 0, conteudos[i].length);
+			verificacoes[i] = (int) crc.getValue();
+			tamanhoTotal += TAMANHO_CABECALHO + conteudos[i].length;
+		}
+		bloqueioEscrita.lock();
+		try
+		{
+			if (fechado)
+				throw new IllegalStateException("Registro fechado.");
+			if (segmento.remaining() < tamanhoTotal + 4)
+				abrirSegmento(numeroSegmento + 1);
+			if (segmento.remaining() < tamanhoTotal + 4)
+				throw new IllegalArgumentException("Registro maior que o segmento: " + tamanhoTotal + " bytes");
+			for (int i = 0; i < conteudos.length; i++)
+			{
+				segmento.putInt(conteudos[i].length);
+				segmento.putInt(verificacoes[i]);
+				segmento.put(conteudos[i]);
+			}
+			posicaoEscrita += tamanhoTotal;
+			bytesDesdeSnapshot += tamanhoTotal;
+			agendarSnapshot = bytesDesdeSnapshot >= bytesEntreSnapshots && tarefaSnapshot != null;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Nao foi possivel escrever no registro em " + diretorio, e);
+		}
+		finally
+		{
+			bloqueioEscrita.unlock();
+		}
+		if (agendarSnapshot && snapshotAgendado.compareAndSet(false, true))
+			iniciarSnapshot();
+	}
+
+	private void iniciarSnapshot()
+	{
+		try
+		{
+			executorSnapshot.execute(tarefaSnapshot);
+		}
+		catch (RejectedExecutionException e)
+		{
+			snapshotAgendado.set(false);
+		}
+	}
+
+	/**
+	 * Grava o segmento atual, que fica completo, e começa o segmento de número informado. Deve ser
+	 * chamado sob o bloqueio de escrita.
+	 */
+	private void abrirSegmento(long novoNumero) throws IOException
+	{
+		if (segmento != null)
+		{
+			segmento.force();
+			canalSegmento.close();
+		}
+		canalSegmento = FileChannel.open(diretorio.resolve(nomeArquivo(PREFIXO_SEGMENTO, novoNumero, SUFIXO_SEGMENTO)),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segmento = canalSegmento.map(FileChannel.MapMode.READ_WRITE, 0, tamanhoSegmento);
+		numeroSegmento = novoNumero;
+	}
+
+	private void escreverSnapshot(Path arquivo, long segmentoInicial, Map<String, CarrinhoCompras> carrinhos,
+			CarrinhoComprasFactory fabrica) throws IOException
+	{
+		FileOutputStream	arquivoSaida;
+		DataOutputStream	saida;
+		byte[]				linhas;
+
+		arquivoSaida = new FileOutputStream(arquivo.toFile());
+		try
+		{
+			saida = new DataOutputStream(new BufferedOutputStream(arquivoSaida, 1 << 16));
+			saida.writeInt(MARCA_SNAPSHOT);
+			saida.writeLong(segmentoInicial);
+			for (Map.Entry<String, CarrinhoCompras> entrada : carrinhos.entrySet())
+			{
+				CarrinhoCompras	carrinhoCompras = entrada.getValue();
+
+				synchronized (carrinhoCompras)
+				{
+					if (carrinhoCompras.fabrica != fabrica)
+						continue;
+					linhas = carrinhoCompras.descarregado
+							? fabrica.despejo.lerLinhas(carrinhoCompras)
+							: DespejoCarrinhos.serializar(carrinhoCompras.conjuntoItens, carrinhoCompras.escalaValorTotal);
+					saida.writeBoolean(true);
+					saida.writeLong(carrinhoCompras.numeroSerie);
+					saida.writeLong(carrinhoCompras.versaoRegistro);
+					escreverTexto(saida, entrada.getKey());
+					saida.writeInt(linhas.length);
+					saida.write(linhas);
+				}
+			}
+			saida.writeBoolean(false);
+			saida.flush();
+			arquivoSaida.getFD().sync();
+		}
+		finally
+		{
+			arquivoSaida.close();
+		}
+	}
+
+	private void apagarAnteriores(long segmentoInicial) throws IOException
+	{
+		long	numero;
+
+		try (DirectoryStream<Path> arquivos = Files.newDirectoryStream(diretorio))
+		{
+			for (Path arquivo : arquivos)
+			{
+				numero = numeroArquivo(arquivo, PREFIXO_SEGMENTO, SUFIXO_SEGMENTO);
+				if (numero < 0)
+					numero = numeroArquivo(arquivo, PREFIXO_SNAPSHOT, SUFIXO_SNAPSHOT);
+				if (numero >= 0 && numero < segmentoInicial)
+					Files.delete(arquivo);
+			}
+		}
+	}
+
+	/**
+	 * Carrega o último snapshot e aplica os registros dos segmentos seguintes. A leitura dos
+	 * arquivos é sequencial; a reconstrução dos carrinhos é feita em paralelo, agrupando snapshot e
+	 * registros por número de série.
+	 */
+	private Map<String, CarrinhoCompras> recuperar(TipoArmazenamentoItens tipo) throws IOException
+	{
+		TreeMap<Long, Path>				segmentos;
+		TreeMap<Long, Path>				snapshots;
+		Map<Long, CarrinhoRecuperado>	porNumeroSerie;
+		long							segmentoInicial;
+		Map<String, CarrinhoCompras>	carrinhos;
+
+		segmentos = new TreeMap<>();
+		snapshots = new TreeMap<>();
+		try (DirectoryStream<Path> arquivos = Files.newDirectoryStream(diretorio))
+		{
+			for (Path arquivo : arquivos)
+			{
+				if (numeroArquivo(arquivo, PREFIXO_SEGMENTO, SUFIXO_SEGMENTO) >= 0)
+					segmentos.put(numeroArquivo(arquivo, PREFIXO_SEGMENTO, SUFIXO_SEGMENTO), arquivo);
+				else if (numeroArquivo(arquivo, PREFIXO_SNAPSHOT, SUFIXO_SNAPSHOT) >= 0)
+					snapshots.put(numeroArquivo(arquivo, PREFIXO_SNAPSHOT, SUFIXO_SNAPSHOT), arquivo);
+			}
+		}
+		porNumeroSerie = new HashMap<>();
+		segmentoInicial = 0;
+		if (!snapshots.isEmpty())
+			segmentoInicial = lerSnapshot(snapshots.lastEntry().getValue(), porNumeroSerie);
+		for (Map.Entry<Long, Path> segmento : segmentos.tailMap(segmentoInicial, true).entrySet())
+			lerSegmento(segmento.getValue(), porNumeroSerie);
+		numeroSegmento = Math.max(segmentoInicial, segmentos.isEmpty() ? 0 : segmentos.lastKey());
+		for (Long numeroSerie : porNumeroSerie.keySet())
+			proximoNumeroSerie.accumulateAndGet(numeroSerie + 1, Math::max);
+
+		carrinhos = new ConcurrentHashMap<>();
+		porNumeroSerie.values().parallelStream().forEach(carrinhoRecuperado -> {
+			if (carrinhoRecuperado.reconstruir(tipo))
+				carrinhos.put(carrinhoRecuperado.identificacaoCliente, carrinhoRecuperado.carrinho);
+		});
+		return carrinhos;
+	}
+
+	private long lerSnapshot(Path arquivo, Map<Long, CarrinhoRecuperado> porNumeroSerie) throws IOException
+	{
+		DataInputStream		entrada;
+		long				segmentoInicial;
+		CarrinhoRecuperado	carrinhoRecuperado;
+
+		try (InputStream arquivoEntrada = Files.newInputStream(arquivo))
+		{
+			entrada = new DataInputStream(new BufferedInputStream(arquivoEntrada, 1 << 16));
+			if (entrada.readInt() != MARCA_SNAPSHOT)
+				throw new IOException("Snapshot invalido: " + arquivo);
+			segmentoInicial = entrada.readLong();
+			while (entrada.readBoolean())
+			{
+				carrinhoRecuperado = new CarrinhoRecuperado(entrada.readLong());
+				carrinhoRecuperado.versaoSnapshot = entrada.readLong();
+				carrinhoRecuperado.identificacaoCliente = lerTexto(entrada);
+				carrinhoRecuperado.linhasSnapshot = new byte[entrada.readInt()];
+				entrada.readFully(carrinhoRecuperado.linhasSnapshot);
+				porNumeroSerie.put(carrinhoRecuperado.numeroSerie, carrinhoRecuperado);
+			}
+		}
+		return segmentoInicial;
+	}
+
+	/**
+	 * Lê os registros do segmento até o primeiro vazio ou corrompido, que marca onde a escrita
+	 * parou.
+	 */
+	private static void lerSegmento(Path arquivo, Map<Long, CarrinhoRecuperado> porNumeroSerie) throws IOException
+	{
+		MappedByteBuffer	conteudo;
+		CRC32				crc;
+		int					tamanho;
+		int					crcEsperado;
+		byte[]				registro;
+		long				numeroSerie;
+
+		try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ))
+		{
+			conteudo = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+		}
+		crc = new CRC32();
+		while (conteudo.remaining() >= TAMANHO_CABECALHO)
+		{
+			tamanho = conteudo.getInt();
+			crcEsperado = conteudo.getInt();
+			if (tamanho <= 0 || tamanho > conteudo.remaining())
+				break;
+			registro = new byte[tamanho];
+			conteudo.get(registro);
+			crc.reset();
+			crc.update(registro, 0, tamanho);
+			if ((int) crc.getValue() != crcEsperado)
+				break;
+			numeroSerie = ByteBuffer.wrap(registro, 1, 8).getLong();
+			porNumeroSerie.computeIfAbsent(numeroSerie, CarrinhoRecuperado::new).registros.add(registro);
+		}
+	}
+
+	private interface Escritor
+	{
+		void escrever(DataOutputStream saida) throws IOException;
+	}
+
+	/**
+	 * Codifica um registro com a versão que ele terá se for o ordem-ésimo anexado a partir de agora
+	 * para o carrinho.
+	 */
+	private static byte[] codificar(byte tipo, CarrinhoCompras carrinhoCompras, int ordem, Escritor corpo)
+	{
+		ByteArrayOutputStream	bytes;
+		DataOutputStream		saida;
+
+		bytes = new ByteArrayOutputStream(64);
+		saida = new DataOutputStream(bytes);
+		try
+		{
+			saida.writeByte(tipo);
+			saida.writeLong(carrinhoCompras.numeroSerie);
+			saida.writeLong(carrinhoCompras.versaoRegistro + ordem);
+			corpo.escrever(saida);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String nomeArquivo(String prefixo, long numero, String sufixo)
+	{
+		return String.format("%s%016d%s", prefixo, numero, sufixo);
+	}
+
+	private static long numeroArquivo(Path arquivo, String prefixo, String sufixo)
+	{
+		String	nome;
+
+		nome = arquivo.getFileName().toString();
+		if (!nome.startsWith(prefixo) || !nome.endsWith(sufixo))
+			return -1;
+		try
+		{
+			return Long.parseLong(nome.substring(prefixo.length(), nome.length() - sufixo.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private static void escreverTexto(DataOutputStream saida, String texto) throws IOException
+	{
+		escreverBytes(saida, texto.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void escreverBytes(DataOutputStream saida, byte[] bytes) throws IOException
+	{
+		saida.writeInt(bytes.length);
+		saida.write(bytes);
+	}
+
+	private static String lerTexto(DataInputStream entrada) throws IOException
+	{
+		byte[]	bytes;
+
+		bytes = new byte[entrada.readInt()];
+		entrada.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void escreverValor(DataOutputStream saida, BigDecimal valor) throws IOException
+	{
+		byte[]	naoEscalado;
+
+		saida.writeBoolean(valor != null);
+		if (valor == null)
+			return;
+		naoEscalado = valor.unscaledValue().toByteArray();
+		saida.writeInt(valor.scale());
+		saida.writeInt(naoEscalado.length);
+		saida.write(naoEscalado);
+	}
+
+	private static BigDecimal lerValor(DataInputStream entrada) throws IOException
+	{
+		int		escala;
+		byte[]	naoEscalado;
+
+		if (!entrada.readBoolean())
+			return null;
+		escala = entrada.readInt();
+		naoEscalado = new byte[entrada.readInt()];
+		entrada.readFully(naoEscalado);
+		return new BigDecimal(new BigInteger(naoEscalado), escala);
+	}
+	/**
+	 * Estado de um carrinho durante a recuperação: o que veio do snapshot, se veio, e os registros
+	 * posteriores em ordem.
+	 */
+	private static final class CarrinhoRecuperado
+	{
+		final long			numeroSerie;
+		final List<byte[]>	registros = new ArrayList<>();
+		long				versaoSnapshot = -1;
+		String				identificacaoCliente;
+		byte[]				linhasSnapshot;
+		CarrinhoCompras		carrinho;
+
+		CarrinhoRecuperado(long numeroSerie)
+		{
+			this.numeroSerie = numeroSerie;
+		}
+
+		/**
+		 * Reconstrói o carrinho.
+		 *
+		 * @return false se o carrinho foi invalidado ou não pôde ser identificado.
+		 */
+		boolean reconstruir(TipoArmazenamentoItens tipo)
+		{
+			if (linhasSnapshot != null)
+			{
+				carrinho = new CarrinhoCompras(tipo);
+				carrinho.restaurarValorTotal(
+						CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(linhasSnapshot), carrinho.conjuntoItens));
+				carrinho.versaoRegistro = versaoSnapshot;
+			}
+			carrinho = aplicarRegistros(tipo, versaoSnapshot);
+			if (carrinho == null)
+				return false;
+			carrinho.numeroSerie = numeroSerie;
+			return true;
+		}
+
+		private CarrinhoCompras aplicarRegistros(TipoArmazenamentoItens tipo, long versaoBase)
+		{
+			DataInputStream	entrada;
+			byte			tipoRegistro;
+			long			versao;
+			long			codigo;
+
+			try
+			{
+				for (byte[] registro : registros)
+				{
+					entrada = new DataInputStream(new ByteArrayInputStream(registro));
+					tipoRegistro = entrada.readByte();
+					entrada.readLong();
+					versao = entrada.readLong();
+					if (versao <= versaoBase)
+						continue;
+					switch (tipoRegistro)
+					{
+						case CRIACAO:
+							if (carrinho == null)
+							{
+								carrinho = new CarrinhoCompras(tipo);
+								identificacaoCliente = lerTexto(entrada);
+							}
+							break;
+						case LINHA:
+							if (carrinho == null)
+								break;
+							codigo = entrada.readLong();
+							carrinho.definirLinha(CatalogoProdutos.COMPARTILHADO.obter(codigo, lerTexto(entrada)), lerValor(entrada), entrada.readInt());
+							break;
+						case REMOCAO:
+							if (carrinho != null)
+								carrinho.removerLinhaDoProduto(entrada.readLong());
+							break;
+						case INVALIDACAO:
+							return null;
+						default:
+							throw new IOException("Tipo de registro desconhecido: " + tipoRegistro);
+					}
+					if (carrinho != null)
+						carrinho.versaoRegistro = versao;
+				}
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			return carrinho;
+		}
+	}
+}
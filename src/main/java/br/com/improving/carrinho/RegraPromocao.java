@@ -0,0 +1,139 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Regra de promoção de uma TabelaPromocoes.
+ *
+ * As regras de produto, categoria e quantidade dão um percentual de desconto sobre o valor total
+ * da linha de cada produto a que se aplicam. A categoria é informada pelos códigos dos produtos
+ * que a compõem, já que Produto não tem categoria. A regra de valor do carrinho dá um desconto
+ * fixo quando o valor total, já descontadas as linhas, atinge o mínimo informado.
+ *
+ * Percentuais são informados entre 0 e 100, com até duas casas decimais.
+ */
+public final class RegraPromocao
+{
+	private final String	descricao;
+
+	/**
+	 * Produtos a que a regra se aplica, ou null na regra de valor do carrinho.
+	 */
+	final long[]			codigos;
+	final int				quantidadeMinima;
+
+	/**
+	 * Percentual de desconto da linha em centésimos de ponto percentual.
+	 */
+	final int				pontosBase;
+
+	final long				valorMinimoCentavos;
+	final long				descontoCentavos;
+
+	private RegraPromocao(String descricao, long[] codigos, int quantidadeMinima, int pontosBase,
+			long valorMinimoCentavos, long descontoCentavos)
+	{
+		this.descricao = descricao;
+		this.codigos = codigos;
+		this.quantidadeMinima = quantidadeMinima;
+		this.pontosBase = pontosBase;
+		this.valorMinimoCentavos = valorMinimoCentavos;
+		this.descontoCentavos = descontoCentavos;
+	}
+
+	/**
+	 * Desconto percentual sobre as linhas do produto.
+	 *
+	 * @param codigoProduto
+	 * @param percentual
+	 * @return RegraPromocao
+	 */
+	public static RegraPromocao percentualNoProduto(long codigoProduto, BigDecimal percentual)
+	{
+		return new RegraPromocao("produto " + codigoProduto + ": " + percentual + "%", new long[] { codigoProduto },
+				1, pontosBase(percentual), 0, 0);
+	}
+
+	/**
+	 * Desconto percentual sobre as linhas dos produtos da categoria.
+	 *
+	 * @param categoria nome da categoria, usado apenas na descrição da regra.
+	 * @param codigosProdutos
+	 * @param percentual
+	 * @return RegraPromocao
+	 */
+	public static RegraPromocao percentualNaCategoria(String categoria, Collection<Long> codigosProdutos,
+			BigDecimal percentual)
+	{
+		long[]	codigos;
+
+		codigos = codigosProdutos.stream().mapToLong(Long::longValue).distinct().toArray();
+		if (codigos.length == 0)
+			throw new IllegalArgumentException("Categoria sem produtos.");
+		return new RegraPromocao("categoria " + Objects.requireNonNull(categoria) + ": " + percentual + "%", codigos,
+				1, pontosBase(percentual), 0, 0);
+	}
+
+	/**
+	 * Desconto percentual sobre a linha do produto quando a quantidade atinge o mínimo informado.
+	 * Várias regras do mesmo produto formam faixas de quantidade.
+	 *
+	 * @param codigoProduto
+	 * @param quantidadeMinima
+	 * @param percentual
+	 * @return RegraPromocao
+	 */
+	public static RegraPromocao percentualPorQuantidade(long codigoProduto, int quantidadeMinima, BigDecimal percentual)
+	{
+		if (quantidadeMinima <= 0)
+			throw new IllegalArgumentException("Quantidade minima deve ser positiva.");
+		return new RegraPromocao("produto " + codigoProduto + " a partir de " + quantidadeMinima + ": " + percentual
+				+ "%", new long[] { codigoProduto }, quantidadeMinima, pontosBase(percentual), 0, 0);
+	}
+
+	/**
+	 * Desconto fixo no carrinho cujo valor total, descontadas as linhas, atinge o mínimo informado.
+	 * O desconto não passa desse valor.
+	 *
+	 * @param valorMinimo
+	 * @param desconto
+	 * @return RegraPromocao
+	 */
+	public static RegraPromocao descontoAcimaDe(BigDecimal valorMinimo, BigDecimal desconto)
+	{
+		long	valorMinimoCentavos;
+		long	descontoCentavos;
+
+		valorMinimoCentavos = Dinheiro.centavosDe(valorMinimo);
+		descontoCentavos = Dinheiro.centavosDe(desconto);
+		if (valorMinimoCentavos < 0 || descontoCentavos < 0)
+			throw new IllegalArgumentException("Valor minimo e desconto nao podem ser negativos.");
+		return new RegraPromocao("carrinho a partir de " + valorMinimo + ": " + desconto, null, 0, 0,
+				valorMinimoCentavos, descontoCentavos);
+	}
+
+	private static int pontosBase(BigDecimal percentual)
+	{
+		int	pontosBase;
+
+		try
+		{
+			pontosBase = percentual.movePointRight(2).intValueExact();
+		}
+		catch (ArithmeticException e)
+		{
+			throw new IllegalArgumentException("Percentual com mais de duas casas decimais: " + percentual);
+		}
+		if (pontosBase < 0 || pontosBase > 100_00)
+			throw new IllegalArgumentException("Percentual deve estar entre 0 e 100: " + percentual);
+		return pontosBase;
+	}
+
+	@Override
+	public String toString()
+	{
+		return descricao;
+	}
+}
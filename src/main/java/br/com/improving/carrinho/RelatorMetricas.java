@@ -0,0 +1,17 @@
+package br.com.improving.carrinho;
+
+/**
+ * Recebe periodicamente as métricas de uma CarrinhoComprasFactory configurada com
+ * ConfiguracaoCarrinhoComprasFactory.comRelatorMetricas, por exemplo para enviá-las a um sistema
+ * de monitoramento.
+ */
+@FunctionalInterface
+public interface RelatorMetricas
+{
+	/**
+	 * Chamado em uma thread do agendador de métricas, a cada intervalo configurado.
+	 *
+	 * @param metricas
+	 */
+	void relatar(MetricasCarrinhosMBean metricas);
+}
@@ -0,0 +1,199 @@
+package br.com.improving.carrinho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Roda de temporização (hashed timing wheel) que controla o prazo de ociosidade dos carrinhos.
+ *
+ * O tempo é dividido em ticks de duração fixa e cada carrinho fica no balde do tick do seu prazo.
+ * Renovar o prazo apenas grava o novo valor na entrada, sem bloqueio; quando o balde antigo é
+ * processado, a entrada com prazo renovado é movida para o balde do novo prazo. Assim cada
+ * atividade custa O(1) e cada tick processa apenas as entradas do seu balde.
+ */
+final class RodaExpiracao
+{
+	/**
+	 * Agendamento de um carrinho na roda.
+	 */
+	static final class Entrada
+	{
+		final String			identificacaoCliente;
+		final CarrinhoCompras	carrinho;
+		volatile long			prazo;
+		private Entrada			anterior;
+		private Entrada			proxima;
+		private boolean			agendada;
+
+		private Entrada(String identificacaoCliente, CarrinhoCompras carrinho, long prazo)
+		{
+			this.identificacaoCliente = identificacaoCliente;
+			this.carrinho = carrinho;
+			this.prazo = prazo;
+		}
+	}
+
+	private final ReentrantLock	bloqueio = new ReentrantLock();
+	private final Entrada[]		baldes;
+	private final long			duracaoTick;
+	private volatile long		ultimoTickProcessado;
+
+	RodaExpiracao(long duracaoTick, int numeroDeBaldes, long agora)
+	{
+		this.duracaoTick = duracaoTick;
+		this.baldes = new Entrada[numeroDeBaldes];
+		for (int i = 0; i < numeroDeBaldes; i++)
+		{
+			baldes[i] = new Entrada(null, null, 0);
+			baldes[i].anterior = baldes[i];
+			baldes[i].proxima = baldes[i];
+		}
+		this.ultimoTickProcessado = agora / duracaoTick - 1;
+	}
+
+	/**
+	 * Agenda o carrinho para expirar no prazo informado.
+	 *
+	 * @return Entrada do agendamento.
+	 */
+	Entrada agendar(String identificacaoCliente, CarrinhoCompras carrinho, long prazo)
+	{
+		Entrada	entrada;
+
+		entrada = new Entrada(identificacaoCliente, carrinho, prazo);
+		bloqueio.lock();
+		try
+		{
+			inserir(entrada);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+		return entrada;
+	}
+
+	/**
+	 * Agenda novamente uma entrada retirada por avancar cujo prazo foi renovado.
+	 */
+	void reagendar(Entrada entrada)
+	{
+		bloqueio.lock();
+		try
+		{
+			if (!entrada.agendada)
+				inserir(entrada);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	void cancelar(Entrada entrada)
+	{
+		bloqueio.lock();
+		try
+		{
+			retirar(entrada);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+	}
+
+	/**
+	 * Indica se algum tick terminou desde o último processamento, sem bloqueio.
+	 */
+	boolean possuiTicksPendentes(long agora)
+	{
+		return agora / duracaoTick - 1 > ultimoTickProcessado;
+	}
+
+	/**
+	 * Processa os baldes dos ticks terminados até o instante informado e retorna as entradas cujo
+	 * prazo venceu, já retiradas da roda. Se mais de uma volta tiver passado, cada balde é processado
+	 * uma única vez. Se outra thread estiver processando, retorna sem esperar.
+	 *
+	 * @param agora
+	 * @return entradas vencidas.
+	 */
+	List<Entrada> avancar(long agora)
+	{
+		List<Entrada>	vencidas;
+		long			ultimoTickTerminado;
+		long			ultimoTick;
+
+		vencidas = new ArrayList<>();
+		if (!bloqueio.tryLock())
+			return vencidas;
+		try
+		{
+			ultimoTickTerminado = agora / duracaoTick - 1;
+			ultimoTick = Math.max(ultimoTickProcessado, ultimoTickTerminado - baldes.length);
+			for (long tick = ultimoTick + 1; tick <= ultimoTickTerminado; tick++)
+				processarBalde(baldes[(int) (tick % baldes.length)], agora, vencidas);
+			ultimoTickProcessado = Math.max(ultimoTickProcessado, ultimoTickTerminado);
+		}
+		finally
+		{
+			bloqueio.unlock();
+		}
+		return vencidas;
+	}
+
+	/**
+	 * Retira do balde as entradas vencidas e move para o seu balde as que tiveram o prazo renovado.
+	 * As que continuam no balde certo têm o prazo em uma volta futura da roda.
+	 */
+	private void processarBalde(Entrada balde, long agora, List<Entrada> vencidas)
+	{
+		Entrada	entrada;
+		Entrada	proxima;
+
+		for (entrada = balde.proxima; entrada != balde; entrada = proxima)
+		{
+			proxima = entrada.proxima;
+			if (entrada.prazo <= agora)
+			{
+				retirar(entrada);
+				vencidas.add(entrada);
+			}
+			else if (baldeDe(entrada) != balde)
+			{
+				retirar(entrada);
+				inserir(entrada);
+			}
+		}
+	}
+
+	private Entrada baldeDe(Entrada entrada)
+	{
+		return baldes[(int) ((entrada.prazo / duracaoTick) % baldes.length)];
+	}
+
+	private void inserir(Entrada entrada)
+	{
+		Entrada	balde;
+
+		balde = baldeDe(entrada);
+		entrada.anterior = balde.anterior;
+		entrada.proxima = balde;
+		balde.anterior.proxima = entrada;
+		balde.anterior = entrada;
+		entrada.agendada = true;
+	}
+
+	private void retirar(Entrada entrada)
+	{
+		if (!entrada.agendada)
+			return;
+		entrada.anterior.proxima = entrada.proxima;
+		entrada.proxima.anterior = entrada.anterior;
+		entrada.anterior = null;
+		entrada.proxima = null;
+		entrada.agendada = false;
+	}
+}
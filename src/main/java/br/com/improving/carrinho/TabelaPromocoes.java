@@ -0,0 +1,153 @@
+package br.com.improving.carrinho;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conjunto imutável de regras de promoção, aplicado aos carrinhos de uma CarrinhoComprasFactory
+ * por ConfiguracaoCarrinhoComprasFactory.comPromocoes ou CarrinhoComprasFactory.definirPromocoes.
+ *
+ * As regras de linha são indexadas pelo código do produto, com as faixas de quantidade de cada
+ * produto já ordenadas, para que a alteração de uma linha avalie apenas as regras do seu produto.
+ * Das regras que se aplicam a uma linha vale a de maior percentual, e das regras de valor do
+ * carrinho que foram atingidas vale a de maior desconto: as promoções não se acumulam.
+ *
+ * Os descontos são calculados em centavos, arredondando meio centavo para cima.
+ */
+public final class TabelaPromocoes
+{
+	private final List<RegraPromocao>	regras;
+
+	/**
+	 * Faixas de quantidade de cada produto com regra, na posição dada por faixaPorCodigo: as
+	 * quantidades mínimas em ordem crescente e o maior percentual, em pontos base, entre as regras
+	 * com quantidade mínima até a da faixa.
+	 */
+	private final IndiceCodigos	faixaPorCodigo = new IndiceCodigos();
+	private final int[][]		quantidadesMinimas;
+	private final int[][]		pontosBase;
+
+	/**
+	 * Valores mínimos das regras de valor do carrinho em ordem crescente, com o maior desconto
+	 * entre as regras com mínimo até o de cada posição.
+	 */
+	private final long[]	valoresMinimos;
+	private final long[]	descontos;
+
+	/**
+	 * Cria a tabela com as regras informadas.
+	 *
+	 * @param regras
+	 */
+	public TabelaPromocoes(RegraPromocao... regras)
+	{
+		List<List<RegraPromocao>>	regrasPorProduto;
+		List<RegraPromocao>			regrasCarrinho;
+		List<RegraPromocao>			regrasProduto;
+		int							faixa;
+
+		this.regras = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(regras)));
+		regrasPorProduto = new ArrayList<>();
+		regrasCarrinho = new ArrayList<>();
+		for (RegraPromocao regra : regras)
+		{
+			if (regra.codigos == null)
+			{
+				regrasCarrinho.add(regra);
+				continue;
+			}
+			for (long codigo : regra.codigos)
+			{
+				faixa = faixaPorCodigo.obter(codigo);
+				if (faixa < 0)
+				{
+					faixa = regrasPorProduto.size();
+					faixaPorCodigo.definir(codigo, faixa);
+					regrasPorProduto.add(new ArrayList<>());
+				}
+				regrasPorProduto.get(faixa).add(regra);
+			}
+		}
+		quantidadesMinimas = new int[regrasPorProduto.size()][];
+		pontosBase = new int[regrasPorProduto.size()][];
+		for (int i = 0; i < regrasPorProduto.size(); i++)
+		{
+			regrasProduto = regrasPorProduto.get(i);
+			regrasProduto.sort((a, b) -> Integer.compare(a.quantidadeMinima, b.quantidadeMinima));
+			quantidadesMinimas[i] = new int[regrasProduto.size()];
+			pontosBase[i] = new int[regrasProduto.size()];
+			for (int j = 0; j < regrasProduto.size(); j++)
+			{
+				quantidadesMinimas[i][j] = regrasProduto.get(j).quantidadeMinima;
+				pontosBase[i][j] = Math.max(regrasProduto.get(j).pontosBase, j == 0 ? 0 : pontosBase[i][j - 1]);
+			}
+		}
+		regrasCarrinho.sort((a, b) -> Long.compare(a.valorMinimoCentavos, b.valorMinimoCentavos));
+		valoresMinimos = new long[regrasCarrinho.size()];
+		descontos = new long[regrasCarrinho.size()];
+		for (int i = 0; i < regrasCarrinho.size(); i++)
+		{
+			valoresMinimos[i] = regrasCarrinho.get(i).valorMinimoCentavos;
+			descontos[i] = Math.max(regrasCarrinho.get(i).descontoCentavos, i == 0 ? 0 : descontos[i - 1]);
+		}
+	}
+
+	/**
+	 * Retorna as regras da tabela.
+	 *
+	 * @return List
+	 */
+	public List<RegraPromocao> getRegras()
+	{
+		return regras;
+	}
+
+	/**
+	 * Retorna o desconto em centavos da linha do produto com o valor total e a quantidade
+	 * informados.
+	 */
+	long descontoLinha(long codigo, long valorTotalCentavos, int quantidade)
+	{
+		int[]	minimas;
+		int		faixa;
+		int		i;
+
+		faixa = faixaPorCodigo.obter(codigo);
+		if (faixa < 0)
+			return 0;
+		minimas = quantidadesMinimas[faixa];
+		i = minimas.length - 1;
+		while (i >= 0 && minimas[i] > quantidade)
+			i--;
+		if (i < 0)
+			return 0;
+		return Dinheiro.dividirCentavos(Math.multiplyExact(valorTotalCentavos, (long) pontosBase[faixa][i]), 100_00);
+	}
+
+	/**
+	 * Retorna o desconto em centavos do carrinho cujo valor total, descontadas as linhas, é o
+	 * informado.
+	 */
+	long descontoCarrinho(long subtotalCentavos)
+	{
+		int	i;
+
+		i = Arrays.binarySearch(valoresMinimos, subtotalCentavos);
+		if (i < 0)
+			i = -i - 2;
+		else
+			while (i + 1 < valoresMinimos.length && valoresMinimos[i + 1] == subtotalCentavos)
+				i++;
+		if (i < 0)
+			return 0;
+		return Math.min(descontos[i], subtotalCentavos);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TabelaPromocoes" + regras;
+	}
+}
@@ -0,0 +1,233 @@
+package br.com.improving.carrinho;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Tarefa fork-join que analisa um trecho dos carrinhos de uma fábrica. Trechos grandes são
+ * divididos ao meio até o limite sequencial, e os resultados parciais são combinados na volta.
+ *
+ * As linhas de cada carrinho são copiadas para arrays de trabalho sob o seu próprio bloqueio, que é
+ * liberado antes de acumulá-las, de modo que o resultado reflete cada carrinho em um estado
+ * consistente, mas não todos no mesmo instante. Carrinhos descarregados são lidos do arquivo sem
+ * serem recarregados, apenas sob o bloqueio do despejo. O valor de cada carrinho é a soma das
+ * linhas copiadas.
+ */
+final class TarefaAnaliseCarrinhos extends RecursiveTask<TarefaAnaliseCarrinhos.Parcial>
+{
+	private static final long	serialVersionUID = 1L;
+
+	private static final int	LIMITE_SEQUENCIAL = 1024;
+
+	/**
+	 * Ordena os carrinhos do menor para o maior valor, com desempate pela identificação.
+	 */
+	static final Comparator<Map.Entry<String, Long>>	ORDEM_VALOR = Comparator
+			.comparingLong((Map.Entry<String, Long> entrada) -> entrada.getValue())
+			.thenComparing(Map.Entry::getKey, Comparator.reverseOrder());
+
+	private final transient CarrinhoComprasFactory					fabrica;
+	private final transient List<Map.Entry<String, CarrinhoCompras>>	carrinhos;
+	private final int												inicio;
+	private final int												fim;
+	private final long[]											limitesFaixas;
+	private final int												quantidadeMaiores;
+
+	TarefaAnaliseCarrinhos(CarrinhoComprasFactory fabrica, List<Map.Entry<String, CarrinhoCompras>> carrinhos,
+			int inicio, int fim, long[] limitesFaixas, int quantidadeMaiores)
+	{
+		this.fabrica = fabrica;
+		this.carrinhos = carrinhos;
+		this.inicio = inicio;
+		this.fim = fim;
+		this.limitesFaixas = limitesFaixas;
+		this.quantidadeMaiores = quantidadeMaiores;
+	}
+
+	@Override
+	protected Parcial compute()
+	{
+		TarefaAnaliseCarrinhos	esquerda;
+		Parcial					parcial;
+		int						meio;
+
+		if (fim - inicio <= LIMITE_SEQUENCIAL)
+		{
+			parcial = new Parcial(limitesFaixas.length + 1, quantidadeMaiores);
+			for (int i = inicio; i < fim; i++)
+				acumular(parcial, carrinhos.get(i).getKey(), carrinhos.get(i).getValue());
+			return parcial;
+		}
+		meio = (inicio + fim) >>> 1;
+		esquerda = new TarefaAnaliseCarrinhos(fabrica, carrinhos, inicio, meio, limitesFaixas, quantidadeMaiores);
+		esquerda.fork();
+		parcial = new TarefaAnaliseCarrinhos(fabrica, carrinhos, meio, fim, limitesFaixas, quantidadeMaiores).compute();
+		return parcial.combinar(esquerda.join());
+	}
+
+	private void acumular(Parcial parcial, String identificacaoCliente, CarrinhoCompras carrinhoCompras)
+	{
+		long	valorTotalCentavos;
+		int		faixa;
+
+		// false se o carrinho foi invalidado depois de a lista de carrinhos ser copiada.
+		if (!copiarLinhas(parcial, carrinhoCompras))
+			return;
+		valorTotalCentavos = 0;
+		for (int i = 0; i < parcial.tamanhoCopia; i++)
+		{
+			parcial.acumularLinha(parcial.copiaCodigos[i], parcial.copiaReceitasCentavos[i], parcial.copiaQuantidades[i]);
+			valorTotalCentavos = Dinheiro.somarCentavos(valorTotalCentavos, parcial.copiaReceitasCentavos[i]);
+		}
+		parcial.quantidadeCarrinhos++;
+		parcial.valorTotalCentavos = Dinheiro.somarCentavos(parcial.valorTotalCentavos, valorTotalCentavos);
+		faixa = Arrays.binarySearch(limitesFaixas, valorTotalCentavos);
+		parcial.faixas[faixa >= 0 ? faixa + 1 : -faixa - 1]++;
+		parcial.considerarMaior(new AbstractMap.SimpleImmutableEntry<>(identificacaoCliente, valorTotalCentavos));
+	}
+
+	/**
+	 * Copia as linhas do carrinho para os arrays de trabalho da parcial: as do arquivo, se ele
+	 * estiver descarregado, ou as da memória, sob o bloqueio do carrinho. Repete se o carrinho for
+	 * descarregado ou recarregado entre a verificação e a cópia.
+	 *
+	 * @return false caso o carrinho já não pertença à fábrica.
+	 */
+	private boolean copiarLinhas(Parcial parcial, CarrinhoCompras carrinhoCompras)
+	{
+		ArmazenamentoItens	conjuntoItens;
+		byte[]				linhas;
+
+		while (true)
+		{
+			parcial.tamanhoCopia = 0;
+			if (carrinhoCompras.descarregado)
+			{
+				linhas = fabrica.despejo.lerLinhasSeDescarregado(carrinhoCompras);
+				if (linhas != null)
+				{
+					if (carrinhoCompras.fabrica != fabrica)
+						return false;
+					CodecCarrinhoCompras.percorrerLinhas(ByteBuffer.wrap(linhas), (codigo, valorUnitarioCentavos,
+							quantidade) -> parcial.copiarLinha(codigo,
+									Dinheiro.multiplicarCentavos(valorUnitarioCentavos, quantidade), quantidade));
+					return true;
+				}
+			}
+			synchronized (carrinhoCompras)
+			{
+				if (carrinhoCompras.fabrica != fabrica)
+					return false;
+				if (!carrinhoCompras.descarregado)
+				{
+					conjuntoItens = carrinhoCompras.conjuntoItens;
+					for (int posicao = 0; posicao < conjuntoItens.fimPosicoes(); posicao++)
+						if (conjuntoItens.ocupada(posicao))
+							parcial.copiarLinha(conjuntoItens.codigo(posicao), conjuntoItens.valorTotalCentavos(posicao),
+									conjuntoItens.quantidade(posicao));
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resultado parcial de um trecho: totais por produto em arrays indexados por IndiceCodigos,
+	 * contagem por faixa de valor e os maiores carrinhos em um heap limitado. Os arrays de cópia
+	 * guardam as linhas do carrinho sendo acumulado e são reutilizados de um carrinho para outro.
+	 */
+	static final class Parcial
+	{
+		final IndiceCodigos							indice = new IndiceCodigos();
+		long[]										codigos = new long[16];
+		long[]										receitasCentavos = new long[16];
+		long[]										unidades = new long[16];
+		final long[]								faixas;
+		final PriorityQueue<Map.Entry<String, Long>>	maiores;
+		final int									quantidadeMaiores;
+		long										quantidadeCarrinhos;
+		long										valorTotalCentavos;
+		long[]										copiaCodigos = new long[16];
+		long[]										copiaReceitasCentavos = new long[16];
+		int[]										copiaQuantidades = new int[16];
+		int											tamanhoCopia;
+
+		Parcial(int numeroFaixas, int quantidadeMaiores)
+		{
+			this.faixas = new long[numeroFaixas];
+			this.quantidadeMaiores = quantidadeMaiores;
+			this.maiores = new PriorityQueue<>(Math.max(1, quantidadeMaiores + 1), ORDEM_VALOR);
+		}
+
+		int numeroProdutos()
+		{
+			return indice.tamanho();
+		}
+
+		void acumularLinha(long codigo, long receitaCentavos, long quantidade)
+		{
+			int	posicao;
+
+			posicao = indice.obter(codigo);
+			if (posicao < 0)
+			{
+				posicao = indice.tamanho();
+				if (posicao == codigos.length)
+				{
+					codigos = Arrays.copyOf(codigos, posicao * 2);
+					receitasCentavos = Arrays.copyOf(receitasCentavos, posicao * 2);
+					unidades = Arrays.copyOf(unidades, posicao * 2);
+				}
+				indice.definir(codigo, posicao);
+				codigos[posicao] = codigo;
+			}
+			receitasCentavos[posicao] = Dinheiro.somarCentavos(receitasCentavos[posicao], receitaCentavos);
+			unidades[posicao] += quantidade;
+		}
+
+		void copiarLinha(long codigo, long receitaCentavos, int quantidade)
+		{
+			if (tamanhoCopia == copiaCodigos.length)
+			{
+				copiaCodigos = Arrays.copyOf(copiaCodigos, tamanhoCopia * 2);
+				copiaReceitasCentavos = Arrays.copyOf(copiaReceitasCentavos, tamanhoCopia * 2);
+				copiaQuantidades = Arrays.copyOf(copiaQuantidades, tamanhoCopia * 2);
+			}
+			copiaCodigos[tamanhoCopia] = codigo;
+			copiaReceitasCentavos[tamanhoCopia] = receitaCentavos;
+			copiaQuantidades[tamanhoCopia++] = quantidade;
+		}
+
+		void considerarMaior(Map.Entry<String, Long> carrinho)
+		{
+			if (quantidadeMaiores == 0)
+				return;
+			if (maiores.size() < quantidadeMaiores)
+				maiores.add(carrinho);
+			else if (ORDEM_VALOR.compare(carrinho, maiores.peek()) > 0)
+			{
+				maiores.poll();
+				maiores.add(carrinho);
+			}
+		}
+
+		Parcial combinar(Parcial outra)
+		{
+			for (int i = 0; i < outra.numeroProdutos(); i++)
+				acumularLinha(outra.codigos[i], outra.receitasCentavos[i], outra.unidades[i]);
+			for (int i = 0; i < faixas.length; i++)
+				faixas[i] += outra.faixas[i];
+			for (Map.Entry<String, Long> carrinho : outra.maiores)
+				considerarMaior(carrinho);
+			quantidadeCarrinhos += outra.quantidadeCarrinhos;
+			valorTotalCentavos = Dinheiro.somarCentavos(valorTotalCentavos, outra.valorTotalCentavos);
+			return this;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package br.com.improving.carrinho;
+
+/**
+ * Forma como um carrinho guarda suas linhas.
+ */
+public enum TipoArmazenamentoItens
+{
+	/**
+	 * Cada linha é um objeto Item. Adequado para a maioria dos carrinhos.
+	 */
+	OBJETOS(96)
+	{
+		@Override
+		ArmazenamentoItens criar(CarrinhoCompras carrinhoCompras)
+		{
+			return new ArmazenamentoItensObjetos(carrinhoCompras);
+		}
+	},
+
+	/**
+	 * Linhas em arrays paralelos de tipos primitivos, com os objetos Item criados apenas quando
+	 * lidos. Reduz a memória por linha de carrinhos muito grandes.
+	 */
+	PRIMITIVOS(40)
+	{
+		@Override
+		ArmazenamentoItens criar(CarrinhoCompras carrinhoCompras)
+		{
+			return new ArmazenamentoItensPrimitivos(carrinhoCompras);
+		}
+	},
+
+	/**
+	 * Linhas em blocos de memória direta da ArenaForaDoHeap, reutilizados entre carrinhos. No heap
+	 * ficam apenas os índices primitivos das linhas, o que reduz o trabalho do coletor quando há
+	 * muitos carrinhos vivos.
+	 */
+	FORA_DO_HEAP(24)
+	{
+		@Override
+		ArmazenamentoItens criar(CarrinhoCompras carrinhoCompras)
+		{
+			return new ArmazenamentoItensForaDoHeap(carrinhoCompras);
+		}
+	};
+
+	/**
+	 * Estimativa dos bytes de heap ocupados por uma linha, sem contar o produto, que é
+	 * compartilhado entre os carrinhos.
+	 */
+	final int	bytesEstimadosPorLinha;
+
+	TipoArmazenamentoItens(int bytesEstimadosPorLinha)
+	{
+		this.bytesEstimadosPorLinha = bytesEstimadosPorLinha;
+	}
+
+	abstract ArmazenamentoItens criar(CarrinhoCompras carrinhoCompras);
+}
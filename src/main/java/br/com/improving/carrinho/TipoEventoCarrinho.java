@@ -0,0 +1,42 @@
+package br.com.improving.carrinho;
+
+/**
+ * Tipo de uma alteração publicada como EventoCarrinho.
+ */
+public enum TipoEventoCarrinho
+{
+	/**
+	 * Carrinho criado por CarrinhoComprasFactory.criar.
+	 */
+	CRIACAO,
+
+	/**
+	 * Linha incluída para um produto que não estava no carrinho.
+	 */
+	INCLUSAO_LINHA,
+
+	/**
+	 * Quantidade adicionada à linha de um produto que já estava no carrinho.
+	 */
+	COMBINACAO_LINHA,
+
+	/**
+	 * Quantidade ou valor unitário da linha alterados pelos setters do Item.
+	 */
+	ALTERACAO_LINHA,
+
+	/**
+	 * Linha removida do carrinho.
+	 */
+	REMOCAO_LINHA,
+
+	/**
+	 * Carrinho invalidado por CarrinhoComprasFactory.invalidar.
+	 */
+	INVALIDACAO,
+
+	/**
+	 * Carrinho invalidado pela expiração por ociosidade.
+	 */
+	EXPIRACAO
+}
@@ -0,0 +1,162 @@
+package br.com.improving.carrinho;
+
+import java.util.Arrays;
+
+/**
+ * Vetor imutável com compartilhamento estrutural: uma árvore de arrays de 32 posições mais um
+ * array final (cauda) com os últimos elementos. Alterar ou acrescentar um elemento copia apenas o
+ * caminho da raiz até ele, no máximo log32(n) arrays, e as versões anteriores continuam válidas e
+ * podem ser lidas por outras threads sem bloqueio.
+ */
+final class VetorPersistente<E>
+{
+	private static final int	BITS = 5;
+	private static final int	LARGURA = 1 << BITS;
+	private static final int	MASCARA = LARGURA - 1;
+
+	private static final VetorPersistente<?>	VAZIO = new VetorPersistente<>(0, BITS, new Object[LARGURA], new Object[0]);
+
+	private final int		tamanho;
+	private final int		deslocamento;
+	private final Object[]	raiz;
+	private final Object[]	cauda;
+
+	private VetorPersistente(int tamanho, int deslocamento, Object[] raiz, Object[] cauda)
+	{
+		this.tamanho = tamanho;
+		this.deslocamento = deslocamento;
+		this.raiz = raiz;
+		this.cauda = cauda;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <E> VetorPersistente<E> vazio()
+	{
+		return (VetorPersistente<E>) VAZIO;
+	}
+
+	int tamanho()
+	{
+		return tamanho;
+	}
+
+	@SuppressWarnings("unchecked")
+	E obter(int indice)
+	{
+		if (indice < 0 || indice >= tamanho)
+			throw new IndexOutOfBoundsException(String.valueOf(indice));
+		return (E) arrayDo(indice)[indice & MASCARA];
+	}
+
+	/**
+	 * Retorna um vetor com o elemento do índice substituído.
+	 */
+	VetorPersistente<E> definir(int indice, E elemento)
+	{
+		Object[]	novaCauda;
+
+		if (indice < 0 || indice >= tamanho)
+			throw new IndexOutOfBoundsException(String.valueOf(indice));
+		if (indice >= inicioCauda())
+		{
+			novaCauda = cauda.clone();
+			novaCauda[indice & MASCARA] = elemento;
+			return new VetorPersistente<>(tamanho, deslocamento, raiz, novaCauda);
+		}
+		return new VetorPersistente<>(tamanho, deslocamento, definir(deslocamento, raiz, indice, elemento), cauda);
+	}
+
+	/**
+	 * Retorna um vetor com o elemento acrescentado no final.
+	 */
+	VetorPersistente<E> acrescentar(E elemento)
+	{
+		Object[]	novaCauda;
+		Object[]	novaRaiz;
+		int			novoDeslocamento;
+
+		if (tamanho - inicioCauda() < LARGURA)
+		{
+			novaCauda = Arrays.copyOf(cauda, cauda.length + 1);
+			novaCauda[cauda.length] = elemento;
+			return new VetorPersistente<>(tamanho + 1, deslocamento, raiz, novaCauda);
+		}
+		// A cauda cheia passa para a árvore, que ganha um nível quando a raiz está cheia.
+		novoDeslocamento = deslocamento;
+		if ((tamanho >>> BITS) > (1 << deslocamento))
+		{
+			novaRaiz = new Object[LARGURA];
+			novaRaiz[0] = raiz;
+			novaRaiz[1] = novoCaminho(deslocamento, cauda);
+			novoDeslocamento += BITS;
+		}
+		else
+			novaRaiz = empurrarCauda(deslocamento, raiz, cauda);
+		return new VetorPersistente<>(tamanho + 1, novoDeslocamento, novaRaiz, new Object[] { elemento });
+	}
+
+	private int inicioCauda()
+	{
+		if (tamanho < LARGURA)
+			return 0;
+		return ((tamanho - 1) >>> BITS) << BITS;
+	}
+
+	private Object[] arrayDo(int indice)
+	{
+		Object[]	no;
+
+		if (indice >= inicioCauda())
+			return cauda;
+		no = raiz;
+		for (int nivel = deslocamento; nivel > 0; nivel -= BITS)
+			no = (Object[]) no[(indice >>> nivel) & MASCARA];
+		return no;
+	}
+
+	private static Object[] definir(int nivel, Object[] no, int indice, Object elemento)
+	{
+		Object[]	copia;
+		int			filho;
+
+		copia = no.clone();
+		if (nivel == 0)
+			copia[indice & MASCARA] = elemento;
+		else
+		{
+			filho = (indice >>> nivel) & MASCARA;
+			copia[filho] = definir(nivel - BITS, (Object[]) no[filho], indice, elemento);
+		}
+		return copia;
+	}
+
+	private Object[] empurrarCauda(int nivel, Object[] pai, Object[] folha)
+	{
+		Object[]	copia;
+		Object[]	filho;
+		int			indiceFilho;
+
+		indiceFilho = ((tamanho - 1) >>> nivel) & MASCARA;
+		copia = pai.clone();
+		if (nivel == BITS)
+			copia[indiceFilho] = folha;
+		else
+		{
+			filho = (Object[]) pai[indiceFilho];
+			copia[indiceFilho] = filho != null ? empurrarCauda(nivel - BITS, filho, folha)
+					: novoCaminho(nivel - BITS, folha);
+		}
+		return copia;
+	}
+
+	private static Object[] novoCaminho(int nivel, Object[] folha)
+	{
+		Object[]	no;
+
+		if (nivel == 0)
+			return folha;
+		no = new Object[LARGURA];
+		no[0] = novoCaminho(nivel - BITS, folha);
+		return no;
+	}
+}
@@ -0,0 +1,32 @@
+package br.com.improving.carrinho;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor padrão das caixas de CarrinhoComprasAssincrono a partir do Java 21: cada tarefa roda em
+ * uma thread virtual, então o número de caixas ativas não é limitado por um pool de threads da
+ * plataforma.
+ *
+ * As operações dos carrinhos são sincronizadas no monitor do carrinho, o que prende a thread virtual
+ * à thread da plataforma enquanto ele é mantido. Como cada carrinho tem um único consumidor, o
+ * monitor não tem disputa e é mantido apenas durante a operação.
+ */
+final class ExecutoresCarrinhos
+{
+	private ExecutoresCarrinhos()
+	{
+	}
+
+	static Executor padrao()
+	{
+		return Padrao.EXECUTOR;
+	}
+
+	private static final class Padrao
+	{
+		static final ExecutorService	EXECUTOR = Executors.newThreadPerTaskExecutor(
+				Thread.ofVirtual().name("caixas-carrinhos-", 1).factory());
+	}
+}
@@ -0,0 +1,90 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+/**
+ * Testes do buffer circular de eventos.
+ */
+@TestMethodOrder(OrderAnnotation.class)
+class AnelEventosCarrinhosTest
+{
+
+	/**
+	 * Cenario 1: Publica eventos de mais produtores que posições do buffer enquanto uma assinatura
+	 * os consome.
+	 *
+	 * Validação:
+	 * 	Todo evento entregue tem os campos gravados por um único produtor, e os eventos entregues
+	 * 	mais os perdidos somam os publicados.
+	 */
+	@Test
+	@Order(1)
+	@DisplayName("Testa se nenhum evento chega misturado com mais produtores que posicoes no buffer")
+	void publicarComMaisProdutoresQuePosicoes()
+	{
+		AnelEventosCarrinhos		anel;
+		AssinaturaEventosCarrinho	assinatura;
+		Thread[]					produtores;
+		String[]					clientes;
+		long[]						entregues;
+
+		anel = new AnelEventosCarrinhos(2);
+		produtores = new Thread[32];
+		clientes = new String[produtores.length];
+		entregues = new long[1];
+		assinatura = new AssinaturaEventosCarrinho(anel, new ConsumidorEventosCarrinho()
+		{
+			@Override
+			public void consumir(EventoCarrinho evento)
+			{
+				int	produtor;
+
+				entregues[0]++;
+				produtor = (int) evento.getCodigoProduto();
+				Assertions.assertEquals(clientes[produtor], evento.getIdentificacaoCliente());
+				Assertions.assertEquals(TipoEventoCarrinho.COMBINACAO_LINHA, evento.getTipo());
+				Assertions.assertEquals(BigDecimal.valueOf(evento.getQuantidade(), 2), evento.getValorTotal());
+				Assertions.assertEquals(produtor, evento.getQuantidade() % produtores.length);
+			}
+		});
+		for (int p = 0; p < produtores.length; p++)
+		{
+			int	produtor = p;
+
+			clientes[p] = "cliente-" + p;
+			produtores[p] = new Thread(() -> {
+				int	quantidade;
+
+				for (int i = 0; i < 20_000; i++)
+				{
+					quantidade = i * produtores.length + produtor;
+					anel.publicar(TipoEventoCarrinho.COMBINACAO_LINHA, clientes[produtor], produtor, quantidade,
+							quantidade, 2);
+				}
+			});
+			produtores[p].start();
+		}
+		while (algumVivo(produtores))
+			assinatura.processar(2);
+		while (assinatura.processar(2) > 0)
+			;
+
+		Assertions.assertEquals(produtores.length * 20_000L, entregues[0] + assinatura.getEventosPerdidos());
+		Assertions.assertEquals(0, assinatura.getAtraso());
+	}
+
+	private static boolean algumVivo(Thread[] threads)
+	{
+		for (Thread thread : threads)
+			if (thread.isAlive())
+				return true;
+		return false;
+	}
+}
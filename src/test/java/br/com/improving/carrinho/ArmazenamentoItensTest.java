@@ -0,0 +1,293 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+/**
+ * Testes das formas de armazenamento das linhas do carrinho.
+ */
+@TestMethodOrder(OrderAnnotation.class)
+class ArmazenamentoItensTest
+{
+
+	/**
+	 * Cenario 1: Aplica a mesma sequência aleatória de operações a carrinhos com cada forma de
+	 * armazenamento.
+	 *
+	 * Validação:
+	 * 	Itens, posições e valor total são iguais nos dois carrinhos após cada operação.
+	 */
+	@Test
+	@Order(1)
+	@DisplayName("Testa se carrinhos com armazenamento em objetos e em primitivos se comportam igual")
+	void compararArmazenamentos()
+	{
+		compararComObjetos(TipoArmazenamentoItens.PRIMITIVOS);
+	}
+
+	/**
+	 * Cenario 2: Testa se os itens criados a partir das linhas primitivas acompanham as alterações
+	 * das linhas.
+	 *
+	 * Validação:
+	 * 	O item lido antes de uma mescla reflete a nova quantidade, e deixa de alterar o carrinho após
+	 * 	ser removido.
+	 */
+	@Test
+	@Order(2)
+	@DisplayName("Testa se os itens de linhas primitivas acompanham as alterações das linhas")
+	void itensDeLinhasPrimitivas()
+	{
+		itensAcompanhamLinhas(TipoArmazenamentoItens.PRIMITIVOS);
+	}
+
+	/**
+	 * Cenario 3: Aplica a mesma sequência aleatória de operações a carrinhos com armazenamento em
+	 * objetos e fora do heap, e verifica os itens lidos das linhas fora do heap.
+	 *
+	 * Validação:
+	 * 	Itens, posições e valor total são iguais nos dois carrinhos após cada operação, e os itens
+	 * 	fora do heap acompanham as alterações das linhas.
+	 */
+	@Test
+	@Order(3)
+	@DisplayName("Testa se carrinhos com armazenamento fora do heap se comportam como os em objetos")
+	void compararArmazenamentoForaDoHeap()
+	{
+		CarrinhoCompras	carrinhoCompras;
+		Produto			produto;
+
+		compararComObjetos(TipoArmazenamentoItens.FORA_DO_HEAP);
+		itensAcompanhamLinhas(TipoArmazenamentoItens.FORA_DO_HEAP);
+		carrinhoCompras = new CarrinhoCompras(TipoArmazenamentoItens.FORA_DO_HEAP);
+		produto = new Produto(7L, "Pão de açúcar ☕");
+		carrinhoCompras.adicionarItem(produto, new BigDecimal("3.5"), 2);
+		Assertions.assertSame(CatalogoProdutos.COMPARTILHADO.canonizar(produto), carrinhoCompras.getItem(0).getProduto());
+		Assertions.assertEquals(new BigDecimal("3.5"), carrinhoCompras.getItem(0).getValorUnitario());
+		Assertions.assertEquals(new BigDecimal("7.0"), carrinhoCompras.getValorTotal());
+	}
+
+	/**
+	 * Cenario 4: Descarta carrinhos fora do heap e cria outros do mesmo tamanho.
+	 *
+	 * Validação:
+	 * 	As linhas e descrições dos carrinhos coletados voltam às listas livres da arena e são
+	 * 	reutilizadas, sem reservar placas novas.
+	 */
+	@Test
+	@Order(4)
+	@DisplayName("Testa se os blocos de carrinhos fora do heap coletados são reutilizados")
+	void reutilizarBlocosForaDoHeap() throws InterruptedException
+	{
+		ArenaForaDoHeap			arena;
+		Produto[]				produtos;
+		List<CarrinhoCompras>	carrinhos;
+		long					reservados;
+		int						livres;
+
+		arena = ArenaForaDoHeap.COMPARTILHADA;
+		produtos = CarrinhoComprasTest.geradorDeProdutos(20);
+		carrinhos = preencherCarrinhosForaDoHeap(produtos, 2_000);
+		reservados = arena.bytesReservados();
+		livres = arena.blocosLivres();
+		carrinhos.clear();
+		for (int tentativa = 0; tentativa < 50 && arena.blocosLivres() < livres + 2_000 * 21; tentativa++)
+		{
+			System.gc();
+			Thread.sleep(20);
+			arena.liberar(arena.alocar(1), 1);
+		}
+		Assertions.assertTrue(arena.blocosLivres() >= livres + 2_000 * 21);
+		carrinhos = preencherCarrinhosForaDoHeap(produtos, 2_000);
+		Assertions.assertEquals(reservados, arena.bytesReservados());
+		Assertions.assertEquals(2_000, carrinhos.size());
+	}
+
+	/**
+	 * Cenario 5: Invalida na fábrica carrinhos fora do heap ainda referenciados.
+	 *
+	 * Validação:
+	 * 	As linhas e descrições voltam às listas livres da arena na invalidação, sem esperar a coleta,
+	 * 	e o carrinho invalidado continua com as mesmas linhas e os mesmos itens.
+	 */
+	@Test
+	@Order(5)
+	@DisplayName("Testa se a invalidacao devolve os blocos de carrinhos fora do heap a arena")
+	void liberarBlocosNaInvalidacao()
+	{
+		ArenaForaDoHeap			arena;
+		CarrinhoComprasFactory	factory;
+		Produto[]				produtos;
+		CarrinhoCompras[]		carrinhos;
+		Item					item;
+		int						livres;
+
+		arena = ArenaForaDoHeap.COMPARTILHADA;
+		factory = new CarrinhoComprasFactory(TipoArmazenamentoItens.FORA_DO_HEAP);
+		produtos = CarrinhoComprasTest.geradorDeProdutos(20);
+		carrinhos = new CarrinhoCompras[200];
+		for (int i = 0; i < carrinhos.length; i++)
+		{
+			carrinhos[i] = factory.criar("cliente-" + i);
+			for (Produto produto : produtos)
+				carrinhos[i].adicionarItem(produto, new BigDecimal("1.99"), 1);
+		}
+		item = carrinhos[0].getItem(3);
+		livres = arena.blocosLivres();
+		for (int i = 0; i < carrinhos.length; i++)
+			Assertions.assertTrue(factory.invalidar("cliente-" + i));
+		Assertions.assertTrue(arena.blocosLivres() >= livres + carrinhos.length * 21);
+
+		Assertions.assertEquals(20, carrinhos[0].getItens().size());
+		Assertions.assertSame(item, carrinhos[0].getItem(3));
+		Assertions.assertEquals(produtos[3], item.getProduto());
+		item.setQuantidade(5);
+		Assertions.assertEquals(new BigDecimal("47.76"), carrinhos[0].getValorTotal());
+		Assertions.assertTrue(carrinhos[0].removerItem(produtos[0]));
+		Assertions.assertEquals(new BigDecimal("45.77"), carrinhos[0].getValorTotal());
+	}
+
+	/**
+	 * Cenario 6: Lê e altera um carrinho fora do heap com descrições em ASCII e fora dele.
+	 *
+	 * Validação:
+	 * 	Leituras sem alteração entre elas devolvem o mesmo instantâneo, a alteração publica outro
+	 * 	sem mudar o anterior, e os produtos lidos são as instâncias do catálogo.
+	 */
+	@Test
+	@Order(6)
+	@DisplayName("Testa se o instantaneo fora do heap e montado na leitura e descartado na alteracao")
+	void montarInstantaneoForaDoHeap()
+	{
+		CarrinhoCompras		carrinhoCompras;
+		InstantaneoCarrinho	anterior;
+		Produto[]			produtos;
+
+		produtos = new Produto[] { new Produto(1L, "Cafe"), new Produto(2L, "Café ☕ \uD834\uDD1E"),
+				new Produto(3L, "Inválido \uD800") };
+		carrinhoCompras = new CarrinhoCompras(TipoArmazenamentoItens.FORA_DO_HEAP);
+		for (Produto produto : produtos)
+			carrinhoCompras.adicionarItem(produto, new BigDecimal("2.50"), 1);
+		anterior = carrinhoCompras.getInstantaneo();
+		Assertions.assertSame(anterior, carrinhoCompras.getInstantaneo());
+		for (int i = 0; i < 2; i++)
+			Assertions.assertSame(produtos[i], carrinhoCompras.getItem(i).getProduto());
+		Assertions.assertEquals(produtos[2], carrinhoCompras.getItem(2).getProduto());
+
+		carrinhoCompras.adicionarItem(produtos[1], new BigDecimal("2.50"), 2);
+		Assertions.assertNotSame(anterior, carrinhoCompras.getInstantaneo());
+		Assertions.assertEquals(new BigDecimal("7.50"), anterior.getValorTotal());
+		Assertions.assertEquals(1, new ArrayList<>(anterior.getItens()).get(1).getQuantidade());
+		Assertions.assertEquals(new BigDecimal("12.50"), carrinhoCompras.getInstantaneo().getValorTotal());
+		Assertions.assertEquals(3, new ArrayList<>(carrinhoCompras.getItens()).get(1).getQuantidade());
+		Assertions.assertSame(produtos[1], new ArrayList<>(carrinhoCompras.getItens()).get(1).getProduto());
+	}
+
+	private static List<CarrinhoCompras> preencherCarrinhosForaDoHeap(Produto[] produtos, int quantidadeCarrinhos)
+	{
+		List<CarrinhoCompras>	carrinhos;
+		CarrinhoCompras			carrinhoCompras;
+
+		carrinhos = new ArrayList<>();
+		for (int i = 0; i < quantidadeCarrinhos; i++)
+		{
+			carrinhoCompras = new CarrinhoCompras(TipoArmazenamentoItens.FORA_DO_HEAP);
+			for (Produto produto : produtos)
+				carrinhoCompras.adicionarItem(produto, new BigDecimal("1.99"), 1);
+			Assertions.assertEquals(new BigDecimal("39.80"), carrinhoCompras.getValorTotal());
+			carrinhos.add(carrinhoCompras);
+		}
+		return carrinhos;
+	}
+
+	private static void compararComObjetos(TipoArmazenamentoItens tipoArmazenamentoItens)
+	{
+		CarrinhoCompras	carrinhoObjetos;
+		CarrinhoCompras	carrinhoComparado;
+		Produto[]		produtos;
+		Random			aleatorio;
+		int				operacao;
+		int				posicao;
+
+		carrinhoObjetos = new CarrinhoCompras(TipoArmazenamentoItens.OBJETOS);
+		carrinhoComparado = new CarrinhoCompras(tipoArmazenamentoItens);
+		produtos = CarrinhoComprasTest.geradorDeProdutos(500);
+		aleatorio = new Random(11);
+		for (int i = 0; i < 20_000; i++)
+		{
+			operacao = aleatorio.nextInt(10);
+			if (operacao < 6)
+			{
+				Produto produto = produtos[aleatorio.nextInt(produtos.length)];
+				BigDecimal valorUnitario = BigDecimal.valueOf(aleatorio.nextInt(10_000), aleatorio.nextInt(3));
+				int quantidade = aleatorio.nextInt(5);
+
+				carrinhoObjetos.adicionarItem(produto, valorUnitario, quantidade);
+				carrinhoComparado.adicionarItem(produto, valorUnitario, quantidade);
+			}
+			else if (operacao < 8)
+			{
+				posicao = aleatorio.nextInt(carrinhoObjetos.getItens().size() + 1);
+				Assertions.assertEquals(carrinhoObjetos.removerItem(posicao), carrinhoComparado.removerItem(posicao));
+			}
+			else if (operacao < 9)
+			{
+				Produto produto = produtos[aleatorio.nextInt(produtos.length)];
+
+				Assertions.assertEquals(carrinhoObjetos.removerItem(produto), carrinhoComparado.removerItem(produto));
+			}
+			else if (!carrinhoObjetos.getItens().isEmpty())
+			{
+				posicao = aleatorio.nextInt(carrinhoObjetos.getItens().size());
+				carrinhoObjetos.getItem(posicao).setQuantidade(posicao);
+				carrinhoComparado.getItem(posicao).setQuantidade(posicao);
+			}
+			Assertions.assertEquals(carrinhoObjetos.getValorTotal(), carrinhoComparado.getValorTotal());
+		}
+		Assertions.assertEquals(
+				new ArrayList<>(carrinhoObjetos.getItens()),
+				new ArrayList<>(carrinhoComparado.getItens()));
+		Assertions.assertEquals(somarItens(carrinhoObjetos), carrinhoObjetos.getValorTotal());
+	}
+
+	private static void itensAcompanhamLinhas(TipoArmazenamentoItens tipoArmazenamentoItens)
+	{
+		CarrinhoCompras	carrinhoCompras;
+		Produto[]		produtos;
+		Item			item;
+
+		carrinhoCompras = new CarrinhoComprasFactory(tipoArmazenamentoItens).criar("cliente");
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		carrinhoCompras.adicionarItensAoCarrinho(CarrinhoComprasTest.geradorDeItems(produtos));
+		item = carrinhoCompras.getItem(1);
+		carrinhoCompras.adicionarItem(produtos[1], new BigDecimal("20.50"), 3);
+		Assertions.assertEquals(5, item.getQuantidade());
+		Assertions.assertEquals(new BigDecimal("102.50"), item.getValorTotal());
+		item.setQuantidade(1);
+		Assertions.assertEquals(new BigDecimal("120.50"), carrinhoCompras.getValorTotal());
+		carrinhoCompras.removerItem(produtos[1]);
+		item.setQuantidade(100);
+		Assertions.assertEquals(new BigDecimal("100.00"), carrinhoCompras.getValorTotal());
+	}
+
+	private static BigDecimal somarItens(CarrinhoCompras carrinhoCompras)
+	{
+		BigDecimal	soma;
+		List<Item>	itens;
+
+		soma = new BigDecimal(0);
+		itens = new ArrayList<>(carrinhoCompras.getItens());
+		for (Item item : itens)
+			soma = soma.add(item.getValorTotal());
+		return soma;
+	}
+}
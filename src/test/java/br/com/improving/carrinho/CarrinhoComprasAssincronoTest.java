@@ -0,0 +1,133 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@TestMethodOrder(OrderAnnotation.class)
+class CarrinhoComprasAssincronoTest
+{
+
+	@Test
+	@Order(1)
+	@DisplayName("Testa se as operacoes de um cliente sao executadas na ordem das chamadas e as falhas concluem apenas a sua operacao")
+	void executarNaOrdemDasChamadas()
+	{
+		CarrinhoComprasFactory			fabrica;
+		CarrinhoComprasAssincrono		assincrono;
+		Produto							produto;
+		CompletableFuture<Void>			invalida;
+		CompletableFuture<Boolean>		remocao;
+		CompletableFuture<BigDecimal>	valorTotal;
+
+		fabrica = new CarrinhoComprasFactory();
+		assincrono = new CarrinhoComprasAssincrono(fabrica);
+		produto = new Produto(1L, "Produto-1");
+		assincrono.adicionarItem("0001", produto, new BigDecimal("10.00"), 2);
+		invalida = assincrono.adicionarItem("0001", produto, new BigDecimal("10.00"), -1);
+		assincrono.adicionarItem("0001", new Produto(2L, "Produto-2"), new BigDecimal("5.00"), 1);
+		remocao = assincrono.removerItem("0001", 0);
+		valorTotal = assincrono.getValorTotal("0001");
+
+		Assertions.assertEquals(new BigDecimal("5.00"), valorTotal.join());
+		Assertions.assertTrue(remocao.join());
+		Assertions.assertTrue(Assertions.assertThrows(CompletionException.class, invalida::join).getCause()
+				instanceof IllegalArgumentException);
+		Assertions.assertTrue(assincrono.invalidar("0001").join());
+		Assertions.assertFalse(assincrono.invalidar("0001").join());
+
+		Assertions.assertFalse(assincrono.removerItem("0001", produto).join());
+		Assertions.assertFalse(assincrono.removerItem("0001", 0).join());
+		Assertions.assertEquals(BigDecimal.ZERO, assincrono.getValorTotal("0001").join());
+		Assertions.assertTrue(assincrono.getItens("0001").join().isEmpty());
+		Assertions.assertTrue(fabrica.conjuntoCarrinhoCompras.isEmpty());
+		Assertions.assertEquals(new BigDecimal("0.00"), fabrica.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(2)
+	@DisplayName("Testa muitos clientes concorrentes sem perder operacoes e sem manter caixas ociosas")
+	void executarMuitosClientes() throws Exception
+	{
+		CarrinhoComprasFactory			fabrica;
+		CarrinhoComprasAssincrono		assincrono;
+		List<CompletableFuture<Void>>	pendentes;
+		Thread[]						clientes;
+
+		fabrica = new CarrinhoComprasFactory();
+		assincrono = new CarrinhoComprasAssincrono(fabrica);
+		pendentes = new ArrayList<>();
+		clientes = new Thread[4];
+		for (int t = 0; t < clientes.length; t++)
+		{
+			clientes[t] = new Thread(() -> {
+				List<CompletableFuture<Void>>	meus;
+
+				meus = new ArrayList<>();
+				for (int i = 0; i < 50_000; i++)
+					meus.add(assincrono.adicionarItem("cliente-" + i % 5_000, new Produto((long) i % 7, "Produto"),
+							BigDecimal.ONE, 1));
+				synchronized (pendentes)
+				{
+					pendentes.addAll(meus);
+				}
+			});
+			clientes[t].start();
+		}
+		for (Thread cliente : clientes)
+			cliente.join();
+		CompletableFuture.allOf(pendentes.toArray(new CompletableFuture<?>[0])).join();
+
+		for (int i = 0; i < 5_000; i++)
+			Assertions.assertEquals(new BigDecimal(40), assincrono.getValorTotal("cliente-" + i).join());
+		Assertions.assertEquals(new BigDecimal("40.00"), fabrica.getValorTicketMedio());
+		for (int tentativa = 0; !assincrono.caixas.isEmpty() && tentativa < 1_000; tentativa++)
+			Thread.sleep(1);
+		Assertions.assertTrue(assincrono.caixas.isEmpty());
+	}
+
+	@Test
+	@Order(3)
+	@DisplayName("Testa se cada tarefa de uma caixa executa no maximo um lote e devolve a vez aos outros clientes")
+	void executarEmLotes()
+	{
+		Queue<Runnable>				tarefas;
+		CarrinhoComprasAssincrono	assincrono;
+		List<String>				ordem;
+		int							executadasPorA;
+
+		tarefas = new ArrayDeque<>();
+		assincrono = new CarrinhoComprasAssincrono(new CarrinhoComprasFactory(), tarefas::add);
+		ordem = new ArrayList<>();
+		for (int i = 0; i < 2 * CaixaCarrinho.LOTE; i++)
+		{
+			assincrono.criar("A").thenRun(() -> ordem.add("A"));
+			assincrono.criar("B").thenRun(() -> ordem.add("B"));
+		}
+		Assertions.assertEquals(2, tarefas.size());
+
+		tarefas.poll().run();
+		Assertions.assertEquals(CaixaCarrinho.LOTE, ordem.size());
+		Assertions.assertEquals(2, tarefas.size());
+		while (!tarefas.isEmpty())
+			tarefas.poll().run();
+
+		executadasPorA = 0;
+		for (int i = 0; i < 2 * CaixaCarrinho.LOTE; i++)
+			executadasPorA += ordem.get(i).equals("A") ? 1 : 0;
+		Assertions.assertEquals(CaixaCarrinho.LOTE, executadasPorA);
+		Assertions.assertEquals(4 * CaixaCarrinho.LOTE, ordem.size());
+		Assertions.assertTrue(assincrono.caixas.isEmpty());
+	}
+}
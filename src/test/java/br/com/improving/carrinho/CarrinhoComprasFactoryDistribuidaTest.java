@@ -0,0 +1,197 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestMethodOrder(OrderAnnotation.class)
+class CarrinhoComprasFactoryDistribuidaTest
+{
+
+	@Test
+	@Order(1)
+	@DisplayName("Testa se o ticket medio distribuido e igual ao de uma fabrica unica ao incluir e retirar fragmentos")
+	void ticketMedioIgualAoDeFabricaUnica()
+	{
+		CarrinhoComprasFactoryDistribuida	distribuida;
+		CarrinhoComprasFactory				unica;
+		Random								aleatorio;
+		String								identificacaoCliente;
+		BigDecimal							valorUnitario;
+		Produto								produto;
+		int									quantidade;
+
+		distribuida = new CarrinhoComprasFactoryDistribuida(3);
+		unica = new CarrinhoComprasFactory();
+		aleatorio = new Random(15);
+		for (int i = 0; i < 5_000; i++)
+		{
+			identificacaoCliente = "cliente-" + aleatorio.nextInt(1_000);
+			if (aleatorio.nextInt(10) == 0)
+			{
+				Assertions.assertEquals(unica.invalidar(identificacaoCliente), distribuida.invalidar(identificacaoCliente));
+				continue;
+			}
+			produto = new Produto((long) aleatorio.nextInt(50), "Produto");
+			valorUnitario = BigDecimal.valueOf(aleatorio.nextInt(100_000), 2);
+			quantidade = 1 + aleatorio.nextInt(5);
+			distribuida.criar(identificacaoCliente).adicionarItem(produto, valorUnitario, quantidade);
+			unica.criar(identificacaoCliente).adicionarItem(produto, valorUnitario, quantidade);
+			if (i == 2_000)
+				distribuida.incluirFragmento("fragmento-extra", new CarrinhoComprasFactory());
+			if (i == 3_500)
+				distribuida.retirarFragmento("fragmento-0");
+		}
+
+		Assertions.assertEquals(3, distribuida.getNumeroDeFragmentos());
+		Assertions.assertEquals(unica.getValorTicketMedio(), distribuida.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(2)
+	@DisplayName("Testa se a redistribuicao move apenas parte dos carrinhos e mantem as instancias")
+	void redistribuirMantendoCarrinhos()
+	{
+		CarrinhoComprasFactoryDistribuida	distribuida;
+		Map<String, CarrinhoCompras>		carrinhos;
+		Map<String, CarrinhoComprasFactory>	donosAnteriores;
+		CarrinhoComprasFactory				novoFragmento;
+		int									movidos;
+
+		distribuida = new CarrinhoComprasFactoryDistribuida(4);
+		carrinhos = new HashMap<>();
+		donosAnteriores = new HashMap<>();
+		for (int i = 0; i < 2_000; i++)
+		{
+			carrinhos.put("cliente-" + i, distribuida.criar("cliente-" + i));
+			carrinhos.get("cliente-" + i).adicionarItem(new Produto((long) i, "Produto"), BigDecimal.ONE, 1);
+			donosAnteriores.put("cliente-" + i, distribuida.fragmentoDo("cliente-" + i));
+		}
+		novoFragmento = new CarrinhoComprasFactory();
+		distribuida.incluirFragmento("fragmento-4", novoFragmento);
+
+		movidos = 0;
+		for (Map.Entry<String, CarrinhoCompras> entrada : carrinhos.entrySet())
+		{
+			Assertions.assertSame(entrada.getValue(), distribuida.criar(entrada.getKey()));
+			if (distribuida.fragmentoDo(entrada.getKey()) != donosAnteriores.get(entrada.getKey()))
+			{
+				Assertions.assertSame(novoFragmento, distribuida.fragmentoDo(entrada.getKey()));
+				movidos++;
+			}
+		}
+		Assertions.assertEquals(movidos, novoFragmento.conjuntoCarrinhoCompras.size());
+		Assertions.assertTrue(movidos > 200 && movidos < 650, "Carrinhos movidos: " + movidos);
+		Assertions.assertEquals(new BigDecimal("1.00"), distribuida.getValorTicketMedio());
+		Assertions.assertEquals(new BigDecimal("1.00"), novoFragmento.getValorTicketMedio());
+		Assertions.assertThrows(IllegalStateException.class, () -> new CarrinhoComprasFactoryDistribuida().criar("cliente"));
+	}
+
+	@Test
+	@Order(3)
+	@DisplayName("Testa se o carrinho transferido e recuperado pelo registro duravel do novo fragmento")
+	void transferirComRegistroDuravel(@TempDir Path diretorio)
+	{
+		CarrinhoComprasFactoryDistribuida	distribuida;
+		CarrinhoComprasFactory				fragmentoDuravel;
+		CarrinhoComprasFactory				recuperado;
+		ConfiguracaoCarrinhoComprasFactory	configuracao;
+
+		distribuida = new CarrinhoComprasFactoryDistribuida(1);
+		for (int i = 0; i < 100; i++)
+			distribuida.criar("cliente-" + i).adicionarItem(new Produto((long) i, "Produto " + i), new BigDecimal("3.10"), 2);
+		configuracao = new ConfiguracaoCarrinhoComprasFactory().comRegistroDuravel(diretorio);
+		fragmentoDuravel = new CarrinhoComprasFactory(configuracao);
+		distribuida.incluirFragmento("fragmento-duravel", fragmentoDuravel);
+		distribuida.retirarFragmento("fragmento-0");
+		fragmentoDuravel.criar("cliente-7").adicionarItem(new Produto(7L, "Produto 7"), new BigDecimal("3.10"), 1);
+
+		recuperado = new CarrinhoComprasFactory(configuracao);
+		Assertions.assertEquals(100, recuperado.conjuntoCarrinhoCompras.size());
+		Assertions.assertEquals(3, recuperado.criar("cliente-7").getItens().iterator().next().getQuantidade());
+		Assertions.assertEquals(distribuida.getValorTicketMedio(), recuperado.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(4)
+	@DisplayName("Testa se criar e invalidar concorrentes com a redistribuicao mantem um carrinho por cliente")
+	void redistribuirComOperacoesConcorrentes() throws Exception
+	{
+		CarrinhoComprasFactoryDistribuida			distribuida;
+		ExecutorService								executor;
+		List<Future<Map<String, CarrinhoCompras>>>	tarefas;
+		Map<String, CarrinhoCompras>				restantes;
+		String										cliente;
+
+		distribuida = new CarrinhoComprasFactoryDistribuida(2);
+		executor = Executors.newFixedThreadPool(4);
+		tarefas = new ArrayList<>();
+		for (int t = 0; t < 4; t++)
+		{
+			final int	thread = t;
+
+			tarefas.add(executor.submit(() ->
+			{
+				Map<String, CarrinhoCompras>	carrinhos;
+				String							identificacaoCliente;
+				CarrinhoCompras					carrinhoCompras;
+
+				carrinhos = new HashMap<>();
+				for (int i = 0; i < 20_000; i++)
+				{
+					identificacaoCliente = "cliente-" + thread + "-" + i % 300;
+					if (i % 7 == 0)
+					{
+						Assertions.assertEquals(carrinhos.remove(identificacaoCliente) != null,
+								distribuida.invalidar(identificacaoCliente));
+						continue;
+					}
+					carrinhoCompras = distribuida.criar(identificacaoCliente);
+					if (carrinhos.containsKey(identificacaoCliente))
+						Assertions.assertSame(carrinhos.get(identificacaoCliente), carrinhoCompras);
+					else
+						carrinhos.put(identificacaoCliente, carrinhoCompras);
+					carrinhoCompras.adicionarItem(new Produto(1L, "Produto"), BigDecimal.ONE, 1);
+				}
+				return carrinhos;
+			}));
+		}
+		for (int i = 0; i < 20; i++)
+		{
+			distribuida.incluirFragmento("fragmento-extra-" + i, new CarrinhoComprasFactory());
+			if (i > 0)
+				distribuida.retirarFragmento("fragmento-extra-" + (i - 1));
+			distribuida.getValorTicketMedio();
+		}
+		restantes = new HashMap<>();
+		for (Future<Map<String, CarrinhoCompras>> tarefa : tarefas)
+			restantes.putAll(tarefa.get());
+		executor.shutdown();
+
+		for (int t = 0; t < tarefas.size(); t++)
+		{
+			for (int i = 0; i < 300; i++)
+			{
+				cliente = "cliente-" + t + "-" + i;
+				Assertions.assertSame(restantes.get(cliente),
+						distribuida.fragmentoDo(cliente).conjuntoCarrinhoCompras.get(cliente));
+			}
+		}
+		Assertions.assertEquals(3, distribuida.getNumeroDeFragmentos());
+	}
+}
@@ -2,15 +2,40 @@ package br.com.improving.carrinho;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class CarrinhoComprasFactoryTest
 {
@@ -108,4 +133,894 @@ class CarrinhoComprasFactoryTest
 		factory.invalidar(identificaçãoCarrinho);
 		Assertions.assertEquals(factory.conjuntoCarrinhoCompras.size(), 0);
 	}
-}
\ No newline at end of file
+
+	@Test
+	@Order(5)
+	@DisplayName("Testar se o ticket medio acompanha alteracoes nos itens e a invalidacao de carrinhos")
+	void getValorTicketMedioAposAlteracoesEInvalidacao()
+	{
+		CarrinhoCompras	carrinhoComprasCriado1;
+		CarrinhoCompras	carrinhoComprasCriado2;
+		Produto[]		produtos;
+
+		produtos = CarrinhoComprasTest.geradorDeProdutos(2);
+		carrinhoComprasCriado1 = factory.criar("cliente-1");
+		carrinhoComprasCriado2 = factory.criar("cliente-2");
+		carrinhoComprasCriado1.adicionarItem(produtos[0], new BigDecimal("10.01"), 1);
+		carrinhoComprasCriado2.adicionarItem(produtos[1], new BigDecimal("5"), 2);
+		Assertions.assertEquals(new BigDecimal("10.01"), factory.getValorTicketMedio());
+		carrinhoComprasCriado2.getItem(0).setQuantidade(1);
+		Assertions.assertEquals(new BigDecimal("7.51"), factory.getValorTicketMedio());
+		factory.invalidar("cliente-1");
+		carrinhoComprasCriado1.adicionarItem(produtos[1], new BigDecimal("100"), 1);
+		Assertions.assertEquals(new BigDecimal("5.00"), factory.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(6)
+	@DisplayName("Testar se o ticket medio de uma fabrica sem carrinhos e zero")
+	void getValorTicketMedioSemCarrinhos()
+	{
+		Assertions.assertEquals(new BigDecimal("0.00"), factory.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(7)
+	@DisplayName("Testar criacao e invalidacao concorrentes de carrinhos")
+	void criarEInvalidarConcorrentemente() throws Exception
+	{
+		int										numeroDeThreads;
+		int										numeroDeClientes;
+		ExecutorService							executor;
+		ConcurrentMap<String, CarrinhoCompras>	carrinhosCriados;
+		List<Future<Integer>>					resultados;
+		int										invalidacoesComSucesso;
+
+		numeroDeThreads = 8;
+		numeroDeClientes = 2000;
+		carrinhosCriados = new ConcurrentHashMap<>();
+		executor = Executors.newFixedThreadPool(numeroDeThreads);
+		try
+		{
+			resultados = new ArrayList<>();
+			for (int t = 0; t < numeroDeThreads; t++)
+			{
+				resultados.add(executor.submit(() -> {
+					for (int i = 0; i < numeroDeClientes; i++)
+					{
+						CarrinhoCompras carrinhoCompras = factory.criar("cliente-" + i);
+						Assertions.assertSame(
+								carrinhosCriados.computeIfAbsent("cliente-" + i, id -> carrinhoCompras),
+								carrinhoCompras);
+						carrinhoCompras.adicionarItem(new Produto(1L, "Produto-1"), BigDecimal.ONE, 1);
+					}
+					return 0;
+				}));
+			}
+			for (Future<Integer> resultado : resultados)
+				resultado.get();
+			Assertions.assertEquals(new BigDecimal("8.00"), factory.getValorTicketMedio());
+			resultados.clear();
+			for (int t = 0; t < numeroDeThreads; t++)
+			{
+				resultados.add(executor.submit(() -> {
+					int	invalidacoes = 0;
+
+					for (int i = 0; i < numeroDeClientes; i++)
+						if (factory.invalidar("cliente-" + i))
+							invalidacoes++;
+					return invalidacoes;
+				}));
+			}
+			invalidacoesComSucesso = 0;
+			for (Future<Integer> resultado : resultados)
+				invalidacoesComSucesso += resultado.get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		Assertions.assertEquals(numeroDeClientes, invalidacoesComSucesso);
+		Assertions.assertTrue(factory.conjuntoCarrinhoCompras.isEmpty());
+		Assertions.assertEquals(new BigDecimal("0.00"), factory.getValorTicketMedio());
+		factory.criar("cliente-final");
+		Assertions.assertEquals(new BigDecimal("0.00"), factory.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(8)
+	@DisplayName("Testar se carrinhos ociosos expiram e saem do ticket medio")
+	void expirarCarrinhosOciosos()
+	{
+		RelogioManual	relogio;
+		CarrinhoCompras	carrinhoOcioso;
+		CarrinhoCompras	carrinhoAtivo;
+		Produto[]		produtos;
+
+		relogio = new RelogioManual();
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comExpiracaoPorOciosidade(Duration.ofMinutes(30))
+				.comResolucaoExpiracao(Duration.ofSeconds(1), 64)
+				.comRelogio(relogio));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(2);
+		carrinhoOcioso = factory.criar("cliente-ocioso");
+		carrinhoAtivo = factory.criar("cliente-ativo");
+		carrinhoOcioso.adicionarItem(produtos[0], new BigDecimal("100"), 1);
+		carrinhoAtivo.adicionarItem(produtos[1], new BigDecimal("10"), 1);
+		Assertions.assertEquals(new BigDecimal("55.00"), factory.getValorTicketMedio());
+
+		relogio.avancar(Duration.ofMinutes(20));
+		carrinhoAtivo.getItem(0).setQuantidade(2);
+		relogio.avancar(Duration.ofMinutes(10).minusSeconds(1));
+		Assertions.assertEquals(0, factory.expirarCarrinhosOciosos());
+		relogio.avancar(Duration.ofSeconds(2));
+		Assertions.assertEquals(new BigDecimal("20.00"), factory.getValorTicketMedio());
+		Assertions.assertFalse(factory.conjuntoCarrinhoCompras.containsKey("cliente-ocioso"));
+		Assertions.assertFalse(factory.invalidar("cliente-ocioso"));
+
+		relogio.avancar(Duration.ofMinutes(19));
+		Assertions.assertSame(carrinhoAtivo, factory.criar("cliente-ativo"));
+		relogio.avancar(Duration.ofMinutes(29));
+		Assertions.assertEquals(0, factory.expirarCarrinhosOciosos());
+		relogio.avancar(Duration.ofHours(5));
+		Assertions.assertEquals(1, factory.expirarCarrinhosOciosos());
+		Assertions.assertTrue(factory.conjuntoCarrinhoCompras.isEmpty());
+		Assertions.assertEquals(new BigDecimal("0.00"), factory.getValorTicketMedio());
+		Assertions.assertNotSame(carrinhoAtivo, factory.criar("cliente-ativo"));
+	}
+
+	@Test
+	@Order(9)
+	@DisplayName("Testar se carrinhos descarregados para o arquivo continuam no ticket medio e voltam no acesso")
+	void limitarCarrinhosEmMemoria(@TempDir Path diretorio)
+	{
+		CarrinhoCompras[]	carrinhos;
+		Produto[]			produtos;
+		CarrinhoCompras		carrinhoInvalidado;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comTipoArmazenamentoItens(TipoArmazenamentoItens.PRIMITIVOS)
+				.comLimiteCarrinhosEmMemoria(2, diretorio.resolve("carrinhos.despejo")));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(50);
+		carrinhos = new CarrinhoCompras[10];
+		for (int i = 0; i < carrinhos.length; i++)
+		{
+			carrinhos[i] = factory.criar("cliente-" + i);
+			for (int j = 0; j <= i; j++)
+				carrinhos[i].adicionarItem(produtos[i + j], new BigDecimal(j + ".5"), j + 1);
+		}
+		for (int i = 0; i < carrinhos.length; i++)
+			factory.criar("cliente-" + i);
+		Assertions.assertEquals(2, factory.despejo.numeroResidentes());
+		Assertions.assertEquals(10, factory.conjuntoCarrinhoCompras.size());
+		Assertions.assertEquals(new BigDecimal("110.00"), factory.getValorTicketMedio());
+
+		for (int i = 0; i < carrinhos.length; i++)
+		{
+			Assertions.assertSame(carrinhos[i], factory.criar("cliente-" + i));
+			Assertions.assertEquals(i + 1, carrinhos[i].getItens().size());
+			Assertions.assertEquals(produtos[2 * i], carrinhos[i].getItem(i).getProduto());
+			Assertions.assertEquals(new BigDecimal(i + ".5"), carrinhos[i].getItem(i).getValorUnitario());
+			Assertions.assertEquals(i + 1, carrinhos[i].getItem(i).getQuantidade());
+		}
+		Assertions.assertEquals(2, factory.despejo.numeroResidentes());
+
+		carrinhos[0].getItem(0).setQuantidade(11);
+		carrinhoInvalidado = carrinhos[1];
+		Assertions.assertTrue(factory.invalidar("cliente-1"));
+		Assertions.assertEquals(2, carrinhoInvalidado.getItens().size());
+		Assertions.assertEquals(new BigDecimal("122.39"), factory.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(10)
+	@DisplayName("Testar se uma fabrica com registro duravel recupera os carrinhos do snapshot e do registro")
+	void recuperarCarrinhosDoRegistro(@TempDir Path diretorio)
+	{
+		ConfiguracaoCarrinhoComprasFactory	configuracao;
+		CarrinhoComprasFactory				recuperada;
+		Produto[]							produtos;
+		Random								aleatorio;
+		CarrinhoCompras						carrinhoCompras;
+
+		configuracao = new ConfiguracaoCarrinhoComprasFactory().comRegistroDuravel(diretorio);
+		configuracao.tamanhoSegmentoRegistro = 4096;
+		factory = new CarrinhoComprasFactory(configuracao);
+		produtos = CarrinhoComprasTest.geradorDeProdutos(20);
+		aleatorio = new Random(3);
+		for (int i = 0; i < 2000; i++)
+		{
+			if (i == 1000)
+				factory.gravarSnapshot();
+			carrinhoCompras = factory.criar("cliente-" + aleatorio.nextInt(30));
+			switch (aleatorio.nextInt(6))
+			{
+				case 0:
+					carrinhoCompras.removerItem(aleatorio.nextInt(5));
+					break;
+				case 1:
+					carrinhoCompras.removerItem(produtos[aleatorio.nextInt(20)]);
+					break;
+				case 2:
+					if (carrinhoCompras.getItem(0) != null)
+						carrinhoCompras.getItem(0).setQuantidade(1 + aleatorio.nextInt(9));
+					break;
+				case 3:
+					carrinhoCompras.adicionarItensAoCarrinho(new Item[] {
+							new Item(produtos[aleatorio.nextInt(20)], new BigDecimal("1.25"), 2),
+							new Item(produtos[aleatorio.nextInt(20)], new BigDecimal("3"), 1) });
+					break;
+				case 4:
+					if (aleatorio.nextInt(4) == 0)
+						factory.invalidar("cliente-" + aleatorio.nextInt(30));
+					break;
+				default:
+					carrinhoCompras.adicionarItem(produtos[aleatorio.nextInt(20)],
+							new BigDecimal(aleatorio.nextInt(1000)).movePointLeft(aleatorio.nextInt(3)), 1 + aleatorio.nextInt(3));
+			}
+		}
+
+		recuperada = new CarrinhoComprasFactory(configuracao);
+		Assertions.assertEquals(factory.conjuntoCarrinhoCompras.keySet(), recuperada.conjuntoCarrinhoCompras.keySet());
+		for (String identificacaoCliente : factory.conjuntoCarrinhoCompras.keySet())
+		{
+			carrinhoCompras = factory.conjuntoCarrinhoCompras.get(identificacaoCliente);
+			Assertions.assertEquals(descrever(carrinhoCompras),
+					descrever(recuperada.conjuntoCarrinhoCompras.get(identificacaoCliente)));
+		}
+		Assertions.assertEquals(factory.getValorTicketMedio(), recuperada.getValorTicketMedio());
+		recuperada.criar("cliente-novo").adicionarItem(produtos[0], BigDecimal.TEN, 1);
+		Assertions.assertEquals(new BigDecimal("10"), new CarrinhoComprasFactory(configuracao)
+				.criar("cliente-novo").getValorTotal());
+	}
+
+	@Test
+	@Order(11)
+	@DisplayName("Testar se a analise paralela confere com a soma carrinho a carrinho, inclusive descarregados")
+	void analisarCarrinhosEmParalelo(@TempDir Path diretorio)
+	{
+		Produto[]				produtos;
+		Random					aleatorio;
+		CarrinhoCompras			carrinhoCompras;
+		AnaliseCarrinhos		analise;
+		Map<Long, BigDecimal>	receitas;
+		Map<Long, Long>			unidades;
+		long[]					faixas;
+		List<BigDecimal>		valores;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comLimiteCarrinhosEmMemoria(500, diretorio.resolve("carrinhos.despejo")));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(200);
+		aleatorio = new Random(16);
+		for (int i = 0; i < 5_000; i++)
+		{
+			carrinhoCompras = factory.criar("cliente-" + i);
+			for (int j = aleatorio.nextInt(6); j > 0; j--)
+				carrinhoCompras.adicionarItem(produtos[aleatorio.nextInt(produtos.length)],
+						BigDecimal.valueOf(aleatorio.nextInt(10_000), 2), 1 + aleatorio.nextInt(4));
+		}
+		Assertions.assertEquals(500, factory.despejo.numeroResidentes());
+
+		analise = factory.analisarCarrinhos(3, new BigDecimal("50"), new BigDecimal("200"));
+
+		receitas = new HashMap<>();
+		unidades = new HashMap<>();
+		faixas = new long[3];
+		valores = new ArrayList<>();
+		for (CarrinhoCompras carrinho : factory.conjuntoCarrinhoCompras.values())
+		{
+			for (Item item : carrinho.getItens())
+			{
+				receitas.merge(item.getProduto().getCodigo(), item.getValorTotal(), BigDecimal::add);
+				unidades.merge(item.getProduto().getCodigo(), (long) item.getQuantidade(), Long::sum);
+			}
+			faixas[carrinho.getValorTotal().compareTo(new BigDecimal("50")) < 0 ? 0
+					: carrinho.getValorTotal().compareTo(new BigDecimal("200")) < 0 ? 1 : 2]++;
+			valores.add(carrinho.getValorTotal());
+		}
+		valores.sort(Comparator.reverseOrder());
+
+		Assertions.assertEquals(5_000, analise.getQuantidadeCarrinhos());
+		Assertions.assertEquals(unidades, analise.getUnidadesPorProduto());
+		Assertions.assertEquals(receitas.keySet(), analise.getReceitaPorProduto().keySet());
+		receitas.forEach((codigo, receita) -> Assertions.assertEquals(0,
+				receita.compareTo(analise.getReceitaPorProduto().get(codigo))));
+		Assertions.assertArrayEquals(faixas, analise.getCarrinhosPorFaixa());
+		Assertions.assertEquals(3, analise.getMaioresCarrinhos().size());
+		for (int i = 0; i < 3; i++)
+			Assertions.assertEquals(0, valores.get(i).compareTo(analise.getMaioresCarrinhos().get(i).getValue()));
+		Assertions.assertEquals(factory.getValorTicketMedio(), analise.getValorTotal()
+				.divide(new BigDecimal(analise.getQuantidadeCarrinhos()), 2, RoundingMode.HALF_UP));
+	}
+
+	@Test
+	@Order(12)
+	@DisplayName("Testar se as metricas contam as operacoes e sao publicadas no JMX e no relator")
+	void publicarMetricas() throws Exception
+	{
+		CountDownLatch			relatado;
+		Produto[]				produtos;
+		CarrinhoCompras			carrinhoCompras;
+		MetricasCarrinhosMBean	metricas;
+		ObjectName				nome;
+
+		relatado = new CountDownLatch(1);
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comMetricasJmx("teste-metricas")
+				.comRelatorMetricas(metricasRelatadas -> relatado.countDown(), Duration.ofMillis(10)));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		carrinhoCompras = factory.criar("cliente-1");
+		factory.criar("cliente-1");
+		factory.criar("cliente-2");
+		carrinhoCompras.adicionarItem(produtos[0], BigDecimal.ONE, 1);
+		carrinhoCompras.adicionarItem(produtos[0], BigDecimal.ONE, 2);
+		carrinhoCompras.adicionarItem(produtos[1], BigDecimal.TEN, 1);
+		carrinhoCompras.adicionarItensAoCarrinho(new Item[] { new Item(produtos[2], BigDecimal.ONE, 1) });
+		Assertions.assertTrue(carrinhoCompras.removerItem(produtos[1]));
+		Assertions.assertFalse(carrinhoCompras.removerItem(5));
+		factory.criar("cliente-2").adicionarItem(produtos[1], BigDecimal.TEN, 1);
+		Assertions.assertTrue(factory.invalidar("cliente-2"));
+		Assertions.assertFalse(factory.invalidar("cliente-2"));
+
+		metricas = factory.metricas;
+		Assertions.assertEquals(2, metricas.getCriacoesNovas());
+		Assertions.assertEquals(2, metricas.getCriacoesExistentes());
+		Assertions.assertEquals(1, metricas.getInvalidacoes());
+		Assertions.assertEquals(3, metricas.getInclusoesLinha());
+		Assertions.assertEquals(1, metricas.getCombinacoesLinha());
+		Assertions.assertEquals(1, metricas.getRemocoes());
+		Assertions.assertEquals(1, metricas.getCarrinhosAtivos());
+		Assertions.assertEquals(2, metricas.getLinhas());
+		Assertions.assertTrue(metricas.percentilLatencia("ADICIONAR_ITEM", 50) > 0);
+		Assertions.assertEquals(4, Arrays.stream(metricas.histogramaLatencia("CRIAR")).sum());
+		Assertions.assertEquals(2, Arrays.stream(metricas.histogramaLatencia("REMOVER_ITEM")).sum());
+
+		nome = new ObjectName("br.com.improving.carrinho:type=CarrinhoComprasFactory,name=\"teste-metricas\"");
+		Assertions.assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(nome, "Linhas"));
+		Assertions.assertTrue(relatado.await(10, TimeUnit.SECONDS));
+		Assertions.assertNull(new CarrinhoComprasFactory().metricas);
+	}
+
+	private static String descrever(CarrinhoCompras carrinhoCompras)
+	{
+		StringBuilder	descricao;
+
+		descricao = new StringBuilder(carrinhoCompras.getValorTotal().toString());
+		for (Item item : carrinhoCompras.getItens())
+			descricao.append(';').append(item.getProduto().getCodigo()).append('x').append(item.getQuantidade())
+					.append('@').append(item.getValorUnitario());
+		return descricao.toString();
+	}
+
+	@Test
+	@Order(13)
+	@DisplayName("Testar se as alteracoes dos carrinhos sao publicadas como eventos em ordem e em lotes")
+	void publicarEventosDasAlteracoes()
+	{
+		List<String>				recebidos;
+		int[]						lotes;
+		Produto[]					produtos;
+		CarrinhoCompras				carrinhoCompras;
+		AssinaturaEventosCarrinho	assinatura;
+
+		recebidos = new ArrayList<>();
+		lotes = new int[1];
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory().comEventos(1_000));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(2);
+		assinatura = factory.assinarEventos(new ConsumidorEventosCarrinho()
+		{
+			@Override
+			public void consumir(EventoCarrinho evento)
+			{
+				recebidos.add(evento.getSequencia() + " " + evento.getTipo() + " " + evento.getIdentificacaoCliente() + " "
+						+ evento.getCodigoProduto() + " " + evento.getQuantidade() + " " + evento.getValorTotal());
+			}
+
+			@Override
+			public void fimDoLote()
+			{
+				lotes[0]++;
+			}
+		});
+		carrinhoCompras = factory.criar("cliente-1");
+		factory.criar("cliente-1");
+		carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("1.50"), 1);
+		carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("1.50"), 2);
+		carrinhoCompras.adicionarItensAoCarrinho(new Item[] { new Item(produtos[1], BigDecimal.TEN, 1) });
+		carrinhoCompras.getItem(0).setQuantidade(5);
+		assertFalse(carrinhoCompras.removerItem(5));
+		assertTrue(carrinhoCompras.removerItem(produtos[1]));
+		assertTrue(factory.invalidar("cliente-1"));
+		carrinhoCompras.adicionarItem(produtos[1], BigDecimal.ONE, 1);
+
+		assertEquals(2, assinatura.processar(2));
+		assertEquals(5, assinatura.getAtraso());
+		assertEquals(5, assinatura.processar(100));
+		assertEquals(0, assinatura.processar(100));
+		assertEquals(Arrays.asList(
+				"0 CRIACAO cliente-1 0 0 0",
+				"1 INCLUSAO_LINHA cliente-1 1 1 1.50",
+				"2 COMBINACAO_LINHA cliente-1 1 3 4.50",
+				"3 INCLUSAO_LINHA cliente-1 2 1 14.50",
+				"4 ALTERACAO_LINHA cliente-1 1 5 17.50",
+				"5 REMOCAO_LINHA cliente-1 2 0 7.50",
+				"6 INVALIDACAO cliente-1 0 0 7.50"), recebidos);
+		assertEquals(2, lotes[0]);
+		assertEquals(0, assinatura.getEventosPerdidos());
+		assertThrows(IllegalStateException.class, () -> new CarrinhoComprasFactory().assinarEventos(evento -> {}));
+	}
+
+	@Test
+	@Order(14)
+	@DisplayName("Testar se um consumidor lento e detectado sem atrasar as alteracoes concorrentes")
+	void detectarConsumidorDeEventosAtrasado() throws Exception
+	{
+		Map<String, Integer>		ultimaQuantidade;
+		long[]						entregues;
+		long[]						ultimaSequencia;
+		long[]						perdidosInformados;
+		Thread[]					escritores;
+		AssinaturaEventosCarrinho	assinatura;
+		Produto						produto;
+
+		ultimaQuantidade = new HashMap<>();
+		entregues = new long[1];
+		ultimaSequencia = new long[] { -1 };
+		perdidosInformados = new long[1];
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory().comEventos(64));
+		produto = new Produto(1L, "Produto-1");
+		assinatura = factory.assinarEventos(new ConsumidorEventosCarrinho()
+		{
+			@Override
+			public void consumir(EventoCarrinho evento)
+			{
+				Integer	anterior;
+
+				assertTrue(evento.getSequencia() > ultimaSequencia[0]);
+				ultimaSequencia[0] = evento.getSequencia();
+				entregues[0]++;
+				if (evento.getTipo() == TipoEventoCarrinho.COMBINACAO_LINHA)
+				{
+					anterior = ultimaQuantidade.put(evento.getIdentificacaoCliente(), evento.getQuantidade());
+					assertTrue(anterior == null || anterior < evento.getQuantidade());
+					assertEquals(BigDecimal.valueOf(evento.getQuantidade()), evento.getValorTotal());
+				}
+			}
+
+			@Override
+			public void atrasado(long eventosPerdidos)
+			{
+				perdidosInformados[0] += eventosPerdidos;
+			}
+		});
+		escritores = new Thread[4];
+		for (int t = 0; t < escritores.length; t++)
+		{
+			String	identificacaoCliente = "cliente-" + t;
+
+			escritores[t] = new Thread(() -> {
+				CarrinhoCompras	carrinhoCompras;
+
+				carrinhoCompras = factory.criar(identificacaoCliente);
+				for (int i = 0; i < 20_000; i++)
+					carrinhoCompras.adicionarItem(produto, BigDecimal.ONE, 1);
+			});
+			escritores[t].start();
+		}
+		while (algumaViva(escritores))
+		{
+			assinatura.processar(16);
+			Thread.sleep(1);
+		}
+		while (assinatura.processar(16) > 0)
+			;
+
+		assertEquals(escritores.length * 20_001L, entregues[0] + assinatura.getEventosPerdidos());
+		assertTrue(assinatura.getEventosPerdidos() > 0);
+		assertEquals(assinatura.getEventosPerdidos(), perdidosInformados[0]);
+		assertEquals(0, assinatura.getAtraso());
+		for (int t = 0; t < escritores.length; t++)
+			assertEquals(new BigDecimal(20_000), factory.criar("cliente-" + t).getValorTotal());
+	}
+
+	@Test
+	@Order(15)
+	@DisplayName("Testar se os indices por produto e por valor acompanham alteracoes, despejo e invalidacao")
+	void buscarCarrinhosPelosIndices(@TempDir Path diretorio)
+	{
+		CarrinhoCompras[]	carrinhos;
+		Produto[]			produtos;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comIndicesSecundarios()
+				.comLimiteCarrinhosEmMemoria(2, diretorio.resolve("carrinhos.despejo")));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		carrinhos = new CarrinhoCompras[4];
+		for (int i = 0; i < carrinhos.length; i++)
+			carrinhos[i] = factory.criar("cliente-" + i);
+		carrinhos[0].adicionarItem(produtos[0], new BigDecimal("500"), 1);
+		carrinhos[1].adicionarItem(produtos[0], new BigDecimal("1200"), 1);
+		carrinhos[1].adicionarItem(produtos[1], new BigDecimal("10"), 1);
+		carrinhos[2].adicionarItem(produtos[1], new BigDecimal("400"), 3);
+		assertEquals(Arrays.asList("cliente-0", "cliente-1"), ordenados(factory.buscarClientesComProduto(produtos[0])));
+		assertEquals(Arrays.asList("cliente-1", "cliente-2"), ordenados(factory.buscarClientesComProduto(produtos[1])));
+		assertTrue(factory.buscarClientesComProduto(produtos[2]).isEmpty());
+		assertEquals(Arrays.asList("cliente-1", "cliente-2"), factory.buscarClientesComValorAcimaDe(new BigDecimal("1000")));
+		assertEquals(Arrays.asList("cliente-1"), factory.buscarClientesComValorAcimaDe(new BigDecimal("1200")));
+		assertEquals(4, factory.buscarClientesComValorAcimaDe(new BigDecimal("-0.01")).size());
+
+		carrinhos[1].removerItem(produtos[0]);
+		assertEquals(Arrays.asList("cliente-0"), factory.buscarClientesComProduto(produtos[0]));
+		assertEquals(Arrays.asList("cliente-2"), factory.buscarClientesComValorAcimaDe(new BigDecimal("1000")));
+		assertTrue(factory.invalidar("cliente-2"));
+		assertEquals(Arrays.asList("cliente-1"), factory.buscarClientesComProduto(produtos[1]));
+		assertTrue(factory.buscarClientesComValorAcimaDe(new BigDecimal("1000")).isEmpty());
+		carrinhos[3].adicionarItensAoCarrinho(new Item[] { new Item(produtos[2], new BigDecimal("600"), 2) });
+		carrinhos[0].getItem(0).setQuantidade(3);
+		assertEquals(Arrays.asList("cliente-3"), factory.buscarClientesComProduto(produtos[2]));
+		assertEquals(Arrays.asList("cliente-0", "cliente-3"), factory.buscarClientesComValorAcimaDe(new BigDecimal("1000")));
+		assertThrows(IllegalStateException.class,
+				() -> new CarrinhoComprasFactory().buscarClientesComProduto(produtos[0]));
+	}
+
+	@Test
+	@Order(16)
+	@DisplayName("Testar se os indices conferem com a varredura dos carrinhos apos alteracoes concorrentes")
+	void manterIndicesConcorrentemente() throws Exception
+	{
+		Thread[]			escritores;
+		Produto[]			produtos;
+		List<String>		clientes;
+		List<String>		esperados;
+		BigDecimal			limite;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory().comIndicesSecundarios());
+		produtos = CarrinhoComprasTest.geradorDeProdutos(10);
+		escritores = new Thread[4];
+		for (int t = 0; t < escritores.length; t++)
+		{
+			final int semente = t;
+
+			escritores[t] = new Thread(() -> {
+				Random aleatorio = new Random(semente);
+
+				for (int i = 0; i < 20_000; i++)
+				{
+					String cliente = "cliente-" + aleatorio.nextInt(20);
+					Produto produto = produtos[aleatorio.nextInt(produtos.length)];
+					int operacao = aleatorio.nextInt(10);
+
+					if (operacao < 6)
+						factory.criar(cliente).adicionarItem(produto, new BigDecimal(aleatorio.nextInt(100)), 1);
+					else if (operacao < 9)
+						factory.criar(cliente).removerItem(produto);
+					else
+						factory.invalidar(cliente);
+				}
+			});
+			escritores[t].start();
+		}
+		for (Thread escritor : escritores)
+			escritor.join();
+
+		for (Produto produto : produtos)
+		{
+			esperados = new ArrayList<>();
+			for (Map.Entry<String, CarrinhoCompras> entrada : factory.conjuntoCarrinhoCompras.entrySet())
+				if (entrada.getValue().getItens().stream().anyMatch(item -> item.getProduto().equals(produto)))
+					esperados.add(entrada.getKey());
+			assertEquals(ordenados(esperados), ordenados(factory.buscarClientesComProduto(produto)));
+		}
+		for (int valor = 0; valor < 1_000; valor += 50)
+		{
+			limite = new BigDecimal(valor);
+			esperados = new ArrayList<>();
+			for (Map.Entry<String, CarrinhoCompras> entrada : factory.conjuntoCarrinhoCompras.entrySet())
+				if (entrada.getValue().getValorTotal().compareTo(limite) > 0)
+					esperados.add(entrada.getKey());
+			clientes = factory.buscarClientesComValorAcimaDe(limite);
+			assertEquals(ordenados(esperados), ordenados(clientes));
+			for (int i = 1; i < clientes.size(); i++)
+				assertTrue(factory.criar(clientes.get(i - 1)).getValorTotal()
+						.compareTo(factory.criar(clientes.get(i)).getValorTotal()) >= 0);
+		}
+	}
+
+	@Test
+	@Order(17)
+	@DisplayName("Testar se recargas fora de criar respeitam o limite em memoria e se close fecha o arquivo")
+	void limitarRecargasForaDeCriar(@TempDir Path diretorio) throws Exception
+	{
+		CarrinhoCompras[]	carrinhos;
+		Produto[]			produtos;
+		long				prazo;
+		CarrinhoCompras		descarregado;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comLimiteCarrinhosEmMemoria(2, diretorio.resolve("carrinhos.despejo")));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(10);
+		carrinhos = new CarrinhoCompras[10];
+		for (int i = 0; i < carrinhos.length; i++)
+		{
+			carrinhos[i] = factory.criar("cliente-" + i);
+			carrinhos[i].adicionarItem(produtos[i], BigDecimal.ONE, i + 1);
+		}
+		Assertions.assertEquals(2, factory.despejo.numeroResidentes());
+
+		for (int i = 0; i < carrinhos.length; i++)
+			Assertions.assertEquals(1, carrinhos[i].getItens().size());
+		Assertions.assertEquals(2, factory.despejo.numeroResidentes());
+
+		for (int i = 0; i < carrinhos.length; i++)
+			CodecCarrinhoCompras.codificar(carrinhos[i], ByteBuffer.allocate(
+					CodecCarrinhoCompras.tamanhoCodificado(carrinhos[i], true)), true);
+		prazo = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (factory.despejo.numeroResidentes() > 2 && System.nanoTime() < prazo)
+			Thread.sleep(1);
+		Assertions.assertEquals(2, factory.despejo.numeroResidentes());
+		Assertions.assertEquals(new BigDecimal("5.50"), factory.getValorTicketMedio());
+
+		descarregado = Arrays.stream(carrinhos).filter(carrinho -> carrinho.descarregado).findAny().get();
+		factory.close();
+		factory.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> descarregado.getItens());
+	}
+
+	@Test
+	@Order(18)
+	@DisplayName("Testar se carrinhos criados durante snapshots concorrentes sao recuperados")
+	void recuperarCarrinhosCriadosDuranteSnapshots(@TempDir Path diretorio) throws Exception
+	{
+		ConfiguracaoCarrinhoComprasFactory	configuracao;
+		Thread[]							criadores;
+		CarrinhoComprasFactory				recuperada;
+
+		configuracao = new ConfiguracaoCarrinhoComprasFactory().comRegistroDuravel(diretorio);
+		factory = new CarrinhoComprasFactory(configuracao);
+		criadores = new Thread[4];
+		for (int t = 0; t < criadores.length; t++)
+		{
+			int	criador = t;
+
+			criadores[t] = new Thread(() -> {
+				for (int i = 0; i < 300; i++)
+					factory.criar("cliente-" + criador + "-" + i);
+			});
+			criadores[t].start();
+		}
+		while (algumaViva(criadores))
+			factory.gravarSnapshot();
+		factory.close();
+		factory.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> factory.criar("cliente-fechado"));
+
+		recuperada = new CarrinhoComprasFactory(configuracao);
+		Assertions.assertEquals(factory.conjuntoCarrinhoCompras.keySet(), recuperada.conjuntoCarrinhoCompras.keySet());
+		Assertions.assertEquals(criadores.length * 300, recuperada.conjuntoCarrinhoCompras.size());
+		recuperada.close();
+	}
+
+	@Test
+	@Order(19)
+	@DisplayName("Testar se uma alteracao que nao entra no registro duravel nao altera o carrinho")
+	void falharAoAnexarAoRegistro(@TempDir Path diretorio)
+	{
+		ConfiguracaoCarrinhoComprasFactory	configuracao;
+		Produto[]							produtos;
+		Produto								produtoGrande;
+		CarrinhoCompras						carrinhoCompras;
+		String								estadoAnterior;
+		char[]								descricaoGrande;
+
+		configuracao = new ConfiguracaoCarrinhoComprasFactory().comRegistroDuravel(diretorio);
+		configuracao.tamanhoSegmentoRegistro = 4096;
+		factory = new CarrinhoComprasFactory(configuracao);
+		produtos = CarrinhoComprasTest.geradorDeProdutos(2);
+		descricaoGrande = new char[5000];
+		Arrays.fill(descricaoGrande, 'x');
+		produtoGrande = new Produto(99L, new String(descricaoGrande));
+		carrinhoCompras = factory.criar("cliente-1");
+		carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("1.25"), 2);
+		estadoAnterior = descrever(carrinhoCompras);
+
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> carrinhoCompras.adicionarItem(produtoGrande, BigDecimal.ONE, 1));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> carrinhoCompras.adicionarItensAoCarrinho(
+				new Item[] { new Item(produtos[1], BigDecimal.TEN, 1), new Item(produtoGrande, BigDecimal.ONE, 1) }));
+		Assertions.assertEquals(estadoAnterior, descrever(carrinhoCompras));
+		Assertions.assertNull(carrinhoCompras.getItem(1));
+		Assertions.assertEquals(new BigDecimal("2.50"), factory.getValorTicketMedio());
+		Assertions.assertEquals(estadoAnterior, descrever(new CarrinhoComprasFactory(configuracao).criar("cliente-1")));
+
+		factory.close();
+		Assertions.assertThrows(IllegalStateException.class, () -> carrinhoCompras.getItem(0).setQuantidade(5));
+		Assertions.assertThrows(IllegalStateException.class, () -> carrinhoCompras.removerItem(produtos[0]));
+		Assertions.assertEquals(estadoAnterior, descrever(carrinhoCompras));
+		Assertions.assertEquals(2, carrinhoCompras.getInstantaneo().getItens().iterator().next().getQuantidade());
+		Assertions.assertEquals(new BigDecimal("2.50"), factory.getValorTicketMedio());
+	}
+
+	@Test
+	@Order(20)
+	@DisplayName("Testar se valores unitarios com fracoes de centavo dao os mesmos resultados de BigDecimal")
+	void manterFracoesDeCentavo(@TempDir Path diretorio)
+	{
+		ConfiguracaoCarrinhoComprasFactory	configuracao;
+		Produto[]							produtos;
+		CarrinhoCompras						carrinhoCompras;
+		Item								item;
+
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		item = new Item(produtos[0], new BigDecimal("0.125"), 2);
+		Assertions.assertEquals(new BigDecimal("0.125"), item.getValorUnitario());
+		Assertions.assertEquals(new BigDecimal("0.250"), item.getValorTotal());
+		for (TipoArmazenamentoItens tipo : TipoArmazenamentoItens.values())
+		{
+			configuracao = new ConfiguracaoCarrinhoComprasFactory()
+					.comTipoArmazenamentoItens(tipo)
+					.comLimiteCarrinhosEmMemoria(1, diretorio.resolve(tipo + ".despejo"))
+					.comRegistroDuravel(diretorio.resolve(tipo.toString()));
+			factory = new CarrinhoComprasFactory(configuracao);
+			carrinhoCompras = factory.criar("cliente-1");
+			carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("0.125"), 2);
+			carrinhoCompras.adicionarItem(produtos[1], new BigDecimal("1.50"), 1);
+			factory.criar("cliente-2").adicionarItem(produtos[2], new BigDecimal("0.335"), 1);
+
+			Assertions.assertEquals(new BigDecimal("0.125"), carrinhoCompras.getItem(0).getValorUnitario());
+			Assertions.assertEquals(new BigDecimal("0.250"), carrinhoCompras.getItem(0).getValorTotal());
+			Assertions.assertEquals(new BigDecimal("1.750"), carrinhoCompras.getValorTotal());
+			Assertions.assertEquals(new BigDecimal("1.750"), carrinhoCompras.getInstantaneo().getValorTotal());
+			Assertions.assertEquals(new BigDecimal("1.04"), factory.getValorTicketMedio());
+
+			Assertions.assertSame(carrinhoCompras, factory.criar("cliente-1"));
+			Assertions.assertEquals(new BigDecimal("0.125"), carrinhoCompras.getItem(0).getValorUnitario());
+			Assertions.assertEquals(new BigDecimal("1.750"), carrinhoCompras.getValorTotal());
+			Assertions.assertEquals(new BigDecimal("1.04"), factory.getValorTicketMedio());
+			Assertions.assertEquals(descrever(carrinhoCompras), descrever(new CarrinhoComprasFactory(
+					new ConfiguracaoCarrinhoComprasFactory().comTipoArmazenamentoItens(tipo)
+							.comRegistroDuravel(diretorio.resolve(tipo.toString()))).criar("cliente-1")));
+
+			carrinhoCompras.getItem(0).setQuantidade(3);
+			Assertions.assertEquals(new BigDecimal("1.875"), carrinhoCompras.getValorTotal());
+			Assertions.assertEquals(new BigDecimal("1.11"), factory.getValorTicketMedio());
+			Assertions.assertTrue(carrinhoCompras.removerItem(produtos[0]));
+			Assertions.assertEquals(new BigDecimal("1.500"), carrinhoCompras.getValorTotal());
+			Assertions.assertEquals(new BigDecimal("0.92"), factory.getValorTicketMedio());
+			factory.close();
+		}
+	}
+
+	@Test
+	@Order(21)
+	@DisplayName("Testar se a analise le os carrinhos descarregados sem esperar o bloqueio deles")
+	void analisarSemBloquearDescarregados(@TempDir Path diretorio) throws Exception
+	{
+		CarrinhoCompras[]	carrinhos;
+		Produto[]			produtos;
+		CountDownLatch		bloqueado;
+		CountDownLatch		liberar;
+		ExecutorService		executor;
+		Future<?>			bloqueio;
+		AnaliseCarrinhos	analise;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comLimiteCarrinhosEmMemoria(1, diretorio.resolve("carrinhos.despejo")));
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		carrinhos = new CarrinhoCompras[3];
+		for (int i = 0; i < carrinhos.length; i++)
+		{
+			carrinhos[i] = factory.criar("cliente-" + i);
+			carrinhos[i].adicionarItem(produtos[i], new BigDecimal("10.00"), i + 1);
+		}
+		factory.criar("cliente-2");
+		Assertions.assertEquals(1, factory.despejo.numeroResidentes());
+		Assertions.assertTrue(carrinhos[0].descarregado);
+
+		bloqueado = new CountDownLatch(1);
+		liberar = new CountDownLatch(1);
+		executor = Executors.newSingleThreadExecutor();
+		bloqueio = executor.submit(() ->
+		{
+			synchronized (carrinhos[0])
+			{
+				bloqueado.countDown();
+				liberar.await();
+			}
+			return null;
+		});
+		try
+		{
+			bloqueado.await();
+			analise = assertTimeoutPreemptively(Duration.ofSeconds(10),
+					() -> factory.analisarCarrinhos(1, new BigDecimal("25")));
+		}
+		finally
+		{
+			liberar.countDown();
+			bloqueio.get();
+			executor.shutdown();
+		}
+		Assertions.assertEquals(3, analise.getQuantidadeCarrinhos());
+		Assertions.assertEquals(6L, analise.getUnidadesPorProduto().values().stream().mapToLong(Long::longValue).sum());
+		Assertions.assertArrayEquals(new long[] { 2, 1 }, analise.getCarrinhosPorFaixa());
+	}
+
+	@Test
+	@Order(22)
+	@DisplayName("Testar se a expiracao em segundo plano invalida carrinhos ociosos sem chamadas a fabrica")
+	void expirarCarrinhosEmSegundoPlano() throws InterruptedException
+	{
+		RelogioManual	relogio;
+		CarrinhoCompras	carrinhoOcioso;
+
+		relogio = new RelogioManual();
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comExpiracaoPorOciosidade(Duration.ofMinutes(30))
+				.comResolucaoExpiracao(Duration.ofSeconds(1), 64)
+				.comExpiracaoEmSegundoPlano(Duration.ofMillis(10))
+				.comRelogio(relogio));
+		carrinhoOcioso = factory.criar("cliente-ocioso");
+		carrinhoOcioso.adicionarItem(CarrinhoComprasTest.geradorDeProdutos(1)[0], new BigDecimal("100"), 1);
+		factory.criar("cliente-ativo");
+
+		relogio.avancar(Duration.ofMinutes(31));
+		for (int tentativa = 0; tentativa < 500 && !factory.conjuntoCarrinhoCompras.isEmpty(); tentativa++)
+			Thread.sleep(10);
+		Assertions.assertTrue(factory.conjuntoCarrinhoCompras.isEmpty());
+		Assertions.assertNull(carrinhoOcioso.fabrica);
+
+		factory.close();
+		factory.criar("cliente-novo");
+		relogio.avancar(Duration.ofMinutes(31));
+		Thread.sleep(100);
+		Assertions.assertTrue(factory.conjuntoCarrinhoCompras.containsKey("cliente-novo"));
+	}
+
+	private static List<String> ordenados(List<String> clientes)
+	{
+		List<String>	copia;
+
+		copia = new ArrayList<>(clientes);
+		copia.sort(Comparator.naturalOrder());
+		return copia;
+	}
+
+	private static boolean algumaViva(Thread[] threads)
+	{
+		for (Thread thread : threads)
+			if (thread.isAlive())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Relógio que só avança quando o teste manda.
+	 */
+	static class RelogioManual extends Clock
+	{
+		private volatile Instant	agora = Instant.parse("2024-01-01T00:00:00Z");
+
+		void avancar(Duration duracao)
+		{
+			agora = agora.plus(duracao);
+		}
+
+		@Override
+		public ZoneId getZone()
+		{
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zona)
+		{
+			return this;
+		}
+
+		@Override
+		public Instant instant()
+		{
+			return agora;
+		}
+	}
+}
@@ -2,6 +2,13 @@ package br.com.improving.carrinho;
 
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.management.AttributeNotFoundException;
 
@@ -227,6 +234,295 @@ class CarrinhoComprasTest
 						carrinhoCompras.getItens().toArray());
 	}
 
+	/**
+	 * Cenario 9: Testa a remoção por produto de um item cuja quantidade foi alterada após a inclusão
+	 *
+	 * Validação:
+	 * 	O item continua sendo localizado pelo produto mesmo depois de ter quantidade e valor alterados.
+	 */
+	@Test
+	@Order(9)
+	@DisplayName("Testa a remoção por produto de um item alterado após a inclusão")
+	void removerItemAlteradoAposInclusao()
+	{
+		Item[]	itensAdicionados;
+
+		itensAdicionados = gerarItensEAdicionarAoCarrinho(3);
+		carrinhoCompras.adicionarItem(itensAdicionados[1].getProduto(), new BigDecimal(25), 5);
+		Assertions.assertTrue(carrinhoCompras.removerItem(itensAdicionados[1].getProduto()));
+		Assertions.assertFalse(carrinhoCompras.removerItem(itensAdicionados[1].getProduto()));
+		Assertions.assertEquals(2, carrinhoCompras.getItens().size());
+	}
+
+	/**
+	 * Cenario 10: Testa a obtenção e a remoção por posição em um carrinho com muitos itens
+	 *
+	 * Validação:
+	 * 	Após remoções intercaladas por posição e por produto, os itens obtidos por posição e a
+	 * 	ordem de getItens() correspondem a uma lista com as mesmas operações.
+	 */
+	@Test
+	@Order(10)
+	@DisplayName("Testa a obtenção e a remoção por posição em um carrinho com muitos itens")
+	void obterERemoverItemPorPosicao()
+	{
+		Item[]		itensAdicionados;
+		List<Item>	itensEsperados;
+		Random		aleatorio;
+		int			posicao;
+
+		itensAdicionados = gerarItensEAdicionarAoCarrinho(1000);
+		itensEsperados = new ArrayList<>(Arrays.asList(itensAdicionados));
+		aleatorio = new Random(42);
+		for (int i = 0; i < 900; i++)
+		{
+			posicao = aleatorio.nextInt(itensEsperados.size());
+			if (i % 3 == 0)
+				Assertions.assertTrue(carrinhoCompras.removerItem(itensEsperados.remove(posicao).getProduto()));
+			else
+			{
+				Assertions.assertEquals(itensEsperados.get(posicao), carrinhoCompras.getItem(posicao));
+				Assertions.assertTrue(carrinhoCompras.removerItem(posicao));
+				itensEsperados.remove(posicao);
+			}
+		}
+		Assertions.assertFalse(carrinhoCompras.removerItem(itensEsperados.size()));
+		Assertions.assertNull(carrinhoCompras.getItem(-1));
+		Assertions.assertArrayEquals(itensEsperados.toArray(), carrinhoCompras.getItens().toArray());
+	}
+
+	/**
+	 * Cenario 11: Testa se o valor total do carrinho acompanha alterações feitas diretamente nos itens
+	 *
+	 * Validação:
+	 * 	O valor total reflete setters chamados em itens obtidos por getItem e remoções, e a
+	 * 	coleção retornada por getItens() não pode ser alterada diretamente.
+	 */
+	@Test
+	@Order(11)
+	@DisplayName("Testa se o valor total do carrinho acompanha alterações feitas diretamente nos itens")
+	void getValorTotalAposAlterarItens()
+	{
+		Item	itemDoCarrinho;
+
+		gerarItensEAdicionarAoCarrinho(3);
+		itemDoCarrinho = carrinhoCompras.getItem(2);
+		itemDoCarrinho.setQuantidade(10);
+		itemDoCarrinho.setValorUnitario(new BigDecimal(5));
+		Assertions.assertEquals(BigDecimal.valueOf(10 + 40 + 50), carrinhoCompras.getValorTotal());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> itemDoCarrinho.setQuantidade(-1));
+		carrinhoCompras.removerItem(0);
+		Assertions.assertEquals(BigDecimal.valueOf(40 + 50), carrinhoCompras.getValorTotal());
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> carrinhoCompras.getItens().clear());
+		carrinhoCompras.removerItem(itemDoCarrinho.getProduto());
+		itemDoCarrinho.setQuantidade(1000);
+		Assertions.assertEquals(BigDecimal.valueOf(40), carrinhoCompras.getValorTotal());
+	}
+
+	/**
+	 * Cenario 12: Testa a adição de itens em lote com produtos repetidos e com item inválido
+	 *
+	 * Validação:
+	 * 	Um lote com produtos repetidos produz o mesmo carrinho que adicionar os itens um a um, e um
+	 * 	lote com um item inválido não altera o carrinho.
+	 */
+	@Test
+	@Order(12)
+	@DisplayName("Testa a adição de itens em lote com produtos repetidos e com item inválido")
+	void adicionarItensEmLote()
+	{
+		Produto[]		produtos;
+		Item[]			lote;
+		CarrinhoCompras	carrinhoItemAItem;
+		String			itensAntesDoLoteInvalido;
+
+		produtos = geradorDeProdutos(3);
+		gerarItensEAdicionarAoCarrinho(2);
+		lote = new Item[]{
+				new Item(produtos[2], new BigDecimal("1.5"), 2),
+				new Item(produtos[0], new BigDecimal("3"), 1),
+				new Item(produtos[2], new BigDecimal("2.25"), 4),
+				new Item(produtos[1], new BigDecimal("20"), 0)};
+		carrinhoItemAItem = factory.criar("0002");
+		carrinhoItemAItem.adicionarItensAoCarrinho(geradorDeItems(geradorDeProdutos(2)));
+		for (Item item : lote)
+			carrinhoItemAItem.adicionarItem(item.getProduto(), item.getValorUnitario(), item.getQuantidade());
+		carrinhoCompras.adicionarItensAoCarrinho(lote);
+		Assertions.assertArrayEquals(carrinhoItemAItem.getItens().toArray(), carrinhoCompras.getItens().toArray());
+		Assertions.assertEquals(carrinhoItemAItem.getValorTotal(), carrinhoCompras.getValorTotal());
+
+		itensAntesDoLoteInvalido = carrinhoCompras.getItens().toString();
+		lote[3].setQuantidade(-1);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> carrinhoCompras.adicionarItensAoCarrinho(lote));
+		Assertions.assertEquals(itensAntesDoLoteInvalido, carrinhoCompras.getItens().toString());
+		Assertions.assertEquals(carrinhoItemAItem.getValorTotal(), carrinhoCompras.getValorTotal());
+	}
+
+	/**
+	 * Cenario 13: Testa os instantâneos de getItens com alterações concorrentes
+	 *
+	 * Validação:
+	 * 	Um instantâneo não muda com alterações posteriores, seus itens somam o seu valor total e
+	 * 	correspondem às linhas do carrinho no momento em que foi obtido, e getItens pode ser
+	 * 	percorrido enquanto outra thread altera o carrinho. Os setters dos itens de um
+	 * 	instantâneo lançam UnsupportedOperationException e não alteram o carrinho.
+	 */
+	@Test
+	@Order(13)
+	@DisplayName("Testa os instantâneos de getItens com alterações concorrentes")
+	void lerInstantaneosDuranteAlteracoes() throws Exception
+	{
+		Produto[]			produtos;
+		Random				aleatorio;
+		List<String>		esperado;
+		InstantaneoCarrinho	anterior;
+		String				descricaoAnterior;
+		Thread				escritor;
+		InstantaneoCarrinho	instantaneo;
+		long				versaoAnterior;
+
+		produtos = geradorDeProdutos(3_000);
+		aleatorio = new Random(18);
+		anterior = carrinhoCompras.getInstantaneo();
+		descricaoAnterior = anterior.getItens().toString();
+		for (int i = 0; i < 20_000; i++)
+		{
+			if (aleatorio.nextInt(3) == 0)
+				carrinhoCompras.removerItem(produtos[aleatorio.nextInt(produtos.length)]);
+			else
+				carrinhoCompras.adicionarItem(produtos[aleatorio.nextInt(produtos.length)],
+						BigDecimal.valueOf(aleatorio.nextInt(1_000), aleatorio.nextInt(3)), 1 + aleatorio.nextInt(3));
+			if (i % 997 == 0)
+			{
+				esperado = new ArrayList<>();
+				for (int posicao = 0; carrinhoCompras.getItem(posicao) != null; posicao++)
+					esperado.add(carrinhoCompras.getItem(posicao).toString());
+				Assertions.assertEquals(esperado.toString(), carrinhoCompras.getItens().toString());
+				Assertions.assertEquals(carrinhoCompras.getValorTotal(), carrinhoCompras.getInstantaneo().getValorTotal());
+			}
+		}
+		Assertions.assertTrue(carrinhoCompras.getItens().size() > 1_056);
+		Assertions.assertEquals(descricaoAnterior, anterior.getItens().toString());
+
+		escritor = new Thread(() -> {
+			for (int i = 0; i < 20_000; i++)
+				carrinhoCompras.adicionarItem(produtos[i % produtos.length], BigDecimal.ONE, 1);
+		});
+		escritor.start();
+		versaoAnterior = -1;
+		while (escritor.isAlive())
+		{
+			instantaneo = carrinhoCompras.getInstantaneo();
+			Assertions.assertTrue(instantaneo.getVersao() >= versaoAnterior);
+			versaoAnterior = instantaneo.getVersao();
+			Assertions.assertEquals(0, instantaneo.getValorTotal().compareTo(somarItens(instantaneo.getItens())));
+		}
+		escritor.join();
+
+		instantaneo = carrinhoCompras.getInstantaneo();
+		versaoAnterior = instantaneo.getVersao();
+		Assertions.assertThrows(UnsupportedOperationException.class,
+				() -> carrinhoCompras.getInstantaneo().getItens().iterator().next().setQuantidade(1_000));
+		Assertions.assertThrows(UnsupportedOperationException.class,
+				() -> carrinhoCompras.getInstantaneo().getItens().iterator().next().setValorUnitario(BigDecimal.TEN));
+		Assertions.assertNotEquals(1_000, carrinhoCompras.getItem(0).getQuantidade());
+		Assertions.assertEquals(versaoAnterior, carrinhoCompras.getInstantaneo().getVersao());
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> new CarrinhoCompras().getItens().clear());
+	}
+
+	/**
+	 * Cenario 14: Testa adições concorrentes ao mesmo carrinho com leituras simultâneas
+	 *
+	 * Validação:
+	 * 	Nenhum incremento de quantidade é perdido, o valor total lido nunca diminui e é sempre
+	 * 	múltiplo do valor unitário, e cada instantâneo soma o seu próprio valor total.
+	 */
+	@Test
+	@Order(14)
+	@DisplayName("Testa que adições concorrentes ao mesmo carrinho não perdem incrementos e que as leituras não bloqueiam")
+	void adicionarItensConcorrentemente() throws Exception
+	{
+		Produto[]					produtos;
+		Thread[]					escritores;
+		Thread[]					leitores;
+		CountDownLatch				largada;
+		AtomicBoolean				escrevendo;
+		AtomicReference<Throwable>	falha;
+
+		produtos = geradorDeProdutos(8);
+		escritores = new Thread[8];
+		leitores = new Thread[2];
+		largada = new CountDownLatch(1);
+		escrevendo = new AtomicBoolean(true);
+		falha = new AtomicReference<>();
+		for (int t = 0; t < escritores.length; t++)
+		{
+			escritores[t] = new Thread(() -> {
+				try
+				{
+					largada.await();
+					for (int i = 0; i < 10_000; i++)
+						carrinhoCompras.adicionarItem(produtos[i % produtos.length], new BigDecimal("1.50"), 1);
+				}
+				catch (Throwable e)
+				{
+					falha.compareAndSet(null, e);
+				}
+			});
+			escritores[t].start();
+		}
+		for (int t = 0; t < leitores.length; t++)
+		{
+			leitores[t] = new Thread(() -> {
+				BigDecimal			anterior;
+				BigDecimal			atual;
+				InstantaneoCarrinho	instantaneo;
+
+				try
+				{
+					anterior = BigDecimal.ZERO;
+					while (escrevendo.get())
+					{
+						atual = carrinhoCompras.getValorTotal();
+						Assertions.assertTrue(atual.compareTo(anterior) >= 0, atual + " < " + anterior);
+						Assertions.assertEquals(0, atual.remainder(new BigDecimal("1.50")).signum());
+						anterior = atual;
+						instantaneo = carrinhoCompras.getInstantaneo();
+						Assertions.assertEquals(0, instantaneo.getValorTotal().compareTo(somarItens(instantaneo.getItens())));
+					}
+				}
+				catch (Throwable e)
+				{
+					falha.compareAndSet(null, e);
+				}
+			});
+			leitores[t].start();
+		}
+		largada.countDown();
+		for (Thread escritor : escritores)
+			escritor.join();
+		escrevendo.set(false);
+		for (Thread leitor : leitores)
+			leitor.join();
+
+		Assertions.assertNull(falha.get());
+		Assertions.assertEquals(produtos.length, carrinhoCompras.getItens().size());
+		for (Item item : carrinhoCompras.getItens())
+			Assertions.assertEquals(escritores.length * 10_000 / produtos.length, item.getQuantidade());
+		Assertions.assertEquals(new BigDecimal("120000.00"), carrinhoCompras.getValorTotal());
+		Assertions.assertEquals(0, factory.getValorTicketMedio().compareTo(new BigDecimal("120000.00")));
+	}
+
+	private static BigDecimal somarItens(Iterable<Item> itens)
+	{
+		BigDecimal	soma;
+
+		soma = BigDecimal.ZERO;
+		for (Item item : itens)
+			soma = soma.add(item.getValorTotal());
+		return soma;
+	}
+
 	/**
 	 * Função para gerar novos produtos com valores padrão.
 	 * ex:
@@ -315,11 +611,11 @@ class CarrinhoComprasTest
 	}
 
 	private void incrementarPropriedadeOperacaoMatematica(
-		Item[]	itensAAdicionar,
-		String 	propriedade,
-		int 	valorDaOperacao,
-		char	sinalDaOperacao,
-		Class	classeRetornadaNoMetodo)
+		Item[]		itensAAdicionar,
+		String 		propriedade,
+		int 		valorDaOperacao,
+		char		sinalDaOperacao,
+		Class<?>	classeRetornadaNoMetodo)
 	{
 		int 		numeroDeItens;
 		Object		respostaDoMetodo;
@@ -400,7 +696,7 @@ class CarrinhoComprasTest
 		throw new AttributeNotFoundException();
 	}
 
-	private BigDecimal obterOValorAposOperacao(Object respostaDoMetodo, Class classeRetornadaNoMetodo, int valorDaOperacao, char sinalDaOperacao)
+	private BigDecimal obterOValorAposOperacao(Object respostaDoMetodo, Class<?> classeRetornadaNoMetodo, int valorDaOperacao, char sinalDaOperacao)
 	{
 		BigDecimal numeroAposOperacao;
 
@@ -0,0 +1,72 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@TestMethodOrder(OrderAnnotation.class)
+class CatalogoProdutosTest
+{
+
+	@Test
+	@Order(1)
+	@DisplayName("Testa se carrinhos diferentes compartilham a mesma instancia do produto")
+	void compartilharProdutoEntreCarrinhos()
+	{
+		CarrinhoCompras	primeiro;
+		CarrinhoCompras	segundo;
+		Produto			produto;
+
+		primeiro = new CarrinhoCompras();
+		segundo = new CarrinhoCompras(TipoArmazenamentoItens.PRIMITIVOS);
+		produto = new Produto(9_001_001L, "Caneta");
+		primeiro.adicionarItem(produto, new BigDecimal("2.50"), 1);
+		segundo.adicionarItem(new Produto(9_001_001L, " Caneta "), new BigDecimal("2.50"), 3);
+
+		Assertions.assertSame(produto, segundo.getItens().iterator().next().getProduto());
+		Assertions.assertSame(produto, CatalogoProdutos.COMPARTILHADO.obter(9_001_001L, "Caneta"));
+	}
+
+	@Test
+	@Order(2)
+	@DisplayName("Testa se um produto com outra descricao passa a ser a instancia do catalogo")
+	void substituirProdutoComOutraDescricao()
+	{
+		CatalogoProdutos	catalogo;
+		Produto				original;
+		Produto				renomeado;
+
+		catalogo = new CatalogoProdutos(1);
+		original = catalogo.obter(7L, "Lapis");
+		renomeado = catalogo.canonizar(new Produto(7L, "Lapis preto"));
+
+		Assertions.assertNotSame(original, renomeado);
+		Assertions.assertEquals("Lapis preto", renomeado.getDescricao());
+		Assertions.assertSame(renomeado, catalogo.obter(7L, "Lapis preto"));
+		Assertions.assertEquals(1, catalogo.tamanho());
+	}
+
+	@Test
+	@Order(3)
+	@DisplayName("Testa se o catalogo mantem uma entrada por codigo ao crescer")
+	void crescerCatalogo()
+	{
+		CatalogoProdutos	catalogo;
+		List<Produto>		produtos;
+
+		catalogo = new CatalogoProdutos(4);
+		produtos = new ArrayList<>();
+		for (long codigo = 0; codigo < 10_000; codigo++)
+			produtos.add(catalogo.obter(codigo, "Produto " + codigo));
+		for (long codigo = 0; codigo < 10_000; codigo++)
+			Assertions.assertSame(produtos.get((int) codigo), catalogo.obter(codigo, "Produto " + codigo));
+		Assertions.assertEquals(10_000, catalogo.tamanho());
+	}
+}
@@ -0,0 +1,195 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@TestMethodOrder(OrderAnnotation.class)
+class CodecCarrinhoComprasTest
+{
+
+	@Test
+	@Order(1)
+	@DisplayName("Testa se o carrinho decodificado e igual ao codificado, em buffers diretos e em arrays")
+	void codificarEDecodificarCarrinho()
+	{
+		CarrinhoCompras	decodificado;
+		int				tamanho;
+
+		for (TipoArmazenamentoItens tipo : TipoArmazenamentoItens.values())
+		{
+			CarrinhoCompras	carrinhoCompras = montarCarrinho(tipo);
+
+			tamanho = CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras, true);
+			for (ByteBuffer destino : new ByteBuffer[] { ByteBuffer.allocate(tamanho), ByteBuffer.allocateDirect(tamanho) })
+			{
+				CodecCarrinhoCompras.codificar(carrinhoCompras, destino, true);
+				Assertions.assertFalse(destino.hasRemaining());
+				destino.flip();
+				decodificado = CodecCarrinhoCompras.decodificar(destino, tipo);
+				Assertions.assertFalse(destino.hasRemaining());
+				Assertions.assertEquals(carrinhoCompras.getValorTotal(), decodificado.getValorTotal());
+				Assertions.assertEquals(descrever(carrinhoCompras), descrever(decodificado));
+			}
+		}
+		Assertions.assertThrows(BufferOverflowException.class, () -> {
+			CarrinhoCompras	carrinhoCompras = montarCarrinho(TipoArmazenamentoItens.OBJETOS);
+
+			CodecCarrinhoCompras.codificar(carrinhoCompras,
+					ByteBuffer.allocate(CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras, true) - 1), true);
+		});
+	}
+
+	@Test
+	@Order(2)
+	@DisplayName("Testa se o valor total calculado direto dos bytes e igual ao do carrinho")
+	void calcularValorTotalDosBytes()
+	{
+		CarrinhoCompras	carrinhoCompras;
+		ByteBuffer		comDescricoes;
+		ByteBuffer		semDescricoes;
+
+		carrinhoCompras = montarCarrinho(TipoArmazenamentoItens.PRIMITIVOS);
+		comDescricoes = ByteBuffer.allocateDirect(CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras, true));
+		semDescricoes = ByteBuffer.allocate(CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras, false));
+		CodecCarrinhoCompras.codificar(carrinhoCompras, comDescricoes, true);
+		CodecCarrinhoCompras.codificar(carrinhoCompras, semDescricoes, false);
+		comDescricoes.flip();
+		semDescricoes.flip();
+		Assertions.assertTrue(semDescricoes.remaining() < comDescricoes.remaining());
+		Assertions.assertEquals(carrinhoCompras.getValorTotal(), CodecCarrinhoCompras.calcularValorTotal(comDescricoes));
+		Assertions.assertEquals(carrinhoCompras.getValorTotal(), CodecCarrinhoCompras.calcularValorTotal(semDescricoes));
+		Assertions.assertFalse(comDescricoes.hasRemaining());
+		semDescricoes.rewind();
+		Assertions.assertEquals("", CodecCarrinhoCompras.decodificar(semDescricoes).getItem(0).getProduto().getDescricao());
+	}
+
+	@Test
+	@Order(3)
+	@DisplayName("Testa a codificacao de itens e produtos avulsos e a rejeicao de versoes desconhecidas")
+	void codificarItensEProdutos()
+	{
+		ByteBuffer	buffer;
+		Item		item;
+		Item		decodificado;
+
+		buffer = ByteBuffer.allocate(256);
+		item = new Item(new Produto(-7L, "Cafe ☕"), new BigDecimal("12.3"), 4);
+		CodecCarrinhoCompras.codificar(item, buffer);
+		CodecCarrinhoCompras.codificar(new Item(new Produto(1L, "Sem preco"), null, 0), buffer);
+		CodecCarrinhoCompras.codificar(new Produto(Long.MAX_VALUE, "Maximo"), buffer);
+		buffer.flip();
+		decodificado = CodecCarrinhoCompras.decodificarItem(buffer);
+		Assertions.assertEquals(item, decodificado);
+		Assertions.assertEquals("Cafe ☕", decodificado.getProduto().getDescricao());
+		Assertions.assertEquals(new BigDecimal("49.2"), decodificado.getValorTotal());
+		Assertions.assertNull(CodecCarrinhoCompras.decodificarItem(buffer).getValorUnitario());
+		Assertions.assertEquals(Long.MAX_VALUE, CodecCarrinhoCompras.decodificarProduto(buffer).getCodigo());
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> CodecCarrinhoCompras.decodificarProduto(ByteBuffer.wrap(new byte[] { 9, 0, 0 })));
+	}
+
+	@Test
+	@Order(4)
+	@DisplayName("Testa se dados corrompidos sao rejeitados com as excecoes documentadas")
+	void rejeitarDadosCorrompidos()
+	{
+		// versão, com descrições, escala 0, 1 linha: código 1, 1,00 na escala 2, quantidade 1
+		byte[]	linha = { 1, 1, 0, 2, 2, (byte) 0xC8, 1, 4, 2 };
+
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(concatenar(linha, 6))));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(concatenar(linha, 0, 1))));
+		Assertions.assertThrows(BufferUnderflowException.class,
+				() -> CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(concatenar(linha, 0, 100))));
+		Assertions.assertThrows(BufferUnderflowException.class,
+				() -> CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(Arrays.copyOf(linha, 6))));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> CodecCarrinhoCompras.decodificar(ByteBuffer.wrap(new byte[] { 1, 0, 0, 2, 2, 2, 0, 2 })));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> CodecCarrinhoCompras.decodificarProduto(ByteBuffer.wrap(new byte[] { 1, 0, 2, 1 })));
+	}
+
+	@Test
+	@Order(5)
+	@DisplayName("Testa se valores unitarios com fracoes de centavo voltam exatos dos bytes")
+	void codificarFracoesDeCentavo()
+	{
+		CarrinhoCompras	carrinhoCompras;
+		ByteBuffer		buffer;
+		Item			item;
+
+		for (TipoArmazenamentoItens tipo : TipoArmazenamentoItens.values())
+		{
+			carrinhoCompras = new CarrinhoCompras(tipo);
+			carrinhoCompras.adicionarItem(new Produto(1L, "Parafuso"), new BigDecimal("0.125"), 2);
+			carrinhoCompras.adicionarItem(new Produto(2L, "Porca"), new BigDecimal("0.0049"), 3);
+			carrinhoCompras.adicionarItem(new Produto(3L, "Arruela"), new BigDecimal("1.50"), 1);
+			buffer = ByteBuffer.allocate(CodecCarrinhoCompras.tamanhoCodificado(carrinhoCompras, true));
+			CodecCarrinhoCompras.codificar(carrinhoCompras, buffer, true);
+			Assertions.assertFalse(buffer.hasRemaining());
+			buffer.flip();
+			Assertions.assertEquals(carrinhoCompras.getValorTotal(), CodecCarrinhoCompras.calcularValorTotal(buffer.duplicate()));
+			carrinhoCompras = CodecCarrinhoCompras.decodificar(buffer);
+			Assertions.assertEquals(new BigDecimal("0.125"), carrinhoCompras.getItem(0).getValorUnitario());
+			Assertions.assertEquals(new BigDecimal("0.0049"), carrinhoCompras.getItem(1).getValorUnitario());
+			Assertions.assertEquals(new BigDecimal("1.7647"), carrinhoCompras.getValorTotal());
+		}
+
+		buffer = ByteBuffer.allocate(64);
+		item = new Item(new Produto(1L, "Parafuso"), new BigDecimal("0.125"), 2);
+		CodecCarrinhoCompras.codificar(item, buffer);
+		buffer.flip();
+		Assertions.assertEquals(new BigDecimal("0.250"), CodecCarrinhoCompras.decodificarItem(buffer).getValorTotal());
+		// versão 2, com frações, escala 3, 1 linha: código 1, 0,13 na escala 3 com valor exato 0,124
+		Assertions.assertThrows(IllegalArgumentException.class, () -> CodecCarrinhoCompras.decodificar(
+				ByteBuffer.wrap(new byte[] { 2, 4, 6, 2, 2, 26, 6, 2, 124, 2 })));
+	}
+
+	private static byte[] concatenar(byte[] inicio, int... fim)
+	{
+		byte[]	bytes;
+
+		bytes = Arrays.copyOf(inicio, inicio.length + fim.length);
+		for (int i = 0; i < fim.length; i++)
+			bytes[inicio.length + i] = (byte) fim[i];
+		return bytes;
+	}
+
+	private static CarrinhoCompras montarCarrinho(TipoArmazenamentoItens tipo)
+	{
+		CarrinhoCompras	carrinhoCompras;
+
+		carrinhoCompras = new CarrinhoCompras(tipo);
+		for (int i = 0; i < 300; i++)
+			carrinhoCompras.adicionarItem(new Produto((long) i * 1_000_003 - 150, "Produto " + (i % 7) + " ação"),
+					new BigDecimal(i * 37).movePointLeft(i % 3), 1 + i % 5);
+		carrinhoCompras.adicionarItem(new Produto(5L, "x"), new BigDecimal("1.000"), 1);
+		for (int i = 0; i < 300; i += 3)
+			carrinhoCompras.removerItem(0);
+		return carrinhoCompras;
+	}
+
+	private static List<String> descrever(CarrinhoCompras carrinhoCompras)
+	{
+		List<String>	descricao;
+
+		descricao = new ArrayList<>();
+		for (Item item : carrinhoCompras.getItens())
+			descricao.add(item.getProduto().getCodigo() + "|" + item.getProduto().getDescricao() + "|"
+					+ item.getValorUnitario() + "|" + item.getQuantidade());
+		return descricao;
+	}
+}
@@ -0,0 +1,89 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@TestMethodOrder(OrderAnnotation.class)
+class DinheiroTest
+{
+
+	@Test
+	@Order(1)
+	@DisplayName("Testa se a divisao em centavos arredonda igual a BigDecimal com HALF_UP e escala 2")
+	void dividirIgualABigDecimal()
+	{
+		Random	aleatorio;
+		long	centavos;
+		long	divisor;
+
+		aleatorio = new Random(7);
+		for (int i = 0; i < 100_000; i++)
+		{
+			centavos = aleatorio.nextInt(10_000_000) - (i % 2 == 0 ? 0 : 5_000_000);
+			divisor = 1 + aleatorio.nextInt(i % 10 == 0 ? 3 : 1000);
+			Assertions.assertEquals(
+					Dinheiro.paraBigDecimal(centavos).divide(BigDecimal.valueOf(divisor), 2, RoundingMode.HALF_UP),
+					Dinheiro.paraBigDecimal(Dinheiro.dividirCentavos(centavos, divisor)));
+		}
+	}
+
+	@Test
+	@Order(2)
+	@DisplayName("Testa a conversao entre BigDecimal e centavos")
+	void converterBigDecimal()
+	{
+		Assertions.assertEquals(1050, Dinheiro.de(new BigDecimal("10.5")).getCentavos());
+		Assertions.assertEquals(1050, Dinheiro.de(new BigDecimal("10.5000")).getCentavos());
+		Assertions.assertEquals(new BigDecimal("30"), Dinheiro.paraBigDecimal(3000, 0));
+		Assertions.assertEquals("10.50", Dinheiro.deCentavos(1050).toString());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> Dinheiro.de(new BigDecimal("0.001")));
+	}
+
+	@Test
+	@Order(3)
+	@DisplayName("Testa se as operacoes verificam estouro")
+	void verificarEstouro()
+	{
+		Assertions.assertThrows(ArithmeticException.class,
+				() -> Dinheiro.deCentavos(Long.MAX_VALUE).somar(Dinheiro.deCentavos(1)));
+		Assertions.assertThrows(ArithmeticException.class,
+				() -> Dinheiro.deCentavos(Long.MAX_VALUE / 2).multiplicar(3));
+		Assertions.assertEquals(Dinheiro.deCentavos(334), Dinheiro.deCentavos(1001).dividir(3));
+	}
+
+	@Test
+	@Order(4)
+	@DisplayName("Testa se valores unitarios com fracoes de centavo dao os mesmos resultados de BigDecimal")
+	void manterFracoesDeCentavo()
+	{
+		CarrinhoCompras	carrinhoCompras;
+		Item			item;
+		Produto[]		produtos;
+
+		produtos = CarrinhoComprasTest.geradorDeProdutos(3);
+		item = new Item(produtos[0], new BigDecimal("0.005"), 3);
+		Assertions.assertEquals(new BigDecimal("0.005"), item.getValorUnitario());
+		Assertions.assertEquals(new BigDecimal("0.015"), item.getValorTotal());
+		Assertions.assertEquals(1, item.obterValorUnitarioCentavos());
+		Assertions.assertEquals(new BigDecimal("1.500"), new Item(produtos[0], new BigDecimal("1.500"), 1).getValorUnitario());
+		carrinhoCompras = new CarrinhoCompras();
+		carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("0.004"), 2);
+		carrinhoCompras.adicionarItem(produtos[1], new BigDecimal("10.125"), 1);
+		carrinhoCompras.adicionarItensAoCarrinho(new Item[] { new Item(produtos[2], new BigDecimal("0.335"), 2) });
+		Assertions.assertEquals(new BigDecimal("0.004"), carrinhoCompras.getItem(0).getValorUnitario());
+		Assertions.assertEquals(new BigDecimal("10.125"), carrinhoCompras.getItem(1).getValorUnitario());
+		Assertions.assertEquals(new BigDecimal("10.803"), carrinhoCompras.getValorTotal());
+		carrinhoCompras.getItem(1).setValorUnitario(new BigDecimal("2.499"));
+		Assertions.assertEquals(new BigDecimal("3.177"), carrinhoCompras.getValorTotal());
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("-0.001"), 1));
+	}
+}
@@ -0,0 +1,227 @@
+package br.com.improving.carrinho;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+/**
+ * Testes das promoções aplicadas aos carrinhos de uma fábrica.
+ */
+@TestMethodOrder(OrderAnnotation.class)
+class TabelaPromocoesTest
+{
+	private static final TabelaPromocoes	PROMOCOES = new TabelaPromocoes(
+			RegraPromocao.percentualNoProduto(1, new BigDecimal("10")),
+			RegraPromocao.percentualNaCategoria("bebidas", Arrays.asList(2L, 3L), new BigDecimal("5")),
+			RegraPromocao.percentualPorQuantidade(2, 3, new BigDecimal("20")),
+			RegraPromocao.percentualPorQuantidade(2, 10, new BigDecimal("30")),
+			RegraPromocao.descontoAcimaDe(new BigDecimal("40.00"), new BigDecimal("3.00")),
+			RegraPromocao.descontoAcimaDe(new BigDecimal("100.00"), new BigDecimal("15.00")));
+
+	private static final TabelaPromocoes	OUTRAS_PROMOCOES = new TabelaPromocoes(
+			RegraPromocao.percentualNaCategoria("todos", Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), new BigDecimal("12.5")),
+			RegraPromocao.percentualPorQuantidade(4, 2, new BigDecimal("50")),
+			RegraPromocao.descontoAcimaDe(new BigDecimal("0.00"), new BigDecimal("1.00")));
+
+	/**
+	 * Cenario 1: Aplica promoções de produto, categoria, faixa de quantidade e valor do carrinho e
+	 * altera as linhas.
+	 *
+	 * Validação:
+	 * 	Cada linha recebe o maior percentual entre as regras do seu produto, o carrinho recebe o
+	 * 	desconto da maior faixa de valor atingida e o valor total sem desconto não muda. Carrinhos
+	 * 	sem fábrica não têm desconto.
+	 */
+	@Test
+	@Order(1)
+	@DisplayName("Testa o valor total com desconto de cada tipo de promoção")
+	void aplicarPromocoes()
+	{
+		CarrinhoComprasFactory	factory;
+		CarrinhoCompras			carrinhoCompras;
+		CarrinhoCompras			carrinhoAvulso;
+		Produto[]				produtos;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory().comPromocoes(PROMOCOES));
+		carrinhoCompras = factory.criar("cliente");
+		produtos = CarrinhoComprasTest.geradorDeProdutos(4);
+		carrinhoCompras.adicionarItem(produtos[0], new BigDecimal("10.00"), 2);
+		carrinhoCompras.adicionarItem(produtos[1], new BigDecimal("5.00"), 4);
+		carrinhoCompras.adicionarItem(produtos[2], new BigDecimal("7.50"), 1);
+		carrinhoCompras.adicionarItem(produtos[3], new BigDecimal("3.33"), 3);
+		Assertions.assertEquals(new BigDecimal("57.49"), carrinhoCompras.getValorTotal());
+		Assertions.assertEquals(new BigDecimal("48.11"), carrinhoCompras.getValorTotalComDesconto());
+		carrinhoCompras.getItem(1).setQuantidade(10);
+		Assertions.assertEquals(new BigDecimal("67.11"), carrinhoCompras.getValorTotalComDesconto());
+		carrinhoCompras.removerItem(produtos[0]);
+		Assertions.assertEquals(new BigDecimal("67.49"), carrinhoCompras.getValorTotal());
+		Assertions.assertEquals(new BigDecimal("49.11"), carrinhoCompras.getValorTotalComDesconto());
+		Assertions.assertEquals(new BigDecimal("67.49"), factory.getValorTicketMedio());
+		carrinhoAvulso = new CarrinhoCompras();
+		carrinhoAvulso.adicionarItem(produtos[0], new BigDecimal("10.00"), 2);
+		Assertions.assertEquals(new BigDecimal("20.00"), carrinhoAvulso.getValorTotalComDesconto());
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> RegraPromocao.percentualNoProduto(1, new BigDecimal("100.01")));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> RegraPromocao.percentualNoProduto(1, new BigDecimal("1.234")));
+	}
+
+	/**
+	 * Cenario 2: Aplica uma sequência aleatória de operações a um carrinho, trocando a tabela de
+	 * promoções da fábrica durante a sequência.
+	 *
+	 * Validação:
+	 * 	Após cada operação o valor total com desconto mantido pelo carrinho é igual ao calculado
+	 * 	sobre todas as linhas com a tabela vigente.
+	 */
+	@Test
+	@Order(2)
+	@DisplayName("Testa se os descontos mantidos a cada alteração são iguais aos recalculados")
+	void manterDescontosIncrementalmente()
+	{
+		CarrinhoComprasFactory	factory;
+		CarrinhoCompras			carrinhoCompras;
+		TabelaPromocoes[]		tabelas;
+		Random					aleatorio;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory().comPromocoes(PROMOCOES));
+		carrinhoCompras = factory.criar("cliente");
+		tabelas = new TabelaPromocoes[] { PROMOCOES, OUTRAS_PROMOCOES, null };
+		aleatorio = new Random(17);
+		for (int i = 0; i < 10_000; i++)
+		{
+			if (i % 500 == 499)
+				factory.definirPromocoes(tabelas[aleatorio.nextInt(tabelas.length)]);
+			alterarAleatoriamente(carrinhoCompras, aleatorio);
+			Assertions.assertEquals(Dinheiro.paraBigDecimal(valorComDesconto(carrinhoCompras, factory.getPromocoes())),
+					carrinhoCompras.getValorTotalComDesconto());
+		}
+	}
+
+	/**
+	 * Cenario 3: Troca a tabela de promoções repetidamente enquanto várias threads alteram os
+	 * carrinhos da fábrica, configurada com o ticket médio com desconto.
+	 *
+	 * Validação:
+	 * 	Ao final, cada carrinho tem o desconto da última tabela e o ticket médio é a média dos
+	 * 	valores totais com desconto.
+	 */
+	@Test
+	@Order(3)
+	@DisplayName("Testa a troca da tabela de promoções com os carrinhos sendo alterados")
+	void trocarPromocoesConcorrentemente() throws InterruptedException
+	{
+		CarrinhoComprasFactory		factory;
+		Thread[]					escritores;
+		CountDownLatch				largada;
+		AtomicBoolean				parar;
+		AtomicReference<Throwable>	falha;
+		long						soma;
+		long						esperado;
+
+		factory = new CarrinhoComprasFactory(new ConfiguracaoCarrinhoComprasFactory()
+				.comPromocoes(PROMOCOES)
+				.comTicketMedioComDesconto());
+		escritores = new Thread[4];
+		largada = new CountDownLatch(1);
+		parar = new AtomicBoolean();
+		falha = new AtomicReference<>();
+		for (int t = 0; t < escritores.length; t++)
+		{
+			final int semente = t;
+
+			escritores[t] = new Thread(() -> {
+				Random aleatorio = new Random(semente);
+
+				try
+				{
+					largada.await();
+					while (!parar.get())
+						alterarAleatoriamente(factory.criar("cliente-" + aleatorio.nextInt(8)), aleatorio);
+				}
+				catch (Throwable e)
+				{
+					falha.compareAndSet(null, e);
+				}
+			});
+			escritores[t].start();
+		}
+		largada.countDown();
+		for (int i = 0; i < 200; i++)
+		{
+			factory.definirPromocoes(i % 2 == 0 ? OUTRAS_PROMOCOES : PROMOCOES);
+			Thread.sleep(1);
+		}
+		parar.set(true);
+		for (Thread escritor : escritores)
+			escritor.join();
+		Assertions.assertNull(falha.get());
+		soma = 0;
+		for (CarrinhoCompras carrinhoCompras : factory.conjuntoCarrinhoCompras.values())
+		{
+			esperado = valorComDesconto(carrinhoCompras, PROMOCOES);
+			Assertions.assertEquals(Dinheiro.paraBigDecimal(esperado), carrinhoCompras.getValorTotalComDesconto());
+			soma += esperado;
+		}
+		Assertions.assertEquals(Dinheiro.paraBigDecimal(
+				Dinheiro.dividirCentavos(soma, factory.conjuntoCarrinhoCompras.size())), factory.getValorTicketMedio());
+	}
+
+	private static void alterarAleatoriamente(CarrinhoCompras carrinhoCompras, Random aleatorio)
+	{
+		Produto[]	produtos;
+		Item		item;
+		int			operacao;
+
+		produtos = CarrinhoComprasTest.geradorDeProdutos(6);
+		operacao = aleatorio.nextInt(10);
+		if (operacao < 5)
+			carrinhoCompras.adicionarItem(produtos[aleatorio.nextInt(produtos.length)],
+					BigDecimal.valueOf(aleatorio.nextInt(5_000), 2), 1 + aleatorio.nextInt(4));
+		else if (operacao < 6)
+			carrinhoCompras.adicionarItensAoCarrinho(new Item[] {
+					new Item(produtos[aleatorio.nextInt(produtos.length)], BigDecimal.valueOf(aleatorio.nextInt(5_000), 2), 2),
+					new Item(produtos[aleatorio.nextInt(produtos.length)], BigDecimal.valueOf(aleatorio.nextInt(500)), 3) });
+		else if (operacao < 8)
+			carrinhoCompras.removerItem(produtos[aleatorio.nextInt(produtos.length)]);
+		else
+		{
+			item = carrinhoCompras.getItem(0);
+			if (item != null)
+				item.setQuantidade(aleatorio.nextInt(12));
+		}
+	}
+
+	/**
+	 * Calcula o valor total com desconto a partir de todas as linhas do carrinho.
+	 */
+	private static long valorComDesconto(CarrinhoCompras carrinhoCompras, TabelaPromocoes promocoes)
+	{
+		long	total;
+		long	descontoLinhas;
+		long	valorLinha;
+
+		total = 0;
+		descontoLinhas = 0;
+		for (Item item : carrinhoCompras.getItens())
+		{
+			valorLinha = Dinheiro.centavosDe(item.getValorTotal());
+			total += valorLinha;
+			if (promocoes != null)
+				descontoLinhas += promocoes.descontoLinha(item.getProduto().getCodigo(), valorLinha, item.getQuantidade());
+		}
+		if (promocoes == null)
+			return total;
+		return total - descontoLinhas - promocoes.descontoCarrinho(total - descontoLinhas);
+	}
+}